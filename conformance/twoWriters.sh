@@ -0,0 +1,5 @@
+#!/bin/sh
+# Runs the given binding test app twice (one process after the other), so that
+# two processes of a single test report over the same result channel
+"$@"
+"$@"
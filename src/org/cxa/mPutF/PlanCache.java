@@ -0,0 +1,186 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * An on-disk cache of the parsed (and validated) plan of a test suite
+ * (see {@link TestSuite#parseTestSuite(File, File, TestFilter, File)}), so
+ * large configurations don't have to be parsed again on every run.
+ * <p>
+ * The cache holds a header identifying the configuration it was created
+ * from (path, working directory, modification time, size and SHA-256 hash)
+ * followed by the plan itself and its CRC32. A cache is only used if the
+ * configuration is unchanged: if its modification time or size differ, the
+ * configuration is hashed and the cache is still used if the hash matches
+ * (eg. after a fresh checkout).
+ * <p>
+ * Note: files referenced by the configuration (eg. expected output) are
+ * not part of the key...only their paths are cached.
+ *
+ * @author Christopher Armenio
+ */
+class PlanCache
+{
+	private static final int FILE_MAGIC = 0x6D505043;			// 'mPPC'
+	private static final int FILE_VERSION = 1;
+
+
+	private static Logger staticLogger = LogManager.getLogger("PlanCache");
+
+
+	/**
+	 * Reads the plan cached for the given configuration
+	 *
+	 * @param cacheFileIn the cache file
+	 * @param xmlFileIn the configuration file
+	 *
+	 * @return the cached plan, or NULL if there is no (valid) plan for the configuration as it is now
+	 */
+	static byte[] load(File cacheFileIn, File xmlFileIn)
+	{
+		if( !cacheFileIn.isFile() ) return null;
+
+		try( DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFileIn))) )
+		{
+			if( (dis.readInt() != FILE_MAGIC) || (dis.readInt() != FILE_VERSION) ) return invalid(cacheFileIn, "unknown format");
+			if( !dis.readUTF().equals(xmlFileIn.getAbsolutePath()) ) return invalid(cacheFileIn, "different configuration");
+			if( !dis.readUTF().equals(getWorkingDir()) ) return invalid(cacheFileIn, "different working directory");
+
+			long lastModified = dis.readLong();
+			long length = dis.readLong();
+			byte[] hash = new byte[32];
+			dis.readFully(hash);
+			if( ((lastModified != xmlFileIn.lastModified()) || (length != xmlFileIn.length())) && !Arrays.equals(hash, hashFile(xmlFileIn)) )
+			{
+				return invalid(cacheFileIn, "configuration changed");
+			}
+
+			byte[] retVal = new byte[dis.readInt()];
+			dis.readFully(retVal);
+			CRC32 crc = new CRC32();
+			crc.update(retVal);
+			if( (int)crc.getValue() != dis.readInt() ) return invalid(cacheFileIn, "corrupt");
+
+			staticLogger.trace(String.format("using cached plan '%s'", cacheFileIn.getAbsolutePath()));
+			return retVal;
+		}
+		catch( EOFException e )
+		{
+			return invalid(cacheFileIn, "truncated");
+		}
+		catch( IOException | OutOfMemoryError e )
+		{
+			return invalid(cacheFileIn, e.toString());
+		}
+	}
+
+
+	/**
+	 * Caches the plan of the given configuration (replacing any previous cache).
+	 * Failures are logged, but otherwise ignored (the cache is an optimization).
+	 *
+	 * @param cacheFileIn the cache file
+	 * @param xmlFileIn the configuration file from which the plan was created
+	 * @param planIn the plan
+	 */
+	static void save(File cacheFileIn, File xmlFileIn, byte[] planIn)
+	{
+		// write to a temporary file first, so concurrent runs never see a partial cache
+		File absCacheFile = cacheFileIn.getAbsoluteFile();
+		File tmpFile = new File(absCacheFile.getParentFile(), String.format(".%s.%d.tmp", absCacheFile.getName(), System.nanoTime()));
+		try
+		{
+			if( !absCacheFile.getParentFile().exists() ) absCacheFile.getParentFile().mkdirs();
+			try( DataOutputStream dos = new DataOutputStream(new FileOutputStream(tmpFile)) )
+			{
+				dos.writeInt(FILE_MAGIC);
+				dos.writeInt(FILE_VERSION);
+				dos.writeUTF(xmlFileIn.getAbsolutePath());
+				dos.writeUTF(getWorkingDir());
+				dos.writeLong(xmlFileIn.lastModified());
+				dos.writeLong(xmlFileIn.length());
+				dos.write(hashFile(xmlFileIn));
+				dos.writeInt(planIn.length);
+				dos.write(planIn);
+				CRC32 crc = new CRC32();
+				crc.update(planIn);
+				dos.writeInt((int)crc.getValue());
+			}
+			if( !tmpFile.renameTo(absCacheFile) )
+			{
+				if( !absCacheFile.delete() || !tmpFile.renameTo(absCacheFile) ) throw new IOException("unable to replace previous cache");
+			}
+			staticLogger.trace(String.format("saved plan to '%s'", absCacheFile.getAbsolutePath()));
+		}
+		catch( IOException e )
+		{
+			staticLogger.warn(String.format("unable to save plan cache '%s': %s", absCacheFile.getAbsolutePath(), e.getMessage()));
+			tmpFile.delete();
+		}
+	}
+
+
+	private static byte[] invalid(File cacheFileIn, String reasonIn)
+	{
+		staticLogger.trace(String.format("ignoring plan cache '%s' (%s)", cacheFileIn.getAbsolutePath(), reasonIn));
+		return null;
+	}
+
+
+	private static String getWorkingDir()
+	{
+		return new File("").getAbsolutePath();
+	}
+
+
+	private static byte[] hashFile(File fileIn) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch( NoSuchAlgorithmException e )
+		{
+			throw new IOException(e.getMessage());
+		}
+
+		try( InputStream is = new FileInputStream(fileIn) )
+		{
+			byte[] buf = new byte[64 * 1024];
+			int numBytesRead;
+			while( (numBytesRead = is.read(buf)) != -1 ) digest.update(buf, 0, numBytesRead);
+		}
+		return digest.digest();
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A class which decides, at parse time, which tests of a {@link TestSuite}
+ * should be created (and thus run). Tests are selected by:
+ * <ul>
+ * <li>name (glob patterns, or regular expressions prefixed with {@value #REGEX_PREFIX})</li>
+ * <li>tags (the comma-separated <code>tags</code> attribute of a test)</li>
+ * <li>impact (the comma-separated <code>sources</code> globs of a test, matched
+ * 		against a list of changed files)</li>
+ * </ul>
+ * A filter with no criteria accepts every test.
+ *
+ * @author Christopher Armenio
+ */
+public class TestFilter
+{
+	public static final String REGEX_PREFIX = "re:";
+
+
+	private final List<Pattern> includes = new ArrayList<Pattern>();
+	private final List<Pattern> excludes = new ArrayList<Pattern>();
+	private final Set<String> includeTags = new HashSet<String>();
+	private final Set<String> excludeTags = new HashSet<String>();
+	private List<String> changedFiles = null;
+	private final Map<String, Pattern> sourcePatterns = new HashMap<String, Pattern>();
+
+
+	/**
+	 * Adds a pattern which test names must match (if any include patterns
+	 * are present, a test must match at least one of them)
+	 *
+	 * @param patternIn a glob pattern, or a regular expression prefixed with {@value #REGEX_PREFIX}
+	 *
+	 * @throws IllegalArgumentException if the pattern is not a valid regular expression
+	 */
+	public void addInclude(String patternIn)
+	{
+		this.includes.add(compileNamePattern(patternIn));
+	}
+
+
+	/**
+	 * Adds a pattern which excludes matching test names (takes precedence over includes)
+	 *
+	 * @param patternIn a glob pattern, or a regular expression prefixed with {@value #REGEX_PREFIX}
+	 *
+	 * @throws IllegalArgumentException if the pattern is not a valid regular expression
+	 */
+	public void addExclude(String patternIn)
+	{
+		this.excludes.add(compileNamePattern(patternIn));
+	}
+
+
+	/**
+	 * Adds a tag which tests must carry (if any include tags are present, a
+	 * test must carry at least one of them)
+	 *
+	 * @param tagIn the tag
+	 */
+	public void addIncludeTag(String tagIn)
+	{
+		this.includeTags.add(tagIn);
+	}
+
+
+	/**
+	 * Adds a tag which excludes any test carrying it (takes precedence over include tags)
+	 *
+	 * @param tagIn the tag
+	 */
+	public void addExcludeTag(String tagIn)
+	{
+		this.excludeTags.add(tagIn);
+	}
+
+
+	/**
+	 * Enables impact-based selection: only tests which declare a source path
+	 * matching one of the given files (or which declare no source paths at all,
+	 * since they cannot be proven unaffected) are accepted
+	 *
+	 * @param changedFilesIn the changed files (eg. the output of <code>git diff --name-only</code>)
+	 */
+	public void setChangedFiles(Collection<String> changedFilesIn)
+	{
+		this.changedFiles = new ArrayList<String>();
+		for( String currFile : changedFilesIn )
+		{
+			String normalizedFile = normalizePath(currFile);
+			if( !normalizedFile.isEmpty() ) this.changedFiles.add(normalizedFile);
+		}
+	}
+
+
+	/**
+	 * Determines whether a test with the given name should be created
+	 * (only the name include/exclude patterns are considered)
+	 *
+	 * @param testNameIn the name of the test
+	 *
+	 * @return true if the test name passes the name filters
+	 */
+	public boolean acceptsName(String testNameIn)
+	{
+		if( testNameIn == null ) return true;			// let the test parser report the missing name
+
+		for( Pattern currPattern : this.excludes )
+		{
+			if( currPattern.matcher(testNameIn).matches() ) return false;
+		}
+		if( this.includes.isEmpty() ) return true;
+		for( Pattern currPattern : this.includes )
+		{
+			if( currPattern.matcher(testNameIn).matches() ) return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Determines whether a test with the given tags and sources should be
+	 * created (the name filters are not considered)
+	 *
+	 * @param tagsIn the tags of the test (may be empty)
+	 * @param sourcesIn the source path globs of the test (may be empty)
+	 *
+	 * @return true if the test passes the tag and impact filters
+	 */
+	public boolean acceptsAttributes(Collection<String> tagsIn, Collection<String> sourcesIn)
+	{
+		// tag filters
+		for( String currTag : tagsIn )
+		{
+			if( this.excludeTags.contains(currTag) ) return false;
+		}
+		if( !this.includeTags.isEmpty() )
+		{
+			boolean isIncluded = false;
+			for( String currTag : tagsIn )
+			{
+				if( this.includeTags.contains(currTag) ) { isIncluded = true; break; }
+			}
+			if( !isIncluded ) return false;
+		}
+
+		// impact filter
+		if( (this.changedFiles != null) && !sourcesIn.isEmpty() )
+		{
+			for( String currSource : sourcesIn )
+			{
+				Pattern sourcePattern = this.getSourcePattern(currSource);
+				for( String currFile : this.changedFiles )
+				{
+					if( sourcePattern.matcher(currFile).matches() ) return true;
+				}
+			}
+			return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Reads a list of changed files, one per line
+	 *
+	 * @param fileIn the file to read, or NULL to read from stdin
+	 *
+	 * @return the (non-empty) lines of the file
+	 * @throws IOException on error reading the file
+	 */
+	public static List<String> readChangedFiles(File fileIn) throws IOException
+	{
+		List<String> retVal = new ArrayList<String>();
+		Reader reader = (fileIn == null) ? new InputStreamReader(System.in) : new FileReader(fileIn);
+		try( BufferedReader br = new BufferedReader(reader) )
+		{
+			String currLine;
+			while( (currLine = br.readLine()) != null )
+			{
+				if( !currLine.trim().isEmpty() ) retVal.add(currLine.trim());
+			}
+		}
+		return retVal;
+	}
+
+
+	/**
+	 * Splits a comma-separated attribute/option value into its (trimmed, non-empty) elements
+	 *
+	 * @param valueIn the comma-separated value (may be NULL)
+	 *
+	 * @return the elements of the value (empty if valueIn is NULL)
+	 */
+	public static List<String> splitList(String valueIn)
+	{
+		List<String> retVal = new ArrayList<String>();
+		if( valueIn == null ) return retVal;
+
+		for( String currElement : valueIn.split(",") )
+		{
+			if( !currElement.trim().isEmpty() ) retVal.add(currElement.trim());
+		}
+		return retVal;
+	}
+
+
+	private Pattern getSourcePattern(String sourceIn)
+	{
+		// many tests (eg. all cases of a matrix) share the same sources...each glob is compiled once
+		Pattern retVal = this.sourcePatterns.get(sourceIn);
+		if( retVal == null )
+		{
+			String normalizedSource = normalizePath(sourceIn);
+			if( normalizedSource.endsWith("/") ) normalizedSource += "**";
+			retVal = Pattern.compile(globToRegex(normalizedSource));
+			this.sourcePatterns.put(sourceIn, retVal);
+		}
+		return retVal;
+	}
+
+
+	private static Pattern compileNamePattern(String patternIn)
+	{
+		try
+		{
+			if( patternIn.startsWith(REGEX_PREFIX) ) return Pattern.compile(patternIn.substring(REGEX_PREFIX.length()));
+			return Pattern.compile(globToRegex(patternIn));
+		}
+		catch( PatternSyntaxException e )
+		{
+			throw new IllegalArgumentException(String.format("invalid pattern '%s': %s", patternIn, e.getDescription()));
+		}
+	}
+
+
+	private static String normalizePath(String pathIn)
+	{
+		String retVal = pathIn.trim().replace('\\', '/');
+		while( retVal.startsWith("./") ) retVal = retVal.substring(2);
+		return retVal;
+	}
+
+
+	/**
+	 * Converts a glob ('**' matches across '/', '*' and '?' do not) to a regular expression
+	 */
+	private static String globToRegex(String globIn)
+	{
+		StringBuilder retVal = new StringBuilder();
+		for( int i = 0; i < globIn.length(); i++ )
+		{
+			char currChar = globIn.charAt(i);
+			switch( currChar )
+			{
+				case '*':
+					if( (i+1 < globIn.length()) && (globIn.charAt(i+1) == '*') )
+					{
+						retVal.append(".*");
+						i++;
+					}
+					else retVal.append("[^/]*");
+					break;
+
+				case '?':
+					retVal.append("[^/]");
+					break;
+
+				default:
+					if( "\\.[]{}()+-^$|".indexOf(currChar) != -1 ) retVal.append('\\');
+					retVal.append(currChar);
+					break;
+			}
+		}
+		return retVal.toString();
+	}
+}
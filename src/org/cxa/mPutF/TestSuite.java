@@ -15,31 +15,57 @@
  */
 package org.cxa.mPutF;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.flakiness.FlakinessDatabase;
+import org.cxa.mPutF.history.ResultStore;
+import org.cxa.mPutF.journal.RunJournal;
+import org.cxa.mPutF.report.FailureClusters;
+import org.cxa.mPutF.report.HotspotSummary;
+import org.cxa.mPutF.report.JUnitXmlReportWriter;
+import org.cxa.mPutF.report.ReportWriter;
+import org.cxa.mPutF.report.RunSummary;
+import org.cxa.mPutF.search.OutputIndex;
+import org.cxa.mPutF.tests.Fixture;
+import org.cxa.mPutF.tests.RetryPolicy;
+import org.cxa.mPutF.tests.SoakRunner;
 import org.cxa.mPutF.tests.Test;
 import org.cxa.mPutF.tests.Test.TestResult;
+import org.cxa.mPutF.tests.TestCaseResult;
+import org.cxa.mPutF.tests.TestMatrix;
+import org.cxa.mPutF.tests.TimeBudget;
+import org.cxa.mPutF.tests.localProcess.Profiler;
 import org.cxa.timeUtils.TimeDiff;
 import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
@@ -58,76 +84,649 @@ public class TestSuite
 	private static Logger staticLogger = LogManager.getLogger("TestSuiteParser");
 	
 	
+	/**
+	 * A test definition (a single test or a test matrix) along with the
+	 * fixtures and test definitions on which it depends (and, while the
+	 * suite is running, its progress)
+	 */
+	private static class TestSource
+	{
+		final String name;
+		final Iterable<Test> tests;
+		final List<Fixture> fixtures;
+		final List<String> dependsOn;
+		final Integer maxTestTime_s;
+		
+		int index;
+		final List<TestSource> dependents = new ArrayList<TestSource>();
+		int numPendingDependencies;
+		String skipReason;
+		Iterator<Test> testIterator;
+		int numRunning;
+		boolean isPassed;
+		boolean isInReadyQueue;
+		final List<TestCaseResult> results = new ArrayList<TestCaseResult>();
+		
+		TestSource(String nameIn, Iterable<Test> testsIn, List<Fixture> fixturesIn, List<String> dependsOnIn)
+		{
+			this.name = nameIn;
+			this.tests = testsIn;
+			this.fixtures = fixturesIn;
+			this.dependsOn = dependsOnIn;
+			
+			// (as declared...used to prioritize definitions when the run has a time budget)
+			if( testsIn instanceof TestMatrix ) this.maxTestTime_s = ((TestMatrix)testsIn).getMaxTestTime_s();
+			else
+			{
+				Iterator<Test> testIterator = testsIn.iterator();
+				this.maxTestTime_s = testIterator.hasNext() ? testIterator.next().getMaxTextTime_s() : null;
+			}
+		}
+	}
+	
+	
+	/**
+	 * A single test handed to the worker pool (returns itself once run)
+	 */
+	private class ScheduledTest implements Callable<ScheduledTest>
+	{
+		final TestSource source;
+		final int resultIndex;
+		final Test test;
+		TestCaseResult result = null;
+		
+		ScheduledTest(TestSource sourceIn, int resultIndexIn, Test testIn)
+		{
+			this.source = sourceIn;
+			this.resultIndex = resultIndexIn;
+			this.test = testIn;
+		}
+		
+		@Override
+		public ScheduledTest call() throws IOException
+		{
+			if( (timeBudget != null) && timeBudget.isExhausted() )
+			{
+				// not journaled...the test should run if the run is resumed
+				this.result = new TestCaseResult(this.test.getName());
+				this.result.setSkipped(timeBudget.getExhaustedMessage());
+				return this;
+			}
+			
+			String fixtureError = acquireFixtures(this.source.fixtures);
+			if( fixtureError != null )
+			{
+				// not journaled...the test should run if the run is resumed
+				getLogger().trace(String.format("'%s' not run: %s", this.test.getName(), fixtureError));
+				this.result = new TestCaseResult(this.test.getName());
+				this.result.setError(TestCaseResult.ERROR_TYPE_FIXTURE, fixtureError);
+				return this;
+			}
+			
+			this.test.setTimeBudget(timeBudget);
+			this.test.setMeasureResourceUsage(resultStore != null);
+			this.result = runTest(this.test);
+			
+			// a test stopped by the time budget should run if the run is resumed
+			if( (journal != null) && !isBudgetExhausted(this.result) ) journal.record(this.source.index, this.resultIndex, this.result);
+			return this;
+		}
+	}
+	
+	
 	private final String name;
-	private final List<Test> tests;
-	private final File outputFilePath;
+	private final List<TestSource> tests;
+	private final List<Fixture> fixtures;
+	private final List<ReportWriter> reportWriters = new ArrayList<ReportWriter>();
+	private final File outputFile;
+	private FlakinessDatabase flakinessDb = null;
+	private ResultStore resultStore = null;
+	private OutputIndex outputIndex = null;
+	private RunJournal journal = null;
+	private SoakRunner soakRunner = null;
+	private int parallelism = 1;
+	private Integer timeBudget_s = null;
+	private TimeBudget timeBudget = null;
 	private Logger logger = null;
 	
 	
-	private TestSuite(String nameIn, List<Test> testsIn, File outputFilePathIn)
+	private TestSuite(String nameIn, List<TestSource> testsIn, List<Fixture> fixturesIn, File outputFilePathIn)
 	{
 		this.name = nameIn;
 		this.tests = testsIn;
-		this.outputFilePath = outputFilePathIn;
+		this.fixtures = fixturesIn;
+		this.outputFile = outputFilePathIn;
+		this.reportWriters.add(new JUnitXmlReportWriter(outputFilePathIn));
 		
-		this.logger = LogManager.getLogger(String.format("%s::%s", this.getClass().getSimpleName(), this.name));
-		this.logger.trace("test suite instance created");
+		// dependencies which aren't part of this run (eg. filtered) are considered satisfied
+		Map<String, List<TestSource>> sourcesByName = new HashMap<String, List<TestSource>>();
+		for( int i = 0; i < testsIn.size(); i++ )
+		{
+			TestSource currSource = testsIn.get(i);
+			currSource.index = i;
+			if( !sourcesByName.containsKey(currSource.name) ) sourcesByName.put(currSource.name, new ArrayList<TestSource>());
+			sourcesByName.get(currSource.name).add(currSource);
+		}
+		for( TestSource currSource : testsIn )
+		{
+			for( String currDependency : currSource.dependsOn )
+			{
+				List<TestSource> dependencies = sourcesByName.get(currDependency);
+				if( dependencies == null ) continue;
+				for( TestSource currDependencySource : dependencies ) currDependencySource.dependents.add(currSource);
+			}
+		}
+	}
+	
+	
+	private Logger getLogger()
+	{
+		if( this.logger == null ) this.logger = LogManager.getLogger(String.format("%s::%s", this.getClass().getSimpleName(), this.name));
+		return this.logger;
 	}
 	
 	
 	/**
-	 * Runs all contained tests and outputs the result to the XML file
-	 * specified in the command-line arguments
+	 * Sets the database used to track the flakiness of each test across runs.
+	 * Non-passing results of tests which the database considers flaky are
+	 * quarantined (reported as skipped) rather than counted as failures/errors.
 	 * 
-	 * @throws ParserConfigurationException on error creating XML output file
-	 * @throws TransformerFactoryConfigurationError on error creating XML output file
-	 * @throws TransformerException on error creating XML output file
+	 * @param dbIn the flakiness database, or NULL to disable flakiness tracking
 	 */
-	public void runAllTests() throws ParserConfigurationException, TransformerFactoryConfigurationError, TransformerException
+	public void setFlakinessDatabase(FlakinessDatabase dbIn)
+	{
+		this.flakinessDb = dbIn;
+	}
+	
+	
+	/**
+	 * Sets the store to which the results of each run are appended
+	 * (for fast historical queries)
+	 * 
+	 * @param storeIn the result store, or NULL to disable
+	 */
+	public void setResultStore(ResultStore storeIn)
+	{
+		this.resultStore = storeIn;
+	}
+	
+	
+	/**
+	 * Sets the index to which the output (and assertions) of each run are
+	 * added (for searching the output of past runs)
+	 * 
+	 * @param indexIn the output index, or NULL to disable
+	 */
+	public void setOutputIndex(OutputIndex indexIn)
+	{
+		this.outputIndex = indexIn;
+	}
+	
+	
+	/**
+	 * Sets the journal to which the result of each test is appended as soon
+	 * as the test completes. Tests already completed according to the journal
+	 * (ie. when resuming a run) are not run again...their journaled results are
+	 * reported instead.
+	 * 
+	 * @param journalIn the journal, or NULL to disable
+	 */
+	public void setJournal(RunJournal journalIn)
+	{
+		this.journal = journalIn;
+	}
+	
+	
+	/**
+	 * Sets the maximum number of tests run concurrently. Tests are started
+	 * in the order in which they are defined, as soon as all of the tests on
+	 * which they depend (see <code>dependsOn</code>) have completed.
+	 * 
+	 * @param parallelismIn the maximum number of concurrent tests (1 to run tests one at a time)
+	 */
+	public void setParallelism(int parallelismIn)
+	{
+		if( parallelismIn < 1 ) throw new IllegalArgumentException("parallelism must be at least 1");
+		this.parallelism = parallelismIn;
+	}
+	
+	
+	/**
+	 * Sets the maximum amount of time the whole run may take. Once
+	 * the budget is exhausted, tests still running are stopped and tests which
+	 * have not started are skipped. While the budget lasts, ready tests with
+	 * the shortest (declared) maximum time are started first, so that as many
+	 * tests as possible complete.
+	 * 
+	 * @param budget_sIn the time budget in seconds, or NULL if the run is not limited
+	 */
+	public void setTimeBudget_s(Integer budget_sIn)
+	{
+		if( (budget_sIn != null) && (budget_sIn < 1) ) throw new IllegalArgumentException("time budget must be at least 1 second");
+		this.timeBudget_s = budget_sIn;
+	}
+	
+	
+	/**
+	 * Adds a writer to which the results of each run are reported, in
+	 * addition to the XML file specified in the command-line arguments
+	 * 
+	 * @param writerIn the report writer
+	 */
+	public void addReportWriter(ReportWriter writerIn)
+	{
+		this.reportWriters.add(writerIn);
+	}
+	
+	
+	/**
+	 * Sets the runner used to soak each test (ie. run many concurrent copies
+	 * of the test until one of them does not pass). Tests which can not be run
+	 * concurrently (see {@link Test#isRepeatable()}) are run once, as usual.
+	 * 
+	 * @param runnerIn the soak runner, or NULL to run each test once
+	 */
+	public void setSoakRunner(SoakRunner runnerIn)
+	{
+		this.soakRunner = runnerIn;
+	}
+	
+	
+	/**
+	 * @return the name of this test suite
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+	
+	
+	/**
+	 * Runs all contained tests and reports the results to each report writer
+	 * (including the XML file specified in the command-line arguments)
+	 * 
+	 * @throws IOException on error writing a report or saving the flakiness database, result store or journal
+	 * @throws InterruptedException if interrupted while waiting for tests to complete
+	 */
+	public void runAllTests() throws IOException, InterruptedException
 	{
-		// create our xml file in memory and add our test suite info
-		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-		doc.setXmlStandalone(true);
-		
-		Element elem_testSuite = doc.createElement("testsuite");
-		elem_testSuite.setAttribute("name", this.name);
-		elem_testSuite.setAttribute("tests", String.valueOf(this.tests.size()));
-		
 		// start a timer so we know how long ALL of the tests took
 		TimeDiff td_totalElapsedTime = new TimeDiff();
 		td_totalElapsedTime.setStartTime_now();
+		this.timeBudget = (this.timeBudget_s != null) ? new TimeBudget(this.timeBudget_s * 1000L) : null;
+		RunSummary summary = new RunSummary(this.name);
 		
 		// actually run each test
-		this.logger.trace("starting runAllTests");
-		int numErrors = 0;
-		int numFailures = 0;
-		for( Test currTest : this.tests )
+		this.getLogger().trace("starting runAllTests");
+		if( this.resultStore != null ) this.resultStore.beginRun();
+		if( this.outputIndex != null )
+		{
+			// identified like the XML results (to the second) so they aren't indexed twice (see mPutF_search)
+			this.outputIndex.beginRun(this.outputFile.getCanonicalPath(), (summary.getStartTime().getTime() / 1000) * 1000);
+		}
+		for( ReportWriter currWriter : this.reportWriters ) currWriter.beginRun(this.name);
+		
+		// each test definition holds a reference to its fixtures until all of its tests have run
+		for( TestSource currTestSource : this.tests )
+		{
+			for( Fixture currFixture : currTestSource.fixtures ) currFixture.addDependent();
+		}
+		try
+		{
+			this.runTestSources();
+		}
+		finally
+		{
+			// never leave a fixture behind (eg. a daemon) if we didn't make it through
+			for( Fixture currFixture : this.fixtures )
+			{
+				String teardownError = currFixture.close();
+				if( teardownError != null ) this.getLogger().warn(teardownError);
+			}
+		}
+		
+		// summarize in the order in which tests are defined (regardless of the order in which they completed)
+		List<TestCaseResult> allResults = new ArrayList<TestCaseResult>();
+		for( TestSource currTestSource : this.tests )
+		{
+			for( TestCaseResult currResult : currTestSource.results ) allResults.addAll(flattenResult(currResult));
+		}
+		for( TestCaseResult currResult : allResults )
+		{
+			summary.count(currResult);
+			if( (this.resultStore != null) && !currResult.isSkipped() ) this.resultStore.record(currResult);
+			if( (this.outputIndex != null) && !currResult.isSkipped() ) this.outputIndex.record(currResult);
+		}
+		summary.setDuration_ms(td_totalElapsedTime.getElapsedTime_ms());
+		for( HotspotSummary currHotspots : HotspotSummary.merge(allResults).values() )
+		{
+			summary.addAttachment(String.format("hotspots-%s", currHotspots.getProfilerName()), currHotspots.toString());
+		}
+		FailureClusters failureClusters = FailureClusters.cluster(allResults);
+		if( !failureClusters.isEmpty() ) summary.addAttachment("failureClusters", failureClusters.toString());
+		
+		this.getLogger().trace("runAllTests complete...saving results");
+		if( this.flakinessDb != null ) this.flakinessDb.save();
+		if( this.resultStore != null ) this.resultStore.commitRun();
+		if( this.outputIndex != null ) this.outputIndex.commitRun();
+		if( this.journal != null ) this.journal.close();
+		for( ReportWriter currWriter : this.reportWriters ) currWriter.endRun(allResults, summary);
+		this.getLogger().trace("test results saved succesfully");
+	}
+	
+	
+	/**
+	 * Runs the tests of all test definitions, as many at a time as allowed,
+	 * each definition as soon as its dependencies have completed
+	 */
+	private void runTestSources() throws IOException, InterruptedException
+	{
+		// ready definitions are run in the order in which they are defined...unless the run has a
+		// time budget, in which case the (declared) shortest go first (those without a limit, last)
+		final boolean isPrioritized = (this.timeBudget != null);
+		PriorityQueue<TestSource> readySources = new PriorityQueue<TestSource>(Math.max(1, this.tests.size()), new Comparator<TestSource>()
+		{
+			@Override
+			public int compare(TestSource lhsIn, TestSource rhsIn)
+			{
+				if( isPrioritized )
+				{
+					long lhsMaxTime_s = (lhsIn.maxTestTime_s != null) ? lhsIn.maxTestTime_s : Long.MAX_VALUE;
+					long rhsMaxTime_s = (rhsIn.maxTestTime_s != null) ? rhsIn.maxTestTime_s : Long.MAX_VALUE;
+					if( lhsMaxTime_s != rhsMaxTime_s ) return Long.compare(lhsMaxTime_s, rhsMaxTime_s);
+				}
+				return Integer.compare(lhsIn.index, rhsIn.index);
+			}
+		});
+		for( TestSource currTestSource : this.tests )
+		{
+			currTestSource.numPendingDependencies = 0;
+			currTestSource.skipReason = null;
+			currTestSource.testIterator = null;
+			currTestSource.numRunning = 0;
+			currTestSource.isPassed = true;
+			currTestSource.isInReadyQueue = false;
+			currTestSource.results.clear();
+		}
+		for( TestSource currTestSource : this.tests )
+		{
+			for( TestSource currDependent : currTestSource.dependents ) currDependent.numPendingDependencies++;
+		}
+		for( TestSource currTestSource : this.tests )
+		{
+			if( currTestSource.numPendingDependencies == 0 ) addReady(readySources, currTestSource);
+		}
+		
+		ExecutorService workers = Executors.newFixedThreadPool(this.parallelism, new ThreadFactory()
+		{
+			private int threadNum = 0;
+			
+			@Override
+			public Thread newThread(Runnable rIn)
+			{
+				Thread retVal = new Thread(rIn, String.format("%s-worker%d", name, this.threadNum++));
+				retVal.setDaemon(true);
+				return retVal;
+			}
+		});
+		CompletionService<ScheduledTest> completedTests = new ExecutorCompletionService<ScheduledTest>(workers);
+		int numRunning = 0;
+		try
+		{
+			while( true )
+			{
+				// keep the workers busy (matrix tests are expanded lazily, one at a time, as we pull them)...
+				// unless the time budget is exhausted, in which case the tests still running stop on their own
+				boolean isOverBudget = (this.timeBudget != null) && this.timeBudget.isExhausted();
+				while( !isOverBudget && (numRunning < this.parallelism) && !readySources.isEmpty() )
+				{
+					TestSource currTestSource = readySources.peek();
+					if( currTestSource.testIterator == null ) currTestSource.testIterator = currTestSource.tests.iterator();
+					if( !currTestSource.testIterator.hasNext() )
+					{
+						pollReady(readySources);
+						if( currTestSource.numRunning == 0 ) this.completeTestSource(currTestSource, readySources);
+						continue;
+					}
+					
+					ScheduledTest nextTest = this.pullTest(currTestSource);
+					if( nextTest == null ) continue;
+					completedTests.submit(nextTest);
+					currTestSource.numRunning++;
+					numRunning++;
+				}
+				if( numRunning == 0 )
+				{
+					if( isOverBudget ) this.skipRemainingTestSources(readySources, this.timeBudget.getExhaustedMessage());
+					break;
+				}
+				
+				ScheduledTest completedTest;
+				try
+				{
+					completedTest = completedTests.take().get();
+				}
+				catch( ExecutionException e )
+				{
+					if( e.getCause() instanceof IOException ) throw (IOException)e.getCause();
+					throw new IOException(e.getCause());
+				}
+				numRunning--;
+				TestSource completedSource = completedTest.source;
+				completedSource.numRunning--;
+				this.addResult(completedSource, completedTest.resultIndex, completedTest.result);
+				if( (completedSource.numRunning == 0) && !completedSource.testIterator.hasNext() && !completedSource.isInReadyQueue )
+				{
+					this.completeTestSource(completedSource, readySources);
+				}
+			}
+		}
+		finally
+		{
+			workers.shutdownNow();
+		}
+	}
+	
+	
+	/**
+	 * Pulls the next test of the given (ready) test definition
+	 * 
+	 * @return the test to be run, or NULL if its result is already known
+	 */
+	private ScheduledTest pullTest(TestSource testSourceIn) throws IOException
+	{
+		int resultIndex = testSourceIn.results.size();
+		testSourceIn.results.add(null);
+		
+		Test currTest;
+		try
+		{
+			currTest = testSourceIn.testIterator.next();
+		}
+		catch( TestMatrix.ExpansionException e )
+		{
+			this.getLogger().warn(String.format("unable to expand test '%s': %s", e.getTestName(), e.getMessage()));
+			TestCaseResult result = new TestCaseResult(e.getTestName());
+			result.setError("parseError", e.getMessage());
+			this.addResult(testSourceIn, resultIndex, result);
+			return null;
+		}
+		
+		TestCaseResult result = (this.journal != null) ? this.journal.getCompletedResult(testSourceIn.index, resultIndex, currTest.getName()) : null;
+		if( result != null )
+		{
+			// the run being resumed never saved its flakiness database
+			this.getLogger().trace(String.format("'%s' already completed (journal)", currTest.getName()));
+			if( this.flakinessDb != null ) this.flakinessDb.record(result);
+			this.addResult(testSourceIn, resultIndex, result);
+			return null;
+		}
+		
+		return new ScheduledTest(testSourceIn, resultIndex, currTest);
+	}
+	
+	
+	private void addResult(TestSource testSourceIn, int resultIndexIn, TestCaseResult resultIn) throws IOException
+	{
+		testSourceIn.results.set(resultIndexIn, resultIn);
+		if( resultIn.getResult() != TestResult.TEST_RESULT_PASS ) testSourceIn.isPassed = false;
+		this.reportCompleted(resultIn);
+	}
+	
+	
+	/**
+	 * Hands the given result (and its sub-tests, if any) to the streaming report writers
+	 */
+	private void reportCompleted(TestCaseResult resultIn) throws IOException
+	{
+		for( TestCaseResult currResult : flattenResult(resultIn) )
+		{
+			for( ReportWriter currWriter : this.reportWriters ) currWriter.testCompleted(currResult);
+		}
+	}
+	
+	
+	private static boolean isBudgetExhausted(TestCaseResult resultIn)
+	{
+		// (says nothing about the test itself)
+		return (resultIn.getResult() == TestResult.TEST_RESULT_ERROR) && TestCaseResult.ERROR_TYPE_BUDGET_EXHAUSTED.equals(resultIn.getProblemType());
+	}
+	
+	
+	private static List<TestCaseResult> flattenResult(TestCaseResult resultIn)
+	{
+		// sub-tests (if any) are reported as test cases in their own right
+		List<TestCaseResult> retVal = new ArrayList<TestCaseResult>();
+		retVal.add(resultIn);
+		retVal.addAll(resultIn.getSubTestResults());
+		return retVal;
+	}
+	
+	
+	/**
+	 * Called once all tests of the given test definition have completed (or
+	 * were skipped): tears down the fixtures no longer needed and releases
+	 * (or skips) the definitions depending on it
+	 */
+	private void completeTestSource(TestSource testSourceIn, PriorityQueue<TestSource> readySourcesIn) throws IOException
+	{
+		// tear down the fixtures no other test definition depends on (in reverse order of setup)
+		for( int i = testSourceIn.fixtures.size() - 1; i >= 0; i-- )
+		{
+			Fixture currFixture = testSourceIn.fixtures.get(i);
+			String teardownError = currFixture.release();
+			if( teardownError != null )
+			{
+				TestCaseResult result = new TestCaseResult(String.format("%s::teardown", currFixture.getName()));
+				result.setError(TestCaseResult.ERROR_TYPE_FIXTURE, teardownError);
+				testSourceIn.results.add(result);
+				this.reportCompleted(result);
+			}
+		}
+		
+		for( TestSource currDependent : testSourceIn.dependents )
 		{
-			currTest.runTest(doc, elem_testSuite);
+			if( !testSourceIn.isPassed && (currDependent.skipReason == null) )
+			{
+				currDependent.skipReason = (testSourceIn.skipReason == null) ?
+						String.format("dependency '%s' did not pass", testSourceIn.name) :
+						String.format("dependency '%s' was skipped", testSourceIn.name);
+			}
+			if( --currDependent.numPendingDependencies > 0 ) continue;
 			
-			// record the number of errors and failures
-			if( currTest.getTestResult() == TestResult.TEST_RESULT_ERROR ) numErrors++;
-			else if( currTest.getTestResult() == TestResult.TEST_RESULT_FAILURE ) numFailures++;
+			if( currDependent.skipReason != null ) this.skipTestSource(currDependent, readySourcesIn);
+			else addReady(readySourcesIn, currDependent);
+		}
+	}
+	
+	
+	/**
+	 * Skips every test which has not been run (ie. of the ready test definitions and,
+	 * as they complete, of the definitions depending on them) for the given reason
+	 */
+	private void skipRemainingTestSources(PriorityQueue<TestSource> readySourcesIn, String reasonIn) throws IOException
+	{
+		for( TestSource currTestSource : this.tests )
+		{
+			if( currTestSource.skipReason == null ) currTestSource.skipReason = reasonIn;
+		}
+		while( !readySourcesIn.isEmpty() ) this.skipTestSource(pollReady(readySourcesIn), readySourcesIn);
+	}
+	
+	
+	// (a test definition tracks whether it is in the ready queue...contains() would be a linear scan)
+	private static void addReady(PriorityQueue<TestSource> readySourcesIn, TestSource testSourceIn)
+	{
+		testSourceIn.isInReadyQueue = true;
+		readySourcesIn.add(testSourceIn);
+	}
+	
+	
+	private static TestSource pollReady(PriorityQueue<TestSource> readySourcesIn)
+	{
+		TestSource retVal = readySourcesIn.poll();
+		retVal.isInReadyQueue = false;
+		return retVal;
+	}
+	
+	
+	private void skipTestSource(TestSource testSourceIn, PriorityQueue<TestSource> readySourcesIn) throws IOException
+	{
+		// (a definition may have run some of its tests already)
+		this.getLogger().trace(String.format("skipping '%s': %s", testSourceIn.name, testSourceIn.skipReason));
+		if( testSourceIn.testIterator == null ) testSourceIn.testIterator = testSourceIn.tests.iterator();
+		while( testSourceIn.testIterator.hasNext() )
+		{
+			TestCaseResult result;
+			try
+			{
+				result = new TestCaseResult(testSourceIn.testIterator.next().getName());
+				result.setSkipped(testSourceIn.skipReason);
+			}
+			catch( TestMatrix.ExpansionException e )
+			{
+				result = new TestCaseResult(e.getTestName());
+				result.setError("parseError", e.getMessage());
+			}
+			testSourceIn.results.add(result);
+			this.reportCompleted(result);
+		}
+		testSourceIn.isPassed = false;
+		this.completeTestSource(testSourceIn, readySourcesIn);
+	}
+	
+	
+	private static String acquireFixtures(List<Fixture> fixturesIn)
+	{
+		for( Fixture currFixture : fixturesIn )
+		{
+			String setupError = currFixture.acquire();
+			if( setupError != null ) return setupError;
 		}
-		this.logger.trace(String.format("runAllTests complete...saving results to '%s'", this.outputFilePath.getAbsolutePath()));
+		return null;
+	}
+	
+	
+	private TestCaseResult runTest(Test testIn)
+	{
+		// check for quarantine _before_ recording this run
+		String quarantineReason = (this.flakinessDb != null) ? this.flakinessDb.getQuarantineReason(testIn.getName()) : null;
 		
-		// set our total elapsed time
-		elem_testSuite.setAttribute("errors", String.valueOf(numErrors));
-		elem_testSuite.setAttribute("failures", String.valueOf(numFailures));
-		elem_testSuite.setAttribute("time", String.format("%.2f", ((float)td_totalElapsedTime.getElapsedTime_ms()) / 1000.0));
-		elem_testSuite.setAttribute("timestamp", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(Calendar.getInstance().getTime()).toString());
-		doc.appendChild(elem_testSuite);
+		TestCaseResult retVal;
+		if( (this.soakRunner != null) && testIn.isRepeatable() ) retVal = this.soakRunner.run(testIn);
+		else
+		{
+			if( this.soakRunner != null ) this.getLogger().warn(String.format("'%s' can not be run concurrently...running it once", testIn.getName()));
+			retVal = testIn.runTest();
+		}
+		if( (this.flakinessDb != null) && !isBudgetExhausted(retVal) ) this.flakinessDb.record(retVal);
+		if( (quarantineReason != null) && (retVal.getResult() != TestResult.TEST_RESULT_PASS) )
+		{
+			this.getLogger().trace(String.format("'%s' did not pass, but is quarantined", testIn.getName()));
+			retVal.setQuarantined(quarantineReason);
+		}
 		
-		// get ready to output our file
-		Transformer transformer = TransformerFactory.newInstance().newTransformer();
-		transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-		DOMSource source = new DOMSource(doc);
-		// make sure our output directory exists
-		if( (this.outputFilePath.getParentFile() != null) && !this.outputFilePath.getParentFile().exists() ) this.outputFilePath.getParentFile().mkdirs();
-		// actually output our file
-		StreamResult result = new StreamResult(this.outputFilePath);
-		transformer.transform(source, result);
-		this.logger.trace("test results saved succesfully");
+		return retVal;
 	}
 	
 	
@@ -136,14 +735,225 @@ public class TestSuite
 	 * 
 	 * @param xmlFileIn the XML file from which to parse tests
 	 * @param outputFileIn the output file in which to store test outputs/results
+	 * @param filterIn selects which tests are created (tests which are not accepted are never parsed)
 	 * 
 	 * @return a ready-to-run test suite
 	 * @throws ParseException on error parsing the provided XML file
 	 */
-	public static TestSuite parseTestSuite(File xmlFileIn, File outputFileIn) throws ParseException
+	public static TestSuite parseTestSuite(File xmlFileIn, File outputFileIn, TestFilter filterIn) throws ParseException
 	{
 		if( xmlFileIn == null ) throw new ParseException("target configuration file is null");
 		
+		Node suiteNode = parseSuiteNode(xmlFileIn);
+		String strSuiteName = getSuiteName(xmlFileIn, suiteNode);
+		RetryPolicy defaultRetryPolicy = getDefaultRetryPolicy(xmlFileIn, suiteNode);
+		Profiler defaultProfiler = getDefaultProfiler(xmlFileIn, suiteNode);
+		Map<String, Fixture> fixtures = parseFixtures(xmlFileIn, suiteNode);
+		Document doc = suiteNode.getOwnerDocument();
+		
+		List<TestSource> tests = new ArrayList<TestSource>();
+		NodeList nList = doc.getElementsByTagName("test");
+		checkDependencies(xmlFileIn, nList);
+		for( int i = 0; i < nList.getLength(); i++ )
+		{
+			// filter _before_ parsing so excluded tests are never created
+			NamedNodeMap testAttributes = nList.item(i).getAttributes();
+			String testName = getAttributeValue(testAttributes, Test.NODE_NAME);
+			if( !filterIn.acceptsAttributes(TestFilter.splitList(getAttributeValue(testAttributes, Test.NODE_TAGS)),
+					TestFilter.splitList(getAttributeValue(testAttributes, Test.NODE_SOURCES))) )
+			{
+				staticLogger.trace(String.format("test '%s' excluded by filter", testName));
+				continue;
+			}
+			List<Fixture> testFixtures = resolveFixtures(xmlFileIn, testName, fixtures, TestFilter.splitList(getAttributeValue(testAttributes, Test.NODE_FIXTURES)));
+			List<String> dependsOn = TestFilter.splitList(getAttributeValue(testAttributes, Test.NODE_DEPENDS_ON));
+			
+			// matrix tests are filtered by name as they are expanded
+			Node matrixNode = getChildNode(nList.item(i), TestMatrix.NODE_NAME);
+			if( matrixNode != null )
+			{
+				TestMatrix matrix = TestMatrix.parseTestMatrix(xmlFileIn, nList.item(i), matrixNode, defaultRetryPolicy, defaultProfiler, filterIn);
+				staticLogger.trace(String.format("parsed test matrix '%s' with %d combinations", testName, matrix.getNumCombinations()));
+				tests.add(new TestSource(testName, matrix, testFixtures, dependsOn));
+				continue;
+			}
+			if( !filterIn.acceptsName(testName) )
+			{
+				staticLogger.trace(String.format("test '%s' excluded by filter", testName));
+				continue;
+			}
+			
+			// creating this test may throw a ParseException
+			tests.add(new TestSource(testName, Collections.singletonList(Test.parseTest(xmlFileIn, nList.item(i), defaultRetryPolicy, defaultProfiler)), testFixtures, dependsOn));
+		}
+		staticLogger.trace(String.format("%d of %d test definitions parsed successfully", tests.size(), nList.getLength()));
+		
+		// if we made it here, we successfully parsed our tests
+		return new TestSuite(strSuiteName, tests, new ArrayList<Fixture>(fixtures.values()), outputFileIn);
+	}
+	
+	
+	/**
+	 * Parses a test suite and all child tests from the given XML file, using
+	 * (and maintaining) a cache of the parsed plan of the suite. If the cache is
+	 * valid for the file as it is now, the file is not parsed at all. Otherwise
+	 * <i>all</i> of its tests (even those rejected by the filter) are parsed
+	 * and validated, so that the cache can be used regardless of the filter.
+	 * 
+	 * @param xmlFileIn the XML file from which to parse tests
+	 * @param outputFileIn the output file in which to store test outputs/results
+	 * @param filterIn selects which tests are created (tests which are not accepted are never created)
+	 * @param planCacheFileIn the file in which the plan is cached, or NULL to not use a cache
+	 * 
+	 * @return a ready-to-run test suite
+	 * @throws ParseException on error parsing the provided XML file
+	 */
+	public static TestSuite parseTestSuite(File xmlFileIn, File outputFileIn, TestFilter filterIn, File planCacheFileIn) throws ParseException
+	{
+		if( (xmlFileIn == null) || (planCacheFileIn == null) ) return parseTestSuite(xmlFileIn, outputFileIn, filterIn);
+		
+		byte[] plan = PlanCache.load(planCacheFileIn, xmlFileIn);
+		if( plan != null )
+		{
+			try
+			{
+				return readPlan(xmlFileIn, outputFileIn, filterIn, plan);
+			}
+			catch( IOException e )
+			{
+				staticLogger.warn(String.format("invalid plan cache '%s' (%s)...re-parsing", planCacheFileIn.getAbsolutePath(), e.getMessage()));
+			}
+		}
+		
+		try
+		{
+			plan = createPlan(xmlFileIn);
+		}
+		catch( IOException e )
+		{
+			// can't be cached (eg. a string too long for the plan)...parse as usual
+			staticLogger.warn(String.format("unable to create plan for '%s' (%s)", xmlFileIn.getAbsolutePath(), e.getMessage()));
+			return parseTestSuite(xmlFileIn, outputFileIn, filterIn);
+		}
+		PlanCache.save(planCacheFileIn, xmlFileIn, plan);
+		
+		try
+		{
+			return readPlan(xmlFileIn, outputFileIn, filterIn, plan);
+		}
+		catch( IOException e )
+		{
+			throw new ParseException(xmlFileIn, String.format("error reading plan: %s", e.getMessage()));
+		}
+	}
+	
+	
+	/**
+	 * Creates the plan of all tests of the given file: the suite name and
+	 * fixtures, followed by one entry per test node (the default retry policy
+	 * is resolved into each test, or matrix, as it is parsed).
+	 * Each entry holds what is needed to filter it (name, tags, sources), its
+	 * fixtures and dependencies, followed by the length of the parsed test (or matrix), so
+	 * filtered entries can be skipped.
+	 */
+	private static byte[] createPlan(File xmlFileIn) throws ParseException, IOException
+	{
+		Node suiteNode = parseSuiteNode(xmlFileIn);
+		RetryPolicy defaultRetryPolicy = getDefaultRetryPolicy(xmlFileIn, suiteNode);
+		Profiler defaultProfiler = getDefaultProfiler(xmlFileIn, suiteNode);
+		Map<String, Fixture> fixtures = parseFixtures(xmlFileIn, suiteNode);
+		NodeList nList = suiteNode.getOwnerDocument().getElementsByTagName("test");
+		checkDependencies(xmlFileIn, nList);
+		
+		ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(retVal);
+		dos.writeUTF(getSuiteName(xmlFileIn, suiteNode));
+		dos.writeInt(fixtures.size());
+		for( Fixture currFixture : fixtures.values() ) currFixture.writeTo(dos);
+		dos.writeInt(nList.getLength());
+		
+		TestFilter acceptAll = new TestFilter();
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		for( int i = 0; i < nList.getLength(); i++ )
+		{
+			NamedNodeMap testAttributes = nList.item(i).getAttributes();
+			String testName = getAttributeValue(testAttributes, Test.NODE_NAME);
+			dos.writeUTF((testName != null) ? testName : "");
+			writeList(dos, TestFilter.splitList(getAttributeValue(testAttributes, Test.NODE_TAGS)));
+			writeList(dos, TestFilter.splitList(getAttributeValue(testAttributes, Test.NODE_SOURCES)));
+			List<String> fixtureNames = TestFilter.splitList(getAttributeValue(testAttributes, Test.NODE_FIXTURES));
+			resolveFixtures(xmlFileIn, testName, fixtures, fixtureNames);
+			writeList(dos, fixtureNames);
+			writeList(dos, TestFilter.splitList(getAttributeValue(testAttributes, Test.NODE_DEPENDS_ON)));
+			
+			// creating this test (or matrix) may throw a ParseException
+			entry.reset();
+			Node matrixNode = getChildNode(nList.item(i), TestMatrix.NODE_NAME);
+			dos.writeBoolean(matrixNode != null);
+			if( matrixNode != null ) TestMatrix.parseTestMatrix(xmlFileIn, nList.item(i), matrixNode, defaultRetryPolicy, defaultProfiler, acceptAll).writePlan(new DataOutputStream(entry));
+			else Test.parseTest(xmlFileIn, nList.item(i), defaultRetryPolicy, defaultProfiler).writePlan(new DataOutputStream(entry));
+			dos.writeInt(entry.size());
+			entry.writeTo(dos);
+		}
+		staticLogger.trace(String.format("created plan of %d test definitions", nList.getLength()));
+		
+		return retVal.toByteArray();
+	}
+	
+	
+	/**
+	 * Creates a test suite from a plan (see {@link #createPlan(File)})
+	 */
+	private static TestSuite readPlan(File xmlFileIn, File outputFileIn, TestFilter filterIn, byte[] planIn) throws IOException
+	{
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(planIn));
+		String strSuiteName = dis.readUTF();
+		Map<String, Fixture> fixtures = new LinkedHashMap<String, Fixture>();
+		int numFixtures = dis.readInt();
+		for( int i = 0; i < numFixtures; i++ )
+		{
+			Fixture currFixture = Fixture.readFrom(dis);
+			fixtures.put(currFixture.getName(), currFixture);
+		}
+		int numEntries = dis.readInt();
+		
+		List<TestSource> tests = new ArrayList<TestSource>();
+		for( int i = 0; i < numEntries; i++ )
+		{
+			String testName = dis.readUTF();
+			List<String> tags = readList(dis);
+			List<String> sources = readList(dis);
+			List<String> fixtureNames = readList(dis);
+			List<String> dependsOn = readList(dis);
+			boolean isMatrix = dis.readBoolean();
+			int entryLength = dis.readInt();
+			
+			// matrix tests are filtered by name as they are expanded
+			if( !filterIn.acceptsAttributes(tags, sources) || (!isMatrix && !filterIn.acceptsName(testName)) )
+			{
+				if( dis.skipBytes(entryLength) != entryLength ) throw new EOFException();
+				continue;
+			}
+			List<Fixture> testFixtures;
+			try
+			{
+				testFixtures = resolveFixtures(xmlFileIn, testName, fixtures, fixtureNames);
+			}
+			catch( ParseException e )
+			{
+				throw new IOException(e.getMessage());
+			}
+			if( isMatrix ) tests.add(new TestSource(testName, TestMatrix.readPlan(xmlFileIn, dis, filterIn), testFixtures, dependsOn));
+			else tests.add(new TestSource(testName, Collections.singletonList(Test.readPlan(xmlFileIn, dis)), testFixtures, dependsOn));
+		}
+		staticLogger.trace(String.format("%d of %d test definitions read from plan", tests.size(), numEntries));
+		
+		return new TestSuite(strSuiteName, tests, new ArrayList<Fixture>(fixtures.values()), outputFileIn);
+	}
+	
+	
+	private static Node parseSuiteNode(File xmlFileIn) throws ParseException
+	{
 		staticLogger.trace(String.format("trying to open xmlFile '%s'", xmlFileIn.getAbsolutePath()));
 		
 		// try to parse our xml configuration file
@@ -164,26 +974,173 @@ public class TestSuite
 		// see if we can make sense of it
 		staticLogger.trace("file opened");
 		
-		// first, try to parse our test suite name
 		NodeList suiteList = doc.getElementsByTagName("testSuite");
 		if( suiteList.getLength() > 1 ) throw new ParseException(xmlFileIn, "only one test suite per file supported");
 		else if( suiteList.getLength() == 0 ) throw new ParseException(xmlFileIn, "no test suite definition found");
-		Node suiteName = suiteList.item(0).getAttributes().getNamedItem(NODE_NAME);
+		
+		return suiteList.item(0);
+	}
+	
+	
+	private static String getSuiteName(File xmlFileIn, Node suiteNodeIn) throws ParseException
+	{
+		Node suiteName = suiteNodeIn.getAttributes().getNamedItem(NODE_NAME);
 		if( suiteName == null ) throw new ParseException(xmlFileIn, String.format("missing test suite attribute'%s'", NODE_NAME));
-		String strSuiteName = suiteName.getTextContent();
-		staticLogger.trace(String.format("starting to parse tests for testSuite '%s'", strSuiteName));
+		String retVal = suiteName.getTextContent();
+		staticLogger.trace(String.format("starting to parse tests for testSuite '%s'", retVal));
 		
-		List<Test> tests = new ArrayList<Test>();
-		NodeList nList = doc.getElementsByTagName("test");
-		for( int i = 0; i < nList.getLength(); i++ )
+		return retVal;
+	}
+	
+	
+	private static RetryPolicy getDefaultRetryPolicy(File xmlFileIn, Node suiteNodeIn) throws ParseException
+	{
+		// see if we have a suite-wide retry policy
+		Node suiteRetryNode = getChildNode(suiteNodeIn, RetryPolicy.NODE_NAME);
+		return (suiteRetryNode != null) ? RetryPolicy.parseRetryPolicy(xmlFileIn, null, suiteRetryNode) : RetryPolicy.NONE;
+	}
+	
+	
+	private static Profiler getDefaultProfiler(File xmlFileIn, Node suiteNodeIn) throws ParseException
+	{
+		// see if we have a suite-wide profiler
+		Node suiteProfilerNode = getChildNode(suiteNodeIn, Profiler.NODE_NAME);
+		return (suiteProfilerNode != null) ? Profiler.parseProfiler(xmlFileIn, null, suiteProfilerNode) : null;
+	}
+	
+	
+	/**
+	 * Makes sure every dependency (<code>dependsOn</code>) names a test and that
+	 * the dependencies form a directed acyclic graph
+	 */
+	private static void checkDependencies(File xmlFileIn, NodeList testNodesIn) throws ParseException
+	{
+		// tests may share a name...a dependency on the name is a dependency on all of them
+		Map<String, List<String>> dependsOnByName = new LinkedHashMap<String, List<String>>();
+		for( int i = 0; i < testNodesIn.getLength(); i++ )
 		{
-			// creating this test may throw a ParseException
-			tests.add(Test.parseTest(xmlFileIn, nList.item(i)));
+			NamedNodeMap testAttributes = testNodesIn.item(i).getAttributes();
+			String testName = getAttributeValue(testAttributes, Test.NODE_NAME);
+			if( testName == null ) continue;
+			if( !dependsOnByName.containsKey(testName) ) dependsOnByName.put(testName, new ArrayList<String>());
+			dependsOnByName.get(testName).addAll(TestFilter.splitList(getAttributeValue(testAttributes, Test.NODE_DEPENDS_ON)));
+		}
+		for( Map.Entry<String, List<String>> currEntry : dependsOnByName.entrySet() )
+		{
+			for( String currDependency : currEntry.getValue() )
+			{
+				if( !dependsOnByName.containsKey(currDependency) ) throw new ParseException(xmlFileIn, currEntry.getKey(), String.format("unknown dependency '%s'", currDependency));
+			}
 		}
-		staticLogger.trace("all tests parsed successfully");
 		
-		// if we made it here, we successfully parsed our tests
-		return new TestSuite(strSuiteName, tests, outputFileIn);
+		// depth-first search for back edges
+		Map<String, Boolean> isOnPath = new HashMap<String, Boolean>();
+		for( String currName : dependsOnByName.keySet() )
+		{
+			List<String> cycle = findCycle(currName, dependsOnByName, isOnPath, new ArrayList<String>());
+			if( cycle == null ) continue;
+			
+			StringBuilder cycleStr = new StringBuilder();
+			for( String currCycleName : cycle ) cycleStr.append((cycleStr.length() > 0) ? " -> " : "").append(currCycleName);
+			throw new ParseException(xmlFileIn, cycle.get(0), String.format("dependency cycle '%s'", cycleStr));
+		}
+	}
+	
+	
+	/**
+	 * @return the names forming a cycle reachable from the given test, or NULL if there is none
+	 */
+	private static List<String> findCycle(String nameIn, Map<String, List<String>> dependsOnByNameIn, Map<String, Boolean> isOnPathIn, List<String> pathIn)
+	{
+		Boolean isOnPath = isOnPathIn.get(nameIn);
+		if( isOnPath != null )
+		{
+			if( !isOnPath ) return null;			// already visited (no cycle through here)
+			
+			List<String> retVal = new ArrayList<String>(pathIn.subList(pathIn.indexOf(nameIn), pathIn.size()));
+			retVal.add(nameIn);
+			return retVal;
+		}
+		
+		isOnPathIn.put(nameIn, true);
+		pathIn.add(nameIn);
+		for( String currDependency : dependsOnByNameIn.get(nameIn) )
+		{
+			List<String> retVal = findCycle(currDependency, dependsOnByNameIn, isOnPathIn, pathIn);
+			if( retVal != null ) return retVal;
+		}
+		pathIn.remove(pathIn.size() - 1);
+		isOnPathIn.put(nameIn, false);
+		return null;
+	}
+	
+	
+	private static Map<String, Fixture> parseFixtures(File xmlFileIn, Node suiteNodeIn) throws ParseException
+	{
+		Map<String, Fixture> retVal = new LinkedHashMap<String, Fixture>();
+		NodeList children = suiteNodeIn.getChildNodes();
+		for( int i = 0; i < children.getLength(); i++ )
+		{
+			if( !children.item(i).getNodeName().equals(Fixture.NODE_NAME) ) continue;
+			
+			Fixture currFixture = Fixture.parseFixture(xmlFileIn, children.item(i));
+			if( retVal.containsKey(currFixture.getName()) ) throw new ParseException(xmlFileIn, String.format("duplicate fixture '%s'", currFixture.getName()));
+			retVal.put(currFixture.getName(), currFixture);
+		}
+		return retVal;
+	}
+	
+	
+	/**
+	 * @return the suite-scoped fixtures followed by the named fixtures (in order, without duplicates)
+	 */
+	private static List<Fixture> resolveFixtures(File xmlFileIn, String testNameIn, Map<String, Fixture> fixturesIn, List<String> fixtureNamesIn) throws ParseException
+	{
+		List<Fixture> retVal = new ArrayList<Fixture>();
+		for( Fixture currFixture : fixturesIn.values() )
+		{
+			if( currFixture.isSuiteScoped() ) retVal.add(currFixture);
+		}
+		for( String currName : fixtureNamesIn )
+		{
+			Fixture currFixture = fixturesIn.get(currName);
+			if( currFixture == null ) throw new ParseException(xmlFileIn, testNameIn, String.format("unknown fixture '%s'", currName));
+			if( !retVal.contains(currFixture) ) retVal.add(currFixture);
+		}
+		return retVal;
+	}
+	
+	
+	private static void writeList(DataOutputStream dosIn, List<String> listIn) throws IOException
+	{
+		dosIn.writeInt(listIn.size());
+		for( String currItem : listIn ) dosIn.writeUTF(currItem);
+	}
+	
+	
+	private static List<String> readList(DataInputStream disIn) throws IOException
+	{
+		int numItems = disIn.readInt();
+		List<String> retVal = new ArrayList<String>(numItems);
+		for( int i = 0; i < numItems; i++ ) retVal.add(disIn.readUTF());
+		return retVal;
+	}
+	
+	
+	private static Node getChildNode(Node parentIn, String nodeNameIn)
+	{
+		NodeList children = parentIn.getChildNodes();
+		for( int i = 0; i < children.getLength(); i++ )
+		{
+			if( children.item(i).getNodeName().equals(nodeNameIn) ) return children.item(i);
+		}
+		return null;
+	}
+	
+	
+	private static String getAttributeValue(NamedNodeMap attributesIn, String nameIn)
+	{
+		Node attribute = attributesIn.getNamedItem(nameIn);
+		return (attribute != null) ? attribute.getNodeValue() : null;
 	}
 }
-
@@ -0,0 +1,262 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The (framed) protocol spoken between mPutF and an {@link mPutF_agent}.
+ * <p>
+ * After connecting, both sides send {@link #MAGIC} and {@link #VERSION}
+ * (int32 each). Everything after is a frame:
+ * <pre>
+ * [u8 type][int32 execution id][int32 payload length][payload]
+ * </pre>
+ * The execution id (chosen by mPutF) identifies the execution to which a
+ * frame belongs, so any number of executions can run concurrently over a
+ * single connection. mPutF sends:
+ * <ul>
+ * <li>{@link #FRAME_EXEC}: <code>[int32 timeout_ms (-1 for none)][u16 numArgs]{UTF arg}[u16 numEnv]{UTF name, UTF value}</code></li>
+ * <li>{@link #FRAME_KILL}: no payload</li>
+ * </ul>
+ * The agent sends:
+ * <ul>
+ * <li>{@link #FRAME_STDOUT} / {@link #FRAME_STDERR}: the raw output, as it arrives</li>
+ * <li>{@link #FRAME_EXIT}: <code>[int32 retCode][bool timedOut]</code> (always the last frame of an execution
+ * 		which started...all output frames precede it)</li>
+ * <li>{@link #FRAME_FAILED}: <code>[UTF message]</code> (the execution could not be started)</li>
+ * </ul>
+ * All integers are big-endian, strings are modified UTF-8 (see {@link DataOutputStream#writeUTF(String)}).
+ *
+ * @author Christopher Armenio
+ */
+public class AgentProtocol
+{
+	public static final int MAGIC = 0x6D50414D;			// 'mPAM'
+	public static final int VERSION = 1;
+	public static final int DEFAULT_PORT = 7431;
+	public static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
+
+	public static final byte FRAME_EXEC = 1;
+	public static final byte FRAME_KILL = 2;
+	public static final byte FRAME_STDOUT = 3;
+	public static final byte FRAME_STDERR = 4;
+	public static final byte FRAME_EXIT = 5;
+	public static final byte FRAME_FAILED = 6;
+
+
+	/**
+	 * A single frame
+	 */
+	public static class Frame
+	{
+		private final byte type;
+		private final int executionId;
+		private final byte[] payload;
+
+		public Frame(byte typeIn, int executionIdIn, byte[] payloadIn)
+		{
+			this.type = typeIn;
+			this.executionId = executionIdIn;
+			this.payload = payloadIn;
+		}
+
+		/**
+		 * @return the type of this frame (one of the <code>FRAME_*</code> constants)
+		 */
+		public byte getType()
+		{
+			return this.type;
+		}
+
+		/**
+		 * @return the execution to which this frame belongs
+		 */
+		public int getExecutionId()
+		{
+			return this.executionId;
+		}
+
+		/**
+		 * @return the payload of this frame (may be empty)
+		 */
+		public byte[] getPayload()
+		{
+			return this.payload;
+		}
+
+		/**
+		 * @return a stream over the payload of this frame
+		 */
+		public DataInputStream getPayloadStream()
+		{
+			return new DataInputStream(new ByteArrayInputStream(this.payload));
+		}
+	}
+
+
+	/**
+	 * The request to start an execution
+	 */
+	public static class ExecRequest
+	{
+		private final String[] command;
+		private final Map<String, String> environment;
+		private final int timeout_ms;
+
+		public ExecRequest(String[] commandIn, Map<String, String> environmentIn, int timeout_msIn)
+		{
+			this.command = commandIn;
+			this.environment = environmentIn;
+			this.timeout_ms = timeout_msIn;
+		}
+
+		/**
+		 * @return the executable followed by its arguments
+		 */
+		public String[] getCommand()
+		{
+			return this.command;
+		}
+
+		/**
+		 * @return the environment variables to add to (or override in) the environment of the agent
+		 */
+		public Map<String, String> getEnvironment()
+		{
+			return this.environment;
+		}
+
+		/**
+		 * @return the time after which the agent should stop the process, or -1 for none
+		 */
+		public int getTimeout_ms()
+		{
+			return this.timeout_ms;
+		}
+
+		/**
+		 * @return the payload of the {@link AgentProtocol#FRAME_EXEC} frame for this request
+		 * @throws IOException if the request cannot be encoded (eg. an argument is too long)
+		 */
+		public byte[] toPayload() throws IOException
+		{
+			ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(retVal);
+			dos.writeInt(this.timeout_ms);
+			dos.writeShort(this.command.length);
+			for( String currArg : this.command ) dos.writeUTF(currArg);
+			dos.writeShort(this.environment.size());
+			for( Map.Entry<String, String> currEntry : this.environment.entrySet() )
+			{
+				dos.writeUTF(currEntry.getKey());
+				dos.writeUTF(currEntry.getValue());
+			}
+			dos.flush();
+			return retVal.toByteArray();
+		}
+
+		/**
+		 * Decodes the request from the payload of a {@link AgentProtocol#FRAME_EXEC} frame
+		 *
+		 * @param frameIn the frame
+		 *
+		 * @return the decoded request
+		 * @throws IOException if the payload is malformed
+		 */
+		public static ExecRequest fromFrame(Frame frameIn) throws IOException
+		{
+			DataInputStream dis = frameIn.getPayloadStream();
+			int timeout_ms = dis.readInt();
+			String[] command = new String[dis.readUnsignedShort()];
+			for( int i = 0; i < command.length; i++ ) command[i] = dis.readUTF();
+			int numEnv = dis.readUnsignedShort();
+			Map<String, String> environment = new LinkedHashMap<String, String>();
+			for( int i = 0; i < numEnv; i++ ) environment.put(dis.readUTF(), dis.readUTF());
+			if( command.length == 0 ) throw new IOException("empty command");
+
+			return new ExecRequest(command, environment, timeout_ms);
+		}
+	}
+
+
+	/**
+	 * Writes (and flushes) a frame. Callers must serialize access to the stream.
+	 *
+	 * @param dosIn the stream to which the frame is written
+	 * @param typeIn the type of the frame
+	 * @param executionIdIn the execution to which the frame belongs
+	 * @param payloadIn buffer containing the payload
+	 * @param lenIn the length of the payload
+	 *
+	 * @throws IOException on error writing the frame
+	 */
+	public static void writeFrame(DataOutputStream dosIn, byte typeIn, int executionIdIn, byte[] payloadIn, int lenIn) throws IOException
+	{
+		dosIn.writeByte(typeIn);
+		dosIn.writeInt(executionIdIn);
+		dosIn.writeInt(lenIn);
+		dosIn.write(payloadIn, 0, lenIn);
+		dosIn.flush();
+	}
+
+
+	/**
+	 * Reads the next frame
+	 *
+	 * @param disIn the stream from which the frame is read
+	 *
+	 * @return the frame
+	 * @throws IOException on error reading the frame (including EOF)
+	 */
+	public static Frame readFrame(DataInputStream disIn) throws IOException
+	{
+		byte type = disIn.readByte();
+		int executionId = disIn.readInt();
+		int len = disIn.readInt();
+		if( (len < 0) || (len > MAX_PAYLOAD_LENGTH) ) throw new IOException(String.format("invalid frame length %d", len));
+		byte[] payload = new byte[len];
+		disIn.readFully(payload);
+
+		return new Frame(type, executionId, payload);
+	}
+
+
+	/**
+	 * Performs the handshake (identical on both sides)
+	 *
+	 * @param disIn the stream from the other side
+	 * @param dosIn the stream to the other side
+	 *
+	 * @throws IOException if the other side does not speak this protocol (version)
+	 */
+	public static void handshake(DataInputStream disIn, DataOutputStream dosIn) throws IOException
+	{
+		dosIn.writeInt(MAGIC);
+		dosIn.writeInt(VERSION);
+		dosIn.flush();
+
+		if( disIn.readInt() != MAGIC ) throw new IOException("remote side is not an mPutF agent");
+		int version = disIn.readInt();
+		if( version != VERSION ) throw new IOException(String.format("unsupported protocol version %d (expected %d)", version, VERSION));
+	}
+}
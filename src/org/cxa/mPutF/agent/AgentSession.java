@@ -0,0 +1,318 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Serves a single connection from mPutF: starts the requested executions,
+ * streams their output back as it arrives and stops them when they time
+ * out, are killed, or the connection is lost (see {@link AgentProtocol})
+ *
+ * @author Christopher Armenio
+ */
+public class AgentSession implements Runnable
+{
+	private static final int CHUNK_SIZE = 8192;
+
+
+	private static Logger staticLogger = LogManager.getLogger("AgentSession");
+	private static final ScheduledExecutorService timeoutTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable rIn)
+		{
+			Thread retVal = new Thread(rIn, "agentTimeouts");
+			retVal.setDaemon(true);
+			return retVal;
+		}
+	});
+
+
+	/**
+	 * A single execution of a process
+	 */
+	private class Execution implements Runnable
+	{
+		private final int id;
+		private final AgentProtocol.ExecRequest request;
+		private Process process = null;
+		private volatile boolean isTimedOut = false;
+		private volatile boolean isKilled = false;
+
+		Execution(int idIn, AgentProtocol.ExecRequest requestIn)
+		{
+			this.id = idIn;
+			this.request = requestIn;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				ProcessBuilder pb = new ProcessBuilder(this.request.getCommand());
+				pb.environment().putAll(this.request.getEnvironment());
+				synchronized(this)
+				{
+					if( !this.isKilled ) this.process = pb.start();
+				}
+				if( this.process == null )
+				{
+					sendFailed(this.id, "killed before start");
+					executions.remove(this.id);
+					return;
+				}
+			}
+			catch( IOException e )
+			{
+				staticLogger.trace(String.format("execution %d failed to start: %s", this.id, e.getMessage()));
+				sendFailed(this.id, e.getMessage());
+				executions.remove(this.id);
+				return;
+			}
+
+			// the agent enforces the timeout (the round-trip to mPutF doesn't count)
+			if( this.request.getTimeout_ms() >= 0 )
+			{
+				timeoutTimer.schedule(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						if( isFinished() ) return;
+						isTimedOut = true;
+						kill();
+					}
+				}, this.request.getTimeout_ms(), TimeUnit.MILLISECONDS);
+			}
+
+			Thread stdoutThread = startPump(this.process.getInputStream(), AgentProtocol.FRAME_STDOUT);
+			Thread stderrThread = startPump(this.process.getErrorStream(), AgentProtocol.FRAME_STDERR);
+			int retCode;
+			try
+			{
+				retCode = this.process.waitFor();
+
+				// a grand-child process may hold the pipes open...don't wait on it forever
+				stdoutThread.join(1000);
+				stderrThread.join(1000);
+			}
+			catch( InterruptedException e )
+			{
+				this.process.destroy();
+				retCode = -1;
+			}
+			executions.remove(this.id);
+
+			staticLogger.trace(String.format("execution %d finished (retCode: %d, timedOut: %b)", this.id, retCode, this.isTimedOut));
+			try
+			{
+				ByteArrayOutputStream payload = new ByteArrayOutputStream();
+				DataOutputStream dos = new DataOutputStream(payload);
+				dos.writeInt(retCode);
+				dos.writeBoolean(this.isTimedOut);
+				dos.flush();
+				sendFrame(AgentProtocol.FRAME_EXIT, this.id, payload.toByteArray(), payload.size());
+			}
+			catch( IOException e ) { }
+		}
+
+		synchronized void kill()
+		{
+			this.isKilled = true;
+			if( this.process != null ) this.process.destroy();
+		}
+
+		private boolean isFinished()
+		{
+			try
+			{
+				this.process.exitValue();
+				return true;
+			}
+			catch( IllegalThreadStateException e )
+			{
+				return false;
+			}
+		}
+
+		private Thread startPump(final InputStream streamIn, final byte frameTypeIn)
+		{
+			Thread retVal = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					byte[] buf = new byte[CHUNK_SIZE];
+					boolean isConnected = true;
+					try
+					{
+						int numBytes;
+						while( (numBytes = streamIn.read(buf)) != -1 )
+						{
+							// keep draining even if mPutF is gone (so the process never blocks)
+							if( !isConnected ) continue;
+							try
+							{
+								sendFrame(frameTypeIn, id, buf, numBytes);
+							}
+							catch( IOException e )
+							{
+								isConnected = false;
+							}
+						}
+					}
+					catch( IOException e ) { }
+					finally
+					{
+						try { streamIn.close(); } catch( IOException e ) { }
+					}
+				}
+			}, String.format("%s-%d-%s", Thread.currentThread().getName(), this.id, ((frameTypeIn == AgentProtocol.FRAME_STDOUT) ? "stdout" : "stderr")));
+			retVal.start();
+			return retVal;
+		}
+	}
+
+
+	private final Socket socket;
+	private final Map<Integer, Execution> executions = new ConcurrentHashMap<Integer, Execution>();
+	private DataOutputStream outputStream = null;
+
+
+	/**
+	 * Creates a session for the given (accepted) connection
+	 *
+	 * @param socketIn the connection to serve
+	 */
+	public AgentSession(Socket socketIn)
+	{
+		this.socket = socketIn;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		String remoteAddress = this.socket.getRemoteSocketAddress().toString();
+		staticLogger.info(String.format("connection from %s", remoteAddress));
+		try
+		{
+			this.socket.setTcpNoDelay(true);
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+			this.outputStream = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+			AgentProtocol.handshake(dis, this.outputStream);
+
+			while( true )
+			{
+				AgentProtocol.Frame currFrame = AgentProtocol.readFrame(dis);
+				switch( currFrame.getType() )
+				{
+					case AgentProtocol.FRAME_EXEC:
+						this.startExecution(currFrame);
+						break;
+
+					case AgentProtocol.FRAME_KILL:
+						Execution execution = this.executions.get(currFrame.getExecutionId());
+						if( execution != null ) execution.kill();
+						break;
+
+					default:
+						throw new IOException(String.format("unexpected frame type %d", currFrame.getType()));
+				}
+			}
+		}
+		catch( IOException e )
+		{
+			staticLogger.info(String.format("connection from %s closed (%s)", remoteAddress, e.getMessage()));
+		}
+		finally
+		{
+			// nobody is left to report to
+			for( Execution currExecution : this.executions.values() ) currExecution.kill();
+			try { this.socket.close(); } catch( IOException e ) { }
+		}
+	}
+
+
+	private void startExecution(AgentProtocol.Frame frameIn) throws IOException
+	{
+		int id = frameIn.getExecutionId();
+		AgentProtocol.ExecRequest request;
+		try
+		{
+			request = AgentProtocol.ExecRequest.fromFrame(frameIn);
+		}
+		catch( IOException e )
+		{
+			this.sendFailed(id, String.format("malformed request: %s", e.getMessage()));
+			return;
+		}
+
+		Execution execution = new Execution(id, request);
+		if( this.executions.containsKey(id) )
+		{
+			this.sendFailed(id, String.format("execution %d is already running", id));
+			return;
+		}
+		this.executions.put(id, execution);
+
+		staticLogger.trace(String.format("starting execution %d: '%s'", id, request.getCommand()[0]));
+		new Thread(execution, String.format("%s-%d", Thread.currentThread().getName(), id)).start();
+	}
+
+
+	private void sendFailed(int executionIdIn, String msgIn)
+	{
+		try
+		{
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			new DataOutputStream(payload).writeUTF((msgIn != null) ? msgIn : "unknown error");
+			this.sendFrame(AgentProtocol.FRAME_FAILED, executionIdIn, payload.toByteArray(), payload.size());
+		}
+		catch( IOException e ) { }
+	}
+
+
+	private void sendFrame(byte typeIn, int executionIdIn, byte[] payloadIn, int lenIn) throws IOException
+	{
+		synchronized(this.outputStream)
+		{
+			AgentProtocol.writeFrame(this.outputStream, typeIn, executionIdIn, payloadIn, lenIn);
+		}
+	}
+}
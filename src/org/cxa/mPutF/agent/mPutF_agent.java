@@ -0,0 +1,118 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.agent;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.commandLineParser.CommandLineParser;
+import org.cxa.commandLineParser.optionListener.OptionWithArgumentListener;
+
+/**
+ * Agent which runs the executables of <code>remoteProcess</code> tests on
+ * behalf of mPutF (see {@link AgentProtocol}).
+ * <p>
+ * Note: the agent runs any command it is sent...it binds to the loopback
+ * interface unless told otherwise and must only be exposed to trusted
+ * networks.
+ *
+ * @author Christopher Armenio
+ */
+public class mPutF_agent
+{
+	private static Logger staticLogger = LogManager.getLogger("mPutF_agent");
+
+	private static String bindAddress = "127.0.0.1";
+	private static int port = AgentProtocol.DEFAULT_PORT;
+
+
+	/**
+	 * The execution entry-point
+	 *
+	 * @param args command-line arguments/options
+	 */
+	public static void main(String[] args)
+	{
+		parseCmdLineOpts(args);
+
+		try( ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress)) )
+		{
+			// print the actual port (so scripts using port 0 can find us)
+			System.out.println(String.format("listening on %s:%d", bindAddress, serverSocket.getLocalPort()));
+			System.out.flush();
+
+			int connectionNum = 0;
+			while( true )
+			{
+				Socket currSocket = serverSocket.accept();
+				new Thread(new AgentSession(currSocket), String.format("session%d", connectionNum++)).start();
+			}
+		}
+		catch( Exception e )
+		{
+			staticLogger.error(String.format("agent stopped: %s", e.getMessage()));
+			System.err.println(String.format("Error: %s", e.getMessage()));
+			System.exit(-2);
+		}
+	}
+
+
+	private static void parseCmdLineOpts(String[] optsIn)
+	{
+		// create command line parser
+		final CommandLineParser clp = new CommandLineParser(mPutF_agent.class.getSimpleName(),
+						"mPutF remote execution agent\r\n" +
+						"Program which runs the executables of 'remoteProcess' tests on behalf of mPutF");
+
+		// add our options
+		clp.addOption("p", "port", String.format("port on which to listen (default: %d, 0 for any free port)", AgentProtocol.DEFAULT_PORT), false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				try
+				{
+					port = Integer.parseInt(argIn);
+					if( (port < 0) || (port > 65535) ) throw new NumberFormatException();
+				}
+				catch( NumberFormatException e )
+				{
+					clp.printUsage();
+					System.exit(-1);
+				}
+			}
+		});
+
+		clp.addOption("b", "bind", "address on which to listen (default: 127.0.0.1...only expose the agent to trusted networks)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				bindAddress = argIn;
+			}
+		});
+
+		// parse our options
+		if( !clp.parseOptions(optsIn) )
+		{
+			clp.printUsage();
+			System.exit(-1);
+		}
+	}
+}
@@ -15,6 +15,18 @@
  */
 package org.cxa.mPutF.bindingOutputParser;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.cxa.mPutF.bindings.mPutF;
 
 /**
@@ -36,12 +48,36 @@ public abstract class BindingOutputParser
 		private final String filePath;
 		private final Integer lineNumber;
 		private final String message;
+		private final boolean isFatal;
 		
-		private Assertion(String filePathIn, Integer lineNumIn, String msgIn)
+		/**
+		 * Creates an assertion (normally done by the parser...but also used
+		 * when restoring previously recorded results)
+		 * 
+		 * @param filePathIn the file in which the assertion occurred (may be NULL)
+		 * @param lineNumIn the line at which the assertion occurred (may be NULL)
+		 * @param msgIn the message of the assertion (may be NULL)
+		 * @param isFatalIn true for an assert, false for a check
+		 */
+		public Assertion(String filePathIn, Integer lineNumIn, String msgIn, boolean isFatalIn)
 		{
 			this.filePath = filePathIn;
 			this.lineNumber = lineNumIn;
 			this.message = msgIn;
+			this.isFatal = isFatalIn;
+		}
+		
+		
+		/**
+		 * Determines whether this was a (fatal) assert, or a (non-fatal) check
+		 * after which the program continued
+		 * 
+		 * @return true if this was produced by an <code>assert_*</code> binding,
+		 * 		false if it was produced by a <code>check_*</code> binding
+		 */
+		public boolean isFatal()
+		{
+			return this.isFatal;
 		}
 		
 		
@@ -81,6 +117,106 @@ public abstract class BindingOutputParser
 		}
 		
 		
+		/**
+		 * If present, returns the location at which the assertion occurred
+		 * 
+		 * @return the location ("file" or "file:lineNumber"), or NULL if not present
+		 */
+		public String getLocation()
+		{
+			String retVal = null;
+			if( (this.filePath != null) && (this.lineNumber == null) ) retVal = this.filePath;
+			else if( (this.filePath != null) && (this.lineNumber != null) ) retVal = String.format("%s:%d", this.filePath, this.lineNumber);
+			
+			return retVal;
+		}
+		
+		
+		/**
+		 * Returns a normalized signature of this assertion, identical for all
+		 * assertions which (most likely) share the same cause: the location,
+		 * followed by the message with its variable parts (numbers, addresses)
+		 * replaced by placeholders (see {@link #normalizeMessage(String)})
+		 * 
+		 * @return the signature of this assertion (never NULL)
+		 */
+		public String getSignature()
+		{
+			String location = null;
+			if( this.filePath != null ) location = this.filePath.replace('\\', '/') + ((this.lineNumber != null) ? (":" + this.lineNumber) : "");
+			String message = (this.message != null) ? normalizeMessage(this.message) : null;
+			
+			String retVal = this.isFatal ? "assert" : "check";
+			if( (location == null) && (message != null) ) retVal = message;
+			else if( (location != null) && (message == null) ) retVal = location;
+			else if( (location != null) && (message != null) ) retVal = location + " - " + message;
+			
+			return retVal;
+		}
+		
+		
+		/**
+		 * Normalizes a (user-friendly) message such that messages which differ
+		 * only in their variable parts are identical: numbers become
+		 * <code>&lt;n&gt;</code>, addresses (<code>0x</code>-prefixed, or 8+
+		 * hexadecimal digits) become <code>&lt;addr&gt;</code> and whitespace
+		 * (including line breaks) is collapsed into single spaces
+		 * 
+		 * @param msgIn the message to normalize
+		 * 
+		 * @return the normalized message
+		 */
+		public static String normalizeMessage(String msgIn)
+		{
+			// a single pass (rather than several regexes)...this is done for every failure of a run
+			StringBuilder retVal = new StringBuilder(msgIn.length());
+			int i = 0;
+			while( i < msgIn.length() )
+			{
+				char currChar = msgIn.charAt(i);
+				if( Character.isWhitespace(currChar) )
+				{
+					while( (i < msgIn.length()) && Character.isWhitespace(msgIn.charAt(i)) ) i++;
+					if( (retVal.length() > 0) && (i < msgIn.length()) ) retVal.append(' ');
+					continue;
+				}
+				if( !isWordChar(currChar) )
+				{
+					retVal.append(currChar);
+					i++;
+					continue;
+				}
+				
+				// a word: numbers and addresses are replaced, anything else is kept
+				int wordStart = i;
+				boolean isDecimal = true;
+				boolean isHex = true;
+				boolean hasDigit = false;
+				while( (i < msgIn.length()) && isWordChar(msgIn.charAt(i)) )
+				{
+					char wordChar = msgIn.charAt(i++);
+					hasDigit |= Character.isDigit(wordChar);
+					isDecimal &= Character.isDigit(wordChar);
+					isHex &= (Character.digit(wordChar, 16) >= 0);
+				}
+				int wordLength = i - wordStart;
+				boolean isPrefixedHex = (wordLength > 2) && (msgIn.charAt(wordStart) == '0') && (Character.toLowerCase(msgIn.charAt(wordStart + 1)) == 'x');
+				for( int j = wordStart + 2; isPrefixedHex && (j < i); j++ ) isPrefixedHex = (Character.digit(msgIn.charAt(j), 16) >= 0);
+				
+				if( isDecimal ) retVal.append("<n>");
+				else if( isPrefixedHex || (isHex && hasDigit && (wordLength >= 8)) ) retVal.append("<addr>");
+				else retVal.append(msgIn, wordStart, i);
+			}
+			return retVal.toString();
+		}
+		
+		
+		private static boolean isWordChar(char charIn)
+		{
+			return Character.isLetterOrDigit(charIn) || (charIn == '_');
+		}
+		
+		
 		/*
 		 * (non-Javadoc)
 		 * @see java.lang.Object#toString()
@@ -88,11 +224,9 @@ public abstract class BindingOutputParser
 		@Override
 		public String toString()
 		{
-			String location = null;
-			if( (this.filePath != null) && (this.lineNumber == null) ) location = this.filePath;
-			else if( (this.filePath != null) && (this.lineNumber != null) ) location = String.format("%s:%d", this.filePath, this.lineNumber);
+			String location = this.getLocation();
 			
-			String retVal = "assert";
+			String retVal = this.isFatal ? "assert" : "check";
 			if( (location == null) && (this.message != null) ) retVal = this.message;
 			else if( (location != null) && (this.message == null) ) retVal = location;
 			else if( (location != null) && (this.message != null) ) retVal = String.format("%s - %s", location, this.message);
@@ -103,7 +237,7 @@ public abstract class BindingOutputParser
 	
 	
 	/**
-	 * Parses the first assertion detected in the stderr output
+	 * Parses the first (fatal) assertion detected in the stderr output
 	 * 
 	 * @param stderrIn the stderr output
 	 * 
@@ -112,53 +246,409 @@ public abstract class BindingOutputParser
 	 */
 	public static Assertion parseAssertion(String stderrIn)
 	{
-		if( stderrIn == null ) return null;
+		return getFirstFatalAssertion(parseAssertions(stderrIn));
+	}
+	
+	
+	/**
+	 * Finds the first (fatal) assertion in the given list
+	 * 
+	 * @param assertionsIn assertions and failed checks, in the order in which they occurred
+	 * 
+	 * @return the first assertion produced by an <code>assert_*</code> binding,
+	 * 		or NULL if there is none
+	 */
+	public static Assertion getFirstFatalAssertion(List<Assertion> assertionsIn)
+	{
+		for( Assertion currAssertion : assertionsIn )
+		{
+			if( currAssertion.isFatal() ) return currAssertion;
+		}
+		return null;
+	}
+	
+	
+	/**
+	 * Parses all assertions (<code>assert_*</code>) and failed checks
+	 * (<code>check_*</code>) detected in the stderr output, in a single pass
+	 * 
+	 * @param stderrIn the stderr output
+	 * 
+	 * @return all assertions detected, in the order in which they occurred
+	 * 		(empty if none were detected)
+	 */
+	public static List<Assertion> parseAssertions(String stderrIn)
+	{
+		StreamParser parser = new StreamParser();
+		if( stderrIn != null )
+		{
+			int lineStart = 0;
+			while( lineStart <= stderrIn.length() )
+			{
+				int lineEnd = stderrIn.indexOf('\n', lineStart);
+				if( lineEnd == -1 ) lineEnd = stderrIn.length();
+				parser.parseLine(stderrIn.substring(lineStart, lineEnd));
+				lineStart = lineEnd + 1;
+			}
+		}
+		parser.finish();
+		
+		return parser.getAssertions(true);
+	}
+	
+	
+	/**
+	 * A single sub-test reported by a program using the
+	 * <code>subTest_start</code> / <code>subTest_end</code> bindings
+	 * 
+	 * @author Christopher Armenio
+	 */
+	public static class SubTest
+	{
+		private final String name;
+		private final List<Assertion> assertions = new ArrayList<Assertion>();
+		private Long duration_ms = null;
+		
+		private SubTest(String nameIn)
+		{
+			this.name = nameIn;
+		}
+		
 		
-		int assertIndex = stderrIn.indexOf(mPutF.ASSERT_TEXT);
-		if( assertIndex == -1 ) return null;
+		/**
+		 * @return the name of this sub-test
+		 */
+		public String getName()
+		{
+			return this.name;
+		}
 		
-		String fileName = null;
-		Integer lineNumber = null;
-		String message = null;
 		
-		// we have an assert...figure out what happened
-		int assertFollowupIndex = assertIndex + mPutF.ASSERT_TEXT.length() + 2;			// 2 -> crlf
-		if( assertFollowupIndex >= stderrIn.length() ) return new Assertion(null, null, null);
-		String lines[] = stderrIn.substring(assertFollowupIndex).split("\r\n");
-		for( String currLine : lines )
+		/**
+		 * @return all assertions/failed checks which occurred within this sub-test
+		 */
+		public List<Assertion> getAssertions()
 		{
-			System.out.printf("currLine: '%s'\r\n", currLine);
+			return Collections.unmodifiableList(this.assertions);
+		}
+		
+		
+		/**
+		 * @return true if the end of this sub-test was reported, false if
+		 * 		the program ended (or was stopped) during this sub-test
+		 */
+		public boolean isComplete()
+		{
+			return (this.duration_ms != null);
+		}
+		
+		
+		/**
+		 * @return the duration reported by the program for this sub-test,
+		 * 		or NULL if the sub-test did not complete
+		 */
+		public Long getDuration_ms()
+		{
+			return this.duration_ms;
+		}
+	}
+	
+	
+	/**
+	 * An incremental parser for the stderr output of a program using the
+	 * mPutF bindings. Output can be fed as it arrives (line-by-line or as
+	 * raw chunks), so neither the parser nor the caller need to hold the
+	 * entire output in memory. Alternatively, the records written to a
+	 * dedicated result channel can be parsed via {@link #parseRecords(InputStream)}. All methods are thread-safe, so the output
+	 * may be fed from one thread and the results retrieved from another.
+	 * 
+	 * @author Christopher Armenio
+	 */
+	public static class StreamParser
+	{
+		/** binding output lines are short...anything longer is truncated (and can't be a marker) */
+		private static final int MAX_LINE_LENGTH = 4096;
+		/** even the largest record (two maximum-length strings) is well below this */
+		private static final int MAX_RECORD_LENGTH = 256 * 1024;
+		private static final Charset UTF8 = Charset.forName("UTF-8");
+		
+		private enum BlockType { NONE, ASSERT, CHECK, SUBTEST_START, SUBTEST_END };
+		
+		private final List<Assertion> assertions = new ArrayList<Assertion>();
+		private final List<Assertion> topLevelAssertions = new ArrayList<Assertion>();
+		private final List<SubTest> subTests = new ArrayList<SubTest>();
+		private SubTest currSubTest = null;
+		
+		private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+		
+		private BlockType currBlock = BlockType.NONE;
+		private String fileName = null;
+		private Integer lineNumber = null;
+		private String message = null;
+		private String name = null;
+		private Long duration_ms = null;
+		
+		
+		/**
+		 * Parses a chunk of raw output (which need not end on a line boundary)
+		 * 
+		 * @param bufIn buffer containing the output
+		 * @param lenIn the number of valid bytes in the buffer
+		 */
+		public synchronized void parse(byte[] bufIn, int lenIn)
+		{
+			int lineStart = 0;
+			for( int i = 0; i < lenIn; i++ )
+			{
+				if( bufIn[i] != '\n' ) continue;
+				
+				this.appendPartialLine(bufIn, lineStart, i - lineStart);
+				this.parseLine(this.partialLine.toString());
+				this.partialLine.reset();
+				lineStart = i + 1;
+			}
+			this.appendPartialLine(bufIn, lineStart, lenIn - lineStart);
+		}
+		
+		
+		/**
+		 * Parses a single line of output
+		 * 
+		 * @param lineIn the line (with or without its line ending)
+		 */
+		public synchronized void parseLine(String lineIn)
+		{
+			String currLine = lineIn;
+			if( currLine.endsWith("\n") ) currLine = currLine.substring(0, currLine.length()-1);
+			if( currLine.endsWith("\r") ) currLine = currLine.substring(0, currLine.length()-1);
+			
+			BlockType startedBlock = BlockType.NONE;
+			if( currLine.endsWith(mPutF.ASSERT_TEXT) ) startedBlock = BlockType.ASSERT;
+			else if( currLine.endsWith(mPutF.CHECK_TEXT) ) startedBlock = BlockType.CHECK;
+			else if( currLine.endsWith(mPutF.SUBTEST_START_TEXT) ) startedBlock = BlockType.SUBTEST_START;
+			else if( currLine.endsWith(mPutF.SUBTEST_END_TEXT) ) startedBlock = BlockType.SUBTEST_END;
 			
-			if( currLine.startsWith(mPutF.PREAMBLE_LOCATION) )
+			if( (this.currBlock != BlockType.NONE) && (startedBlock == BlockType.NONE) && this.parseBlockLine(currLine) ) return;
+			
+			// unknown line (or the start of a new block)...our current block (if any) is complete
+			this.completeBlock();
+			this.currBlock = startedBlock;
+		}
+		
+		
+		/**
+		 * Parses any remaining (unterminated) output...must be called once
+		 * all output has been received
+		 */
+		public synchronized void finish()
+		{
+			if( this.partialLine.size() > 0 )
+			{
+				this.parseLine(this.partialLine.toString());
+				this.partialLine.reset();
+			}
+			this.completeBlock();
+			this.currBlock = BlockType.NONE;
+		}
+		
+		
+		/**
+		 * @param includeSubTestsIn true to include assertions which occurred
+		 * 		within a sub-test, false to return only those which occurred outside
+		 * 		of any sub-test
+		 * 
+		 * @return the assertions/failed checks parsed so far, in the order in which they occurred
+		 */
+		public synchronized List<Assertion> getAssertions(boolean includeSubTestsIn)
+		{
+			return new ArrayList<Assertion>(includeSubTestsIn ? this.assertions : this.topLevelAssertions);
+		}
+		
+		
+		/**
+		 * @return the sub-tests parsed so far, in the order in which they started
+		 */
+		public synchronized List<SubTest> getSubTests()
+		{
+			return new ArrayList<SubTest>(this.subTests);
+		}
+		
+		
+		/**
+		 * Parses the binary records written to a dedicated result channel (see
+		 * {@link mPutF#ENV_RESULT_CHANNEL}) until the end of the stream is reached.
+		 * The stream is read without holding this parser's lock, so the results
+		 * may be retrieved (eg. after a timeout) while this method is blocked.
+		 * 
+		 * @param inputIn the result channel
+		 * 
+		 * @throws IOException on error reading from the channel, or if a record is malformed
+		 */
+		public void parseRecords(InputStream inputIn) throws IOException
+		{
+			DataInputStream dis = new DataInputStream(new BufferedInputStream(inputIn));
+			while( true )
+			{
+				int recordLength;
+				try
+				{
+					recordLength = dis.readInt();
+				}
+				catch( EOFException e )
+				{
+					return;
+				}
+				if( (recordLength < 1) || (recordLength > MAX_RECORD_LENGTH) ) throw new IOException(String.format("malformed result record (length %d)", recordLength));
+				
+				byte[] record = new byte[recordLength];
+				dis.readFully(record);
+				this.parseRecord(new DataInputStream(new ByteArrayInputStream(record)));
+			}
+		}
+		
+		
+		private synchronized void parseRecord(DataInputStream recordIn) throws IOException
+		{
+			byte recordType = recordIn.readByte();
+			switch( recordType )
+			{
+				case mPutF.RECORD_ASSERT:
+				case mPutF.RECORD_CHECK:
+					byte flags = recordIn.readByte();
+					String file = null;
+					Integer line = null;
+					if( (flags & mPutF.RECORD_FLAG_LOCATION) != 0 )
+					{
+						file = readString(recordIn);
+						line = recordIn.readInt();
+					}
+					String msg = ((flags & mPutF.RECORD_FLAG_MESSAGE) != 0) ? readString(recordIn) : null;
+					this.addAssertion(new Assertion(file, line, msg, (recordType == mPutF.RECORD_ASSERT)));
+					break;
+				
+				case mPutF.RECORD_SUBTEST_START:
+					this.startSubTest(readString(recordIn));
+					break;
+				
+				case mPutF.RECORD_SUBTEST_END:
+					String name = readString(recordIn);
+					this.endSubTest(name, recordIn.readLong());
+					break;
+				
+				default:
+					// unknown record type (newer bindings?)...the length prefix lets us skip it
+					break;
+			}
+		}
+		
+		
+		private void addAssertion(Assertion assertionIn)
+		{
+			this.assertions.add(assertionIn);
+			if( this.currSubTest != null ) this.currSubTest.assertions.add(assertionIn);
+			else this.topLevelAssertions.add(assertionIn);
+		}
+		
+		
+		private void startSubTest(String nameIn)
+		{
+			// sub-tests don't nest...an unfinished sub-test simply remains incomplete
+			this.currSubTest = new SubTest((nameIn != null) ? nameIn : String.format("subTest%d", this.subTests.size()));
+			this.subTests.add(this.currSubTest);
+		}
+		
+		
+		private void endSubTest(String nameIn, Long duration_msIn)
+		{
+			if( (this.currSubTest != null) && ((nameIn == null) || nameIn.equals(this.currSubTest.getName())) )
+			{
+				this.currSubTest.duration_ms = (duration_msIn != null) ? duration_msIn : 0L;
+			}
+			this.currSubTest = null;
+		}
+		
+		
+		private static String readString(DataInputStream dataIn) throws IOException
+		{
+			byte[] bytes = new byte[dataIn.readUnsignedShort()];
+			dataIn.readFully(bytes);
+			return new String(bytes, UTF8);
+		}
+		
+		
+		private void appendPartialLine(byte[] bufIn, int offsetIn, int lenIn)
+		{
+			int copyLen = Math.min(lenIn, MAX_LINE_LENGTH - this.partialLine.size());
+			if( copyLen > 0 ) this.partialLine.write(bufIn, offsetIn, copyLen);
+		}
+		
+		
+		private boolean parseBlockLine(String lineIn)
+		{
+			if( ((this.currBlock == BlockType.ASSERT) || (this.currBlock == BlockType.CHECK)) && lineIn.startsWith(mPutF.PREAMBLE_LOCATION) )
 			{
 				// we do have a location...try to parse it...
-				int lastColonIndex = currLine.lastIndexOf(":");
-				if( lastColonIndex == -1 ) continue;
-				fileName = currLine.substring(mPutF.PREAMBLE_LOCATION.length(), lastColonIndex);
-				if( lastColonIndex+1 >= currLine.length() ) continue;
-				String strLineNumber = currLine.substring(lastColonIndex+1);
+				int lastColonIndex = lineIn.lastIndexOf(":");
+				if( lastColonIndex < mPutF.PREAMBLE_LOCATION.length() ) return true;
+				this.fileName = lineIn.substring(mPutF.PREAMBLE_LOCATION.length(), lastColonIndex);
 				try
 				{
-					lineNumber = Integer.parseInt(strLineNumber);
-					if( lineNumber == null ) continue;
+					this.lineNumber = Integer.parseInt(lineIn.substring(lastColonIndex+1));
 				}
-				catch( NumberFormatException e ) { continue; }
+				catch( NumberFormatException e ) { }
+				return true;
 			}
-			else if( currLine.startsWith(mPutF.PREAMBLE_MESSAGE) )
+			else if( ((this.currBlock == BlockType.ASSERT) || (this.currBlock == BlockType.CHECK)) && lineIn.startsWith(mPutF.PREAMBLE_MESSAGE) )
 			{
 				// we do have a message...this one is pretty easy to parse
-				message = currLine.substring(mPutF.PREAMBLE_MESSAGE.length());
+				this.message = lineIn.substring(mPutF.PREAMBLE_MESSAGE.length());
+				return true;
+			}
+			else if( ((this.currBlock == BlockType.SUBTEST_START) || (this.currBlock == BlockType.SUBTEST_END)) && lineIn.startsWith(mPutF.PREAMBLE_NAME) )
+			{
+				this.name = lineIn.substring(mPutF.PREAMBLE_NAME.length());
+				return true;
 			}
-			else
+			else if( (this.currBlock == BlockType.SUBTEST_END) && lineIn.startsWith(mPutF.PREAMBLE_TIME) )
 			{
-				// unknown line...stop parsing
-				break;
+				try
+				{
+					this.duration_ms = Long.parseLong(lineIn.substring(mPutF.PREAMBLE_TIME.length()).trim());
+				}
+				catch( NumberFormatException e ) { }
+				return true;
 			}
+			
+			return false;
 		}
 		
-		System.out.printf("fileName: '%s'  lineNumber: '%d'  message: '%s'\r\n", fileName, lineNumber, message);
 		
-		// we're done parsing our lines...create our assertion
-		return new Assertion(fileName, lineNumber, message);
+		private void completeBlock()
+		{
+			switch( this.currBlock )
+			{
+				case ASSERT:
+				case CHECK:
+					this.addAssertion(new Assertion(this.fileName, this.lineNumber, this.message, (this.currBlock == BlockType.ASSERT)));
+					break;
+				
+				case SUBTEST_START:
+					this.startSubTest(this.name);
+					break;
+				
+				case SUBTEST_END:
+					this.endSubTest(this.name, this.duration_ms);
+					break;
+				
+				default:
+					break;
+			}
+			
+			this.fileName = null;
+			this.lineNumber = null;
+			this.message = null;
+			this.name = null;
+			this.duration_ms = null;
+		}
 	}
 }
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @file
+ * Native counterpart of mPutF_bindingTestApp.java...simulates the various
+ * outputs of the C/C++ bindings (mPutF.h) using the same options, so the
+ * two can be checked against each other (see bindingConformance.xml).
+ * Compiles as both C and C++.
+ *
+ * @author Christopher Armenio
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+#include "../bindings/mPutF.h"
+
+
+static void printUsage(const char* progNameIn)
+{
+	fprintf(stderr, "mPutF Binding Test Application (native)\r\n");
+	fprintf(stderr, "Program for simulating the various outputs of the mPutF C/C++ bindings\r\n\r\n");
+	fprintf(stderr, "usage: %s <option>\r\n", progNameIn);
+	fprintf(stderr, "  -as, --assertSimple     test fails with a simple assert (no line # or msg)\r\n");
+	fprintf(stderr, "  -al, --assertLine       test fails with an assert (line #, no msg)\r\n");
+	fprintf(stderr, "  -am, --assertMessage    test fails with an assert (line # and msg)\r\n");
+	fprintf(stderr, "  -mc, --multipleChecks   test fails with multiple checks (then continues and a fatal assert)\r\n");
+	fprintf(stderr, "  -st, --subTests         reports multiple sub-tests (passing, failed check, assert)\r\n");
+	fprintf(stderr, "  -p,  --pass             test passes\r\n");
+	fprintf(stderr, "  -t,  --timeout          test fails by timing out (will run forever)\r\n");
+	fprintf(stderr, "  -e,  --exception        test fails by crashing (abort)\r\n");
+}
+
+
+static int isOption(const char* argIn, const char* shortIn, const char* longIn)
+{
+	return ((argIn[0] == '-') && (strcmp(&argIn[1], shortIn) == 0)) ||
+			((strncmp(argIn, "--", 2) == 0) && (strcmp(&argIn[2], longIn) == 0));
+}
+
+
+int main(int argc, char* argv[])
+{
+	const char* opt;
+
+	// each option is a case of our fork server (if we're run as one)
+	mPutF_forkServer(&argc, &argv);
+	opt = (argc == 2) ? argv[1] : "";
+
+	if( isOption(opt, "as", "assertSimple") )
+	{
+		mPutF_assert_simple(0);
+	}
+	else if( isOption(opt, "al", "assertLine") )
+	{
+		mPutF_assert_line(0);
+	}
+	else if( isOption(opt, "am", "assertMessage") )
+	{
+		mPutF_assert_msg(0, "this is an assert message");
+	}
+	else if( isOption(opt, "mc", "multipleChecks") )
+	{
+		mPutF_check_simple(0);
+		mPutF_check_line(0);
+		mPutF_check_msg(0, "this is a check message");
+		mPutF_check_msg(1, "this check passes");
+		mPutF_assert_msg(0, "this is an assert message");
+	}
+	else if( isOption(opt, "st", "subTests") )
+	{
+		mPutF_subTest_start("pass");
+		mPutF_subTest_end();
+
+		mPutF_subTest_start("failedCheck");
+		mPutF_check_msg(0, "this is a check message");
+		mPutF_subTest_end();
+
+		mPutF_subTest_start("assert");
+		mPutF_assert_msg(0, "this is an assert message");
+	}
+	else if( isOption(opt, "p", "pass") )
+	{
+		return 0;
+	}
+	else if( isOption(opt, "t", "timeout") )
+	{
+		volatile int keepRunning = 1;
+		while( keepRunning );
+	}
+	else if( isOption(opt, "e", "exception") )
+	{
+		abort();
+	}
+
+	// if we made it here, something was wrong...
+	printUsage(argv[0]);
+	return -1;
+}
@@ -64,12 +64,42 @@ public class mPutF_bindingTestApp
 			}
 		});
 		
+		clp.addOption("mc", "multipleChecks", "test fails with multiple checks (then continues and a fatal assert)", false, new OptionNoArgumentListener()
+		{
+			@Override
+			public void optionIsPresent()
+			{
+				mPutF.check_simple(false);
+				mPutF.check_line(false);
+				mPutF.check_msg(false, "this is a check message");
+				mPutF.check_msg(true, "this check passes");
+				mPutF.assert_msg(false, "this is an assert message");
+			}
+		});
+		
+		clp.addOption("st", "subTests", "reports multiple sub-tests (passing, failed check, assert)", false, new OptionNoArgumentListener()
+		{
+			@Override
+			public void optionIsPresent()
+			{
+				mPutF.subTest_start("pass");
+				mPutF.subTest_end();
+				
+				mPutF.subTest_start("failedCheck");
+				mPutF.check_msg(false, "this is a check message");
+				mPutF.subTest_end();
+				
+				mPutF.subTest_start("assert");
+				mPutF.assert_msg(false, "this is an assert message");
+			}
+		});
+		
 		clp.addOption("p", "pass", "test passes", false, new OptionNoArgumentListener()
 		{
 			@Override
 			public void optionIsPresent()
 			{
-				System.exit(0);
+				mPutF.exit(0);
 			}
 		});
 		
@@ -101,7 +131,7 @@ public class mPutF_bindingTestApp
 		
 		// if we made it here, something was wrong...
 		clp.printUsage();
-		System.exit(-1);
+		mPutF.exit(-1);
 	}
 
 }
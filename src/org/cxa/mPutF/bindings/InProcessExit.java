@@ -0,0 +1,52 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.bindings;
+
+/**
+ * Thrown by the bindings in place of {@link System#exit(int)} when the
+ * program is being executed in-process by a runner (see
+ * {@link mPutF#setInProcessResultChannel(java.io.OutputStream)}). Like
+ * {@link ThreadDeath}, it is an {@link Error} so that it unwinds the
+ * program rather than being caught by its <code>catch( Exception e )</code>
+ * blocks.
+ * 
+ * @author Christopher Armenio
+ */
+public class InProcessExit extends Error
+{
+	private static final long serialVersionUID = 6148425729180539061L;
+	
+	private final int exitCode;
+	
+	
+	/**
+	 * @param exitCodeIn the exit code the program would have exited with
+	 */
+	public InProcessExit(int exitCodeIn)
+	{
+		super(String.format("program exited with code %d", exitCodeIn));
+		this.exitCode = exitCodeIn;
+	}
+	
+	
+	/**
+	 * @return the exit code the program would have exited with
+	 */
+	public int getExitCode()
+	{
+		return this.exitCode;
+	}
+}
@@ -0,0 +1,513 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * @file
+ * Header-only C/C++ bindings for mPutF. The output produced is byte-for-byte
+ * identical to that of the Java bindings (org.cxa.mPutF.bindings.mPutF), so
+ * programs written in either language are parsed identically by mPutF.
+ *
+ * When its condition is true, a macro costs only the evaluation of that
+ * condition (and a predicted branch)...the output (and any function call)
+ * is confined to an out-of-line, cold failure path.
+ *
+ * If mPutF provides a dedicated result channel (MPUTF_ENV_RESULT_CHANNEL),
+ * results are written to it as length-prefixed binary records instead of
+ * to stderr (see the Java bindings for the record format).
+ *
+ * Programs which are run many times (with different arguments) can serve
+ * their test cases from a single, initialized process: see mPutF_forkServer().
+ *
+ * Note: the sub-test and failed-check state is kept per translation unit,
+ * so a sub-test must be started and ended from the same source file.
+ *
+ * @author Christopher Armenio
+ */
+#ifndef MPUTF_H_
+#define MPUTF_H_
+
+
+// ******** includes ********
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#if defined(_WIN32)
+#include <windows.h>
+#else
+#include <time.h>
+#include <errno.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <sys/types.h>
+#include <sys/wait.h>
+#endif
+
+
+// ******** global macro definitions ********
+#define MPUTF_EXIT_CODE					84
+#define MPUTF_ASSERT_TEXT				"**assert**"
+#define MPUTF_CHECK_TEXT				"**check**"
+#define MPUTF_SUBTEST_START_TEXT		"**testStart**"
+#define MPUTF_SUBTEST_END_TEXT			"**testEnd**"
+#define MPUTF_PREAMBLE_LOCATION			"loc: "
+#define MPUTF_PREAMBLE_MESSAGE			"msg: "
+#define MPUTF_PREAMBLE_NAME				"name: "
+#define MPUTF_PREAMBLE_TIME				"time_ms: "
+
+#define MPUTF_ENV_RESULT_CHANNEL		"MPUTF_RESULT_CHANNEL"
+#define MPUTF_RECORD_ASSERT				1
+#define MPUTF_RECORD_CHECK				2
+#define MPUTF_RECORD_SUBTEST_START		3
+#define MPUTF_RECORD_SUBTEST_END		4
+#define MPUTF_RECORD_FLAG_LOCATION		0x01
+#define MPUTF_RECORD_FLAG_MESSAGE		0x02
+#define MPUTF_RECORD_MAX_STRING			1024
+
+#define MPUTF_ENV_FORK_SERVER			"MPUTF_FORK_SERVER"
+#define MPUTF_FORK_SERVER_CONTROL		"control"
+#define MPUTF_FORK_SERVER_STATUS		"status"
+#define MPUTF_FORK_STATUS_STARTED		'S'
+#define MPUTF_FORK_STATUS_EXITED		'E'
+#define MPUTF_FORK_EXIT_NOT_STARTED		127
+
+#if defined(__GNUC__) || defined(__clang__)
+#define MPUTF_UNLIKELY(x)				__builtin_expect(!!(x), 0)
+#define MPUTF_COLD						__attribute__((cold, noinline))
+#define MPUTF_UNUSED					__attribute__((unused))
+#else
+#define MPUTF_UNLIKELY(x)				(x)
+#define MPUTF_COLD
+#define MPUTF_UNUSED
+#endif
+
+
+/**
+ * Asserts that the provided condition is true. If it isn't,
+ * simply prints "\r\n**assert**\r\n" and exits
+ *
+ * @param cond the assertion condition (should be true)
+ */
+#define mPutF_assert_simple(cond)		do { if( MPUTF_UNLIKELY(!(cond)) ) mPutF_priv_fail(MPUTF_ASSERT_TEXT, NULL, 0, NULL); } while(0)
+
+/**
+ * Asserts that the provided condition is true. If it isn't,
+ * prints "\r\n**assert**\r\nloc: <file>:<lineNum>\r\n" and exits
+ *
+ * @param cond the assertion condition (should be true)
+ */
+#define mPutF_assert_line(cond)			do { if( MPUTF_UNLIKELY(!(cond)) ) mPutF_priv_fail(MPUTF_ASSERT_TEXT, __FILE__, __LINE__, NULL); } while(0)
+
+/**
+ * Asserts that the provided condition is true. If it isn't,
+ * prints "\r\n**assert**\r\nloc: <file>:<lineNum>\r\nmsg: <msg>" and exits
+ *
+ * @param cond the assertion condition (should be true)
+ * @param msg the message that should be displayed
+ */
+#define mPutF_assert_msg(cond, msg)		do { if( MPUTF_UNLIKELY(!(cond)) ) mPutF_priv_fail(MPUTF_ASSERT_TEXT, __FILE__, __LINE__, (msg)); } while(0)
+
+/**
+ * Checks that the provided condition is true. If it isn't,
+ * simply prints "\r\n**check**\r\n" and <i>continues</i> execution
+ *
+ * @param cond the check condition (should be true)
+ */
+#define mPutF_check_simple(cond)		do { if( MPUTF_UNLIKELY(!(cond)) ) mPutF_priv_fail(MPUTF_CHECK_TEXT, NULL, 0, NULL); } while(0)
+
+/**
+ * Checks that the provided condition is true. If it isn't,
+ * prints "\r\n**check**\r\nloc: <file>:<lineNum>\r\n" and <i>continues</i> execution
+ *
+ * @param cond the check condition (should be true)
+ */
+#define mPutF_check_line(cond)			do { if( MPUTF_UNLIKELY(!(cond)) ) mPutF_priv_fail(MPUTF_CHECK_TEXT, __FILE__, __LINE__, NULL); } while(0)
+
+/**
+ * Checks that the provided condition is true. If it isn't,
+ * prints "\r\n**check**\r\nloc: <file>:<lineNum>\r\nmsg: <msg>\r\n" and
+ * <i>continues</i> execution
+ *
+ * @param cond the check condition (should be true)
+ * @param msg the message that should be displayed
+ */
+#define mPutF_check_msg(cond, msg)		do { if( MPUTF_UNLIKELY(!(cond)) ) mPutF_priv_fail(MPUTF_CHECK_TEXT, __FILE__, __LINE__, (msg)); } while(0)
+
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+
+// ******** private state/functions (do not call directly) ********
+static int mPutF_priv_numFailedChecks MPUTF_UNUSED = 0;
+static const char* mPutF_priv_currSubTestName MPUTF_UNUSED = NULL;
+static unsigned long long mPutF_priv_currSubTestStartTime_ms MPUTF_UNUSED = 0;
+static FILE* mPutF_priv_resultChannel MPUTF_UNUSED = NULL;
+static int mPutF_priv_resultChannelOpened MPUTF_UNUSED = 0;
+
+
+typedef struct
+{
+	unsigned char bytes[4 + 1 + 1 + (2 * (2 + MPUTF_RECORD_MAX_STRING)) + 8];
+	size_t len;
+}mPutF_priv_record_t;
+
+
+static MPUTF_UNUSED void mPutF_priv_record_putInt(mPutF_priv_record_t* recordIn, unsigned long long valIn, int numBytesIn)
+{
+	int i;
+	for( i = numBytesIn-1; i >= 0; i-- ) recordIn->bytes[recordIn->len++] = (unsigned char)(valIn >> (8 * i));
+}
+
+
+static MPUTF_UNUSED void mPutF_priv_record_putString(mPutF_priv_record_t* recordIn, const char* strIn)
+{
+	size_t len = strlen(strIn);
+	if( len > MPUTF_RECORD_MAX_STRING ) len = MPUTF_RECORD_MAX_STRING;
+	mPutF_priv_record_putInt(recordIn, len, 2);
+	memcpy(&recordIn->bytes[recordIn->len], strIn, len);
+	recordIn->len += len;
+}
+
+
+static MPUTF_UNUSED int mPutF_priv_record_write(mPutF_priv_record_t* recordIn)
+{
+	// open our result channel on first use (if mPutF gave us one)
+	if( !mPutF_priv_resultChannelOpened )
+	{
+		const char* channelPath = getenv(MPUTF_ENV_RESULT_CHANNEL);
+		mPutF_priv_resultChannelOpened = 1;
+		if( (channelPath != NULL) && (channelPath[0] != 0) ) mPutF_priv_resultChannel = fopen(channelPath, "wb");
+	}
+	if( mPutF_priv_resultChannel == NULL ) return 0;
+
+	// fill in our length prefix (the record was started with a placeholder)
+	{
+		size_t payloadLen = recordIn->len - 4;
+		recordIn->bytes[0] = (unsigned char)(payloadLen >> 24);
+		recordIn->bytes[1] = (unsigned char)(payloadLen >> 16);
+		recordIn->bytes[2] = (unsigned char)(payloadLen >> 8);
+		recordIn->bytes[3] = (unsigned char)payloadLen;
+	}
+
+	// write the entire record at once
+	if( (fwrite(recordIn->bytes, 1, recordIn->len, mPutF_priv_resultChannel) != recordIn->len) || (fflush(mPutF_priv_resultChannel) != 0) )
+	{
+		// channel is gone...fall back to stderr
+		mPutF_priv_resultChannel = NULL;
+		return 0;
+	}
+	return 1;
+}
+
+
+static MPUTF_UNUSED void mPutF_priv_record_start(mPutF_priv_record_t* recordIn, int typeIn)
+{
+	recordIn->len = 4;
+	recordIn->bytes[recordIn->len++] = (unsigned char)typeIn;
+}
+
+
+static MPUTF_UNUSED unsigned long long mPutF_priv_getTime_ms(void)
+{
+#if defined(_WIN32)
+	return (unsigned long long)GetTickCount64();
+#else
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ((unsigned long long)ts.tv_sec * 1000ULL) + ((unsigned long long)ts.tv_nsec / 1000000ULL);
+#endif
+}
+
+
+static MPUTF_COLD MPUTF_UNUSED void mPutF_priv_fail(const char* markerIn, const char* fileIn, int lineIn, const char* msgIn)
+{
+	int isFatal = (strcmp(markerIn, MPUTF_ASSERT_TEXT) == 0);
+
+	// match the Java bindings (which report the file name only)
+	const char* fileName = fileIn;
+	if( fileName != NULL )
+	{
+		const char* lastSlash = strrchr(fileName, '/');
+		const char* lastBackslash = strrchr(fileName, '\\');
+		if( (lastBackslash != NULL) && ((lastSlash == NULL) || (lastBackslash > lastSlash)) ) lastSlash = lastBackslash;
+		if( lastSlash != NULL ) fileName = lastSlash + 1;
+	}
+
+	mPutF_priv_record_t record;
+	mPutF_priv_record_start(&record, (isFatal ? MPUTF_RECORD_ASSERT : MPUTF_RECORD_CHECK));
+	record.bytes[record.len++] = (unsigned char)(((fileName != NULL) ? MPUTF_RECORD_FLAG_LOCATION : 0) | ((msgIn != NULL) ? MPUTF_RECORD_FLAG_MESSAGE : 0));
+	if( fileName != NULL )
+	{
+		mPutF_priv_record_putString(&record, fileName);
+		mPutF_priv_record_putInt(&record, (unsigned long long)lineIn, 4);
+	}
+	if( msgIn != NULL ) mPutF_priv_record_putString(&record, msgIn);
+
+	if( mPutF_priv_record_write(&record) )
+	{
+		if( isFatal ) exit(MPUTF_EXIT_CODE);
+		mPutF_priv_numFailedChecks++;
+		return;
+	}
+
+	fprintf(stderr, "\r\n%s\r\n", markerIn);
+	if( fileName != NULL ) fprintf(stderr, "%s%s:%d\r\n", MPUTF_PREAMBLE_LOCATION, fileName, lineIn);
+	// asserts don't terminate their message (the process exits)...checks do
+	if( msgIn != NULL ) fprintf(stderr, "%s%s%s", MPUTF_PREAMBLE_MESSAGE, msgIn, (isFatal ? "" : "\r\n"));
+	fflush(stderr);
+
+	if( isFatal ) exit(MPUTF_EXIT_CODE);
+	mPutF_priv_numFailedChecks++;
+}
+
+
+#if !defined(_WIN32)
+static MPUTF_UNUSED int mPutF_priv_forkServer_readFully(int fdIn, void* bufIn, size_t lenIn)
+{
+	size_t numRead = 0;
+	while( numRead < lenIn )
+	{
+		ssize_t currNumRead = read(fdIn, ((char*)bufIn) + numRead, lenIn - numRead);
+		if( (currNumRead < 0) && (errno == EINTR) ) continue;
+		if( currNumRead <= 0 ) return 0;
+		numRead += (size_t)currNumRead;
+	}
+	return 1;
+}
+
+
+static MPUTF_UNUSED void mPutF_priv_forkServer_writeStatus(int fdIn, char typeIn, int valIn)
+{
+	// a single write (smaller than PIPE_BUF) is never interleaved
+	unsigned char bytes[5];
+	bytes[0] = (unsigned char)typeIn;
+	bytes[1] = (unsigned char)(valIn >> 24);
+	bytes[2] = (unsigned char)(valIn >> 16);
+	bytes[3] = (unsigned char)(valIn >> 8);
+	bytes[4] = (unsigned char)valIn;
+	if( write(fdIn, bytes, sizeof(bytes)) != (ssize_t)sizeof(bytes) ) exit(0);		// mPutF is gone
+}
+
+
+static MPUTF_UNUSED int mPutF_priv_forkServer_openPipe(const char* dirIn, const char* nameIn, int flagsIn)
+{
+	size_t pathLen = strlen(dirIn) + 1 + strlen(nameIn) + 1;
+	char* path = (char*)malloc(pathLen);
+	int retVal;
+	if( path == NULL ) return -1;
+	snprintf(path, pathLen, "%s/%s", dirIn, nameIn);
+	retVal = open(path, flagsIn);
+	free(path);
+	return retVal;
+}
+#endif
+
+
+// ******** public functions ********
+/**
+ * Returns the number of checks which have failed so far (in this
+ * translation unit), eg. to skip expensive work which depends on them
+ *
+ * @return the number of failed checks
+ */
+static MPUTF_UNUSED int mPutF_getNumFailedChecks(void)
+{
+	return mPutF_priv_numFailedChecks;
+}
+
+
+/**
+ * Marks the start of a sub-test, allowing a single program to report
+ * many test cases. Prints "\r\n**testStart**\r\nname: <name>\r\n".
+ * Any checks/assertions which fail before the matching call to
+ * mPutF_subTest_end() are attributed to this sub-test.
+ *
+ * @param nameIn the name of the sub-test (must remain valid until
+ * 		mPutF_subTest_end() is called)
+ */
+static MPUTF_UNUSED void mPutF_subTest_start(const char* nameIn)
+{
+	mPutF_priv_currSubTestName = nameIn;
+	mPutF_priv_currSubTestStartTime_ms = mPutF_priv_getTime_ms();
+
+	mPutF_priv_record_t record;
+	mPutF_priv_record_start(&record, MPUTF_RECORD_SUBTEST_START);
+	mPutF_priv_record_putString(&record, nameIn);
+	if( mPutF_priv_record_write(&record) ) return;
+
+	fprintf(stderr, "\r\n%s\r\n%s%s\r\n", MPUTF_SUBTEST_START_TEXT, MPUTF_PREAMBLE_NAME, nameIn);
+	fflush(stderr);
+}
+
+
+/**
+ * Marks the end of the current sub-test. Prints
+ * "\r\n**testEnd**\r\nname: <name>\r\ntime_ms: <duration>\r\n" where
+ * <duration> is the time elapsed since mPutF_subTest_start()
+ */
+static MPUTF_UNUSED void mPutF_subTest_end(void)
+{
+	const char* name = mPutF_priv_currSubTestName;
+	unsigned long long duration_ms = mPutF_priv_getTime_ms() - mPutF_priv_currSubTestStartTime_ms;
+	mPutF_priv_record_t record;
+	if( name == NULL ) return;
+	mPutF_priv_currSubTestName = NULL;
+
+	mPutF_priv_record_start(&record, MPUTF_RECORD_SUBTEST_END);
+	mPutF_priv_record_putString(&record, name);
+	mPutF_priv_record_putInt(&record, duration_ms, 8);
+	if( mPutF_priv_record_write(&record) ) return;
+
+	fprintf(stderr, "\r\n%s\r\n%s%s\r\n%s%llu\r\n",
+			MPUTF_SUBTEST_END_TEXT,
+			MPUTF_PREAMBLE_NAME,
+			name,
+			MPUTF_PREAMBLE_TIME,
+			duration_ms);
+	fflush(stderr);
+}
+
+
+/**
+ * Turns the calling program into a fork server when it is run by mPutF as
+ * such (ie. a test with a <forkServer/> option)...otherwise returns immediately.
+ * Should be called once the program has initialized (eg. loaded its libraries
+ * and data), before it parses its arguments:
+ *
+ *     int main(int argc, char* argv[])
+ *     {
+ *         expensiveInit();
+ *         mPutF_forkServer(&argc, &argv);
+ *         ...run the test selected by argv...
+ *     }
+ *
+ * As a fork server, this function waits for test cases on a control pipe and
+ * forks a fresh child for each one...and only ever returns in those children,
+ * with the arguments of the case in *argcInOut and *argvInOut, the
+ * environment of the case applied and stdout and stderr redirected to mPutF.
+ * The server itself exits once mPutF is done with it. Not supported on Windows
+ * (where this function always returns immediately).
+ *
+ * @param argcInOut the argument count of main()...replaced by that of the case
+ * @param argvInOut the arguments of main()...replaced by those of the case
+ */
+static MPUTF_UNUSED void mPutF_forkServer(int* argcInOut, char*** argvInOut)
+{
+#if !defined(_WIN32)
+	const char* dir = getenv(MPUTF_ENV_FORK_SERVER);
+	int controlFd, statusFd;
+	if( (dir == NULL) || (dir[0] == 0) ) return;
+
+	// note: mPutF opens its ends in the same order (or we'd deadlock)
+	controlFd = mPutF_priv_forkServer_openPipe(dir, MPUTF_FORK_SERVER_CONTROL, O_RDONLY);
+	statusFd = mPutF_priv_forkServer_openPipe(dir, MPUTF_FORK_SERVER_STATUS, O_WRONLY);
+	if( (controlFd < 0) || (statusFd < 0) ) exit(MPUTF_FORK_EXIT_NOT_STARTED);
+
+	while( 1 )
+	{
+		// a request is: u32 length, u16 #args, u16 #environment, then NUL-terminated
+		// args, "name=value" environment, stdout path and stderr path
+		unsigned char header[8];
+		size_t payloadLen, pos;
+		int numArgs, numEnv, numStrings, i, stdoutFd, stderrFd, waitStatus, exitCode;
+		char* payload;
+		char** strings;
+		pid_t pid;
+
+		if( !mPutF_priv_forkServer_readFully(controlFd, header, 4) ) exit(0);		// mPutF is done with us
+		payloadLen = ((size_t)header[0] << 24) | ((size_t)header[1] << 16) | ((size_t)header[2] << 8) | (size_t)header[3];
+		payload = (char*)malloc(payloadLen + 1);
+		if( (payload == NULL) || (payloadLen < 4) || !mPutF_priv_forkServer_readFully(controlFd, payload, payloadLen) ) exit(MPUTF_FORK_EXIT_NOT_STARTED);
+		payload[payloadLen] = 0;
+		memcpy(&header[4], payload, 4);
+		numArgs = (header[4] << 8) | header[5];
+		numEnv = (header[6] << 8) | header[7];
+
+		// split our strings (the argv of the case is NULL-terminated)
+		numStrings = numArgs + numEnv + 2;
+		strings = (char**)malloc((size_t)(numStrings + 1) * sizeof(char*));
+		if( strings == NULL ) exit(MPUTF_FORK_EXIT_NOT_STARTED);
+		for( i = 0, pos = 4; i < numStrings; i++ )
+		{
+			strings[i] = &payload[(pos < payloadLen) ? pos : payloadLen];
+			pos += strlen(strings[i]) + 1;
+		}
+		strings[numStrings] = NULL;
+
+		// open the output of the child _before_ forking (so mPutF never waits on a child which is gone)
+		stdoutFd = open(strings[numArgs + numEnv], O_WRONLY);
+		stderrFd = open(strings[numArgs + numEnv + 1], O_WRONLY);
+		fflush(stdout);
+		fflush(stderr);
+		pid = ((stdoutFd >= 0) && (stderrFd >= 0)) ? fork() : -1;
+		if( pid == 0 )
+		{
+			// the child: becomes the test case
+			close(controlFd);
+			close(statusFd);
+			dup2(stdoutFd, STDOUT_FILENO);
+			dup2(stderrFd, STDERR_FILENO);
+			close(stdoutFd);
+			close(stderrFd);
+			unsetenv(MPUTF_ENV_FORK_SERVER);
+			for( i = 0; i < numEnv; i++ )
+			{
+				char* separator = strchr(strings[numArgs + i], '=');
+				if( separator == NULL ) continue;
+				*separator = 0;
+				setenv(strings[numArgs + i], separator + 1, 1);
+			}
+			strings[numArgs] = NULL;
+
+			// start afresh (ie. as if this were a new process)
+			mPutF_priv_numFailedChecks = 0;
+			mPutF_priv_currSubTestName = NULL;
+			mPutF_priv_resultChannel = NULL;
+			mPutF_priv_resultChannelOpened = 0;
+
+			*argcInOut = numArgs;
+			*argvInOut = strings;
+			return;
+		}
+
+		// the server: reports the start (and end) of the child
+		if( stdoutFd >= 0 ) close(stdoutFd);
+		if( stderrFd >= 0 ) close(stderrFd);
+		if( pid < 0 )
+		{
+			mPutF_priv_forkServer_writeStatus(statusFd, MPUTF_FORK_STATUS_EXITED, MPUTF_FORK_EXIT_NOT_STARTED);
+		}
+		else
+		{
+			mPutF_priv_forkServer_writeStatus(statusFd, MPUTF_FORK_STATUS_STARTED, (int)pid);
+			while( (waitpid(pid, &waitStatus, 0) < 0) && (errno == EINTR) );
+			exitCode = WIFEXITED(waitStatus) ? WEXITSTATUS(waitStatus) : (WIFSIGNALED(waitStatus) ? (128 + WTERMSIG(waitStatus)) : MPUTF_FORK_EXIT_NOT_STARTED);
+			mPutF_priv_forkServer_writeStatus(statusFd, MPUTF_FORK_STATUS_EXITED, exitCode);
+		}
+		free(strings);
+		free(payload);
+	}
+#else
+	(void)argcInOut;
+	(void)argvInOut;
+#endif
+}
+
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
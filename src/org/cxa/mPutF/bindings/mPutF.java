@@ -15,12 +15,40 @@
  */
 package org.cxa.mPutF.bindings;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * This is a utility class for asserting that various
  * conditions are met throughout the execution of a program.
+ * <p>
+ * Results are normally reported on stderr (see the individual methods).
+ * If mPutF provides a dedicated result channel (the path of which is passed
+ * in the {@value #ENV_RESULT_CHANNEL} environment variable), they are instead
+ * written to that channel as length-prefixed binary records, so they can
+ * neither be interleaved with nor mimicked by the program's own stderr output.
+ * Each record is a big-endian <code>int32</code> length (of the remainder of
+ * the record), a <code>byte</code> record type, and:
+ * <ul>
+ * <li>{@link #RECORD_ASSERT} / {@link #RECORD_CHECK} - <code>byte</code> flags
+ * 		({@link #RECORD_FLAG_LOCATION}, {@link #RECORD_FLAG_MESSAGE}), then the
+ * 		file (string) and <code>int32</code> line number if a location is present,
+ * 		then the message (string) if present</li>
+ * <li>{@link #RECORD_SUBTEST_START} - name (string)</li>
+ * <li>{@link #RECORD_SUBTEST_END} - name (string), <code>int64</code> duration in milliseconds</li>
+ * </ul>
+ * where strings are a <code>uint16</code> length followed by that many bytes of UTF-8.
+ * <p>
+ * Runners which execute tests within their own JVM (rather than in a separate
+ * process) use {@link #setInProcessResultChannel(OutputStream)} to give each
+ * test its own binding state and result channel, and to turn the exit of an
+ * assertion into an {@link InProcessExit}.
  * 
  * @author Christopher Armenio
  */
@@ -28,10 +56,50 @@ public class mPutF
 {
 	public static final int EXIT_CODE = 84;
 	public static final String ASSERT_TEXT = "**assert**";
+	public static final String CHECK_TEXT = "**check**";
+	public static final String SUBTEST_START_TEXT = "**testStart**";
+	public static final String SUBTEST_END_TEXT = "**testEnd**";
 	public static final String PREAMBLE_LOCATION = "loc: ";
 	public static final String PREAMBLE_MESSAGE = "msg: ";
+	public static final String PREAMBLE_NAME = "name: ";
+	public static final String PREAMBLE_TIME = "time_ms: ";
 	
-	private static List<AssertListener> assertListeners = new ArrayList<AssertListener>();
+	public static final String ENV_RESULT_CHANNEL = "MPUTF_RESULT_CHANNEL";
+	public static final byte RECORD_ASSERT = 1;
+	public static final byte RECORD_CHECK = 2;
+	public static final byte RECORD_SUBTEST_START = 3;
+	public static final byte RECORD_SUBTEST_END = 4;
+	public static final byte RECORD_FLAG_LOCATION = 0x01;
+	public static final byte RECORD_FLAG_MESSAGE = 0x02;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	
+	/**
+	 * The (mutable) state of the bindings...process-wide, unless
+	 * the program is being executed in-process by a runner
+	 */
+	private static class Context
+	{
+		final List<AssertListener> assertListeners = new ArrayList<AssertListener>();
+		final boolean isInProcess;
+		int numFailedChecks = 0;
+		String currSubTestName = null;
+		long currSubTestStartTime_ns = 0;
+		OutputStream resultChannel = null;
+		boolean resultChannelOpened = false;
+		
+		Context(OutputStream inProcessChannelIn)
+		{
+			this.isInProcess = (inProcessChannelIn != null);
+			this.resultChannel = inProcessChannelIn;
+			this.resultChannelOpened = this.isInProcess;
+		}
+	}
+	
+	
+	private static final Context processContext = new Context(null);
+	private static final InheritableThreadLocal<Context> inProcessContext = new InheritableThreadLocal<Context>();
 	
 	
 	/**
@@ -40,9 +108,26 @@ public class mPutF
 	 * 
 	 * @param alIn the listener that should be notified
 	 */
-	public static void addAssertListener(AssertListener alIn)
+	public static synchronized void addAssertListener(AssertListener alIn)
 	{
-		assertListeners.add(alIn);
+		getContext().assertListeners.add(alIn);
+	}
+	
+	
+	/**
+	 * Used by runners which execute tests within their own JVM. Gives the
+	 * current thread (and any threads it subsequently creates) a fresh binding
+	 * state whose results are written, as records, to the given channel. An
+	 * assertion then notifies its listeners and throws an {@link InProcessExit}
+	 * rather than calling {@link System#exit(int)}.
+	 * 
+	 * @param channelIn the channel for the records of the current thread, or
+	 * 		NULL to return the current thread to the process-wide binding state
+	 */
+	public static void setInProcessResultChannel(OutputStream channelIn)
+	{
+		if( channelIn == null ) inProcessContext.remove();
+		else inProcessContext.set(new Context(channelIn));
 	}
 	
 	
@@ -54,9 +139,14 @@ public class mPutF
 	 */
 	public static void assert_simple(boolean conditionIn)
 	{
-		System.err.printf("\r\n%s\r\n", ASSERT_TEXT);
-		System.err.flush();
-		System.exit(EXIT_CODE);
+		if( conditionIn ) return;
+		
+		if( !writeAssertionRecord(RECORD_ASSERT, null, null) )
+		{
+			System.err.printf("\r\n%s\r\n", ASSERT_TEXT);
+			System.err.flush();
+		}
+		exit();
 	}
 	
 	
@@ -70,13 +160,19 @@ public class mPutF
 	 */
 	public static void assert_line(boolean conditionIn)
 	{
-		System.err.printf("\r\n%s\r\n%s%s:%d\r\n",
-				ASSERT_TEXT,
-				PREAMBLE_LOCATION,
-				Thread.currentThread().getStackTrace()[2].getFileName(),
-				Thread.currentThread().getStackTrace()[2].getLineNumber());
-		System.err.flush();
-		System.exit(EXIT_CODE);
+		if( conditionIn ) return;
+		
+		StackTraceElement caller = Thread.currentThread().getStackTrace()[2];
+		if( !writeAssertionRecord(RECORD_ASSERT, caller, null) )
+		{
+			System.err.printf("\r\n%s\r\n%s%s:%d\r\n",
+					ASSERT_TEXT,
+					PREAMBLE_LOCATION,
+					caller.getFileName(),
+					caller.getLineNumber());
+			System.err.flush();
+		}
+		exit();
 	}
 	
 	
@@ -92,14 +188,278 @@ public class mPutF
 	 */
 	public static void assert_msg(boolean conditionIn, String msgIn)
 	{
-		System.err.printf("\r\n%s\r\n%s%s:%d\r\n%s%s",
-				ASSERT_TEXT,
+		if( conditionIn ) return;
+		
+		StackTraceElement caller = Thread.currentThread().getStackTrace()[2];
+		if( !writeAssertionRecord(RECORD_ASSERT, caller, msgIn) )
+		{
+			System.err.printf("\r\n%s\r\n%s%s:%d\r\n%s%s",
+					ASSERT_TEXT,
+					PREAMBLE_LOCATION,
+					caller.getFileName(),
+					caller.getLineNumber(),
+					PREAMBLE_MESSAGE,
+					msgIn);
+			System.err.flush();
+		}
+		exit();
+	}
+	
+	
+	/**
+	 * Checks that the provided condition is true. If it isn't,
+	 * simply prints "\r\n**check**\r\n" and <i>continues</i> execution
+	 * (the failure is reported by mPutF once the program finishes)
+	 * 
+	 * @param conditionIn the check condition (should be true)
+	 */
+	public static void check_simple(boolean conditionIn)
+	{
+		if( conditionIn ) return;
+		
+		synchronized( mPutF.class ) { getContext().numFailedChecks++; }
+		if( writeAssertionRecord(RECORD_CHECK, null, null) ) return;
+		System.err.printf("\r\n%s\r\n", CHECK_TEXT);
+		System.err.flush();
+	}
+	
+	
+	/**
+	 * Checks that the provided condition is true. If it isn't,
+	 * prints "\r\n**check**\r\nloc: <file>:<lineNum>\r\n" where
+	 * <file> and <lineNum> is the filename and line number from 
+	 * where this function was called, and <i>continues</i> execution
+	 *
+	 * @param conditionIn the check condition (should be true)
+	 */
+	public static void check_line(boolean conditionIn)
+	{
+		if( conditionIn ) return;
+		
+		synchronized( mPutF.class ) { getContext().numFailedChecks++; }
+		StackTraceElement caller = Thread.currentThread().getStackTrace()[2];
+		if( writeAssertionRecord(RECORD_CHECK, caller, null) ) return;
+		System.err.printf("\r\n%s\r\n%s%s:%d\r\n",
+				CHECK_TEXT,
+				PREAMBLE_LOCATION,
+				caller.getFileName(),
+				caller.getLineNumber());
+		System.err.flush();
+	}
+	
+	
+	/**
+	 * Checks that the provided condition is true. If it isn't,
+	 * prints "\r\n**check**\r\nloc: <file>:<lineNum>\r\nmsg: <msg>\r\n" where
+	 * <file> and <lineNum> is the filename and line number from 
+	 * where this function was called, and <msg> is the second
+	 * parameter to this function, and <i>continues</i> execution
+	 *
+	 * @param conditionIn the check condition (should be true)
+	 * @param msgIn the message that should be displayed
+	 */
+	public static void check_msg(boolean conditionIn, String msgIn)
+	{
+		if( conditionIn ) return;
+		
+		synchronized( mPutF.class ) { getContext().numFailedChecks++; }
+		StackTraceElement caller = Thread.currentThread().getStackTrace()[2];
+		if( writeAssertionRecord(RECORD_CHECK, caller, msgIn) ) return;
+		System.err.printf("\r\n%s\r\n%s%s:%d\r\n%s%s\r\n",
+				CHECK_TEXT,
 				PREAMBLE_LOCATION,
-				Thread.currentThread().getStackTrace()[2].getFileName(),
-				Thread.currentThread().getStackTrace()[2].getLineNumber(),
+				caller.getFileName(),
+				caller.getLineNumber(),
 				PREAMBLE_MESSAGE,
 				msgIn);
 		System.err.flush();
-		System.exit(EXIT_CODE);
+	}
+	
+	
+	/**
+	 * Ends the program with the given exit code. Programs which may be run
+	 * in-process (see {@link #setInProcessResultChannel(OutputStream)}) must
+	 * exit through this rather than {@link System#exit(int)}, which would
+	 * end the runner itself.
+	 * 
+	 * @param exitCodeIn the exit code of the program
+	 */
+	public static void exit(int exitCodeIn)
+	{
+		if( getContext().isInProcess ) throw new InProcessExit(exitCodeIn);
+		System.exit(exitCodeIn);
+	}
+	
+	
+	/**
+	 * Returns the number of checks which have failed so far
+	 * (eg. to skip expensive work which depends on them)
+	 * 
+	 * @return the number of failed checks
+	 */
+	public static synchronized int getNumFailedChecks()
+	{
+		return getContext().numFailedChecks;
+	}
+	
+	
+	/**
+	 * Marks the start of a sub-test, allowing a single program to report
+	 * many test cases. Prints "\r\n**testStart**\r\nname: <name>\r\n".
+	 * Any checks/assertions which fail before the matching call to
+	 * {@link #subTest_end()} are attributed to this sub-test. Sub-tests
+	 * do not nest (starting a sub-test implicitly abandons the current one).
+	 * 
+	 * @param nameIn the name of the sub-test (should be unique within the program)
+	 */
+	public static synchronized void subTest_start(String nameIn)
+	{
+		Context ctx = getContext();
+		ctx.currSubTestName = nameIn;
+		ctx.currSubTestStartTime_ns = System.nanoTime();
+		
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(record);
+		try
+		{
+			dos.writeByte(RECORD_SUBTEST_START);
+			writeString(dos, nameIn);
+		}
+		catch( IOException e ) { }
+		if( writeRecord(record) ) return;
+		
+		System.err.printf("\r\n%s\r\n%s%s\r\n",
+				SUBTEST_START_TEXT,
+				PREAMBLE_NAME,
+				nameIn);
+		System.err.flush();
+	}
+	
+	
+	/**
+	 * Marks the end of the current sub-test. Prints
+	 * "\r\n**testEnd**\r\nname: <name>\r\ntime_ms: <duration>\r\n" where
+	 * <duration> is the time elapsed since {@link #subTest_start(String)}
+	 */
+	public static synchronized void subTest_end()
+	{
+		Context ctx = getContext();
+		if( ctx.currSubTestName == null ) return;
+		
+		long duration_ms = (System.nanoTime() - ctx.currSubTestStartTime_ns) / 1000000;
+		String name = ctx.currSubTestName;
+		ctx.currSubTestName = null;
+		
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(record);
+		try
+		{
+			dos.writeByte(RECORD_SUBTEST_END);
+			writeString(dos, name);
+			dos.writeLong(duration_ms);
+		}
+		catch( IOException e ) { }
+		if( writeRecord(record) ) return;
+		
+		System.err.printf("\r\n%s\r\n%s%s\r\n%s%d\r\n",
+				SUBTEST_END_TEXT,
+				PREAMBLE_NAME,
+				name,
+				PREAMBLE_TIME,
+				duration_ms);
+		System.err.flush();
+	}
+	
+	
+	private static boolean writeAssertionRecord(byte typeIn, StackTraceElement callerIn, String msgIn)
+	{
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(record);
+		try
+		{
+			dos.writeByte(typeIn);
+			dos.writeByte(((callerIn != null) ? RECORD_FLAG_LOCATION : 0) | ((msgIn != null) ? RECORD_FLAG_MESSAGE : 0));
+			if( callerIn != null )
+			{
+				writeString(dos, callerIn.getFileName());
+				dos.writeInt(callerIn.getLineNumber());
+			}
+			if( msgIn != null ) writeString(dos, msgIn);
+		}
+		catch( IOException e ) { }
+		
+		return writeRecord(record);
+	}
+	
+	
+	private static Context getContext()
+	{
+		Context retVal = inProcessContext.get();
+		return (retVal != null) ? retVal : processContext;
+	}
+	
+	
+	private static void exit()
+	{
+		Context ctx = getContext();
+		List<AssertListener> listeners;
+		synchronized( mPutF.class ) { listeners = new ArrayList<AssertListener>(ctx.assertListeners); }
+		for( AssertListener currListener : listeners )
+		{
+			currListener.assertionOccurred();
+		}
+		
+		exit(EXIT_CODE);
+	}
+	
+	
+	private static synchronized boolean writeRecord(ByteArrayOutputStream recordIn)
+	{
+		// open our result channel on first use (if mPutF gave us one)
+		Context ctx = getContext();
+		if( !ctx.resultChannelOpened )
+		{
+			ctx.resultChannelOpened = true;
+			String channelPath = System.getenv(ENV_RESULT_CHANNEL);
+			if( (channelPath != null) && !channelPath.isEmpty() )
+			{
+				try
+				{
+					ctx.resultChannel = new FileOutputStream(channelPath);
+				}
+				catch( IOException e ) { }
+			}
+		}
+		if( ctx.resultChannel == null ) return false;
+		
+		// length-prefix and write the entire record at once (so records from multiple threads can't interleave)
+		byte[] payload = recordIn.toByteArray();
+		byte[] record = new byte[4 + payload.length];
+		record[0] = (byte)(payload.length >>> 24);
+		record[1] = (byte)(payload.length >>> 16);
+		record[2] = (byte)(payload.length >>> 8);
+		record[3] = (byte)payload.length;
+		System.arraycopy(payload, 0, record, 4, payload.length);
+		try
+		{
+			ctx.resultChannel.write(record);
+			ctx.resultChannel.flush();
+			return true;
+		}
+		catch( IOException e )
+		{
+			// channel is gone...fall back to stderr
+			ctx.resultChannel = null;
+			return false;
+		}
+	}
+	
+	
+	private static void writeString(DataOutputStream dosIn, String strIn) throws IOException
+	{
+		byte[] bytes = ((strIn != null) ? strIn : "").getBytes(UTF8);
+		int len = Math.min(bytes.length, 0xFFFF);
+		dosIn.writeShort(len);
+		dosIn.write(bytes, 0, len);
 	}
 }
@@ -0,0 +1,227 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.flakiness;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.tests.Test.TestResult;
+import org.cxa.mPutF.tests.TestCaseResult;
+
+/**
+ * A small, local, on-disk database which tracks the pass/fail history
+ * of each test across runs and uses it to detect (and quarantine) flaky tests.
+ * <p>
+ * For each test, the outcomes of the first attempt of the last {@link #WINDOW_SIZE}
+ * runs are kept as a bitmask. A test which is simply broken shows a single
+ * pass-to-fail transition in that window (and, once fixed, a single recovery),
+ * whereas a flaky test keeps failing and recovering; a test is considered flaky
+ * once it has been observed at least {@link #MIN_RUNS} times and has recovered
+ * from at least {@link #MIN_RECOVERIES} separate failures in the window (a pass
+ * after a retry counts as one such recovery). A flaky test is released from
+ * quarantine after {@link #RELEASE_RUNS} consecutive first-attempt passes.
+ *
+ * @author Christopher Armenio
+ */
+public class FlakinessDatabase
+{
+	public static final int WINDOW_SIZE = 64;
+	public static final int MIN_RUNS = 5;
+	public static final int MIN_RECOVERIES = 3;
+	public static final int RELEASE_RUNS = 20;
+
+	private static final int FILE_MAGIC = 0x6D507446;			// 'mPtF'
+	private static final int FILE_VERSION = 1;
+
+
+	private static class History
+	{
+		/** number of recorded runs (saturates at WINDOW_SIZE) */
+		int numRuns = 0;
+		/** bit 0 is the most recent run, set if the first attempt passed */
+		long passBits = 0;
+		/** bit 0 is the most recent run, set if the test passed only after a retry */
+		long retryPassBits = 0;
+
+		void record(boolean firstAttemptPassedIn, boolean passedOnRetryIn)
+		{
+			this.passBits = (this.passBits << 1) | (firstAttemptPassedIn ? 1 : 0);
+			this.retryPassBits = (this.retryPassBits << 1) | (passedOnRetryIn ? 1 : 0);
+			if( this.numRuns < WINDOW_SIZE ) this.numRuns++;
+		}
+
+		long getWindowMask()
+		{
+			return (this.numRuns >= WINDOW_SIZE) ? -1L : ((1L << this.numRuns) - 1);
+		}
+
+		int getNumPasses()
+		{
+			return Long.bitCount(this.passBits & this.getWindowMask());
+		}
+
+		int getNumRecoveries()
+		{
+			// a failed first attempt which ends a streak of failures: it passed on retry, or the next run passed
+			long failBits = ~this.passBits & this.getWindowMask();
+			return Long.bitCount(failBits & (this.retryPassBits | (this.passBits << 1)));
+		}
+
+		int getNumRetryPasses()
+		{
+			return Long.bitCount(this.retryPassBits & this.getWindowMask());
+		}
+
+		int getNumConsecutivePasses()
+		{
+			return Math.min(Long.numberOfTrailingZeros(~this.passBits), this.numRuns);
+		}
+
+		boolean isFlaky()
+		{
+			if( this.numRuns < MIN_RUNS ) return false;
+			if( this.getNumConsecutivePasses() >= RELEASE_RUNS ) return false;
+			return this.getNumRecoveries() >= MIN_RECOVERIES;
+		}
+	}
+
+
+	private final File dbFile;
+	private final Map<String, History> histories = new HashMap<String, History>();
+	private Logger logger = null;
+
+
+	private FlakinessDatabase(File dbFileIn)
+	{
+		this.dbFile = dbFileIn;
+		this.logger = LogManager.getLogger(this.getClass().getSimpleName());
+	}
+
+
+	/**
+	 * Determines whether the given test is currently considered flaky
+	 * (and thus, whether its non-passing results should be quarantined)
+	 *
+	 * @param testNameIn the name of the test
+	 *
+	 * @return a user-friendly reason for the quarantine, or NULL if the
+	 * 		test should not be quarantined
+	 */
+	public synchronized String getQuarantineReason(String testNameIn)
+	{
+		History history = this.histories.get(testNameIn);
+		if( (history == null) || !history.isFlaky() ) return null;
+
+		return String.format("quarantined flaky test: passed %d/%d recent runs (recovered from %d failures, %d by retry)",
+				history.getNumPasses(), history.numRuns, history.getNumRecoveries(), history.getNumRetryPasses());
+	}
+
+
+	/**
+	 * Records the outcome of the given (final) test result
+	 *
+	 * @param resultIn the result of the test (including previous attempts)
+	 */
+	public synchronized void record(TestCaseResult resultIn)
+	{
+		History history = this.histories.get(resultIn.getName());
+		if( history == null )
+		{
+			history = new History();
+			this.histories.put(resultIn.getName(), history);
+		}
+
+		boolean firstAttemptPassed = (resultIn.getResult() == TestResult.TEST_RESULT_PASS) && resultIn.getPreviousAttempts().isEmpty();
+		history.record(firstAttemptPassed, resultIn.isFlaky());
+	}
+
+
+	/**
+	 * Writes the database back to the file from which it was loaded
+	 *
+	 * @throws IOException on error writing the file
+	 */
+	public synchronized void save() throws IOException
+	{
+		// write to a temporary file first so a crash never leaves a truncated database
+		if( (this.dbFile.getAbsoluteFile().getParentFile() != null) && !this.dbFile.getAbsoluteFile().getParentFile().exists() ) this.dbFile.getAbsoluteFile().getParentFile().mkdirs();
+		File tmpFile = new File(this.dbFile.getAbsolutePath() + ".tmp");
+		try( DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile))) )
+		{
+			dos.writeInt(FILE_MAGIC);
+			dos.writeInt(FILE_VERSION);
+			dos.writeInt(this.histories.size());
+			for( Map.Entry<String, History> currEntry : this.histories.entrySet() )
+			{
+				dos.writeUTF(currEntry.getKey());
+				dos.writeByte(currEntry.getValue().numRuns);
+				dos.writeLong(currEntry.getValue().passBits);
+				dos.writeLong(currEntry.getValue().retryPassBits);
+			}
+		}
+
+		if( this.dbFile.exists() && !this.dbFile.delete() ) throw new IOException(String.format("unable to replace '%s'", this.dbFile.getAbsolutePath()));
+		if( !tmpFile.renameTo(this.dbFile) ) throw new IOException(String.format("unable to rename '%s'", tmpFile.getAbsolutePath()));
+		this.logger.trace(String.format("saved %d test histories to '%s'", this.histories.size(), this.dbFile.getAbsolutePath()));
+	}
+
+
+	/**
+	 * Loads the database from the given file (or creates an empty database
+	 * if the file does not yet exist)
+	 *
+	 * @param dbFileIn the database file
+	 *
+	 * @return the loaded database
+	 * @throws IOException on error reading the file
+	 */
+	public static FlakinessDatabase load(File dbFileIn) throws IOException
+	{
+		FlakinessDatabase retVal = new FlakinessDatabase(dbFileIn);
+		if( !dbFileIn.exists() ) return retVal;
+
+		try( DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(dbFileIn))) )
+		{
+			if( dis.readInt() != FILE_MAGIC ) throw new IOException(String.format("'%s' is not a flakiness database", dbFileIn.getAbsolutePath()));
+			int version = dis.readInt();
+			if( version != FILE_VERSION ) throw new IOException(String.format("unsupported flakiness database version [%d]", version));
+
+			int numEntries = dis.readInt();
+			for( int i = 0; i < numEntries; i++ )
+			{
+				String testName = dis.readUTF();
+				History history = new History();
+				history.numRuns = dis.readByte();
+				history.passBits = dis.readLong();
+				history.retryPassBits = dis.readLong();
+				retVal.histories.put(testName, history);
+			}
+		}
+		retVal.logger.trace(String.format("loaded %d test histories from '%s'", retVal.histories.size(), dbFileIn.getAbsolutePath()));
+
+		return retVal;
+	}
+}
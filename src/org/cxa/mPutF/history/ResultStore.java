@@ -0,0 +1,285 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.history;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.store.RunLog;
+import org.cxa.mPutF.tests.TestCaseResult;
+
+/**
+ * A compact, append-only, on-disk store of per-test results across runs.
+ * A store is a {@link RunLog} directory (whose string table holds test names
+ * and assertion locations) which also contains <code>results.dat</code>:
+ * fixed-size ({@value #RECORD_SIZE} byte) records, one per test per run (name,
+ * result, attempts, duration, CPU time, peak memory and assertion location).
+ * The records of a run are written before the run is committed (see
+ * {@link RunLog}). Because all records have the same size, readers
+ * memory-map just the region covering the runs they are interested in (see
+ * {@link Records}).
+ *
+ * @author Christopher Armenio
+ */
+public class ResultStore
+{
+	public static final int RECORD_SIZE = 28;
+
+	static final String FILE_RESULTS = "results.dat";
+
+	static final int RUNS_MAGIC = 0x6D505253;			// 'mPRS'
+	static final int RUNS_VERSION = 1;
+	static final String DESCRIPTION = "result store";
+
+	// record layout
+	static final int REC_OFFSET_RUN = 0;
+	static final int REC_OFFSET_NAME = 4;
+	static final int REC_OFFSET_RESULT = 8;
+	static final int REC_OFFSET_FLAGS = 9;
+	static final int REC_OFFSET_ATTEMPTS = 10;
+	static final int REC_OFFSET_DURATION = 12;
+	static final int REC_OFFSET_CPU = 16;
+	static final int REC_OFFSET_RSS = 20;
+	static final int REC_OFFSET_ASSERT_LOC = 24;
+
+	static final int FLAG_FLAKY = 0x01;
+	static final int FLAG_QUARANTINED = 0x02;
+
+	static final int UNKNOWN = -1;
+
+
+	/**
+	 * The (memory-mapped) records of a range of runs...a single mapping is
+	 * limited to 2 GB, so they are mapped in windows of whole records
+	 */
+	static class Records
+	{
+		private static final int RECORDS_PER_WINDOW = (1 << 30) / RECORD_SIZE;
+
+		private final ByteBuffer[] windows;
+		private final long numRecords;
+
+		private Records(ByteBuffer[] windowsIn, long numRecordsIn)
+		{
+			this.windows = windowsIn;
+			this.numRecords = numRecordsIn;
+		}
+
+		/**
+		 * @return the number of records
+		 */
+		long size()
+		{
+			return this.numRecords;
+		}
+
+		/**
+		 * @return the int at the given offset (see REC_OFFSET_*) of the given record
+		 */
+		int getInt(long recordIn, int offsetIn)
+		{
+			return this.windows[(int)(recordIn / RECORDS_PER_WINDOW)].getInt(((int)(recordIn % RECORDS_PER_WINDOW) * RECORD_SIZE) + offsetIn);
+		}
+
+		/**
+		 * @return the byte at the given offset (see REC_OFFSET_*) of the given record
+		 */
+		byte get(long recordIn, int offsetIn)
+		{
+			return this.windows[(int)(recordIn / RECORDS_PER_WINDOW)].get(((int)(recordIn % RECORDS_PER_WINDOW) * RECORD_SIZE) + offsetIn);
+		}
+	}
+
+
+	/**
+	 * A committed run, along with where its records are
+	 */
+	static class Run
+	{
+		final RunLog.Entry entry;
+		final long resultsOffset;
+		final int numRecords;
+
+		Run(RunLog.Entry entryIn)
+		{
+			ByteBuffer payload = entryIn.getPayload();
+			this.entry = entryIn;
+			this.resultsOffset = payload.getLong();
+			this.numRecords = payload.getInt();
+		}
+
+		long getResultsEnd()
+		{
+			return this.resultsOffset + ((long)this.numRecords * RECORD_SIZE);
+		}
+	}
+
+
+	private final File storeDir;
+	private final RunLog runLog;
+	private long resultsLength;
+
+	private DataOutputStream resultsStream = null;
+	private long runTimestamp;
+	private long runResultsOffset;
+	private int runNumRecords;
+	private Logger logger = null;
+
+
+	private ResultStore(File storeDirIn, RunLog runLogIn)
+	{
+		this.storeDir = storeDirIn;
+		this.runLog = runLogIn;
+		this.logger = LogManager.getLogger(this.getClass().getSimpleName());
+	}
+
+
+	/**
+	 * Starts a new run. Results recorded after this call become
+	 * visible to readers once {@link #commitRun()} is called.
+	 *
+	 * @throws IOException on error opening the store files
+	 */
+	public synchronized void beginRun() throws IOException
+	{
+		if( this.resultsStream != null ) throw new IllegalStateException("run already in progress");
+
+		// discard anything left behind by an uncommitted run
+		RunLog.truncate(new File(this.storeDir, FILE_RESULTS), this.resultsLength);
+
+		this.resultsStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(this.storeDir, FILE_RESULTS), true), 64 * 1024));
+		this.runTimestamp = System.currentTimeMillis();
+		this.runResultsOffset = this.resultsLength;
+		this.runNumRecords = 0;
+	}
+
+
+	/**
+	 * Records the (final) result of a single test in the current run
+	 *
+	 * @param resultIn the result to record
+	 *
+	 * @throws IOException on error writing the record
+	 */
+	public synchronized void record(TestCaseResult resultIn) throws IOException
+	{
+		if( this.resultsStream == null ) throw new IllegalStateException("no run in progress");
+
+		String assertLocation = (resultIn.getAssertion() != null) ? resultIn.getAssertion().getLocation() : null;
+		int flags = (resultIn.isFlaky() ? FLAG_FLAKY : 0) | (resultIn.isQuarantined() ? FLAG_QUARANTINED : 0);
+
+		this.resultsStream.writeInt(this.runLog.getEntries().size());
+		this.resultsStream.writeInt(this.runLog.getNameId(resultIn.getName()));
+		this.resultsStream.writeByte(resultIn.getResult().ordinal());
+		this.resultsStream.writeByte(flags);
+		this.resultsStream.writeShort(Math.min(resultIn.getPreviousAttempts().size() + 1, Short.MAX_VALUE));
+		this.resultsStream.writeInt((int)Math.min(resultIn.getTotalDuration_ms(), Integer.MAX_VALUE));
+		this.resultsStream.writeInt((resultIn.getCpu_ms() >= 0) ? (int)Math.min(resultIn.getCpu_ms(), Integer.MAX_VALUE) : UNKNOWN);
+		this.resultsStream.writeInt((resultIn.getPeakRss_bytes() >= 0) ? (int)Math.min(resultIn.getPeakRss_bytes() / 1024, Integer.MAX_VALUE) : UNKNOWN);
+		this.resultsStream.writeInt((assertLocation != null) ? this.runLog.getNameId(assertLocation) : UNKNOWN);
+		this.runNumRecords++;
+	}
+
+
+	/**
+	 * Commits the current run, making it visible to readers
+	 *
+	 * @throws IOException on error writing the run entry
+	 */
+	public synchronized void commitRun() throws IOException
+	{
+		if( this.resultsStream == null ) throw new IllegalStateException("no run in progress");
+
+		this.resultsStream.close();
+		this.resultsStream = null;
+		this.resultsLength = this.runResultsOffset + ((long)this.runNumRecords * RECORD_SIZE);
+
+		ByteBuffer payload = ByteBuffer.allocate(RunLog.PAYLOAD_SIZE);
+		payload.putLong(this.runResultsOffset).putInt(this.runNumRecords).flip();
+		this.runLog.commitRun(this.runTimestamp, payload);
+		this.logger.trace(String.format("committed run %d (%d results) to '%s'", this.runLog.getEntries().size(), this.runNumRecords, this.storeDir.getAbsolutePath()));
+	}
+
+
+	/**
+	 * Opens (or creates) the result store in the given directory
+	 *
+	 * @param storeDirIn the directory containing the store
+	 *
+	 * @return the opened store, ready for {@link #beginRun()}
+	 * @throws IOException on error reading/creating the store
+	 */
+	public static ResultStore open(File storeDirIn) throws IOException
+	{
+		RunLog runLog = RunLog.open(storeDirIn, RUNS_MAGIC, RUNS_VERSION, DESCRIPTION);
+		ResultStore retVal = new ResultStore(storeDirIn, runLog);
+		if( !runLog.getEntries().isEmpty() ) retVal.resultsLength = new Run(runLog.getEntries().get(runLog.getEntries().size() - 1)).getResultsEnd();
+
+		return retVal;
+	}
+
+
+	/**
+	 * Reads all committed runs of the store in the given directory
+	 */
+	static List<Run> readRuns(File storeDirIn) throws IOException
+	{
+		List<Run> retVal = new ArrayList<Run>();
+		for( RunLog.Entry currEntry : RunLog.readEntries(storeDirIn, RUNS_MAGIC, RUNS_VERSION, DESCRIPTION) ) retVal.add(new Run(currEntry));
+		return retVal;
+	}
+
+
+	/**
+	 * Reads the string table as of the given run
+	 */
+	static List<String> readNames(File storeDirIn, Run runIn) throws IOException
+	{
+		return RunLog.readNames(storeDirIn, runIn.entry);
+	}
+
+
+	/**
+	 * Memory-maps the records of the given (contiguous, ordered) runs
+	 */
+	static Records mapResults(File storeDirIn, Run firstRunIn, Run lastRunIn) throws IOException
+	{
+		long numRecords = (lastRunIn.getResultsEnd() - firstRunIn.resultsOffset) / RECORD_SIZE;
+		ByteBuffer[] windows = new ByteBuffer[(int)((numRecords + Records.RECORDS_PER_WINDOW - 1) / Records.RECORDS_PER_WINDOW)];
+		try( RandomAccessFile raf = new RandomAccessFile(new File(storeDirIn, FILE_RESULTS), "r"); FileChannel fc = raf.getChannel() )
+		{
+			// the mappings remain valid after the channel is closed
+			for( int i = 0; i < windows.length; i++ )
+			{
+				long firstRecord = (long)i * Records.RECORDS_PER_WINDOW;
+				long windowRecords = Math.min(Records.RECORDS_PER_WINDOW, numRecords - firstRecord);
+				windows[i] = fc.map(MapMode.READ_ONLY, firstRunIn.resultsOffset + (firstRecord * RECORD_SIZE), windowRecords * RECORD_SIZE);
+			}
+		}
+		return new Records(windows, numRecords);
+	}
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.cxa.commandLineParser.CommandLineParser;
+import org.cxa.commandLineParser.optionListener.OptionWithArgumentListener;
+import org.cxa.mPutF.tests.Test.TestResult;
+
+/**
+ * Command-line tool for querying a {@link ResultStore}
+ * (eg. slowest tests, pass-rates, duration percentiles or resource usage over the last N runs)
+ *
+ * @author Christopher Armenio
+ */
+public class mPutF_history
+{
+	private static final String QUERY_SLOWEST = "slowest";
+	private static final String QUERY_PASS_RATE = "passRate";
+	private static final String QUERY_P95 = "p95";
+	private static final String QUERY_CPU = "cpu";
+	private static final String QUERY_RSS = "rss";
+
+	private static String storePath = null;
+	private static String query = QUERY_SLOWEST;
+	private static int lastRuns = Integer.MAX_VALUE;
+	private static int top = 20;
+
+
+	/**
+	 * Per-test statistics gathered over the queried runs
+	 */
+	private static class TestStats
+	{
+		final String name;
+		int numRuns = 0;
+		int numPasses = 0;
+		long totalDuration_ms = 0;
+		int[] durations_ms = null;
+		int numCpuRuns = 0;
+		long totalCpu_ms = 0;
+		int peakRss_kb = ResultStore.UNKNOWN;
+		double value;
+
+		TestStats(String nameIn)
+		{
+			this.name = nameIn;
+		}
+	}
+
+
+	/**
+	 * The execution entry-point
+	 *
+	 * @param args command-line arguments/options
+	 */
+	public static void main(String[] args)
+	{
+		parseCmdLineOpts(args);
+
+		try
+		{
+			long startTime_ns = System.nanoTime();
+			List<TestStats> stats = runQuery(new File(storePath));
+			for( TestStats currStats : stats.subList(0, Math.min(top, stats.size())) )
+			{
+				System.out.printf("%-64s %12s  (%d runs)\r\n", currStats.name, formatValue(currStats.value), currStats.numRuns);
+			}
+			System.err.printf("query took %.1f ms\r\n", (System.nanoTime() - startTime_ns) / 1.0e6);
+		}
+		catch( Exception e )
+		{
+			System.err.println(String.format("Error: %s", e.getMessage()));
+			System.exit(-2);
+		}
+	}
+
+
+	private static List<TestStats> runQuery(File storeDirIn) throws IOException
+	{
+		List<ResultStore.Run> runs = ResultStore.readRuns(storeDirIn);
+		if( runs.isEmpty() ) return Collections.emptyList();
+
+		ResultStore.Run firstRun = runs.get(Math.max(0, runs.size() - lastRuns));
+		ResultStore.Run lastRun = runs.get(runs.size() - 1);
+		List<String> names = ResultStore.readNames(storeDirIn, lastRun);
+		ResultStore.Records records = ResultStore.mapResults(storeDirIn, firstRun, lastRun);
+		long numRecords = records.size();
+
+		// first pass: counts, passes, total durations and resource usage (if measured)
+		TestStats[] statsById = new TestStats[names.size()];
+		for( long i = 0; i < numRecords; i++ )
+		{
+			int nameId = records.getInt(i, ResultStore.REC_OFFSET_NAME);
+			TestStats currStats = statsById[nameId];
+			if( currStats == null ) currStats = statsById[nameId] = new TestStats(names.get(nameId));
+
+			currStats.numRuns++;
+			if( records.get(i, ResultStore.REC_OFFSET_RESULT) == TestResult.TEST_RESULT_PASS.ordinal() ) currStats.numPasses++;
+			currStats.totalDuration_ms += records.getInt(i, ResultStore.REC_OFFSET_DURATION);
+			int cpu_ms = records.getInt(i, ResultStore.REC_OFFSET_CPU);
+			if( cpu_ms != ResultStore.UNKNOWN )
+			{
+				currStats.numCpuRuns++;
+				currStats.totalCpu_ms += cpu_ms;
+			}
+			currStats.peakRss_kb = Math.max(currStats.peakRss_kb, records.getInt(i, ResultStore.REC_OFFSET_RSS));
+		}
+
+		// second pass (percentiles only): the individual durations
+		if( query.equals(QUERY_P95) )
+		{
+			int[] fillCounts = new int[statsById.length];
+			for( TestStats currStats : statsById )
+			{
+				if( currStats != null ) currStats.durations_ms = new int[currStats.numRuns];
+			}
+			for( long i = 0; i < numRecords; i++ )
+			{
+				int nameId = records.getInt(i, ResultStore.REC_OFFSET_NAME);
+				statsById[nameId].durations_ms[fillCounts[nameId]++] = records.getInt(i, ResultStore.REC_OFFSET_DURATION);
+			}
+		}
+
+		List<TestStats> retVal = new ArrayList<TestStats>();
+		for( TestStats currStats : statsById )
+		{
+			if( currStats == null ) continue;
+
+			if( query.equals(QUERY_PASS_RATE) ) currStats.value = (double)currStats.numPasses / currStats.numRuns;
+			else if( query.equals(QUERY_P95) )
+			{
+				Arrays.sort(currStats.durations_ms);
+				currStats.value = currStats.durations_ms[(int)Math.ceil(0.95 * currStats.numRuns) - 1];
+			}
+			else if( query.equals(QUERY_CPU) )
+			{
+				// (tests whose resource usage was never measured are left out)
+				if( currStats.numCpuRuns == 0 ) continue;
+				currStats.value = (double)currStats.totalCpu_ms / currStats.numCpuRuns;
+			}
+			else if( query.equals(QUERY_RSS) )
+			{
+				if( currStats.peakRss_kb == ResultStore.UNKNOWN ) continue;
+				currStats.value = currStats.peakRss_kb;
+			}
+			else currStats.value = (double)currStats.totalDuration_ms / currStats.numRuns;
+			retVal.add(currStats);
+		}
+
+		// lowest pass-rate first, otherwise highest duration (or usage) first
+		final int sign = query.equals(QUERY_PASS_RATE) ? 1 : -1;
+		Collections.sort(retVal, new Comparator<TestStats>()
+		{
+			@Override
+			public int compare(TestStats o1, TestStats o2)
+			{
+				return sign * Double.compare(o1.value, o2.value);
+			}
+		});
+		return retVal;
+	}
+
+
+	private static String formatValue(double valueIn)
+	{
+		if( query.equals(QUERY_PASS_RATE) ) return String.format("%.1f%%", valueIn * 100.0);
+		if( query.equals(QUERY_RSS) ) return String.format("%.1f MB", valueIn / 1024.0);
+		return String.format("%.0f ms", valueIn);
+	}
+
+
+	private static void parseCmdLineOpts(String[] optsIn)
+	{
+		// create command line parser
+		final CommandLineParser clp = new CommandLineParser(mPutF_history.class.getSimpleName(),
+						"mPutF result history query tool\r\n" +
+						"Program for querying the result store written by mPutF (see mPutF --resultStore)");
+
+		// add our options
+		clp.addOption("s", "store", "path to the result store directory", true, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				storePath = argIn;
+			}
+		});
+
+		clp.addOption("q", "query", String.format("query to run: '%s' (mean duration), '%s' (lowest first), '%s' (duration), '%s' (mean CPU time) or '%s' (peak memory)",
+				QUERY_SLOWEST, QUERY_PASS_RATE, QUERY_P95, QUERY_CPU, QUERY_RSS),
+				false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				if( !argIn.equals(QUERY_SLOWEST) && !argIn.equals(QUERY_PASS_RATE) && !argIn.equals(QUERY_P95) && !argIn.equals(QUERY_CPU) && !argIn.equals(QUERY_RSS) )
+				{
+					clp.printUsage();
+					System.exit(-1);
+				}
+				query = argIn;
+			}
+		});
+
+		clp.addOption("n", "lastRuns", "only consider the last N runs (default: all)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				lastRuns = parsePositiveInt(clp, argIn);
+			}
+		});
+
+		clp.addOption("k", "top", "number of tests to print (default: 20)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				top = parsePositiveInt(clp, argIn);
+			}
+		});
+
+		// parse our options
+		if( !clp.parseOptions(optsIn) || (storePath == null) )
+		{
+			clp.printUsage();
+			System.exit(-1);
+		}
+	}
+
+
+	private static int parsePositiveInt(CommandLineParser clpIn, String argIn)
+	{
+		try
+		{
+			int retVal = Integer.parseInt(argIn);
+			if( retVal > 0 ) return retVal;
+		}
+		catch( NumberFormatException e ) { }
+
+		clpIn.printUsage();
+		System.exit(-1);
+		return 0;
+	}
+}
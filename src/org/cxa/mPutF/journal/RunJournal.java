@@ -0,0 +1,326 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.journal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.tests.TestCaseResult;
+
+/**
+ * An append-only journal of the results of the tests completed by a run,
+ * written as the run progresses, so that a run which dies part-way (eg. the
+ * CI agent is preempted) can be resumed rather than re-run from scratch.
+ * <p>
+ * The journal is a header (magic, version, suite name) followed by one
+ * record per completed test: <code>[int32 length][payload][int32 crc32]</code>
+ * where the payload is the position of the test in the suite (the index of
+ * its definition and its index within that definition, as test names need not
+ * be unique) followed by a {@link TestCaseResult} (see
+ * {@link TestCaseResult#writeTo(java.io.DataOutput)}). Records are buffered
+ * and written (and fsync'd) at most once per sync interval, so journaling
+ * does not slow the run down...at the cost of re-running the tests completed
+ * within the last interval if the run dies. A torn (or corrupt) record at
+ * the end of the journal is discarded on resume.
+ *
+ * @author Christopher Armenio
+ */
+public class RunJournal
+{
+	public static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+
+	private static final int FILE_MAGIC = 0x6D50524A;			// 'mPRJ'
+	private static final int FILE_VERSION = 1;
+	private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+
+
+	private static Logger staticLogger = LogManager.getLogger("RunJournal");
+
+
+	private final File journalFile;
+	private final Map<String, TestCaseResult> completedResults;
+	private final FileOutputStream fileStream;
+	private final DataOutputStream journalStream;
+	private final long syncInterval_ms;
+	private final Timer syncTimer;
+	private boolean isDirty = false;
+	private boolean isClosed = false;
+	private Logger logger = null;
+
+
+	private RunJournal(File journalFileIn, Map<String, TestCaseResult> completedResultsIn, FileOutputStream fileStreamIn, long syncInterval_msIn)
+	{
+		this.journalFile = journalFileIn;
+		this.completedResults = completedResultsIn;
+		this.fileStream = fileStreamIn;
+		this.journalStream = new DataOutputStream(new BufferedOutputStream(fileStreamIn, 64 * 1024));
+		this.syncInterval_ms = syncInterval_msIn;
+		this.logger = LogManager.getLogger(this.getClass().getSimpleName());
+
+		// records are synced in the background (a long-running test must not hold back
+		// the records of the tests before it)
+		if( syncInterval_msIn > 0 )
+		{
+			this.syncTimer = new Timer(String.format("journalSync-%s", journalFileIn.getName()), true);
+			this.syncTimer.schedule(new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						sync();
+					}
+					catch( IOException e )
+					{
+						logger.warn(String.format("error syncing journal '%s': %s", journalFile.getAbsolutePath(), e.getMessage()));
+					}
+				}
+			}, syncInterval_msIn, syncInterval_msIn);
+		}
+		else this.syncTimer = null;
+	}
+
+
+	/**
+	 * Returns the result of a test completed by the run being resumed
+	 *
+	 * @param definitionIndexIn the index of the definition of the test (a single test or a test matrix)
+	 * @param instanceIndexIn the index of the test within its definition
+	 * @param testNameIn the name of the test
+	 *
+	 * @return the journaled result of the test, or NULL if the test was not completed
+	 * 		(or the journal was not opened for resuming)
+	 */
+	public synchronized TestCaseResult getCompletedResult(int definitionIndexIn, int instanceIndexIn, String testNameIn)
+	{
+		// (a test at the same position but with a different name is not the same test)
+		TestCaseResult retVal = this.completedResults.get(getKey(definitionIndexIn, instanceIndexIn));
+		return ((retVal != null) && retVal.getName().equals(testNameIn)) ? retVal : null;
+	}
+
+
+	/**
+	 * @return the number of tests completed by the run being resumed
+	 */
+	public synchronized int getNumCompletedResults()
+	{
+		return this.completedResults.size();
+	}
+
+
+	/**
+	 * Appends the result of a completed test to the journal. The result
+	 * reaches the disk with the next sync (immediately if the sync interval
+	 * is 0).
+	 *
+	 * @param definitionIndexIn the index of the definition of the test (a single test or a test matrix)
+	 * @param instanceIndexIn the index of the test within its definition
+	 * @param resultIn the result of the test
+	 *
+	 * @throws IOException on error writing the journal
+	 */
+	public synchronized void record(int definitionIndexIn, int instanceIndexIn, TestCaseResult resultIn) throws IOException
+	{
+		if( this.isClosed ) throw new IOException(String.format("journal '%s' is closed", this.journalFile.getAbsolutePath()));
+
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		DataOutputStream payloadStream = new DataOutputStream(payload);
+		payloadStream.writeInt(definitionIndexIn);
+		payloadStream.writeInt(instanceIndexIn);
+		resultIn.writeTo(payloadStream);
+		CRC32 crc = new CRC32();
+		crc.update(payload.toByteArray());
+
+		this.journalStream.writeInt(payload.size());
+		payload.writeTo(this.journalStream);
+		this.journalStream.writeInt((int)crc.getValue());
+		this.isDirty = true;
+
+		if( this.syncInterval_ms <= 0 ) this.sync();
+	}
+
+
+	/**
+	 * Writes all recorded results to disk (and fsyncs the journal)
+	 *
+	 * @throws IOException on error writing the journal
+	 */
+	public synchronized void sync() throws IOException
+	{
+		if( this.isClosed || !this.isDirty ) return;
+
+		this.journalStream.flush();
+		this.fileStream.getFD().sync();
+		this.isDirty = false;
+	}
+
+
+	/**
+	 * Syncs and closes the journal (it is left in place, so the run can
+	 * still be resumed to regenerate its report)
+	 *
+	 * @throws IOException on error writing the journal
+	 */
+	public synchronized void close() throws IOException
+	{
+		if( this.isClosed ) return;
+
+		if( this.syncTimer != null ) this.syncTimer.cancel();
+		try
+		{
+			this.sync();
+		}
+		finally
+		{
+			this.isClosed = true;
+			this.journalStream.close();
+		}
+	}
+
+
+	/**
+	 * Opens a journal for a new run (discarding any previous journal), or
+	 * for resuming the run recorded by an existing journal
+	 *
+	 * @param journalFileIn the journal file
+	 * @param suiteNameIn the name of the suite being run (a journal of a different suite cannot be resumed)
+	 * @param resumeIn true to resume the run recorded in the journal (if any)
+	 * @param syncInterval_msIn maximum time for which recorded results are buffered (0 to sync every result)
+	 *
+	 * @return the opened journal
+	 * @throws IOException on error reading/creating the journal
+	 */
+	public static RunJournal open(File journalFileIn, String suiteNameIn, boolean resumeIn, long syncInterval_msIn) throws IOException
+	{
+		if( (journalFileIn.getParentFile() != null) && !journalFileIn.getParentFile().exists() ) journalFileIn.getParentFile().mkdirs();
+
+		Map<String, TestCaseResult> completedResults = new LinkedHashMap<String, TestCaseResult>();
+		long validLength = -1;
+		if( resumeIn && journalFileIn.exists() && (journalFileIn.length() > 0) )
+		{
+			validLength = readJournal(journalFileIn, suiteNameIn, completedResults);
+			staticLogger.trace(String.format("resuming run with %d completed tests from '%s'", completedResults.size(), journalFileIn.getAbsolutePath()));
+		}
+
+		FileOutputStream fos;
+		if( validLength >= 0 )
+		{
+			// drop any torn record at the end before appending
+			try( RandomAccessFile raf = new RandomAccessFile(journalFileIn, "rw") )
+			{
+				raf.setLength(validLength);
+			}
+			fos = new FileOutputStream(journalFileIn, true);
+		}
+		else
+		{
+			fos = new FileOutputStream(journalFileIn, false);
+			fos.write(createHeader(suiteNameIn));
+			fos.getFD().sync();
+		}
+
+		return new RunJournal(journalFileIn, completedResults, fos, syncInterval_msIn);
+	}
+
+
+	/**
+	 * Reads all intact records of the given journal
+	 *
+	 * @return the length of the intact portion of the journal
+	 */
+	private static long readJournal(File journalFileIn, String suiteNameIn, Map<String, TestCaseResult> resultsOut) throws IOException
+	{
+		try( DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFileIn))) )
+		{
+			String suiteName;
+			try
+			{
+				if( (dis.readInt() != FILE_MAGIC) || (dis.readInt() != FILE_VERSION) ) throw new IOException(String.format("'%s' is not a journal", journalFileIn.getAbsolutePath()));
+				suiteName = dis.readUTF();
+			}
+			catch( EOFException e )
+			{
+				throw new IOException(String.format("'%s' is not a journal", journalFileIn.getAbsolutePath()));
+			}
+			if( !suiteName.equals(suiteNameIn) ) throw new IOException(String.format("journal '%s' belongs to test suite '%s'", journalFileIn.getAbsolutePath(), suiteName));
+
+			long retVal = createHeader(suiteName).length;
+			while( true )
+			{
+				byte[] payload;
+				int storedCrc;
+				try
+				{
+					int len = dis.readInt();
+					if( (len < 0) || (len > MAX_RECORD_LENGTH) ) break;
+					payload = new byte[len];
+					dis.readFully(payload);
+					storedCrc = dis.readInt();
+				}
+				catch( EOFException e )
+				{
+					break;
+				}
+
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if( (int)crc.getValue() != storedCrc ) break;
+
+				DataInputStream payloadStream = new DataInputStream(new ByteArrayInputStream(payload));
+				String key = getKey(payloadStream.readInt(), payloadStream.readInt());
+				resultsOut.put(key, TestCaseResult.readFrom(payloadStream));
+				retVal += 4 + payload.length + 4;
+			}
+			return retVal;
+		}
+	}
+
+
+	private static String getKey(int definitionIndexIn, int instanceIndexIn)
+	{
+		return String.format("%d/%d", definitionIndexIn, instanceIndexIn);
+	}
+
+
+	private static byte[] createHeader(String suiteNameIn) throws IOException
+	{
+		ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(retVal);
+		dos.writeInt(FILE_MAGIC);
+		dos.writeInt(FILE_VERSION);
+		dos.writeUTF(suiteNameIn);
+		dos.flush();
+		return retVal.toByteArray();
+	}
+}
@@ -16,9 +16,20 @@
 package org.cxa.mPutF;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 import org.cxa.commandLineParser.CommandLineParser;
+import org.cxa.commandLineParser.optionListener.OptionNoArgumentListener;
 import org.cxa.commandLineParser.optionListener.OptionWithArgumentListener;
+import org.cxa.mPutF.flakiness.FlakinessDatabase;
+import org.cxa.mPutF.history.ResultStore;
+import org.cxa.mPutF.journal.RunJournal;
+import org.cxa.mPutF.report.JsonLinesReportWriter;
+import org.cxa.mPutF.report.TapReportWriter;
+import org.cxa.mPutF.search.OutputIndex;
+import org.cxa.mPutF.tests.SoakRunner;
+import org.cxa.mPutF.tests.localProcess.Sandbox;
 
 
 /**
@@ -30,6 +41,21 @@ public class mPutF
 {	
 	private static String configFilePath = "config.xml";
 	private static String outputFilePath = "testResults.xml";
+	private static String flakinessDbPath = null;
+	private static String changedFilesPath = null;
+	private static String planCachePath = null;
+	private static String resultStorePath = null;
+	private static String outputIndexPath = null;
+	private static String journalPath = null;
+	private static String tapPath = null;
+	private static String jsonLinesPath = null;
+	private static long journalSyncInterval_ms = RunJournal.DEFAULT_SYNC_INTERVAL_MS;
+	private static boolean resume = false;
+	private static int parallelism = 1;
+	private static Integer soakRuns = null;
+	private static int soakConcurrency = Runtime.getRuntime().availableProcessors();
+	private static Integer timeBudget_s = null;
+	private static final TestFilter testFilter = new TestFilter();
 	
 	/**
 	 * The execution entry-point
@@ -43,7 +69,17 @@ public class mPutF
 		// we have a configuration file (either default OR specified)...try it
 		try
 		{
-			TestSuite testSuite = TestSuite.parseTestSuite(new File(configFilePath), new File(outputFilePath));
+			if( changedFilesPath != null ) testFilter.setChangedFiles(readChangedFiles(changedFilesPath));
+			TestSuite testSuite = TestSuite.parseTestSuite(new File(configFilePath), new File(outputFilePath), testFilter, ((planCachePath != null) ? new File(planCachePath) : null));
+			if( flakinessDbPath != null ) testSuite.setFlakinessDatabase(FlakinessDatabase.load(new File(flakinessDbPath)));
+			if( resultStorePath != null ) testSuite.setResultStore(ResultStore.open(new File(resultStorePath)));
+			if( outputIndexPath != null ) testSuite.setOutputIndex(OutputIndex.open(new File(outputIndexPath)));
+			testSuite.setParallelism(parallelism);
+			testSuite.setTimeBudget_s(timeBudget_s);
+			if( soakRuns != null ) testSuite.setSoakRunner(new SoakRunner(soakRuns, soakConcurrency));
+			if( tapPath != null ) testSuite.addReportWriter(new TapReportWriter(tapPath));
+			if( jsonLinesPath != null ) testSuite.addReportWriter(new JsonLinesReportWriter(jsonLinesPath));
+			testSuite.setJournal(RunJournal.open(new File((journalPath != null) ? journalPath : (outputFilePath + ".journal")), testSuite.getName(), resume, journalSyncInterval_ms));
 			testSuite.runAllTests();
 		}
 		catch( Exception e )
@@ -54,6 +90,12 @@ public class mPutF
 	}
 	
 	
+	private static List<String> readChangedFiles(String pathIn) throws IOException
+	{
+		return TestFilter.readChangedFiles(pathIn.equals("-") ? null : new File(pathIn));
+	}
+	
+	
 	private static void parseCmdLineOpts(String[] optsIn)
 	{
 		// create command line parser
@@ -80,6 +122,248 @@ public class mPutF
 			}
 		});
 		
+		clp.addOption("tap", "tap", "path to which a TAP (version 14) report is streamed as tests complete ('-' for stdout)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				tapPath = argIn;
+			}
+		});
+		
+		clp.addOption("jl", "jsonLines", "path to which a JSON Lines report is streamed as tests complete ('-' for stdout)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				jsonLinesPath = argIn;
+			}
+		});
+		
+		clp.addOption("pc", "planCache", "path to a cache of the parsed configuration (avoids re-parsing large, unchanged configurations)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				planCachePath = argIn;
+			}
+		});
+		
+		clp.addOption("f", "flakinessDb", "path to the flakiness database (enables automatic quarantine of flaky tests)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				flakinessDbPath = argIn;
+			}
+		});
+		
+		clp.addOption("rs", "resultStore", "path to a directory to which the results of each run are appended (see mPutF_history)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				resultStorePath = argIn;
+			}
+		});
+		
+		clp.addOption("oi", "outputIndex", "path to a directory in which the output of each run is indexed (see mPutF_search)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				outputIndexPath = argIn;
+			}
+		});
+		
+		clp.addOption("j", "journal", "path to the journal of completed tests, used by --resume (default: <outputFile>.journal)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				journalPath = argIn;
+			}
+		});
+		
+		clp.addOption("js", "journalSync_ms", String.format("maximum time for which journal writes are batched before being fsync'd (default: %d, 0 to sync every test)", RunJournal.DEFAULT_SYNC_INTERVAL_MS), false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				try
+				{
+					journalSyncInterval_ms = Long.parseLong(argIn);
+					if( journalSyncInterval_ms < 0 ) throw new NumberFormatException();
+				}
+				catch( NumberFormatException e )
+				{
+					System.err.println(String.format("Error: invalid journal sync interval '%s'", argIn));
+					System.exit(-1);
+				}
+			}
+		});
+		
+		clp.addOption("r", "resume", "resume the run recorded in the journal (tests already completed are not run again)", false, new OptionNoArgumentListener()
+		{
+			@Override
+			public void optionIsPresent()
+			{
+				resume = true;
+			}
+		});
+		
+		clp.addOption("p", "parallel", "maximum number of tests run concurrently (default: 1, 0 for one per processor)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				try
+				{
+					parallelism = Integer.parseInt(argIn);
+					if( parallelism < 0 ) throw new NumberFormatException();
+					if( parallelism == 0 ) parallelism = Runtime.getRuntime().availableProcessors();
+				}
+				catch( NumberFormatException e )
+				{
+					System.err.println(String.format("Error: invalid parallelism '%s'", argIn));
+					System.exit(-1);
+				}
+			}
+		});
+		
+		clp.addOption("rp", "repeat", "run each (selected) test up to this many times, concurrently, stopping at the first run which does not pass", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				try
+				{
+					soakRuns = Integer.parseInt(argIn);
+					if( soakRuns < 1 ) throw new NumberFormatException();
+				}
+				catch( NumberFormatException e )
+				{
+					System.err.println(String.format("Error: invalid number of repetitions '%s'", argIn));
+					System.exit(-1);
+				}
+			}
+		});
+		
+		clp.addOption("uf", "untilFailure", "run each (selected) test repeatedly, concurrently, until a run does not pass (--repeat limits the number of runs)", false, new OptionNoArgumentListener()
+		{
+			@Override
+			public void optionIsPresent()
+			{
+				if( soakRuns == null ) soakRuns = SoakRunner.RUNS_UNTIL_FAILURE;
+			}
+		});
+		
+		clp.addOption("rc", "repeatConcurrency", "maximum number of concurrent runs of a repeated test (default: one per processor)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				try
+				{
+					soakConcurrency = Integer.parseInt(argIn);
+					if( soakConcurrency < 1 ) throw new NumberFormatException();
+				}
+				catch( NumberFormatException e )
+				{
+					System.err.println(String.format("Error: invalid repeat concurrency '%s'", argIn));
+					System.exit(-1);
+				}
+			}
+		});
+		
+		clp.addOption("tb", "timeBudget", "maximum time, in seconds, for the whole run (tests still running are stopped and the rest are skipped)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				try
+				{
+					timeBudget_s = Integer.parseInt(argIn);
+					if( timeBudget_s < 1 ) throw new NumberFormatException();
+				}
+				catch( NumberFormatException e )
+				{
+					System.err.println(String.format("Error: invalid time budget '%s'", argIn));
+					System.exit(-1);
+				}
+			}
+		});
+		
+		clp.addOption("cg", "cgroupRoot", String.format("delegated cgroup v2 directory for tests with resource limits (default: %s)", Sandbox.getCgroupRoot()), false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				Sandbox.setCgroupRoot(new File(argIn));
+			}
+		});
+		
+		clp.addOption("i", "include", "comma-separated test name globs (or 're:' prefixed regexes) to run", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				try
+				{
+					for( String currPattern : TestFilter.splitList(argIn) ) testFilter.addInclude(currPattern);
+				}
+				catch( IllegalArgumentException e )
+				{
+					System.err.println(String.format("Error: %s", e.getMessage()));
+					System.exit(-1);
+				}
+			}
+		});
+		
+		clp.addOption("x", "exclude", "comma-separated test name globs (or 're:' prefixed regexes) to skip", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				try
+				{
+					for( String currPattern : TestFilter.splitList(argIn) ) testFilter.addExclude(currPattern);
+				}
+				catch( IllegalArgumentException e )
+				{
+					System.err.println(String.format("Error: %s", e.getMessage()));
+					System.exit(-1);
+				}
+			}
+		});
+		
+		clp.addOption("t", "tags", "comma-separated tags; only tests with at least one of these tags are run", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				for( String currTag : TestFilter.splitList(argIn) ) testFilter.addIncludeTag(currTag);
+			}
+		});
+		
+		clp.addOption("xt", "excludeTags", "comma-separated tags; tests with any of these tags are skipped", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				for( String currTag : TestFilter.splitList(argIn) ) testFilter.addExcludeTag(currTag);
+			}
+		});
+		
+		clp.addOption("cf", "changedFiles", "file listing changed paths, one per line ('-' for stdin); only tests whose 'sources' match are run", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				changedFilesPath = argIn;
+			}
+		});
+		
 		// parse our options
 		if( !clp.parseOptions(optsIn) )
 		{
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.report;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cxa.mPutF.bindingOutputParser.BindingOutputParser.Assertion;
+import org.cxa.mPutF.tests.TestCaseResult;
+
+/**
+ * Groups the failures and errors of all tests of a run by their signature, so
+ * that a single regression (eg. hundreds of tests failing at the same
+ * assertion) shows up once: the signature of a failed assertion is
+ * {@link Assertion#getSignature()}, that of any other problem is its type
+ * followed by its normalized message (see {@link Assertion#normalizeMessage(String)}).
+ *
+ * @author Christopher Armenio
+ */
+public class FailureClusters
+{
+	private static final int MAX_CLUSTERS = 25;
+	private static final int MAX_EXAMPLES = 3;
+	private static final int MAX_SIGNATURE_LENGTH = 160;
+
+
+	/**
+	 * The problems sharing a single signature
+	 */
+	private static class Cluster
+	{
+		final String signature;
+		int numProblems = 0;
+		int numTests = 0;
+		TestCaseResult lastResult = null;
+		final List<String> examples = new ArrayList<String>();
+
+		Cluster(String signatureIn)
+		{
+			this.signature = signatureIn;
+		}
+	}
+
+
+	private final Map<String, Cluster> clusters = new HashMap<String, Cluster>();
+	private int numProblems = 0;
+	private int numTests = 0;
+
+
+	/**
+	 * Clusters the problems of the given results (passed, skipped and
+	 * quarantined results are ignored)
+	 *
+	 * @param resultsIn the results of a run
+	 *
+	 * @return the clusters (may be empty)
+	 */
+	public static FailureClusters cluster(List<TestCaseResult> resultsIn)
+	{
+		FailureClusters retVal = new FailureClusters();
+		for( TestCaseResult currResult : resultsIn )
+		{
+			if( currResult.isSkipped() || currResult.isQuarantined() || currResult.getProblems().isEmpty() ) continue;
+			retVal.add(currResult);
+		}
+		return retVal;
+	}
+
+
+	/**
+	 * Adds the problems of the given result
+	 *
+	 * @param resultIn a failed (or errored) result
+	 */
+	public void add(TestCaseResult resultIn)
+	{
+		this.numTests++;
+		for( TestCaseResult.Problem currProblem : resultIn.getProblems() )
+		{
+			String signature = getSignature(currProblem);
+			Cluster currCluster = this.clusters.get(signature);
+			if( currCluster == null )
+			{
+				currCluster = new Cluster(signature);
+				this.clusters.put(signature, currCluster);
+			}
+
+			// a test may fail the same check several times (eg. in a loop)...it is counted once
+			this.numProblems++;
+			currCluster.numProblems++;
+			if( currCluster.lastResult == resultIn ) continue;
+			currCluster.lastResult = resultIn;
+			currCluster.numTests++;
+			if( currCluster.examples.size() < MAX_EXAMPLES ) currCluster.examples.add(resultIn.getName());
+		}
+	}
+
+
+	/**
+	 * @return true if no problems were added
+	 */
+	public boolean isEmpty()
+	{
+		return this.clusters.isEmpty();
+	}
+
+
+	/**
+	 * @return a table of the largest clusters: the number of tests and problems
+	 * 		with each signature, the signature and some of the tests
+	 */
+	@Override
+	public String toString()
+	{
+		List<Cluster> sortedClusters = new ArrayList<Cluster>(this.clusters.values());
+		Collections.sort(sortedClusters, new Comparator<Cluster>()
+		{
+			@Override
+			public int compare(Cluster lhsIn, Cluster rhsIn)
+			{
+				if( lhsIn.numTests != rhsIn.numTests ) return Integer.compare(rhsIn.numTests, lhsIn.numTests);
+				if( lhsIn.numProblems != rhsIn.numProblems ) return Integer.compare(rhsIn.numProblems, lhsIn.numProblems);
+				return lhsIn.signature.compareTo(rhsIn.signature);
+			}
+		});
+
+		StringBuilder retVal = new StringBuilder();
+		retVal.append(String.format("%d problems in %d tests, %d distinct signatures%n", this.numProblems, this.numTests, sortedClusters.size()));
+		retVal.append(String.format("%6s %8s  %s%n", "tests", "problems", "signature"));
+		for( Cluster currCluster : sortedClusters.subList(0, Math.min(sortedClusters.size(), MAX_CLUSTERS)) )
+		{
+			String signature = currCluster.signature;
+			if( signature.length() > MAX_SIGNATURE_LENGTH ) signature = signature.substring(0, MAX_SIGNATURE_LENGTH - 3) + "...";
+			retVal.append(String.format("%6d %8d  %s%n", currCluster.numTests, currCluster.numProblems, signature));
+			retVal.append(String.format("%16s e.g. %s%s%n", "", join(currCluster.examples),
+					(currCluster.numTests > currCluster.examples.size()) ? String.format(" (+%d more)", currCluster.numTests - currCluster.examples.size()) : ""));
+		}
+		if( sortedClusters.size() > MAX_CLUSTERS ) retVal.append(String.format("...and %d smaller clusters%n", sortedClusters.size() - MAX_CLUSTERS));
+		return retVal.toString();
+	}
+
+
+	private static String getSignature(TestCaseResult.Problem problemIn)
+	{
+		if( problemIn.getAssertion() != null ) return problemIn.getAssertion().getSignature();
+		return (problemIn.getMessage() != null) ? String.format("%s: %s", problemIn.getType(), Assertion.normalizeMessage(problemIn.getMessage())) : problemIn.getType();
+	}
+
+
+	private static String join(List<String> namesIn)
+	{
+		StringBuilder retVal = new StringBuilder();
+		for( String currName : namesIn )
+		{
+			if( retVal.length() > 0 ) retVal.append(", ");
+			retVal.append(currName);
+		}
+		return retVal.toString();
+	}
+}
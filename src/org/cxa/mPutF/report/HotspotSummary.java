@@ -0,0 +1,142 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.report;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cxa.mPutF.tests.TestCaseResult;
+
+/**
+ * Merges the hotspots of the profiles recorded by a single profiler across
+ * all tests of a run (see {@link TestCaseResult#getProfile()}): the weight of
+ * each symbol is summed over all profiles, so the symbols which dominate the
+ * suite as a whole come first.
+ *
+ * @author Christopher Armenio
+ */
+public class HotspotSummary
+{
+	private static final int MAX_HOTSPOTS = 25;
+
+
+	private final String profilerName;
+	private final Map<String, Double> weights = new HashMap<String, Double>();
+	private final Map<String, Integer> numTests = new HashMap<String, Integer>();
+	private double totalWeight = 0;
+	private int numProfiles = 0;
+
+
+	/**
+	 * @param profilerNameIn the name of the profiler whose profiles are merged
+	 */
+	public HotspotSummary(String profilerNameIn)
+	{
+		this.profilerName = profilerNameIn;
+	}
+
+
+	/**
+	 * Merges the hotspots of the profiles of the given results, one summary
+	 * per profiler (results without a profile, or whose profile has no
+	 * hotspots, are ignored)
+	 *
+	 * @param resultsIn the results of a run
+	 *
+	 * @return the summaries, by profiler name (may be empty)
+	 */
+	public static Map<String, HotspotSummary> merge(List<TestCaseResult> resultsIn)
+	{
+		Map<String, HotspotSummary> retVal = new LinkedHashMap<String, HotspotSummary>();
+		for( TestCaseResult currResult : resultsIn )
+		{
+			TestCaseResult.Profile currProfile = currResult.getProfile();
+			if( (currProfile == null) || currProfile.getHotspots().isEmpty() ) continue;
+
+			HotspotSummary summary = retVal.get(currProfile.getProfilerName());
+			if( summary == null )
+			{
+				summary = new HotspotSummary(currProfile.getProfilerName());
+				retVal.put(currProfile.getProfilerName(), summary);
+			}
+			summary.add(currProfile);
+		}
+		return retVal;
+	}
+
+
+	/**
+	 * Adds the hotspots of the given profile
+	 *
+	 * @param profileIn a profile recorded by this summary's profiler
+	 */
+	public void add(TestCaseResult.Profile profileIn)
+	{
+		this.numProfiles++;
+		for( Map.Entry<String, Double> currHotspot : profileIn.getHotspots().entrySet() )
+		{
+			Double currWeight = this.weights.get(currHotspot.getKey());
+			Integer currNumTests = this.numTests.get(currHotspot.getKey());
+			this.weights.put(currHotspot.getKey(), ((currWeight != null) ? currWeight : 0.0) + currHotspot.getValue());
+			this.numTests.put(currHotspot.getKey(), ((currNumTests != null) ? currNumTests : 0) + 1);
+			this.totalWeight += currHotspot.getValue();
+		}
+	}
+
+
+	/**
+	 * @return the name of the profiler whose profiles are merged
+	 */
+	public String getProfilerName()
+	{
+		return this.profilerName;
+	}
+
+
+	/**
+	 * @return a table of the heaviest hotspots: their share of the total weight, their weight,
+	 * 		the number of tests in which they appear and the symbol
+	 */
+	@Override
+	public String toString()
+	{
+		List<String> symbols = new ArrayList<String>(this.weights.keySet());
+		Collections.sort(symbols, new Comparator<String>()
+		{
+			@Override
+			public int compare(String lhsIn, String rhsIn)
+			{
+				return Double.compare(weights.get(rhsIn), weights.get(lhsIn));
+			}
+		});
+
+		StringBuilder retVal = new StringBuilder();
+		retVal.append(String.format("hotspots of %d %s profiles (%d symbols)%n", this.numProfiles, this.profilerName, symbols.size()));
+		retVal.append(String.format("%7s %16s %6s  %s%n", "share", "weight", "tests", "symbol"));
+		for( String currSymbol : symbols.subList(0, Math.min(symbols.size(), MAX_HOTSPOTS)) )
+		{
+			double weight = this.weights.get(currSymbol);
+			retVal.append(String.format("%6.2f%% %16.2f %6d  %s%n", (this.totalWeight > 0) ? (100.0 * weight / this.totalWeight) : 0.0,
+					weight, this.numTests.get(currSymbol), currSymbol));
+		}
+		return retVal.toString();
+	}
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.report;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.cxa.mPutF.tests.Test.TestResult;
+import org.cxa.mPutF.tests.TestCaseResult;
+import org.cxa.mPutF.tests.localProcess.OutputTimeline;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Writes a JUnit-style XML report (as understood by Jenkins, etc). The
+ * report is a single document, so it is written once the run is complete,
+ * with test cases in the order in which they are defined.
+ *
+ * @author Christopher Armenio
+ */
+public class JUnitXmlReportWriter implements ReportWriter
+{
+	private final File outputFile;
+
+
+	/**
+	 * @param outputFileIn the file to which the report is written (parent directories are created as needed)
+	 */
+	public JUnitXmlReportWriter(File outputFileIn)
+	{
+		this.outputFile = outputFileIn;
+	}
+
+
+	/**
+	 * @return the file to which the report is written
+	 */
+	public File getOutputFile()
+	{
+		return this.outputFile;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.report.ReportWriter#beginRun(java.lang.String)
+	 */
+	@Override
+	public void beginRun(String suiteNameIn)
+	{
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.report.ReportWriter#testCompleted(org.cxa.mPutF.tests.TestCaseResult)
+	 */
+	@Override
+	public void testCompleted(TestCaseResult resultIn)
+	{
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.report.ReportWriter#endRun(java.util.List, org.cxa.mPutF.report.RunSummary)
+	 */
+	@Override
+	public void endRun(List<TestCaseResult> resultsIn, RunSummary summaryIn) throws IOException
+	{
+		try
+		{
+			// create our xml file in memory and add our test suite info
+			Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			doc.setXmlStandalone(true);
+
+			Element elem_testSuite = doc.createElement("testsuite");
+			elem_testSuite.setAttribute("name", summaryIn.getSuiteName());
+			for( TestCaseResult currResult : resultsIn ) elem_testSuite.appendChild(createTestCaseElement(doc, currResult));
+
+			elem_testSuite.setAttribute("tests", String.valueOf(summaryIn.getNumTests()));
+			elem_testSuite.setAttribute("errors", String.valueOf(summaryIn.getNumErrors()));
+			elem_testSuite.setAttribute("failures", String.valueOf(summaryIn.getNumFailures()));
+			elem_testSuite.setAttribute("skipped", String.valueOf(summaryIn.getNumSkipped()));
+			elem_testSuite.setAttribute("time", String.format("%.2f", ((float)summaryIn.getDuration_ms()) / 1000.0));
+			elem_testSuite.setAttribute("timestamp", new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(summaryIn.getStartTime()));
+			if( !summaryIn.getAttachments().isEmpty() )
+			{
+				// the suite-level output holds the artifacts of the run as a whole
+				StringBuilder attachments = new StringBuilder();
+				for( Map.Entry<String, String> currAttachment : summaryIn.getAttachments().entrySet() )
+				{
+					attachments.append(String.format("=== %s ===%n%s%n", currAttachment.getKey(), currAttachment.getValue()));
+				}
+				Element stdoutNode = doc.createElement("system-out");
+				stdoutNode.setTextContent(attachments.toString());
+				elem_testSuite.appendChild(stdoutNode);
+			}
+			doc.appendChild(elem_testSuite);
+
+			// get ready to output our file
+			Transformer transformer = TransformerFactory.newInstance().newTransformer();
+			transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+			DOMSource source = new DOMSource(doc);
+			// make sure our output directory exists
+			if( (this.outputFile.getParentFile() != null) && !this.outputFile.getParentFile().exists() ) this.outputFile.getParentFile().mkdirs();
+			// actually output our file
+			transformer.transform(source, new StreamResult(this.outputFile));
+		}
+		catch( ParserConfigurationException e )
+		{
+			throw new IOException(String.format("unable to create XML report: %s", e.getMessage()), e);
+		}
+		catch( TransformerException e )
+		{
+			throw new IOException(String.format("unable to write XML report '%s': %s", this.outputFile.getPath(), e.getMessage()), e);
+		}
+	}
+
+
+	private static Element createTestCaseElement(Document xmlDocIn, TestCaseResult resultIn)
+	{
+		Element testXmlElement = xmlDocIn.createElement("testcase");
+		testXmlElement.setAttribute("classname", TestCaseResult.CLASS_NAME);
+		testXmlElement.setAttribute("name", resultIn.getName());
+
+		Element propertiesNode = xmlDocIn.createElement("properties");
+		if( resultIn.getProfile() != null )
+		{
+			addProperty(xmlDocIn, propertiesNode, String.format("profile.%s", resultIn.getProfile().getProfilerName()), resultIn.getProfile().getOutputPath());
+		}
+		TestCaseResult.Repetitions repetitions = resultIn.getRepetitions();
+		if( repetitions != null )
+		{
+			addProperty(xmlDocIn, propertiesNode, "repeat.runs", Integer.toString(repetitions.getNumRuns()));
+			addProperty(xmlDocIn, propertiesNode, "repeat.passed", Integer.toString(repetitions.getNumPassed()));
+			addProperty(xmlDocIn, propertiesNode, "repeat.failed", Integer.toString(repetitions.getNumFailed()));
+			addProperty(xmlDocIn, propertiesNode, "repeat.errors", Integer.toString(repetitions.getNumErrors()));
+			addProperty(xmlDocIn, propertiesNode, "repeat.wallTime_ms", Long.toString(repetitions.getWallTime_ms()));
+			addProperty(xmlDocIn, propertiesNode, "repeat.duration_ms.min", Long.toString(repetitions.getMinDuration_ms()));
+			addProperty(xmlDocIn, propertiesNode, "repeat.duration_ms.p50", Long.toString(repetitions.getMedianDuration_ms()));
+			addProperty(xmlDocIn, propertiesNode, "repeat.duration_ms.p90", Long.toString(repetitions.getP90Duration_ms()));
+			addProperty(xmlDocIn, propertiesNode, "repeat.duration_ms.p99", Long.toString(repetitions.getP99Duration_ms()));
+			addProperty(xmlDocIn, propertiesNode, "repeat.duration_ms.max", Long.toString(repetitions.getMaxDuration_ms()));
+		}
+		if( propertiesNode.hasChildNodes() ) testXmlElement.appendChild(propertiesNode);
+
+		if( resultIn.isSkipped() )
+		{
+			Element skippedNode = xmlDocIn.createElement("skipped");
+			skippedNode.setAttribute("message", resultIn.getSkipMessage());
+			testXmlElement.appendChild(skippedNode);
+		}
+		else if( resultIn.isQuarantined() )
+		{
+			Element skippedNode = xmlDocIn.createElement("skipped");
+			skippedNode.setAttribute("message", String.format("%s [%s: %s]", resultIn.getQuarantineMessage(), resultIn.getProblemType(), resultIn.getProblemMessage()));
+			testXmlElement.appendChild(skippedNode);
+		}
+		else
+		{
+			// each problem (eg. every failed check) is reported individually
+			for( TestCaseResult.Problem currProblem : resultIn.getProblems() )
+			{
+				testXmlElement.appendChild(createProblemElement(xmlDocIn, (currProblem.isError() ? "error" : "failure"), currProblem));
+			}
+		}
+
+		// previous attempts are reported in the same manner as maven-surefire reruns:
+		// 'flaky*' if the test eventually passed, 'rerun*' if it never did
+		String rerunPrefix = (resultIn.getResult() == TestResult.TEST_RESULT_PASS) ? "flaky" : "rerun";
+		for( TestCaseResult currAttempt : resultIn.getPreviousAttempts() )
+		{
+			String nodeName = rerunPrefix + ((currAttempt.getResult() == TestResult.TEST_RESULT_ERROR) ? "Error" : "Failure");
+			Element attemptNode = createProblemElement(xmlDocIn, nodeName, currAttempt.getProblems().get(0));
+			addOutput(xmlDocIn, attemptNode, currAttempt);
+			testXmlElement.appendChild(attemptNode);
+		}
+
+		// output our common stuff (stdout, stderr, etc)
+		addOutput(xmlDocIn, testXmlElement, resultIn);
+		testXmlElement.setAttribute("time", String.format("%.2f", ((float)resultIn.getTotalDuration_ms()) / 1000.0));
+
+		return testXmlElement;
+	}
+
+
+	private static void addProperty(Document xmlDocIn, Element propertiesNodeIn, String nameIn, String valueIn)
+	{
+		Element propertyNode = xmlDocIn.createElement("property");
+		propertyNode.setAttribute("name", nameIn);
+		propertyNode.setAttribute("value", valueIn);
+		propertiesNodeIn.appendChild(propertyNode);
+	}
+
+
+	private static Element createProblemElement(Document xmlDocIn, String nodeNameIn, TestCaseResult.Problem problemIn)
+	{
+		Element problemNode = xmlDocIn.createElement(nodeNameIn);
+		problemNode.setAttribute("type", problemIn.getType());
+		problemNode.setAttribute("message", problemIn.getMessage());
+
+		return problemNode;
+	}
+
+
+	private static void addOutput(Document xmlDocIn, Element parentElementIn, TestCaseResult resultIn)
+	{
+		if( resultIn.getOutputTimeline() != null )
+		{
+			// the timeline holds both streams (interleaved, as they arrived)
+			Element stdoutNode = xmlDocIn.createElement("system-out");
+			stdoutNode.setTextContent(OutputTimeline.render(resultIn.getOutputTimeline()));
+			parentElementIn.appendChild(stdoutNode);
+			return;
+		}
+		if( (resultIn.getStdout() != null) && !resultIn.getStdout().isEmpty() )
+		{
+			Element stdoutNode = xmlDocIn.createElement("system-out");
+			stdoutNode.setTextContent(resultIn.getStdout());
+			parentElementIn.appendChild(stdoutNode);
+		}
+		if( (resultIn.getStderr() != null) && !resultIn.getStderr().isEmpty() )
+		{
+			Element stderrNode = xmlDocIn.createElement("system-err");
+			stderrNode.setTextContent(resultIn.getStderr());
+			parentElementIn.appendChild(stderrNode);
+		}
+	}
+}
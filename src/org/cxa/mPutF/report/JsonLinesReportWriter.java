@@ -0,0 +1,192 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.report;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+
+import org.cxa.mPutF.tests.Test.TestResult;
+import org.cxa.mPutF.tests.TestCaseResult;
+import org.cxa.mPutF.tests.localProcess.OutputTimeline;
+
+/**
+ * Writes a JSON Lines report: one JSON object per line, each with a
+ * <code>type</code> of <code>begin</code>, <code>test</code> (one per
+ * result, in order of completion) or <code>summary</code>. The output of
+ * a test is only included if the test did not pass.
+ *
+ * @author Christopher Armenio
+ */
+public class JsonLinesReportWriter extends StreamingReportWriter
+{
+	private String suiteName = null;
+
+
+	/**
+	 * @param outputPathIn the file to which the report is written, or {@link StreamingReportWriter#PATH_STDOUT}
+	 */
+	public JsonLinesReportWriter(String outputPathIn)
+	{
+		super(outputPathIn);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.report.StreamingReportWriter#writeBegin(java.lang.String)
+	 */
+	@Override
+	protected void writeBegin(String suiteNameIn) throws IOException
+	{
+		this.suiteName = suiteNameIn;
+		this.writeLine(String.format("{\"type\":\"begin\",\"suite\":%s,\"timestamp\":%s}",
+				toJsonString(suiteNameIn), toJsonString(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date()))));
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.report.StreamingReportWriter#writeResult(org.cxa.mPutF.tests.TestCaseResult)
+	 */
+	@Override
+	protected void writeResult(TestCaseResult resultIn) throws IOException
+	{
+		StringBuilder record = new StringBuilder();
+		record.append("{\"type\":\"test\",\"suite\":").append(toJsonString(this.suiteName));
+		record.append(",\"name\":").append(toJsonString(resultIn.getName()));
+		record.append(",\"result\":").append(toJsonString(getResultString(resultIn)));
+		if( resultIn.isSkipped() ) record.append(",\"message\":").append(toJsonString(resultIn.getSkipMessage()));
+		else if( resultIn.isQuarantined() ) record.append(",\"message\":").append(toJsonString(resultIn.getQuarantineMessage()));
+		record.append(",\"duration_ms\":").append(resultIn.getTotalDuration_ms());
+		record.append(",\"attempts\":").append(resultIn.getPreviousAttempts().size() + 1);
+		if( resultIn.getProfile() != null )
+		{
+			record.append(",\"profile\":{\"profiler\":").append(toJsonString(resultIn.getProfile().getProfilerName()));
+			record.append(",\"output\":").append(toJsonString(resultIn.getProfile().getOutputPath())).append('}');
+		}
+		TestCaseResult.Repetitions repetitions = resultIn.getRepetitions();
+		if( repetitions != null )
+		{
+			record.append(",\"repetitions\":{\"runs\":").append(repetitions.getNumRuns());
+			record.append(",\"passed\":").append(repetitions.getNumPassed());
+			record.append(",\"failed\":").append(repetitions.getNumFailed());
+			record.append(",\"errors\":").append(repetitions.getNumErrors());
+			record.append(",\"wallTime_ms\":").append(repetitions.getWallTime_ms());
+			record.append(",\"duration_ms\":{\"min\":").append(repetitions.getMinDuration_ms());
+			record.append(",\"p50\":").append(repetitions.getMedianDuration_ms());
+			record.append(",\"p90\":").append(repetitions.getP90Duration_ms());
+			record.append(",\"p99\":").append(repetitions.getP99Duration_ms());
+			record.append(",\"max\":").append(repetitions.getMaxDuration_ms()).append("}}");
+		}
+
+		if( resultIn.getResult() != TestResult.TEST_RESULT_PASS )
+		{
+			record.append(",\"problems\":[");
+			boolean isFirst = true;
+			for( TestCaseResult.Problem currProblem : resultIn.getProblems() )
+			{
+				if( !isFirst ) record.append(',');
+				isFirst = false;
+				record.append("{\"type\":").append(toJsonString(currProblem.getType()));
+				record.append(",\"message\":").append(toJsonString(currProblem.getMessage())).append('}');
+			}
+			record.append(']');
+			if( resultIn.getStdout() != null ) record.append(",\"stdout\":").append(toJsonString(resultIn.getStdout()));
+			if( resultIn.getStderr() != null ) record.append(",\"stderr\":").append(toJsonString(resultIn.getStderr()));
+			if( resultIn.getOutputTimeline() != null ) record.append(",\"timeline\":").append(toJsonString(OutputTimeline.render(resultIn.getOutputTimeline())));
+		}
+		record.append('}');
+
+		this.writeLine(record.toString());
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.report.StreamingReportWriter#writeEnd(org.cxa.mPutF.report.RunSummary)
+	 */
+	@Override
+	protected void writeEnd(RunSummary summaryIn) throws IOException
+	{
+		StringBuilder record = new StringBuilder();
+		record.append(String.format("{\"type\":\"summary\",\"suite\":%s,\"tests\":%d,\"failures\":%d,\"errors\":%d,\"skipped\":%d,\"duration_ms\":%d",
+				toJsonString(summaryIn.getSuiteName()), summaryIn.getNumTests(), summaryIn.getNumFailures(),
+				summaryIn.getNumErrors(), summaryIn.getNumSkipped(), summaryIn.getDuration_ms()));
+		if( !summaryIn.getAttachments().isEmpty() )
+		{
+			record.append(",\"attachments\":{");
+			boolean isFirst = true;
+			for( Map.Entry<String, String> currAttachment : summaryIn.getAttachments().entrySet() )
+			{
+				if( !isFirst ) record.append(',');
+				isFirst = false;
+				record.append(toJsonString(currAttachment.getKey())).append(':').append(toJsonString(currAttachment.getValue()));
+			}
+			record.append('}');
+		}
+		record.append('}');
+		this.writeLine(record.toString());
+	}
+
+
+	/**
+	 * Converts the given string to a (quoted) JSON string
+	 *
+	 * @param stringIn the string to convert
+	 *
+	 * @return the JSON string, or <code>null</code> if the string is NULL
+	 */
+	static String toJsonString(String stringIn)
+	{
+		if( stringIn == null ) return "null";
+
+		StringBuilder retVal = new StringBuilder(stringIn.length() + 2);
+		retVal.append('"');
+		for( int i = 0; i < stringIn.length(); i++ )
+		{
+			char currChar = stringIn.charAt(i);
+			switch( currChar )
+			{
+				case '"':	retVal.append("\\\""); break;
+				case '\\':	retVal.append("\\\\"); break;
+				case '\n':	retVal.append("\\n"); break;
+				case '\r':	retVal.append("\\r"); break;
+				case '\t':	retVal.append("\\t"); break;
+				default:
+					if( (currChar < 0x20) || (currChar == 0x7F) ) retVal.append(String.format("\\u%04x", (int)currChar));
+					else retVal.append(currChar);
+			}
+		}
+		retVal.append('"');
+
+		return retVal.toString();
+	}
+
+
+	private static String getResultString(TestCaseResult resultIn)
+	{
+		if( resultIn.isSkipped() ) return "skipped";
+		if( resultIn.isQuarantined() ) return "quarantined";
+		switch( resultIn.getResult() )
+		{
+			case TEST_RESULT_PASS:		return "pass";
+			case TEST_RESULT_FAILURE:	return "failure";
+			default:					return "error";
+		}
+	}
+}
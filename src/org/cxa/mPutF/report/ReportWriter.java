@@ -0,0 +1,62 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.report;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.cxa.mPutF.tests.TestCaseResult;
+
+/**
+ * Writes the results of a run of a test suite in a particular format. Any
+ * number of writers may be attached to a suite. Streaming formats write
+ * each result as soon as it is known (see {@link #testCompleted(TestCaseResult)}),
+ * document formats write all results once the run is complete (see
+ * {@link #endRun(List, RunSummary)}). All methods are called from a single thread.
+ *
+ * @author Christopher Armenio
+ */
+public interface ReportWriter
+{
+	/**
+	 * Called once, before the first test is run
+	 *
+	 * @param suiteNameIn the name of the test suite being run
+	 *
+	 * @throws IOException on error writing the report
+	 */
+	public abstract void beginRun(String suiteNameIn) throws IOException;
+
+	/**
+	 * Called as soon as the result of a test is known, in order of completion
+	 * (sub-tests are reported individually, right after their parent test)
+	 *
+	 * @param resultIn the (final) result of the test
+	 *
+	 * @throws IOException on error writing the report
+	 */
+	public abstract void testCompleted(TestCaseResult resultIn) throws IOException;
+
+	/**
+	 * Called once all tests have completed
+	 *
+	 * @param resultsIn all results of the run, in the order in which the tests are defined
+	 * @param summaryIn the totals of the run
+	 *
+	 * @throws IOException on error writing the report
+	 */
+	public abstract void endRun(List<TestCaseResult> resultsIn, RunSummary summaryIn) throws IOException;
+}
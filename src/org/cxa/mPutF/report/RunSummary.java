@@ -0,0 +1,161 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.report;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cxa.mPutF.tests.Test.TestResult;
+import org.cxa.mPutF.tests.TestCaseResult;
+
+/**
+ * The totals of a run of a test suite (see {@link ReportWriter#endRun(java.util.List, RunSummary)})
+ *
+ * @author Christopher Armenio
+ */
+public class RunSummary
+{
+	private final String suiteName;
+	private final Date startTime;
+	private long duration_ms = 0;
+	private int numTests = 0;
+	private int numErrors = 0;
+	private int numFailures = 0;
+	private int numSkipped = 0;
+	private final Map<String, String> attachments = new LinkedHashMap<String, String>();
+
+
+	/**
+	 * Creates an empty summary for a run starting now
+	 *
+	 * @param suiteNameIn the name of the test suite being run
+	 */
+	public RunSummary(String suiteNameIn)
+	{
+		this.suiteName = suiteNameIn;
+		this.startTime = new Date();
+	}
+
+
+	/**
+	 * Counts the given result
+	 *
+	 * @param resultIn the result of a single test (or sub-test)
+	 */
+	public void count(TestCaseResult resultIn)
+	{
+		this.numTests++;
+		if( resultIn.isQuarantined() || resultIn.isSkipped() ) this.numSkipped++;
+		else if( resultIn.getResult() == TestResult.TEST_RESULT_ERROR ) this.numErrors++;
+		else if( resultIn.getResult() == TestResult.TEST_RESULT_FAILURE ) this.numFailures++;
+	}
+
+
+	/**
+	 * Attaches a (textual) artifact of the run as a whole to the report (eg. a
+	 * merged profile)
+	 *
+	 * @param nameIn the name of the attachment
+	 * @param contentIn the content of the attachment
+	 */
+	public void addAttachment(String nameIn, String contentIn)
+	{
+		this.attachments.put(nameIn, contentIn);
+	}
+
+
+	/**
+	 * @param duration_msIn the total duration of the run
+	 */
+	public void setDuration_ms(long duration_msIn)
+	{
+		this.duration_ms = duration_msIn;
+	}
+
+
+	/**
+	 * @return the name of the test suite
+	 */
+	public String getSuiteName()
+	{
+		return this.suiteName;
+	}
+
+
+	/**
+	 * @return when the run started
+	 */
+	public Date getStartTime()
+	{
+		return this.startTime;
+	}
+
+
+	/**
+	 * @return the total duration of the run
+	 */
+	public long getDuration_ms()
+	{
+		return this.duration_ms;
+	}
+
+
+	/**
+	 * @return the number of results (including sub-tests)
+	 */
+	public int getNumTests()
+	{
+		return this.numTests;
+	}
+
+
+	/**
+	 * @return the number of results which are errors (not counting quarantined results)
+	 */
+	public int getNumErrors()
+	{
+		return this.numErrors;
+	}
+
+
+	/**
+	 * @return the number of results which are failures (not counting quarantined results)
+	 */
+	public int getNumFailures()
+	{
+		return this.numFailures;
+	}
+
+
+	/**
+	 * @return the number of skipped or quarantined results
+	 */
+	public int getNumSkipped()
+	{
+		return this.numSkipped;
+	}
+
+
+	/**
+	 * @return the artifacts of the run (name to content), in the order in which they were attached
+	 */
+	public Map<String, String> getAttachments()
+	{
+		return Collections.unmodifiableMap(this.attachments);
+	}
+}
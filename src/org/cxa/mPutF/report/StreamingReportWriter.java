@@ -0,0 +1,153 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.report;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.cxa.mPutF.tests.TestCaseResult;
+
+/**
+ * Base class of line-oriented report formats which write each result as
+ * soon as it is known (so the report can be consumed while the run is still
+ * in progress). Each record is flushed as soon as it is written.
+ *
+ * @author Christopher Armenio
+ */
+public abstract class StreamingReportWriter implements ReportWriter
+{
+	/** output path which denotes stdout */
+	public static final String PATH_STDOUT = "-";
+
+
+	private final String outputPath;
+	private Writer writer = null;
+
+
+	/**
+	 * @param outputPathIn the file to which the report is written, or {@link #PATH_STDOUT}
+	 */
+	protected StreamingReportWriter(String outputPathIn)
+	{
+		this.outputPath = outputPathIn;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.report.ReportWriter#beginRun(java.lang.String)
+	 */
+	@Override
+	public void beginRun(String suiteNameIn) throws IOException
+	{
+		OutputStream os;
+		if( this.outputPath.equals(PATH_STDOUT) ) os = System.out;
+		else
+		{
+			File outputFile = new File(this.outputPath);
+			if( (outputFile.getParentFile() != null) && !outputFile.getParentFile().exists() ) outputFile.getParentFile().mkdirs();
+			os = new FileOutputStream(outputFile);
+		}
+		this.writer = new BufferedWriter(new OutputStreamWriter(os, Charset.forName("UTF-8")));
+
+		this.writeBegin(suiteNameIn);
+		this.writer.flush();
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.report.ReportWriter#testCompleted(org.cxa.mPutF.tests.TestCaseResult)
+	 */
+	@Override
+	public void testCompleted(TestCaseResult resultIn) throws IOException
+	{
+		this.writeResult(resultIn);
+		this.writer.flush();
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.report.ReportWriter#endRun(java.util.List, org.cxa.mPutF.report.RunSummary)
+	 */
+	@Override
+	public void endRun(List<TestCaseResult> resultsIn, RunSummary summaryIn) throws IOException
+	{
+		try
+		{
+			this.writeEnd(summaryIn);
+			this.writer.flush();
+		}
+		finally
+		{
+			// never close stdout (the log may still be going there)
+			if( !this.outputPath.equals(PATH_STDOUT) ) this.writer.close();
+			this.writer = null;
+		}
+	}
+
+
+	/**
+	 * Writes a single line (the line separator is appended)
+	 *
+	 * @param lineIn the line to write
+	 *
+	 * @throws IOException on error writing
+	 */
+	protected void writeLine(String lineIn) throws IOException
+	{
+		this.writer.write(lineIn);
+		this.writer.write('\n');
+	}
+
+
+	/**
+	 * Writes the header of the report
+	 *
+	 * @param suiteNameIn the name of the test suite being run
+	 *
+	 * @throws IOException on error writing
+	 */
+	protected abstract void writeBegin(String suiteNameIn) throws IOException;
+
+
+	/**
+	 * Writes the record of a single result
+	 *
+	 * @param resultIn the result of a single test (or sub-test)
+	 *
+	 * @throws IOException on error writing
+	 */
+	protected abstract void writeResult(TestCaseResult resultIn) throws IOException;
+
+
+	/**
+	 * Writes the trailer of the report
+	 *
+	 * @param summaryIn the totals of the run
+	 *
+	 * @throws IOException on error writing
+	 */
+	protected abstract void writeEnd(RunSummary summaryIn) throws IOException;
+}
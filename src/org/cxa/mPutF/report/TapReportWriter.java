@@ -0,0 +1,158 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.report;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.cxa.mPutF.tests.Test.TestResult;
+import org.cxa.mPutF.tests.TestCaseResult;
+
+/**
+ * Writes a TAP (Test Anything Protocol, version 14) report, one test point
+ * per result, in order of completion. The plan is written at the end (as
+ * the number of results isn't known until matrix tests have been expanded).
+ * Skipped results are marked <code># SKIP</code>, quarantined results are
+ * marked <code># TODO</code> (so they don't fail the run), and the problems
+ * of results which did not pass (and the outcome of all runs of a repeated
+ * test, see {@link org.cxa.mPutF.tests.SoakRunner}) are described in a YAML
+ * diagnostic block.
+ *
+ * @author Christopher Armenio
+ */
+public class TapReportWriter extends StreamingReportWriter
+{
+	private static final String YAML_INDENT = "  ";
+
+
+	private int testNum = 0;
+
+
+	/**
+	 * @param outputPathIn the file to which the report is written, or {@link StreamingReportWriter#PATH_STDOUT}
+	 */
+	public TapReportWriter(String outputPathIn)
+	{
+		super(outputPathIn);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.report.StreamingReportWriter#writeBegin(java.lang.String)
+	 */
+	@Override
+	protected void writeBegin(String suiteNameIn) throws IOException
+	{
+		this.testNum = 0;
+		this.writeLine("TAP version 14");
+		this.writeLine(String.format("# %s", toSingleLine(suiteNameIn)));
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.report.StreamingReportWriter#writeResult(org.cxa.mPutF.tests.TestCaseResult)
+	 */
+	@Override
+	protected void writeResult(TestCaseResult resultIn) throws IOException
+	{
+		boolean isPass = (resultIn.getResult() == TestResult.TEST_RESULT_PASS);
+		StringBuilder testPoint = new StringBuilder();
+		testPoint.append(isPass ? "ok " : "not ok ").append(++this.testNum).append(" - ").append(escapeDescription(resultIn.getName()));
+		if( resultIn.isSkipped() ) testPoint.append(" # SKIP ").append(toSingleLine(resultIn.getSkipMessage()));
+		else if( resultIn.isQuarantined() ) testPoint.append(" # TODO quarantined: ").append(toSingleLine(resultIn.getQuarantineMessage()));
+		this.writeLine(testPoint.toString());
+		if( resultIn.isSkipped() ) return;
+		if( isPass )
+		{
+			if( resultIn.getRepetitions() == null ) return;
+			this.writeLine(YAML_INDENT + "---");
+			this.writeRepetitions(resultIn.getRepetitions());
+			this.writeLine(YAML_INDENT + "...");
+			return;
+		}
+
+		// describe what went wrong
+		this.writeLine(YAML_INDENT + "---");
+		this.writeLine(String.format("%sseverity: %s", YAML_INDENT, (resultIn.getResult() == TestResult.TEST_RESULT_ERROR) ? "error" : "fail"));
+		this.writeLine(String.format("%sduration_ms: %d", YAML_INDENT, resultIn.getTotalDuration_ms()));
+		if( !resultIn.getPreviousAttempts().isEmpty() ) this.writeLine(String.format("%sattempts: %d", YAML_INDENT, resultIn.getPreviousAttempts().size() + 1));
+		if( resultIn.getRepetitions() != null ) this.writeRepetitions(resultIn.getRepetitions());
+		this.writeLine(YAML_INDENT + "problems:");
+		for( TestCaseResult.Problem currProblem : resultIn.getProblems() )
+		{
+			this.writeLine(String.format("%s  - type: %s", YAML_INDENT, toYamlString(currProblem.getType())));
+			this.writeLine(String.format("%s    message: %s", YAML_INDENT, toYamlString(currProblem.getMessage())));
+		}
+		this.writeLine(YAML_INDENT + "...");
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.report.StreamingReportWriter#writeEnd(org.cxa.mPutF.report.RunSummary)
+	 */
+	@Override
+	protected void writeEnd(RunSummary summaryIn) throws IOException
+	{
+		this.writeLine(String.format("1..%d", this.testNum));
+		this.writeLine(String.format("# tests %d, failures %d, errors %d, skipped %d, time %.2fs",
+				summaryIn.getNumTests(), summaryIn.getNumFailures(), summaryIn.getNumErrors(), summaryIn.getNumSkipped(),
+				((float)summaryIn.getDuration_ms()) / 1000.0));
+		for( Map.Entry<String, String> currAttachment : summaryIn.getAttachments().entrySet() )
+		{
+			this.writeLine(String.format("# %s", toSingleLine(currAttachment.getKey())));
+			for( String currLine : currAttachment.getValue().split("\r?\n") ) this.writeLine(String.format("#   %s", currLine));
+		}
+	}
+
+
+	private void writeRepetitions(TestCaseResult.Repetitions repetitionsIn) throws IOException
+	{
+		this.writeLine(YAML_INDENT + "repetitions:");
+		this.writeLine(String.format("%s  runs: %d", YAML_INDENT, repetitionsIn.getNumRuns()));
+		this.writeLine(String.format("%s  passed: %d", YAML_INDENT, repetitionsIn.getNumPassed()));
+		this.writeLine(String.format("%s  failed: %d", YAML_INDENT, repetitionsIn.getNumFailed()));
+		this.writeLine(String.format("%s  errors: %d", YAML_INDENT, repetitionsIn.getNumErrors()));
+		this.writeLine(String.format("%s  wall_time_ms: %d", YAML_INDENT, repetitionsIn.getWallTime_ms()));
+		this.writeLine(String.format("%s  duration_ms: {min: %d, p50: %d, p90: %d, p99: %d, max: %d}", YAML_INDENT,
+				repetitionsIn.getMinDuration_ms(), repetitionsIn.getMedianDuration_ms(), repetitionsIn.getP90Duration_ms(),
+				repetitionsIn.getP99Duration_ms(), repetitionsIn.getMaxDuration_ms()));
+	}
+
+
+	private static String toSingleLine(String stringIn)
+	{
+		return (stringIn == null) ? "" : stringIn.replace('\r', ' ').replace('\n', ' ');
+	}
+
+
+	private static String escapeDescription(String descIn)
+	{
+		// '#' starts a directive and '\' escapes
+		return toSingleLine(descIn).replace("\\", "\\\\").replace("#", "\\#");
+	}
+
+
+	private static String toYamlString(String stringIn)
+	{
+		if( stringIn == null ) return "null";
+
+		// a double-quoted YAML scalar uses JSON-compatible escapes
+		return JsonLinesReportWriter.toJsonString(stringIn);
+	}
+}
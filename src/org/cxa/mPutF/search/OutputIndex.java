@@ -0,0 +1,819 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.search;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.bindingOutputParser.BindingOutputParser.Assertion;
+import org.cxa.mPutF.store.RunLog;
+import org.cxa.mPutF.tests.TestCaseResult;
+
+/**
+ * A compact, append-only, on-disk inverted index of the output of tests
+ * across runs: the words and (whole) lines of their stdout and stderr, and
+ * the locations and messages of their assertions. An index is a {@link RunLog}
+ * directory (whose string table holds test names and run labels) which also
+ * contains:
+ * <ul>
+ * <li><code>docs.dat</code> - fixed-size ({@value #DOC_SIZE} byte) entries, one per test per run (a "document")</li>
+ * <li><code>seg_&lt;firstDoc&gt;_&lt;endDoc&gt;.idx</code> - segments, each holding the sorted terms of a
+ * 		range of documents, with the (delta and varint encoded) documents containing each term</li>
+ * </ul>
+ * Every run adds a segment, written before the run is committed (see
+ * {@link RunLog}). Once there are more than {@value #MAX_SEGMENTS}
+ * segments the newest (smallest) of them are merged, so that a query never has
+ * to look up its terms in more than a handful of segments.
+ *
+ * @author Christopher Armenio
+ */
+public class OutputIndex
+{
+	public static final int DOC_SIZE = 9;
+	public static final int MAX_SEGMENTS = 16;
+
+	static final String FILE_DOCS = "docs.dat";
+
+	static final int RUNS_MAGIC = 0x6D504F49;			// 'mPOI'
+	static final int RUNS_VERSION = 1;
+	static final String DESCRIPTION = "output index";
+	static final int SEGMENT_MAGIC = 0x6D504F53;		// 'mPOS'
+	static final int SEGMENT_HEADER_SIZE = 12;
+	static final int SEGMENT_TRAILER_SIZE = 8;
+
+	// doc layout
+	static final int DOC_OFFSET_RUN = 0;
+	static final int DOC_OFFSET_NAME = 4;
+	static final int DOC_OFFSET_RESULT = 8;
+
+	// term fields (the first character of every term)
+	static final char FIELD_STDOUT = 'o';
+	static final char FIELD_STDERR = 'e';
+	static final char FIELD_LOCATION = 'l';
+	static final char FIELD_MESSAGE = 'm';
+	static final char FIELD_STDOUT_LINE = 'O';
+	static final char FIELD_STDERR_LINE = 'E';
+
+	private static final int MIN_WORD_LENGTH = 2;
+	private static final int MAX_WORD_LENGTH = 64;
+	private static final Pattern SEGMENT_PATTERN = Pattern.compile("seg_(\\d+)_(\\d+)\\.idx");
+	private static final Pattern LOCATION_PATTERN = Pattern.compile("(.*):\\d+");
+
+	// the binding output of an assertion (see BindingOutputParser) on stderr
+	private static final String BINDING_LOCATION = "loc:";
+	private static final String BINDING_MESSAGE = "msg:";
+
+
+	/**
+	 * A committed run, along with its label and documents
+	 */
+	static class Run
+	{
+		final RunLog.Entry entry;
+		final long timestamp;
+		final int labelId;
+		final int firstDoc;
+		final int numDocs;
+
+		Run(RunLog.Entry entryIn)
+		{
+			ByteBuffer payload = entryIn.getPayload();
+			this.entry = entryIn;
+			this.timestamp = entryIn.timestamp;
+			this.labelId = payload.getInt();
+			this.firstDoc = payload.getInt();
+			this.numDocs = payload.getInt();
+		}
+
+		int getEndDoc()
+		{
+			return this.firstDoc + this.numDocs;
+		}
+	}
+
+
+	/**
+	 * A (memory-mapped) segment, covering the documents <code>[firstDoc, endDoc)</code>
+	 */
+	static class Segment
+	{
+		final File file;
+		final int firstDoc;
+		final int endDoc;
+		private ByteBuffer buf = null;
+		private int numTerms;
+		private int tableOffset;
+
+		Segment(File fileIn, int firstDocIn, int endDocIn)
+		{
+			this.file = fileIn;
+			this.firstDoc = firstDocIn;
+			this.endDoc = endDocIn;
+		}
+
+		private void map() throws IOException
+		{
+			if( this.buf != null ) return;
+			try( RandomAccessFile raf = new RandomAccessFile(this.file, "r"); FileChannel fc = raf.getChannel() )
+			{
+				// the mapping remains valid after the channel is closed
+				MappedByteBuffer tmpBuf = fc.map(MapMode.READ_ONLY, 0, fc.size());
+				if( (fc.size() < (SEGMENT_HEADER_SIZE + SEGMENT_TRAILER_SIZE)) || (tmpBuf.getInt(0) != SEGMENT_MAGIC) )
+				{
+					throw new IOException(String.format("'%s' is not an index segment", this.file.getPath()));
+				}
+				this.numTerms = tmpBuf.getInt((int)fc.size() - SEGMENT_TRAILER_SIZE);
+				this.tableOffset = tmpBuf.getInt((int)fc.size() - SEGMENT_TRAILER_SIZE + 4);
+				this.buf = tmpBuf;
+			}
+		}
+
+		/**
+		 * @return the (ascending) documents containing the given term
+		 */
+		int[] lookup(byte[] termIn) throws IOException
+		{
+			this.map();
+
+			// binary search of the term table
+			int low = 0;
+			int high = this.numTerms - 1;
+			while( low <= high )
+			{
+				int mid = (low + high) >>> 1;
+				int entryOffset = this.buf.getInt(this.tableOffset + (mid * 4));
+				int cmp = compareTerm(this.buf, entryOffset, termIn);
+				if( cmp < 0 ) low = mid + 1;
+				else if( cmp > 0 ) high = mid - 1;
+				else return this.readPostings(entryOffset);
+			}
+			return new int[0];
+		}
+
+		private int[] readPostings(int entryOffsetIn)
+		{
+			ByteBuffer postings = this.buf.duplicate();
+			postings.position(entryOffsetIn + 2 + (this.buf.getShort(entryOffsetIn) & 0xFFFF));
+			int[] retVal = new int[readVarInt(postings)];
+			int currDoc = this.firstDoc;
+			for( int i = 0; i < retVal.length; i++ )
+			{
+				currDoc += readVarInt(postings);
+				retVal[i] = currDoc;
+			}
+			return retVal;
+		}
+	}
+
+
+	/**
+	 * Iterates over the terms (and postings) of a segment, in order...used to merge segments
+	 */
+	private static class SegmentCursor
+	{
+		final Segment segment;
+		int termIndex = -1;
+		byte[] term;
+		int[] postings;
+
+		SegmentCursor(Segment segmentIn)
+		{
+			this.segment = segmentIn;
+		}
+
+		boolean next() throws IOException
+		{
+			this.segment.map();
+			if( ++this.termIndex >= this.segment.numTerms ) return false;
+
+			int entryOffset = this.segment.buf.getInt(this.segment.tableOffset + (this.termIndex * 4));
+			this.term = new byte[this.segment.buf.getShort(entryOffset) & 0xFFFF];
+			for( int i = 0; i < this.term.length; i++ ) this.term[i] = this.segment.buf.get(entryOffset + 2 + i);
+			this.postings = this.segment.readPostings(entryOffset);
+			return true;
+		}
+	}
+
+
+	/**
+	 * A growable list of (ascending) documents
+	 */
+	private static class DocList
+	{
+		int[] docs = new int[4];
+		int size = 0;
+
+		void add(int docIn)
+		{
+			if( this.size == this.docs.length ) this.docs = Arrays.copyOf(this.docs, this.size * 2);
+			this.docs[this.size++] = docIn;
+		}
+	}
+
+
+	private final File indexDir;
+	private final RunLog runLog;
+	private final List<Run> runs = new ArrayList<Run>();
+
+	private boolean isRunInProgress = false;
+	private long runTimestamp;
+	private int runLabelId;
+	private final ByteArrayDocs runDocs = new ByteArrayDocs();
+	private final Map<String, DocList> runPostings = new HashMap<String, DocList>();
+	private Logger logger = null;
+
+
+	/**
+	 * The (fixed-size) entries of the documents of the current run
+	 */
+	private static class ByteArrayDocs
+	{
+		byte[] buf = new byte[64 * DOC_SIZE];
+		int numDocs = 0;
+
+		void add(int runIn, int nameIdIn, byte resultIn)
+		{
+			if( ((this.numDocs + 1) * DOC_SIZE) > this.buf.length ) this.buf = Arrays.copyOf(this.buf, this.buf.length * 2);
+			ByteBuffer.wrap(this.buf, this.numDocs * DOC_SIZE, DOC_SIZE).putInt(runIn).putInt(nameIdIn).put(resultIn);
+			this.numDocs++;
+		}
+	}
+
+
+	private OutputIndex(File indexDirIn, RunLog runLogIn)
+	{
+		this.indexDir = indexDirIn;
+		this.runLog = runLogIn;
+		this.logger = LogManager.getLogger(this.getClass().getSimpleName());
+	}
+
+
+	/**
+	 * Starts a new run. Results recorded after this call become
+	 * visible to queries once {@link #commitRun()} is called.
+	 *
+	 * @param labelIn describes where the run came from (eg. the path of its XML results)
+	 * @param timestampIn the time of the run (milliseconds since the epoch)
+	 */
+	public synchronized void beginRun(String labelIn, long timestampIn)
+	{
+		if( this.isRunInProgress ) throw new IllegalStateException("run already in progress");
+
+		this.isRunInProgress = true;
+		this.runTimestamp = timestampIn;
+		this.runDocs.numDocs = 0;
+		this.runPostings.clear();
+		this.runLabelId = this.runLog.getNameId(labelIn);
+	}
+
+
+	/**
+	 * Determines whether a run with the given label and timestamp has already
+	 * been committed (eg. to avoid indexing the same XML results twice)
+	 *
+	 * @param labelIn the label of the run
+	 * @param timestampIn the time of the run (milliseconds since the epoch)
+	 *
+	 * @return true if the run is already part of the index
+	 */
+	public synchronized boolean containsRun(String labelIn, long timestampIn)
+	{
+		Integer labelId = this.runLog.findNameId(labelIn);
+		if( labelId == null ) return false;
+		for( Run currRun : this.runs )
+		{
+			if( (currRun.labelId == labelId) && (currRun.timestamp == timestampIn) ) return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Indexes the output (and assertions) of a single test in the current run
+	 *
+	 * @param resultIn the (final) result of the test
+	 */
+	public void record(TestCaseResult resultIn)
+	{
+		List<String> locations = new ArrayList<String>();
+		List<String> messages = new ArrayList<String>();
+		for( TestCaseResult.Problem currProblem : resultIn.getProblems() )
+		{
+			Assertion currAssertion = currProblem.getAssertion();
+			if( currAssertion == null )
+			{
+				// eg. timeouts, fixture errors
+				messages.add(currProblem.getMessage());
+				continue;
+			}
+			if( currAssertion.getLocation() != null ) locations.add(currAssertion.getLocation());
+			if( currAssertion.getMessage() != null ) messages.add(currAssertion.getMessage());
+		}
+		this.record(resultIn.getName(), (byte)resultIn.getResult().ordinal(), resultIn.getStdout(), resultIn.getStderr(), locations, messages);
+	}
+
+
+	/**
+	 * Indexes the output (and assertions) of a single test in the current run
+	 *
+	 * @param nameIn the name of the test
+	 * @param resultIn the ordinal of the {@link org.cxa.mPutF.tests.Test.TestResult} of the test
+	 * @param stdoutIn the stdout of the test (may be NULL)
+	 * @param stderrIn the stderr of the test (may be NULL)
+	 * @param locationsIn the locations of the assertions of the test
+	 * @param messagesIn the messages of the assertions of the test
+	 */
+	synchronized void record(String nameIn, byte resultIn, String stdoutIn, String stderrIn, Collection<String> locationsIn, Collection<String> messagesIn)
+	{
+		if( !this.isRunInProgress ) throw new IllegalStateException("no run in progress");
+
+		// the binding output on stderr names the location and message of each assertion too
+		Set<String> locations = new HashSet<String>(locationsIn);
+		Set<String> messages = new HashSet<String>(messagesIn);
+		if( stderrIn != null )
+		{
+			for( String currLine : stderrIn.split("\r?\n") )
+			{
+				if( currLine.startsWith(BINDING_LOCATION) ) locations.add(currLine.substring(BINDING_LOCATION.length()).trim());
+				else if( currLine.startsWith(BINDING_MESSAGE) ) messages.add(currLine.substring(BINDING_MESSAGE.length()).trim());
+			}
+		}
+
+		Set<String> terms = new HashSet<String>();
+		addOutputTerms(terms, FIELD_STDOUT, FIELD_STDOUT_LINE, stdoutIn);
+		addOutputTerms(terms, FIELD_STDERR, FIELD_STDERR_LINE, stderrIn);
+		for( String currLocation : locations ) addLocationTerms(terms, currLocation);
+		for( String currMessage : messages ) addWordTerms(terms, FIELD_MESSAGE, currMessage);
+
+		int doc = this.getCommittedDocs() + this.runDocs.numDocs;
+		this.runDocs.add(this.runs.size(), this.runLog.getNameId(nameIn), resultIn);
+		for( String currTerm : terms )
+		{
+			DocList docs = this.runPostings.get(currTerm);
+			if( docs == null ) this.runPostings.put(currTerm, docs = new DocList());
+			docs.add(doc);
+		}
+	}
+
+
+	/**
+	 * Commits the current run, making it visible to queries
+	 *
+	 * @throws IOException on error writing the run
+	 */
+	public synchronized void commitRun() throws IOException
+	{
+		if( !this.isRunInProgress ) throw new IllegalStateException("no run in progress");
+		this.isRunInProgress = false;
+
+		try( OutputStream os = new FileOutputStream(new File(this.indexDir, FILE_DOCS), true) )
+		{
+			os.write(this.runDocs.buf, 0, this.runDocs.numDocs * DOC_SIZE);
+		}
+
+		// sort our terms (as unsigned bytes...the order in which segments are searched)
+		int firstDoc = this.getCommittedDocs();
+		if( this.runDocs.numDocs > 0 )
+		{
+			List<byte[]> terms = new ArrayList<byte[]>(this.runPostings.size());
+			Map<ByteKey, DocList> postings = new HashMap<ByteKey, DocList>();
+			for( Map.Entry<String, DocList> currEntry : this.runPostings.entrySet() )
+			{
+				byte[] currTerm = encodeTerm(currEntry.getKey());
+				terms.add(currTerm);
+				postings.put(new ByteKey(currTerm), currEntry.getValue());
+			}
+			Collections.sort(terms, TERM_ORDER);
+
+			File segmentFile = getSegmentFile(this.indexDir, firstDoc, firstDoc + this.runDocs.numDocs);
+			try( SegmentWriter sw = new SegmentWriter(segmentFile, firstDoc) )
+			{
+				for( byte[] currTerm : terms )
+				{
+					DocList currDocs = postings.get(new ByteKey(currTerm));
+					sw.write(currTerm, currDocs.docs, currDocs.size);
+				}
+			}
+		}
+
+		ByteBuffer payload = ByteBuffer.allocate(RunLog.PAYLOAD_SIZE);
+		payload.putInt(this.runLabelId).putInt(firstDoc).putInt(this.runDocs.numDocs).flip();
+		this.runs.add(new Run(this.runLog.commitRun(this.runTimestamp, payload)));
+		this.logger.trace(String.format("committed run %d (%d tests, %d terms) to '%s'", this.runs.size(), this.runDocs.numDocs, this.runPostings.size(), this.indexDir.getAbsolutePath()));
+		this.runPostings.clear();
+
+		// keep the number of segments a query has to search small: merge the newest segments,
+		// back to (but excluding) the first one larger than all newer ones combined...so segment
+		// sizes grow geometrically and older documents are only rewritten a few times
+		List<Segment> segments = listSegments(this.indexDir, this.getCommittedDocs());
+		if( segments.size() > MAX_SEGMENTS )
+		{
+			int firstMerged = segments.size() - 1;
+			int numNewerDocs = segments.get(firstMerged).endDoc - segments.get(firstMerged).firstDoc;
+			while( firstMerged > 0 )
+			{
+				Segment currSegment = segments.get(firstMerged - 1);
+				if( (currSegment.endDoc - currSegment.firstDoc) > numNewerDocs ) break;
+				numNewerDocs += currSegment.endDoc - currSegment.firstDoc;
+				firstMerged--;
+			}
+			if( firstMerged > (segments.size() - 2) ) firstMerged = 0;
+			mergeSegments(this.indexDir, segments.subList(firstMerged, segments.size()));
+		}
+	}
+
+
+	private int getCommittedDocs()
+	{
+		return this.runs.isEmpty() ? 0 : this.runs.get(this.runs.size() - 1).getEndDoc();
+	}
+
+
+	/**
+	 * Opens (or creates) the index in the given directory
+	 *
+	 * @param indexDirIn the directory containing the index
+	 *
+	 * @return the opened index, ready for {@link #beginRun(String, long)}
+	 * @throws IOException on error reading/creating the index
+	 */
+	public static OutputIndex open(File indexDirIn) throws IOException
+	{
+		RunLog runLog = RunLog.open(indexDirIn, RUNS_MAGIC, RUNS_VERSION, DESCRIPTION);
+		OutputIndex retVal = new OutputIndex(indexDirIn, runLog);
+		for( RunLog.Entry currEntry : runLog.getEntries() ) retVal.runs.add(new Run(currEntry));
+
+		// discard anything left behind by an uncommitted run (or an interrupted merge)
+		int committedDocs = retVal.getCommittedDocs();
+		RunLog.truncate(new File(indexDirIn, FILE_DOCS), (long)committedDocs * DOC_SIZE);
+		Set<File> liveSegments = new HashSet<File>();
+		for( Segment currSegment : listSegments(indexDirIn, committedDocs) ) liveSegments.add(currSegment.file);
+		File[] files = indexDirIn.listFiles();
+		for( File currFile : (files != null) ? files : new File[0] )
+		{
+			boolean isSegment = SEGMENT_PATTERN.matcher(currFile.getName()).matches() || currFile.getName().endsWith(".tmp");
+			if( isSegment && !liveSegments.contains(currFile) && !currFile.delete() )
+			{
+				retVal.logger.warn(String.format("unable to delete stale segment '%s'", currFile.getPath()));
+			}
+		}
+
+		return retVal;
+	}
+
+
+	/**
+	 * Reads all committed runs of the index in the given directory
+	 */
+	static List<Run> readRuns(File indexDirIn) throws IOException
+	{
+		List<Run> retVal = new ArrayList<Run>();
+		for( RunLog.Entry currEntry : RunLog.readEntries(indexDirIn, RUNS_MAGIC, RUNS_VERSION, DESCRIPTION) ) retVal.add(new Run(currEntry));
+		return retVal;
+	}
+
+
+	/**
+	 * Reads the string table as of the given run
+	 */
+	static List<String> readNames(File indexDirIn, Run runIn) throws IOException
+	{
+		return RunLog.readNames(indexDirIn, runIn.entry);
+	}
+
+
+	/**
+	 * Memory-maps the entries of the given number of (committed) documents
+	 */
+	static ByteBuffer mapDocs(File indexDirIn, int numDocsIn) throws IOException
+	{
+		try( RandomAccessFile raf = new RandomAccessFile(new File(indexDirIn, FILE_DOCS), "r"); FileChannel fc = raf.getChannel() )
+		{
+			return fc.map(MapMode.READ_ONLY, 0, (long)numDocsIn * DOC_SIZE);
+		}
+	}
+
+
+	/**
+	 * Lists the segments which together cover the given number of (committed)
+	 * documents, preferring merged segments over those they were merged from
+	 */
+	static List<Segment> listSegments(File indexDirIn, int numDocsIn)
+	{
+		List<Segment> candidates = new ArrayList<Segment>();
+		File[] files = indexDirIn.listFiles();
+		for( File currFile : (files != null) ? files : new File[0] )
+		{
+			Matcher m = SEGMENT_PATTERN.matcher(currFile.getName());
+			if( !m.matches() ) continue;
+			candidates.add(new Segment(currFile, Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))));
+		}
+
+		// from the first document on, always take the segment which reaches furthest
+		List<Segment> retVal = new ArrayList<Segment>();
+		int nextDoc = 0;
+		while( nextDoc < numDocsIn )
+		{
+			Segment next = null;
+			for( Segment currSegment : candidates )
+			{
+				if( (currSegment.firstDoc != nextDoc) || (currSegment.endDoc > numDocsIn) ) continue;
+				if( (next == null) || (currSegment.endDoc > next.endDoc) ) next = currSegment;
+			}
+			if( next == null ) break;
+			retVal.add(next);
+			nextDoc = next.endDoc;
+		}
+		return retVal;
+	}
+
+
+	/**
+	 * Merges the given (consecutive) segments into a single segment
+	 */
+	static void mergeSegments(File indexDirIn, List<Segment> segmentsIn) throws IOException
+	{
+		int firstDoc = segmentsIn.get(0).firstDoc;
+		int endDoc = segmentsIn.get(segmentsIn.size() - 1).endDoc;
+		File mergedFile = getSegmentFile(indexDirIn, firstDoc, endDoc);
+		File tmpFile = new File(indexDirIn, mergedFile.getName() + ".tmp");
+
+		// the segments cover consecutive documents, so the postings of a term are simply concatenated (in segment order)
+		PriorityQueue<SegmentCursor> cursors = new PriorityQueue<SegmentCursor>(segmentsIn.size(), new Comparator<SegmentCursor>()
+		{
+			@Override
+			public int compare(SegmentCursor lhsIn, SegmentCursor rhsIn)
+			{
+				int retVal = TERM_ORDER.compare(lhsIn.term, rhsIn.term);
+				return (retVal != 0) ? retVal : Integer.compare(lhsIn.segment.firstDoc, rhsIn.segment.firstDoc);
+			}
+		});
+		for( Segment currSegment : segmentsIn )
+		{
+			SegmentCursor currCursor = new SegmentCursor(currSegment);
+			if( currCursor.next() ) cursors.add(currCursor);
+		}
+		try( SegmentWriter sw = new SegmentWriter(tmpFile, firstDoc) )
+		{
+			DocList docs = new DocList();
+			while( !cursors.isEmpty() )
+			{
+				byte[] currTerm = cursors.peek().term;
+				docs.size = 0;
+				while( !cursors.isEmpty() && (TERM_ORDER.compare(cursors.peek().term, currTerm) == 0) )
+				{
+					SegmentCursor currCursor = cursors.poll();
+					for( int currDoc : currCursor.postings ) docs.add(currDoc);
+					if( currCursor.next() ) cursors.add(currCursor);
+				}
+				sw.write(currTerm, docs.docs, docs.size);
+			}
+		}
+
+		// once the merged segment is in place it is preferred (see listSegments), so the others can go
+		if( !tmpFile.renameTo(mergedFile) ) throw new IOException(String.format("unable to rename '%s'", tmpFile.getPath()));
+		for( Segment currSegment : segmentsIn ) currSegment.file.delete();
+	}
+
+
+	/**
+	 * Adds the terms of a query word (or the words of a query phrase) to the given list
+	 *
+	 * @param termsIn the terms
+	 * @param fieldIn the field of the words
+	 * @param textIn the words
+	 */
+	static void addWordTerms(Collection<String> termsIn, char fieldIn, String textIn)
+	{
+		if( textIn == null ) return;
+
+		int wordStart = -1;
+		for( int i = 0; i <= textIn.length(); i++ )
+		{
+			boolean isWordChar = (i < textIn.length()) && (Character.isLetterOrDigit(textIn.charAt(i)) || (textIn.charAt(i) == '_'));
+			if( isWordChar && (wordStart < 0) ) wordStart = i;
+			else if( !isWordChar && (wordStart >= 0) )
+			{
+				int wordLength = i - wordStart;
+				if( (wordLength >= MIN_WORD_LENGTH) && (wordLength <= MAX_WORD_LENGTH) )
+				{
+					termsIn.add(fieldIn + textIn.substring(wordStart, i).toLowerCase());
+				}
+				wordStart = -1;
+			}
+		}
+	}
+
+
+	/**
+	 * @return the term of a (whole) line of output
+	 */
+	static String getLineTerm(char fieldIn, String lineIn)
+	{
+		// lines are hashed (64-bit FNV-1a) rather than stored
+		long hash = 0xcbf29ce484222325L;
+		for( byte currByte : lineIn.trim().getBytes(StandardCharsets.UTF_8) )
+		{
+			hash ^= (currByte & 0xFF);
+			hash *= 0x100000001b3L;
+		}
+		return fieldIn + Long.toHexString(hash);
+	}
+
+
+	/**
+	 * Adds the terms of an assertion location (the location itself and its file) to the given list
+	 */
+	static void addLocationTerms(Collection<String> termsIn, String locationIn)
+	{
+		termsIn.add(FIELD_LOCATION + locationIn);
+		Matcher m = LOCATION_PATTERN.matcher(locationIn);
+		if( m.matches() ) termsIn.add(FIELD_LOCATION + m.group(1));
+	}
+
+
+	static byte[] encodeTerm(String termIn)
+	{
+		byte[] retVal = termIn.getBytes(StandardCharsets.UTF_8);
+		return (retVal.length <= 0xFFFF) ? retVal : Arrays.copyOf(retVal, 0xFFFF);
+	}
+
+
+	private static void addOutputTerms(Set<String> termsIn, char wordFieldIn, char lineFieldIn, String outputIn)
+	{
+		if( outputIn == null ) return;
+		for( String currLine : outputIn.split("\r?\n") )
+		{
+			if( currLine.trim().isEmpty() ) continue;
+			termsIn.add(getLineTerm(lineFieldIn, currLine));
+			addWordTerms(termsIn, wordFieldIn, currLine);
+		}
+	}
+
+
+	private static File getSegmentFile(File indexDirIn, int firstDocIn, int endDocIn)
+	{
+		return new File(indexDirIn, String.format("seg_%d_%d.idx", firstDocIn, endDocIn));
+	}
+
+
+	private static int compareTerm(ByteBuffer bufIn, int entryOffsetIn, byte[] termIn)
+	{
+		int termLength = bufIn.getShort(entryOffsetIn) & 0xFFFF;
+		for( int i = 0; (i < termLength) && (i < termIn.length); i++ )
+		{
+			int cmp = (bufIn.get(entryOffsetIn + 2 + i) & 0xFF) - (termIn[i] & 0xFF);
+			if( cmp != 0 ) return cmp;
+		}
+		return termLength - termIn.length;
+	}
+
+
+	private static int readVarInt(ByteBuffer bufIn)
+	{
+		int retVal = 0;
+		for( int shift = 0; ; shift += 7 )
+		{
+			byte currByte = bufIn.get();
+			retVal |= (currByte & 0x7F) << shift;
+			if( (currByte & 0x80) == 0 ) return retVal;
+		}
+	}
+
+
+	/**
+	 * Terms are ordered as unsigned bytes (their UTF-8 encoding)
+	 */
+	private static final Comparator<byte[]> TERM_ORDER = new Comparator<byte[]>()
+	{
+		@Override
+		public int compare(byte[] lhsIn, byte[] rhsIn)
+		{
+			for( int i = 0; (i < lhsIn.length) && (i < rhsIn.length); i++ )
+			{
+				int cmp = (lhsIn[i] & 0xFF) - (rhsIn[i] & 0xFF);
+				if( cmp != 0 ) return cmp;
+			}
+			return lhsIn.length - rhsIn.length;
+		}
+	};
+
+
+	/**
+	 * A term (as bytes) usable as a map key
+	 */
+	private static class ByteKey
+	{
+		final byte[] bytes;
+
+		ByteKey(byte[] bytesIn)
+		{
+			this.bytes = bytesIn;
+		}
+
+		@Override
+		public boolean equals(Object objIn)
+		{
+			return (objIn instanceof ByteKey) && Arrays.equals(this.bytes, ((ByteKey)objIn).bytes);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Arrays.hashCode(this.bytes);
+		}
+	}
+
+
+	/**
+	 * Writes a segment: a header, the entries (term and postings) in term
+	 * order, a table of the offsets of the entries and a trailer
+	 */
+	private static class SegmentWriter implements AutoCloseable
+	{
+		private final DataOutputStream dos;
+		private final int firstDoc;
+		private final DocList entryOffsets = new DocList();
+
+		SegmentWriter(File fileIn, int firstDocIn) throws IOException
+		{
+			this.dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileIn), 64 * 1024));
+			this.firstDoc = firstDocIn;
+			this.dos.writeInt(SEGMENT_MAGIC);
+			this.dos.writeInt(firstDocIn);
+			this.dos.writeInt(0);
+		}
+
+		void write(byte[] termIn, int[] docsIn, int numDocsIn) throws IOException
+		{
+			this.entryOffsets.add(this.dos.size());
+			this.dos.writeShort(termIn.length);
+			this.dos.write(termIn);
+			this.writeVarInt(numDocsIn);
+			int prevDoc = this.firstDoc;
+			for( int i = 0; i < numDocsIn; i++ )
+			{
+				this.writeVarInt(docsIn[i] - prevDoc);
+				prevDoc = docsIn[i];
+			}
+		}
+
+		private void writeVarInt(int valueIn) throws IOException
+		{
+			while( (valueIn & ~0x7F) != 0 )
+			{
+				this.dos.writeByte((valueIn & 0x7F) | 0x80);
+				valueIn >>>= 7;
+			}
+			this.dos.writeByte(valueIn);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			int tableOffset = this.dos.size();
+			for( int i = 0; i < this.entryOffsets.size; i++ ) this.dos.writeInt(this.entryOffsets.docs[i]);
+			this.dos.writeInt(this.entryOffsets.size);
+			this.dos.writeInt(tableOffset);
+			this.dos.close();
+		}
+	}
+}
@@ -0,0 +1,432 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.cxa.commandLineParser.CommandLineParser;
+import org.cxa.commandLineParser.optionListener.OptionWithArgumentListener;
+import org.cxa.mPutF.tests.Test.TestResult;
+import org.cxa.mPutF.tests.TestCaseResult;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Command-line tool for searching an {@link OutputIndex} (eg. which tests, in
+ * which runs, printed a given line or failed at a given location), and for
+ * adding archived JUnit XML results (as written by mPutF) to it.
+ * <p>
+ * A query matches the tests containing <i>all</i> of its words. A word may be
+ * restricted to a field with a prefix: <code>out:</code> (stdout),
+ * <code>err:</code> (stderr), <code>msg:</code> (assertion messages) or
+ * <code>loc:</code> (an assertion location, eg. <code>loc:main.c:72</code> or
+ * <code>loc:main.c</code>, matched exactly); an unprefixed word matches
+ * stdout, stderr or assertion messages.
+ *
+ * @author Christopher Armenio
+ */
+public class mPutF_search
+{
+	private static final String PREFIX_STDOUT = "out:";
+	private static final String PREFIX_STDERR = "err:";
+	private static final String PREFIX_MESSAGE = "msg:";
+	private static final String PREFIX_LOCATION = "loc:";
+	private static final String TIMESTAMP_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
+	private static final String[] RESULT_NAMES = {"pass", "FAIL", "ERROR"};
+
+	private static String indexPath = null;
+	private static final List<String> addPaths = new ArrayList<String>();
+	private static String query = null;
+	private static String line = null;
+	private static int top = 20;
+
+
+	/**
+	 * The execution entry-point
+	 *
+	 * @param args command-line arguments/options
+	 */
+	public static void main(String[] args)
+	{
+		parseCmdLineOpts(args);
+
+		try
+		{
+			File indexDir = new File(indexPath);
+			if( !addPaths.isEmpty() )
+			{
+				OutputIndex index = OutputIndex.open(indexDir);
+				int numAdded = 0;
+				for( String currPath : addPaths ) numAdded += addResults(index, new File(currPath));
+				System.err.printf("added %d result file(s) to '%s'\r\n", numAdded, indexDir.getPath());
+			}
+			if( (query == null) && (line == null) ) return;
+
+			// (printing, eg. formatting dates, isn't part of the query)
+			long startTime_ns = System.nanoTime();
+			List<String> terms = new ArrayList<String>();
+			List<int[]> matches = runQuery(indexDir, terms);
+			double queryTime_ms = (System.nanoTime() - startTime_ns) / 1.0e6;
+			int numMatches = printMatches(indexDir, matches);
+			System.err.printf("%d matching test(s) for %s; query took %.1f ms\r\n", numMatches, terms, queryTime_ms);
+		}
+		catch( Exception e )
+		{
+			System.err.println(String.format("Error: %s", e.getMessage()));
+			System.exit(-2);
+		}
+	}
+
+
+	/**
+	 * Runs the query
+	 *
+	 * @return the matching documents of each segment (in segment order)
+	 */
+	private static List<int[]> runQuery(File indexDirIn, List<String> termsOut) throws IOException
+	{
+		// each clause is a list of alternative terms (any of which must be present)
+		List<String[]> clauses = new ArrayList<String[]>();
+		if( query != null )
+		{
+			for( String currWord : query.trim().split("\\s+") )
+			{
+				if( !currWord.isEmpty() ) addClauses(clauses, currWord);
+			}
+		}
+		if( line != null )
+		{
+			clauses.add(new String[]{OutputIndex.getLineTerm(OutputIndex.FIELD_STDOUT_LINE, line), OutputIndex.getLineTerm(OutputIndex.FIELD_STDERR_LINE, line)});
+		}
+		for( String[] currClause : clauses ) termsOut.add((currClause.length == 1) ? currClause[0] : Arrays.toString(currClause));
+		List<int[]> retVal = new ArrayList<int[]>();
+		if( clauses.isEmpty() ) return retVal;
+
+		List<OutputIndex.Run> runs = OutputIndex.readRuns(indexDirIn);
+		if( runs.isEmpty() ) return retVal;
+		OutputIndex.Run lastRun = runs.get(runs.size() - 1);
+
+		// the segments hold consecutive documents, so the matches of each are (ascending and) in order
+		for( OutputIndex.Segment currSegment : OutputIndex.listSegments(indexDirIn, lastRun.getEndDoc()) )
+		{
+			int[] currMatches = null;
+			for( String[] currClause : clauses )
+			{
+				int[] clauseMatches = new int[0];
+				for( String currTerm : currClause ) clauseMatches = union(clauseMatches, currSegment.lookup(OutputIndex.encodeTerm(currTerm)));
+				currMatches = (currMatches == null) ? clauseMatches : intersect(currMatches, clauseMatches);
+				if( currMatches.length == 0 ) break;
+			}
+			retVal.add(currMatches);
+		}
+		return retVal;
+	}
+
+
+	/**
+	 * Prints (up to 'top' of) the given matches, newest first
+	 *
+	 * @return the total number of matching tests
+	 */
+	private static int printMatches(File indexDirIn, List<int[]> matchesIn) throws IOException
+	{
+		int numMatches = 0;
+		for( int[] currMatches : matchesIn ) numMatches += currMatches.length;
+		if( numMatches == 0 ) return 0;
+
+		final List<OutputIndex.Run> runs = OutputIndex.readRuns(indexDirIn);
+		OutputIndex.Run lastRun = runs.get(runs.size() - 1);
+		List<String> names = OutputIndex.readNames(indexDirIn, lastRun);
+		final ByteBuffer docs = OutputIndex.mapDocs(indexDirIn, lastRun.getEndDoc());
+
+		// archived results may be added in any order...newest run first, then latest document first
+		List<Integer> sortedMatches = new ArrayList<Integer>(numMatches);
+		for( int[] currMatches : matchesIn )
+		{
+			for( int currDoc : currMatches ) sortedMatches.add(currDoc);
+		}
+		Collections.sort(sortedMatches, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer o1, Integer o2)
+			{
+				long timestamp1 = runs.get(docs.getInt((o1 * OutputIndex.DOC_SIZE) + OutputIndex.DOC_OFFSET_RUN)).timestamp;
+				long timestamp2 = runs.get(docs.getInt((o2 * OutputIndex.DOC_SIZE) + OutputIndex.DOC_OFFSET_RUN)).timestamp;
+				return (timestamp1 != timestamp2) ? Long.compare(timestamp2, timestamp1) : Integer.compare(o2, o1);
+			}
+		});
+
+		SimpleDateFormat sdf = new SimpleDateFormat(TIMESTAMP_FORMAT);
+		for( int currDoc : sortedMatches.subList(0, Math.min(top, sortedMatches.size())) )
+		{
+			int base = currDoc * OutputIndex.DOC_SIZE;
+			OutputIndex.Run currRun = runs.get(docs.getInt(base + OutputIndex.DOC_OFFSET_RUN));
+			int result = docs.get(base + OutputIndex.DOC_OFFSET_RESULT);
+			System.out.printf("%s  %-5s  %-64s %s\r\n", sdf.format(new Date(currRun.timestamp)),
+					((result >= 0) && (result < RESULT_NAMES.length)) ? RESULT_NAMES[result] : "?",
+					names.get(docs.getInt(base + OutputIndex.DOC_OFFSET_NAME)), names.get(currRun.labelId));
+		}
+		return numMatches;
+	}
+
+
+	private static void addClauses(List<String[]> clausesIn, String wordIn)
+	{
+		if( wordIn.startsWith(PREFIX_LOCATION) )
+		{
+			clausesIn.add(new String[]{OutputIndex.FIELD_LOCATION + wordIn.substring(PREFIX_LOCATION.length())});
+			return;
+		}
+
+		char[] fields = {OutputIndex.FIELD_STDOUT, OutputIndex.FIELD_STDERR, OutputIndex.FIELD_MESSAGE};
+		String text = wordIn;
+		if( wordIn.startsWith(PREFIX_STDOUT) ) fields = new char[]{OutputIndex.FIELD_STDOUT};
+		else if( wordIn.startsWith(PREFIX_STDERR) ) fields = new char[]{OutputIndex.FIELD_STDERR};
+		else if( wordIn.startsWith(PREFIX_MESSAGE) ) fields = new char[]{OutputIndex.FIELD_MESSAGE};
+		if( fields.length == 1 ) text = wordIn.substring(wordIn.indexOf(':') + 1);
+
+		// a word may contain several indexed words (eg. 'connection-refused'), all of which must be present
+		List<String> words = new ArrayList<String>();
+		OutputIndex.addWordTerms(words, ' ', text);
+		for( String currWord : words )
+		{
+			String[] currClause = new String[fields.length];
+			for( int i = 0; i < fields.length; i++ ) currClause[i] = fields[i] + currWord.substring(1);
+			clausesIn.add(currClause);
+		}
+	}
+
+
+	private static int[] union(int[] lhsIn, int[] rhsIn)
+	{
+		if( lhsIn.length == 0 ) return rhsIn;
+		if( rhsIn.length == 0 ) return lhsIn;
+
+		int[] retVal = new int[lhsIn.length + rhsIn.length];
+		int i = 0, j = 0, k = 0;
+		while( (i < lhsIn.length) || (j < rhsIn.length) )
+		{
+			if( (j == rhsIn.length) || ((i < lhsIn.length) && (lhsIn[i] < rhsIn[j])) ) retVal[k++] = lhsIn[i++];
+			else if( (i == lhsIn.length) || (rhsIn[j] < lhsIn[i]) ) retVal[k++] = rhsIn[j++];
+			else
+			{
+				retVal[k++] = lhsIn[i++];
+				j++;
+			}
+		}
+		return Arrays.copyOf(retVal, k);
+	}
+
+
+	private static int[] intersect(int[] lhsIn, int[] rhsIn)
+	{
+		int[] retVal = new int[Math.min(lhsIn.length, rhsIn.length)];
+		int i = 0, j = 0, k = 0;
+		while( (i < lhsIn.length) && (j < rhsIn.length) )
+		{
+			if( lhsIn[i] < rhsIn[j] ) i++;
+			else if( rhsIn[j] < lhsIn[i] ) j++;
+			else
+			{
+				retVal[k++] = lhsIn[i++];
+				j++;
+			}
+		}
+		return Arrays.copyOf(retVal, k);
+	}
+
+
+	/**
+	 * Adds the given JUnit XML results file (or all of those in the given
+	 * directory) to the index, skipping those already added
+	 *
+	 * @return the number of result files added
+	 */
+	private static int addResults(OutputIndex indexIn, File fileIn) throws IOException
+	{
+		if( fileIn.isDirectory() )
+		{
+			int retVal = 0;
+			File[] files = fileIn.listFiles();
+			if( files == null ) return 0;
+			Arrays.sort(files);
+			for( File currFile : files )
+			{
+				if( currFile.isDirectory() || currFile.getName().endsWith(".xml") ) retVal += addResults(indexIn, currFile);
+			}
+			return retVal;
+		}
+
+		Element rootNode;
+		try
+		{
+			rootNode = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(fileIn).getDocumentElement();
+		}
+		catch( Exception e )
+		{
+			throw new IOException(String.format("unable to parse '%s': %s", fileIn.getPath(), e.getMessage()), e);
+		}
+		if( !rootNode.getNodeName().equals("testsuite") ) return 0;
+
+		// a results file is identified by its path and the start time of its suite
+		long timestamp = fileIn.lastModified();
+		try
+		{
+			timestamp = new SimpleDateFormat(TIMESTAMP_FORMAT).parse(rootNode.getAttribute("timestamp")).getTime();
+		}
+		catch( ParseException e ) { }
+		String label = fileIn.getCanonicalPath();
+		if( indexIn.containsRun(label, timestamp) ) return 0;
+
+		indexIn.beginRun(label, timestamp);
+		NodeList testCaseNodes = rootNode.getElementsByTagName("testcase");
+		for( int i = 0; i < testCaseNodes.getLength(); i++ )
+		{
+			addTestCase(indexIn, (Element)testCaseNodes.item(i));
+		}
+		indexIn.commitRun();
+		return 1;
+	}
+
+
+	private static void addTestCase(OutputIndex indexIn, Element testCaseNodeIn)
+	{
+		TestResult result = TestResult.TEST_RESULT_PASS;
+		String stdout = null;
+		String stderr = null;
+		List<String> locations = new ArrayList<String>();
+		List<String> messages = new ArrayList<String>();
+
+		// only our direct children...previous attempts have their own (nested) output
+		for( Node currNode = testCaseNodeIn.getFirstChild(); currNode != null; currNode = currNode.getNextSibling() )
+		{
+			String nodeName = currNode.getNodeName();
+			if( nodeName.equals("skipped") ) return;
+			else if( nodeName.equals("system-out") ) stdout = currNode.getTextContent();
+			else if( nodeName.equals("system-err") ) stderr = currNode.getTextContent();
+			else if( nodeName.equals("failure") || nodeName.equals("error") )
+			{
+				if( nodeName.equals("error") ) result = TestResult.TEST_RESULT_ERROR;
+				else if( result == TestResult.TEST_RESULT_PASS ) result = TestResult.TEST_RESULT_FAILURE;
+
+				// assertions are reported as '<location> - <message>'
+				String type = ((Element)currNode).getAttribute("type");
+				String message = ((Element)currNode).getAttribute("message");
+				int separatorIndex = message.indexOf(" - ");
+				boolean isAssertion = type.equals(TestCaseResult.FAILURE_TYPE_ASSERTION) || type.equals(TestCaseResult.FAILURE_TYPE_CHECK);
+				if( isAssertion && (separatorIndex > 0) && !message.substring(0, separatorIndex).contains(" ") )
+				{
+					locations.add(message.substring(0, separatorIndex));
+					message = message.substring(separatorIndex + 3);
+				}
+				messages.add(message);
+			}
+		}
+
+		indexIn.record(testCaseNodeIn.getAttribute("name"), (byte)result.ordinal(), stdout, stderr, locations, messages);
+	}
+
+
+	private static void parseCmdLineOpts(String[] optsIn)
+	{
+		// create command line parser
+		final CommandLineParser clp = new CommandLineParser(mPutF_search.class.getSimpleName(),
+						"mPutF output search tool\r\n" +
+						"Program for searching the output index written by mPutF (see mPutF --outputIndex)");
+
+		// add our options
+		clp.addOption("s", "index", "path to the output index directory", true, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				indexPath = argIn;
+			}
+		});
+
+		clp.addOption("a", "add", "add a JUnit XML results file (or a directory of them) to the index, skipping files already added", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				addPaths.add(argIn);
+			}
+		});
+
+		clp.addOption("q", "query", String.format("words which must all be present, optionally prefixed with '%s', '%s', '%s' or '%s'", PREFIX_STDOUT, PREFIX_STDERR, PREFIX_MESSAGE, PREFIX_LOCATION),
+				false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				query = argIn;
+			}
+		});
+
+		clp.addOption("l", "line", "a whole line (ignoring leading/trailing whitespace) which must be present in stdout or stderr", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				line = argIn;
+			}
+		});
+
+		clp.addOption("k", "top", "number of matching tests to print (default: 20)", false, true, String.class, new OptionWithArgumentListener<String>()
+		{
+			@Override
+			public void optionIsPresent(String argIn)
+			{
+				top = parsePositiveInt(clp, argIn);
+			}
+		});
+
+		// parse our options
+		if( !clp.parseOptions(optsIn) || (indexPath == null) )
+		{
+			clp.printUsage();
+			System.exit(-1);
+		}
+	}
+
+
+	private static int parsePositiveInt(CommandLineParser clpIn, String argIn)
+	{
+		try
+		{
+			int retVal = Integer.parseInt(argIn);
+			if( retVal > 0 ) return retVal;
+		}
+		catch( NumberFormatException e ) { }
+
+		clpIn.printUsage();
+		System.exit(-1);
+		return 0;
+	}
+}
@@ -0,0 +1,307 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The part shared by the append-only, per-run, on-disk stores (eg. the
+ * result store and the output index): the runs committed to the store and
+ * a string table. Each store is a directory containing:
+ * <ul>
+ * <li><code>names.dat</code> - the string table (eg. test names), to which each run appends the strings it introduces</li>
+ * <li><code>runs.dat</code> - a header (magic and version of the store) followed by fixed-size
+ * 		({@value #ENTRY_SIZE} byte) run entries: the time of the run, the size of the string table
+ * 		as of the run and {@value #PAYLOAD_SIZE} bytes of store-specific data (eg. where the data of
+ * 		the run starts)</li>
+ * </ul>
+ * along with the data files of the store itself. The data of a run is written
+ * first, then the strings it introduced; the run entry is written last and
+ * acts as the commit marker, so a run interrupted part-way is simply ignored
+ * (and overwritten by the next run). Everything beyond the last committed run
+ * entry and string is discarded when the store is opened...a store does the
+ * same for its own data files.
+ *
+ * @author Christopher Armenio
+ */
+public class RunLog
+{
+	public static final int ENTRY_SIZE = 32;
+	public static final int PAYLOAD_SIZE = 12;
+
+	public static final String FILE_NAMES = "names.dat";
+	public static final String FILE_RUNS = "runs.dat";
+
+	private static final int HEADER_SIZE = 8;
+
+
+	/**
+	 * A committed run, as described by its entry in <code>runs.dat</code>
+	 */
+	public static class Entry
+	{
+		public final long timestamp;
+		public final long namesLength;
+		public final int numNames;
+		private final byte[] payload;
+
+		private Entry(long timestampIn, long namesLengthIn, int numNamesIn, byte[] payloadIn)
+		{
+			this.timestamp = timestampIn;
+			this.namesLength = namesLengthIn;
+			this.numNames = numNamesIn;
+			this.payload = payloadIn;
+		}
+
+		/**
+		 * @return the store-specific data of the run (see {@link RunLog#commitRun(long, ByteBuffer)})
+		 */
+		public ByteBuffer getPayload()
+		{
+			return ByteBuffer.wrap(this.payload).asReadOnlyBuffer();
+		}
+	}
+
+
+	private final File dir;
+	private final List<Entry> entries;
+	private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+	private final List<String> newNames = new ArrayList<String>();
+
+
+	private RunLog(File dirIn, List<Entry> entriesIn)
+	{
+		this.dir = dirIn;
+		this.entries = entriesIn;
+	}
+
+
+	/**
+	 * @return the committed runs, oldest first
+	 */
+	public List<Entry> getEntries()
+	{
+		return Collections.unmodifiableList(this.entries);
+	}
+
+
+	/**
+	 * Returns the id of the given string, adding it to the string table (with
+	 * the next commit) if it isn't part of it yet
+	 *
+	 * @param nameIn the string
+	 *
+	 * @return the id of the string (its index in the string table)
+	 */
+	public int getNameId(String nameIn)
+	{
+		Integer retVal = this.nameIds.get(nameIn);
+		if( retVal == null )
+		{
+			retVal = this.nameIds.size();
+			this.newNames.add(nameIn);
+			this.nameIds.put(nameIn, retVal);
+		}
+		return retVal;
+	}
+
+
+	/**
+	 * @param nameIn the string
+	 *
+	 * @return the id of the given string, or NULL if it isn't part of the string table
+	 */
+	public Integer findNameId(String nameIn)
+	{
+		return this.nameIds.get(nameIn);
+	}
+
+
+	/**
+	 * Commits a run (whose data must already have been written): appends the
+	 * strings introduced since the last commit, then the run entry
+	 *
+	 * @param timestampIn the time of the run (milliseconds since the epoch)
+	 * @param payloadIn the store-specific data of the run (at most {@value #PAYLOAD_SIZE} bytes,
+	 * 		from its position to its limit)
+	 *
+	 * @return the entry of the committed run
+	 * @throws IOException on error writing the string table or the run entry
+	 */
+	public Entry commitRun(long timestampIn, ByteBuffer payloadIn) throws IOException
+	{
+		if( payloadIn.remaining() > PAYLOAD_SIZE ) throw new IllegalArgumentException(String.format("payload exceeds %d bytes", PAYLOAD_SIZE));
+		byte[] payload = new byte[PAYLOAD_SIZE];
+		payloadIn.get(payload, 0, payloadIn.remaining());
+
+		File namesFile = new File(this.dir, FILE_NAMES);
+		try( DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(namesFile, true))) )
+		{
+			for( String currName : this.newNames ) dos.writeUTF(currName);
+		}
+		this.newNames.clear();
+
+		Entry retVal = new Entry(timestampIn, namesFile.length(), this.nameIds.size(), payload);
+		try( DataOutputStream dos = new DataOutputStream(new FileOutputStream(new File(this.dir, FILE_RUNS), true)) )
+		{
+			dos.writeLong(retVal.timestamp);
+			dos.writeLong(retVal.namesLength);
+			dos.writeInt(retVal.numNames);
+			dos.write(retVal.payload);
+		}
+		this.entries.add(retVal);
+		return retVal;
+	}
+
+
+	/**
+	 * Opens (or creates) the store in the given directory, discarding anything
+	 * left behind by an uncommitted run
+	 *
+	 * @param dirIn the directory containing the store
+	 * @param magicIn identifies the kind of store
+	 * @param versionIn the version of the store
+	 * @param descriptionIn a user-friendly description of the kind of store (eg. "result store")
+	 *
+	 * @return the opened store
+	 * @throws IOException on error reading/creating the store
+	 */
+	public static RunLog open(File dirIn, int magicIn, int versionIn, String descriptionIn) throws IOException
+	{
+		if( !dirIn.exists() && !dirIn.mkdirs() ) throw new IOException(String.format("unable to create '%s'", dirIn.getAbsolutePath()));
+
+		File runsFile = new File(dirIn, FILE_RUNS);
+		if( !runsFile.exists() || (runsFile.length() == 0) )
+		{
+			try( DataOutputStream dos = new DataOutputStream(new FileOutputStream(runsFile)) )
+			{
+				dos.writeInt(magicIn);
+				dos.writeInt(versionIn);
+			}
+		}
+
+		RunLog retVal = new RunLog(dirIn, readEntries(dirIn, magicIn, versionIn, descriptionIn));
+		long namesLength = 0;
+		if( !retVal.entries.isEmpty() )
+		{
+			Entry lastEntry = retVal.entries.get(retVal.entries.size() - 1);
+			namesLength = lastEntry.namesLength;
+			List<String> names = readNames(dirIn, lastEntry);
+			for( int i = 0; i < names.size(); i++ ) retVal.nameIds.put(names.get(i), i);
+		}
+		truncate(runsFile, HEADER_SIZE + ((long)retVal.entries.size() * ENTRY_SIZE));
+		truncate(new File(dirIn, FILE_NAMES), namesLength);
+
+		return retVal;
+	}
+
+
+	/**
+	 * Reads all committed run entries of the store in the given directory
+	 *
+	 * @param dirIn the directory containing the store
+	 * @param magicIn identifies the kind of store
+	 * @param versionIn the version of the store
+	 * @param descriptionIn a user-friendly description of the kind of store (eg. "result store")
+	 *
+	 * @return the committed runs, oldest first (empty if the store doesn't exist)
+	 * @throws IOException on error reading the run entries
+	 */
+	public static List<Entry> readEntries(File dirIn, int magicIn, int versionIn, String descriptionIn) throws IOException
+	{
+		List<Entry> retVal = new ArrayList<Entry>();
+		File runsFile = new File(dirIn, FILE_RUNS);
+		if( !runsFile.exists() ) return retVal;
+
+		try( RandomAccessFile raf = new RandomAccessFile(runsFile, "r"); FileChannel fc = raf.getChannel() )
+		{
+			if( fc.size() < HEADER_SIZE ) return retVal;
+			MappedByteBuffer buf = fc.map(MapMode.READ_ONLY, 0, fc.size());
+			if( (buf.getInt() != magicIn) || (buf.getInt() != versionIn) ) throw new IOException(String.format("'%s' is not a %s", dirIn.getAbsolutePath(), descriptionIn));
+
+			while( buf.remaining() >= ENTRY_SIZE )
+			{
+				long timestamp = buf.getLong();
+				long namesLength = buf.getLong();
+				int numNames = buf.getInt();
+				byte[] payload = new byte[PAYLOAD_SIZE];
+				buf.get(payload);
+				retVal.add(new Entry(timestamp, namesLength, numNames, payload));
+			}
+		}
+		return retVal;
+	}
+
+
+	/**
+	 * Reads the string table as of the given run
+	 *
+	 * @param dirIn the directory containing the store
+	 * @param entryIn the run
+	 *
+	 * @return the strings, by id
+	 * @throws IOException on error reading the string table
+	 */
+	public static List<String> readNames(File dirIn, Entry entryIn) throws IOException
+	{
+		List<String> retVal = new ArrayList<String>(entryIn.numNames);
+		try( DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(dirIn, FILE_NAMES)))) )
+		{
+			while( retVal.size() < entryIn.numNames ) retVal.add(dis.readUTF());
+		}
+		catch( EOFException e )
+		{
+			throw new IOException(String.format("'%s' is truncated", FILE_NAMES));
+		}
+		return retVal;
+	}
+
+
+	/**
+	 * Truncates the given file to the given length (if it is longer)
+	 *
+	 * @param fileIn the file
+	 * @param lengthIn the length of the file
+	 *
+	 * @throws IOException on error truncating the file
+	 */
+	public static void truncate(File fileIn, long lengthIn) throws IOException
+	{
+		if( !fileIn.exists() || (fileIn.length() <= lengthIn) ) return;
+		try( RandomAccessFile raf = new RandomAccessFile(fileIn, "rw") )
+		{
+			raf.setLength(lengthIn);
+		}
+	}
+}
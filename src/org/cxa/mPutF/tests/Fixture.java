@@ -0,0 +1,343 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.ParseException;
+import org.cxa.mPutF.tests.localProcess.LocalProcessTest.TestOutput;
+import org.cxa.mPutF.tests.localProcess.TestRunner;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Expensive setup (eg. building a dataset, starting a local daemon) shared
+ * by several tests. Parsed from a node placed directly within the
+ * <code>&lt;testSuite&gt;</code> node:
+ * <pre>
+ * &lt;fixture name="db" scope="suite"&gt;
+ *     &lt;setup maxTime_s="60"&gt;/path/to/startDb.sh&lt;/setup&gt;
+ *     &lt;teardown maxTime_s="60"&gt;/path/to/stopDb.sh&lt;/teardown&gt;
+ * &lt;/fixture&gt;
+ * </pre>
+ * A fixture with <code>scope="suite"</code> is used by every test of the
+ * suite, otherwise only by the tests naming it in their
+ * <code>fixtures</code> attribute.
+ * <p>
+ * The setup is run once, just before the first dependent test which
+ * actually runs. Every dependent holds a reference to the fixture and the
+ * teardown is run as soon as the last dependent has released it (the
+ * teardown is run even if the setup failed, so it must cope with a partial
+ * setup). A step is complete as soon as its process exits, so a setup may
+ * leave a daemon running (holding the output streams of the step). All
+ * methods are thread-safe, so dependents may run concurrently.
+ *
+ * @author Christopher Armenio
+ */
+public class Fixture
+{
+	public static final String NODE_NAME = "fixture";
+	private static final String ATTR_NAME = "name";
+	private static final String ATTR_SCOPE = "scope";
+	private static final String ATTR_MAX_TIME = "maxTime_s";
+	private static final String NODE_SETUP = "setup";
+	private static final String NODE_TEARDOWN = "teardown";
+	private static final String SCOPE_SUITE = "suite";
+	private static final String SCOPE_TESTS = "tests";
+
+	/** the maximum number of characters of stderr included in an error message */
+	private static final int MAX_ERROR_OUTPUT_CHARS = 512;
+	/** the maximum number of (trailing) bytes of stdout/stderr kept of a step */
+	private static final int MAX_CAPTURE_BYTES = 64 * 1024;
+
+
+	private final String name;
+	private final boolean isSuiteScoped;
+	private final String setupExecutable;
+	private final Integer setupMaxTime_s;
+	private final String teardownExecutable;
+	private final Integer teardownMaxTime_s;
+
+	private int numDependents = 0;
+	private boolean isSetUp = false;
+	private String setupError = null;
+	private Logger logger = null;
+
+
+	private Fixture(String nameIn, boolean isSuiteScopedIn, String setupExecutableIn, Integer setupMaxTime_sIn, String teardownExecutableIn, Integer teardownMaxTime_sIn)
+	{
+		this.name = nameIn;
+		this.isSuiteScoped = isSuiteScopedIn;
+		this.setupExecutable = setupExecutableIn;
+		this.setupMaxTime_s = setupMaxTime_sIn;
+		this.teardownExecutable = teardownExecutableIn;
+		this.teardownMaxTime_s = teardownMaxTime_sIn;
+	}
+
+
+	private Logger getLogger()
+	{
+		if( this.logger == null ) this.logger = LogManager.getLogger(String.format("%s::%s", this.getClass().getSimpleName(), this.name));
+		return this.logger;
+	}
+
+
+	/**
+	 * @return the name of this fixture
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+
+
+	/**
+	 * @return true if every test of the suite depends on this fixture
+	 */
+	public boolean isSuiteScoped()
+	{
+		return this.isSuiteScoped;
+	}
+
+
+	/**
+	 * Adds a dependent, which must eventually {@link #release()} this fixture
+	 * (whether or not it ever called {@link #acquire()}). Dependents must all be
+	 * added before the first one is released.
+	 */
+	public synchronized void addDependent()
+	{
+		this.numDependents++;
+	}
+
+
+	/**
+	 * Makes sure this fixture is set up (running the setup if this is the
+	 * first dependent to need it)
+	 *
+	 * @return NULL if the fixture is ready, otherwise why the setup failed
+	 * 		(the setup is not re-attempted for later dependents)
+	 */
+	public synchronized String acquire()
+	{
+		if( !this.isSetUp )
+		{
+			this.getLogger().trace("running setup");
+			this.isSetUp = true;
+			this.setupError = this.runStep(NODE_SETUP, this.setupExecutable, this.setupMaxTime_s);
+		}
+		return this.setupError;
+	}
+
+
+	/**
+	 * Releases the reference of a dependent. The teardown is run once the
+	 * last dependent has released this fixture (if the setup was ever run).
+	 *
+	 * @return NULL if this fixture is still in use or was torn down
+	 * 		successfully, otherwise why the teardown failed
+	 */
+	public synchronized String release()
+	{
+		if( (this.numDependents == 0) || (--this.numDependents > 0) ) return null;
+
+		this.getLogger().trace("last dependent finished");
+		return this.teardown();
+	}
+
+
+	/**
+	 * Tears this fixture down now (if it was set up), regardless of any
+	 * remaining dependents (eg. when the run is aborted)
+	 *
+	 * @return NULL if this fixture was not set up or was torn down
+	 * 		successfully, otherwise why the teardown failed
+	 */
+	public synchronized String close()
+	{
+		this.numDependents = 0;
+		return this.teardown();
+	}
+
+
+	private String teardown()
+	{
+		if( !this.isSetUp ) return null;
+		this.isSetUp = false;
+		this.setupError = null;
+		if( this.teardownExecutable == null ) return null;
+
+		this.getLogger().trace("running teardown");
+		return this.runStep(NODE_TEARDOWN, this.teardownExecutable, this.teardownMaxTime_s);
+	}
+
+
+	private String runStep(String stepNameIn, String executableIn, Integer maxTime_sIn)
+	{
+		// a setup may start a daemon, which inherits (and holds open) the output streams of the step
+		TestRunner tr = new TestRunner(executableIn);
+		tr.setLeavesBackgroundProcesses(true);
+		tr.setStdoutListener(null, MAX_CAPTURE_BYTES);
+		tr.setStderrListener(null, MAX_CAPTURE_BYTES);
+		tr.startTest();
+		try
+		{
+			if( !tr.waitForFinish((maxTime_sIn != null) ? (maxTime_sIn * 1000L) : 0) )
+			{
+				tr.stop();
+				return String.format("%s of fixture '%s' did not complete within %d seconds", stepNameIn, this.name, maxTime_sIn);
+			}
+		}
+		catch( InterruptedException e )
+		{
+			tr.stop();
+			Thread.currentThread().interrupt();
+			return String.format("%s of fixture '%s' was interrupted", stepNameIn, this.name);
+		}
+
+		TestOutput output = tr.getTestOutput();
+		if( output.getException() != null )
+		{
+			return String.format("%s of fixture '%s' failed: %s", stepNameIn, this.name, output.getException().getMessage());
+		}
+		if( output.getRetCode() != 0 )
+		{
+			this.getLogger().warn(String.format("%s failed [%d]:\r\n%s", stepNameIn, output.getRetCode(), output.getStderr()));
+			return String.format("%s of fixture '%s' exited with retCode [%d]%s", stepNameIn, this.name, output.getRetCode(), formatStderr(output.getStderr()));
+		}
+		this.getLogger().trace(String.format("%s complete", stepNameIn));
+		return null;
+	}
+
+
+	/**
+	 * Writes this fixture in a compact binary form (see {@link #readFrom(DataInput)})
+	 *
+	 * @param outIn the destination of the fixture
+	 *
+	 * @throws IOException on error writing the fixture
+	 */
+	public void writeTo(DataOutput outIn) throws IOException
+	{
+		outIn.writeUTF(this.name);
+		outIn.writeBoolean(this.isSuiteScoped);
+		outIn.writeUTF(this.setupExecutable);
+		outIn.writeInt((this.setupMaxTime_s != null) ? this.setupMaxTime_s : -1);
+		outIn.writeBoolean(this.teardownExecutable != null);
+		if( this.teardownExecutable != null ) outIn.writeUTF(this.teardownExecutable);
+		outIn.writeInt((this.teardownMaxTime_s != null) ? this.teardownMaxTime_s : -1);
+	}
+
+
+	/**
+	 * Restores a fixture written with {@link #writeTo(DataOutput)}
+	 *
+	 * @param inIn the source of the fixture
+	 *
+	 * @return the restored fixture
+	 * @throws IOException on error reading the fixture
+	 */
+	public static Fixture readFrom(DataInput inIn) throws IOException
+	{
+		String name = inIn.readUTF();
+		boolean isSuiteScoped = inIn.readBoolean();
+		String setupExecutable = inIn.readUTF();
+		int setupMaxTime_s = inIn.readInt();
+		String teardownExecutable = inIn.readBoolean() ? inIn.readUTF() : null;
+		int teardownMaxTime_s = inIn.readInt();
+
+		return new Fixture(name, isSuiteScoped, setupExecutable, ((setupMaxTime_s >= 0) ? setupMaxTime_s : null),
+				teardownExecutable, ((teardownMaxTime_s >= 0) ? teardownMaxTime_s : null));
+	}
+
+
+	/**
+	 * Parses a fixture from the given XML {@link Node}
+	 *
+	 * @param xmlFileIn the XML file from which this fixture is being parsed
+	 * @param fixtureNodeIn the {@link Node} describing this fixture
+	 *
+	 * @return a parsed fixture
+	 * @throws ParseException on error parsing the fixture
+	 */
+	public static Fixture parseFixture(File xmlFileIn, Node fixtureNodeIn) throws ParseException
+	{
+		NamedNodeMap attributes = fixtureNodeIn.getAttributes();
+		Node nameNode = attributes.getNamedItem(ATTR_NAME);
+		if( (nameNode == null) || nameNode.getNodeValue().trim().isEmpty() ) throw new ParseException(xmlFileIn, String.format("%s: missing attribute '%s'", NODE_NAME, ATTR_NAME));
+		String name = nameNode.getNodeValue().trim();
+
+		boolean isSuiteScoped = false;
+		Node scopeNode = attributes.getNamedItem(ATTR_SCOPE);
+		if( scopeNode != null )
+		{
+			if( scopeNode.getNodeValue().equals(SCOPE_SUITE) ) isSuiteScoped = true;
+			else if( !scopeNode.getNodeValue().equals(SCOPE_TESTS) )
+			{
+				throw new ParseException(xmlFileIn, String.format("%s '%s': error parsing attribute '%s'::'%s'", NODE_NAME, name, ATTR_SCOPE, scopeNode.getNodeValue()));
+			}
+		}
+
+		Node setupNode = null;
+		Node teardownNode = null;
+		NodeList childNodes = fixtureNodeIn.getChildNodes();
+		for( int i = 0; i < childNodes.getLength(); i++ )
+		{
+			Node currNode = childNodes.item(i);
+			if( currNode.getNodeName().equals(NODE_SETUP) ) setupNode = currNode;
+			else if( currNode.getNodeName().equals(NODE_TEARDOWN) ) teardownNode = currNode;
+		}
+		if( (setupNode == null) || setupNode.getTextContent().trim().isEmpty() )
+		{
+			throw new ParseException(xmlFileIn, String.format("%s '%s': missing node '%s'", NODE_NAME, name, NODE_SETUP));
+		}
+
+		return new Fixture(name, isSuiteScoped, setupNode.getTextContent().trim(), parseMaxTime(xmlFileIn, name, setupNode),
+				((teardownNode != null) ? teardownNode.getTextContent().trim() : null), ((teardownNode != null) ? parseMaxTime(xmlFileIn, name, teardownNode) : null));
+	}
+
+
+	private static Integer parseMaxTime(File xmlFileIn, String nameIn, Node stepNodeIn) throws ParseException
+	{
+		Node maxTimeNode = stepNodeIn.getAttributes().getNamedItem(ATTR_MAX_TIME);
+		if( maxTimeNode == null ) return null;
+
+		try
+		{
+			int retVal = Integer.parseInt(maxTimeNode.getNodeValue());
+			if( retVal > 0 ) return retVal;
+		}
+		catch( NumberFormatException e ) { }
+
+		throw new ParseException(xmlFileIn, String.format("%s '%s': error parsing attribute '%s'::'%s'", NODE_NAME, nameIn, ATTR_MAX_TIME, maxTimeNode.getNodeValue()));
+	}
+
+
+	private static String formatStderr(String stderrIn)
+	{
+		if( (stderrIn == null) || stderrIn.trim().isEmpty() ) return "";
+
+		String stderr = stderrIn.trim();
+		if( stderr.length() > MAX_ERROR_OUTPUT_CHARS ) stderr = "..." + stderr.substring(stderr.length() - MAX_ERROR_OUTPUT_CHARS);
+		return String.format(": %s", stderr);
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cxa.mPutF.ParseException;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * The (soft) performance budget of a {@link Test}: limits on its duration,
+ * CPU time, peak memory and output which, unlike <code>maxTestTime_s</code>,
+ * don't stop the test...a test exceeding its budget runs to completion and
+ * keeps its normal result, with an additional
+ * {@link TestCaseResult#FAILURE_TYPE_BUDGET_EXCEEDED} failure per exceeded
+ * limit. Parsed from the (optional) attributes of a <code>&lt;test&gt;</code> node:
+ * <ul>
+ * <li><code>maxDuration_ms</code> - wall-clock time</li>
+ * <li><code>maxCpu_ms</code> - CPU time (user + system) of the process and its children</li>
+ * <li><code>maxRss_mb</code> - peak resident memory of the process and its children</li>
+ * <li><code>maxOutputBytes</code> - stdout and stderr combined</li>
+ * </ul>
+ *
+ * @author Christopher Armenio
+ */
+public class PerformanceBudget
+{
+	private static final String ATTR_MAX_DURATION = "maxDuration_ms";
+	private static final String ATTR_MAX_CPU = "maxCpu_ms";
+	private static final String ATTR_MAX_RSS = "maxRss_mb";
+	private static final String ATTR_MAX_OUTPUT_BYTES = "maxOutputBytes";
+
+	/**
+	 * A budget without any limits (the default)
+	 */
+	public static final PerformanceBudget NONE = new PerformanceBudget(-1, -1, -1, -1);
+
+
+	/**
+	 * The resources used by a single attempt of a test (a negative value if not measured)
+	 */
+	public static class Usage
+	{
+		private final long duration_ms;
+		private final long cpu_ms;
+		private final long peakRss_bytes;
+		private final long outputBytes;
+
+		/**
+		 * @param duration_msIn the wall-clock time of the attempt
+		 * @param cpu_msIn the CPU time of the attempt
+		 * @param peakRss_bytesIn the peak resident memory of the attempt
+		 * @param outputBytesIn the number of bytes written to stdout and stderr
+		 */
+		public Usage(long duration_msIn, long cpu_msIn, long peakRss_bytesIn, long outputBytesIn)
+		{
+			this.duration_ms = duration_msIn;
+			this.cpu_ms = cpu_msIn;
+			this.peakRss_bytes = peakRss_bytesIn;
+			this.outputBytes = outputBytesIn;
+		}
+	}
+
+
+	private final long maxDuration_ms;
+	private final long maxCpu_ms;
+	private final long maxRss_mb;
+	private final long maxOutputBytes;
+
+
+	private PerformanceBudget(long maxDuration_msIn, long maxCpu_msIn, long maxRss_mbIn, long maxOutputBytesIn)
+	{
+		this.maxDuration_ms = maxDuration_msIn;
+		this.maxCpu_ms = maxCpu_msIn;
+		this.maxRss_mb = maxRss_mbIn;
+		this.maxOutputBytes = maxOutputBytesIn;
+	}
+
+
+	/**
+	 * @return true if this budget has no limits
+	 */
+	public boolean isEmpty()
+	{
+		return (this.maxDuration_ms < 0) && (this.maxCpu_ms < 0) && (this.maxRss_mb < 0) && (this.maxOutputBytes < 0);
+	}
+
+
+	/**
+	 * @return true if the CPU time or memory of a test must be measured to check this budget
+	 */
+	public boolean needsResourceUsage()
+	{
+		return (this.maxCpu_ms >= 0) || (this.maxRss_mb >= 0);
+	}
+
+
+	/**
+	 * Checks the given usage against this budget (limits whose usage
+	 * wasn't measured are ignored)
+	 *
+	 * @param usageIn the resources used by an attempt of the test
+	 *
+	 * @return a user-friendly description of each exceeded limit (empty if within budget)
+	 */
+	public List<String> check(Usage usageIn)
+	{
+		List<String> retVal = new ArrayList<String>();
+		if( (this.maxDuration_ms >= 0) && (usageIn.duration_ms > this.maxDuration_ms) )
+		{
+			retVal.add(String.format("took %d ms (budget: %d ms)", usageIn.duration_ms, this.maxDuration_ms));
+		}
+		if( (this.maxCpu_ms >= 0) && (usageIn.cpu_ms > this.maxCpu_ms) )
+		{
+			retVal.add(String.format("used %d ms of CPU time (budget: %d ms)", usageIn.cpu_ms, this.maxCpu_ms));
+		}
+		if( (this.maxRss_mb >= 0) && (usageIn.peakRss_bytes > (this.maxRss_mb * 1024 * 1024)) )
+		{
+			retVal.add(String.format("used %.1f MB of memory (budget: %d MB)", usageIn.peakRss_bytes / (1024.0 * 1024.0), this.maxRss_mb));
+		}
+		if( (this.maxOutputBytes >= 0) && (usageIn.outputBytes > this.maxOutputBytes) )
+		{
+			retVal.add(String.format("wrote %d bytes of output (budget: %d bytes)", usageIn.outputBytes, this.maxOutputBytes));
+		}
+		return retVal;
+	}
+
+
+	/**
+	 * Writes this budget in a compact binary form (see {@link #readFrom(DataInput)})
+	 *
+	 * @param outIn the destination of the budget
+	 *
+	 * @throws IOException on error writing the budget
+	 */
+	public void writeTo(DataOutput outIn) throws IOException
+	{
+		outIn.writeLong(this.maxDuration_ms);
+		outIn.writeLong(this.maxCpu_ms);
+		outIn.writeLong(this.maxRss_mb);
+		outIn.writeLong(this.maxOutputBytes);
+	}
+
+
+	/**
+	 * Restores a budget written with {@link #writeTo(DataOutput)}
+	 *
+	 * @param inIn the source of the budget
+	 *
+	 * @return the restored budget
+	 * @throws IOException on error reading the budget
+	 */
+	public static PerformanceBudget readFrom(DataInput inIn) throws IOException
+	{
+		PerformanceBudget retVal = new PerformanceBudget(inIn.readLong(), inIn.readLong(), inIn.readLong(), inIn.readLong());
+		return retVal.isEmpty() ? NONE : retVal;
+	}
+
+
+	/**
+	 * Parses a budget from the attributes of the given <code>&lt;test&gt;</code> node
+	 *
+	 * @param xmlFileIn the XML file from which the test is being parsed
+	 * @param testNameIn the name of the test
+	 * @param attributesIn the attributes of the test node
+	 *
+	 * @return a parsed budget ({@link #NONE} if no limits are specified)
+	 * @throws ParseException on error parsing the budget
+	 */
+	public static PerformanceBudget parseBudget(File xmlFileIn, String testNameIn, NamedNodeMap attributesIn) throws ParseException
+	{
+		PerformanceBudget retVal = new PerformanceBudget(parseLimit(xmlFileIn, testNameIn, attributesIn, ATTR_MAX_DURATION),
+				parseLimit(xmlFileIn, testNameIn, attributesIn, ATTR_MAX_CPU),
+				parseLimit(xmlFileIn, testNameIn, attributesIn, ATTR_MAX_RSS),
+				parseLimit(xmlFileIn, testNameIn, attributesIn, ATTR_MAX_OUTPUT_BYTES));
+		return retVal.isEmpty() ? NONE : retVal;
+	}
+
+
+	private static long parseLimit(File xmlFileIn, String testNameIn, NamedNodeMap attributesIn, String attrNameIn) throws ParseException
+	{
+		Node limitNode = attributesIn.getNamedItem(attrNameIn);
+		if( limitNode == null ) return -1;
+
+		try
+		{
+			long retVal = Long.parseLong(limitNode.getNodeValue());
+			if( retVal >= 0 ) return retVal;
+		}
+		catch( NumberFormatException e ) { }
+		throw new ParseException(xmlFileIn, testNameIn, String.format("error parsing attribute '%s'::'%s'", attrNameIn, limitNode.getNodeValue()));
+	}
+}
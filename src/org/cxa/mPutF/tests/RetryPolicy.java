@@ -0,0 +1,211 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+import org.cxa.mPutF.ParseException;
+import org.cxa.mPutF.tests.Test.TestResult;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Describes if, and how often, a non-passing {@link Test} should be
+ * re-executed before its result is reported. Parsed from a
+ * <code>&lt;retry maxAttempts="3" retryOn="timeout"/&gt;</code> node
+ * placed either within a <code>&lt;test&gt;</code> node or directly
+ * within the <code>&lt;testSuite&gt;</code> node (suite-wide default)
+ *
+ * @author Christopher Armenio
+ */
+public class RetryPolicy
+{
+	public static final String NODE_NAME = "retry";
+	private static final String ATTR_MAX_ATTEMPTS = "maxAttempts";
+	private static final String ATTR_RETRY_ON = "retryOn";
+
+	/**
+	 * A policy which never retries (the default)
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, RetryOn.TIMEOUT);
+
+
+	/**
+	 * Which non-passing results should be retried
+	 */
+	public enum RetryOn
+	{
+		/** only {@link TestResult#TEST_RESULT_ERROR}s of type {@link TestCaseResult#ERROR_TYPE_TIMEOUT} */
+		TIMEOUT("timeout"),
+		/** all failures and errors */
+		ALL_FAILURES("allFailures");
+
+		private final String configStr;
+
+		private RetryOn(String configStrIn)
+		{
+			this.configStr = configStrIn;
+		}
+
+		private static RetryOn fromConfigString(String strIn)
+		{
+			for( RetryOn currVal : RetryOn.values() )
+			{
+				if( currVal.configStr.equals(strIn) ) return currVal;
+			}
+			return null;
+		}
+	}
+
+
+	private final int maxAttempts;
+	private final RetryOn retryOn;
+
+
+	private RetryPolicy(int maxAttemptsIn, RetryOn retryOnIn)
+	{
+		this.maxAttempts = maxAttemptsIn;
+		this.retryOn = retryOnIn;
+	}
+
+
+	/**
+	 * Returns the maximum number of times a test may be executed (including the first)
+	 *
+	 * @return the maximum number of attempts (always >= 1)
+	 */
+	public int getMaxAttempts()
+	{
+		return this.maxAttempts;
+	}
+
+
+	/**
+	 * Determines whether another attempt should be made after the given attempt
+	 *
+	 * @param attemptIn the result of the attempt which just completed
+	 * @param attemptNumIn the (1-based) number of the attempt which just completed
+	 *
+	 * @return true if the test should be executed again
+	 */
+	public boolean shouldRetry(TestCaseResult attemptIn, int attemptNumIn)
+	{
+		if( attemptNumIn >= this.maxAttempts ) return false;
+
+		switch( attemptIn.getResult() )
+		{
+			case TEST_RESULT_PASS:
+				return false;
+
+			case TEST_RESULT_ERROR:
+				if( this.retryOn == RetryOn.ALL_FAILURES ) return true;
+				return TestCaseResult.ERROR_TYPE_TIMEOUT.equals(attemptIn.getProblemType());
+
+			default:
+				return (this.retryOn == RetryOn.ALL_FAILURES);
+		}
+	}
+
+
+	/**
+	 * Writes this policy in a compact binary form (see {@link #readFrom(DataInput)})
+	 *
+	 * @param outIn the destination of the policy
+	 *
+	 * @throws IOException on error writing the policy
+	 */
+	public void writeTo(DataOutput outIn) throws IOException
+	{
+		outIn.writeInt(this.maxAttempts);
+		outIn.writeByte(this.retryOn.ordinal());
+	}
+
+
+	/**
+	 * Restores a policy written with {@link #writeTo(DataOutput)}
+	 *
+	 * @param inIn the source of the policy
+	 *
+	 * @return the restored policy
+	 * @throws IOException on error reading the policy (or if it is malformed)
+	 */
+	public static RetryPolicy readFrom(DataInput inIn) throws IOException
+	{
+		int maxAttempts = inIn.readInt();
+		int retryOnOrdinal = inIn.readUnsignedByte();
+		if( (maxAttempts < 1) || (retryOnOrdinal >= RetryOn.values().length) ) throw new IOException("invalid retry policy");
+		if( (maxAttempts == NONE.maxAttempts) && (retryOnOrdinal == NONE.retryOn.ordinal()) ) return NONE;
+
+		return new RetryPolicy(maxAttempts, RetryOn.values()[retryOnOrdinal]);
+	}
+
+
+	/**
+	 * Parses a retry policy from the given XML {@link Node}
+	 *
+	 * @param xmlFileIn the XML file from which this policy is being parsed
+	 * @param testNameIn the name of the test for which this policy is being parsed,
+	 * 		or NULL if this is a suite-wide policy
+	 * @param retryNodeIn the {@link Node} describing this policy
+	 *
+	 * @return a parsed retry policy
+	 * @throws ParseException on error parsing the retry policy
+	 */
+	public static RetryPolicy parseRetryPolicy(File xmlFileIn, String testNameIn, Node retryNodeIn) throws ParseException
+	{
+		NamedNodeMap attributes = retryNodeIn.getAttributes();
+		Node maxAttemptsNode = attributes.getNamedItem(ATTR_MAX_ATTEMPTS);
+		Node retryOnNode = attributes.getNamedItem(ATTR_RETRY_ON);
+
+		if( maxAttemptsNode == null ) throw newParseException(xmlFileIn, testNameIn, String.format("missing attribute '%s'", ATTR_MAX_ATTEMPTS));
+		int maxAttempts;
+		try
+		{
+			maxAttempts = Integer.parseInt(maxAttemptsNode.getNodeValue());
+		}
+		catch( NumberFormatException e )
+		{
+			maxAttempts = 0;
+		}
+		if( maxAttempts < 1 )
+		{
+			throw newParseException(xmlFileIn, testNameIn,
+					String.format("error parsing attribute '%s'::'%s'", ATTR_MAX_ATTEMPTS, maxAttemptsNode.getNodeValue()));
+		}
+
+		RetryOn retryOn = RetryOn.TIMEOUT;
+		if( retryOnNode != null )
+		{
+			retryOn = RetryOn.fromConfigString(retryOnNode.getNodeValue());
+			if( retryOn == null )
+			{
+				throw newParseException(xmlFileIn, testNameIn,
+						String.format("error parsing attribute '%s'::'%s'", ATTR_RETRY_ON, retryOnNode.getNodeValue()));
+			}
+		}
+
+		return new RetryPolicy(maxAttempts, retryOn);
+	}
+
+
+	private static ParseException newParseException(File xmlFileIn, String testNameIn, String msgIn)
+	{
+		return (testNameIn == null) ? new ParseException(xmlFileIn, msgIn) : new ParseException(xmlFileIn, testNameIn, msgIn);
+	}
+}
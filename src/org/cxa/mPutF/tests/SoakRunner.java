@@ -0,0 +1,213 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.tests.Test.TestResult;
+import org.cxa.timeUtils.TimeDiff;
+
+/**
+ * Runs many concurrent copies of a single test (a "soak"), to shake out
+ * failures which only show up once in hundreds of runs (eg. race conditions).
+ * Runs are started until either the requested number of runs have been
+ * started or a run does not pass...the first run which does not pass stops
+ * all other (in-flight) runs, and its result, including its full output, is
+ * reported on behalf of all runs along with their pass/fail counts and the
+ * distribution of their durations (see {@link TestCaseResult#getRepetitions()}).
+ * If every run passes, the result of the last run is reported instead.
+ *
+ * Retry policies do not apply during a soak (a retry would hide the very
+ * failure being hunted). A soak also ends once the time budget of the run
+ * (if any) is exhausted...runs cut short by it are not counted.
+ *
+ * @author Christopher Armenio
+ */
+public class SoakRunner
+{
+	/** number of runs which denotes "until the first failure" (no limit) */
+	public static final int RUNS_UNTIL_FAILURE = 0;
+
+	private static Logger logger = LogManager.getLogger(SoakRunner.class.getSimpleName());
+
+
+	/**
+	 * The results of the runs of a single soak, as they complete
+	 */
+	private static class Tally
+	{
+		private int numPassed = 0;
+		private int numFailed = 0;
+		private int numErrors = 0;
+		private long[] durations_ms = new long[64];
+		private TestCaseResult firstProblem = null;
+		private TestCaseResult lastPass = null;
+		private volatile boolean isStopped = false;
+
+		/**
+		 * @return true if this run is the first which did not pass
+		 */
+		private synchronized boolean add(TestCaseResult runIn)
+		{
+			// runs we stopped ourselves (or which ran out of time budget) say nothing about the test
+			if( this.isStopped && (runIn.getResult() == TestResult.TEST_RESULT_ERROR) &&
+					TestCaseResult.ERROR_TYPE_INTERRUPTED.equals(runIn.getProblemType()) ) return false;
+			if( (runIn.getResult() == TestResult.TEST_RESULT_ERROR) && TestCaseResult.ERROR_TYPE_BUDGET_EXHAUSTED.equals(runIn.getProblemType()) ) return false;
+
+			int numRuns = this.numPassed + this.numFailed + this.numErrors;
+			if( numRuns == this.durations_ms.length ) this.durations_ms = Arrays.copyOf(this.durations_ms, numRuns * 2);
+			this.durations_ms[numRuns] = runIn.getDuration_ms();
+
+			switch( runIn.getResult() )
+			{
+				case TEST_RESULT_PASS:
+					this.numPassed++;
+					this.lastPass = runIn;
+					return false;
+
+				case TEST_RESULT_FAILURE:
+					this.numFailed++;
+					break;
+
+				default:
+					this.numErrors++;
+					break;
+			}
+			if( this.firstProblem != null ) return false;
+
+			this.firstProblem = runIn;
+			this.isStopped = true;
+			return true;
+		}
+	}
+
+
+	private final int maxRuns;
+	private final int concurrency;
+
+
+	/**
+	 * @param maxRunsIn the maximum number of runs of each test, or {@link #RUNS_UNTIL_FAILURE}
+	 * @param concurrencyIn the maximum number of runs executed concurrently
+	 */
+	public SoakRunner(int maxRunsIn, int concurrencyIn)
+	{
+		if( maxRunsIn < 0 ) throw new IllegalArgumentException("number of runs must not be negative");
+		if( concurrencyIn < 1 ) throw new IllegalArgumentException("concurrency must be at least 1");
+		this.maxRuns = maxRunsIn;
+		this.concurrency = concurrencyIn;
+	}
+
+
+	/**
+	 * This is a blocking function, during which the given test is run
+	 * repeatedly (and concurrently) until the first run which does not pass,
+	 * or until the maximum number of runs have completed
+	 *
+	 * @param testIn the test to run (see {@link Test#isRepeatable()})
+	 *
+	 * @return the result of the first run which did not pass (or of the last
+	 * 		run, if all passed), with the outcome of all runs attached
+	 */
+	public TestCaseResult run(final Test testIn)
+	{
+		if( !testIn.isRepeatable() ) throw new IllegalArgumentException(String.format("test '%s' can not be run concurrently", testIn.getName()));
+
+		final Tally tally = new Tally();
+		final TimeBudget timeBudget = testIn.getTimeBudget();
+		final AtomicInteger numStarted = new AtomicInteger(0);
+		final int numWorkers = (this.maxRuns == RUNS_UNTIL_FAILURE) ? this.concurrency : Math.min(this.concurrency, this.maxRuns);
+		final ExecutorService workers = Executors.newFixedThreadPool(numWorkers, new ThreadFactory()
+		{
+			private int threadNum = 0;
+
+			@Override
+			public Thread newThread(Runnable rIn)
+			{
+				Thread retVal = new Thread(rIn, String.format("%s-soak%d", testIn.getName(), this.threadNum++));
+				retVal.setDaemon(true);
+				return retVal;
+			}
+		});
+
+		logger.info(String.format("soaking '%s' (%s runs, %d at a time)", testIn.getName(),
+				((this.maxRuns == RUNS_UNTIL_FAILURE) ? "unlimited" : Integer.toString(this.maxRuns)), numWorkers));
+		TimeDiff soakTimer = new TimeDiff();
+		for( int i = 0; i < numWorkers; i++ )
+		{
+			workers.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					while( !tally.isStopped && ((timeBudget == null) || !timeBudget.isExhausted()) &&
+							((maxRuns == RUNS_UNTIL_FAILURE) || (numStarted.incrementAndGet() <= maxRuns)) )
+					{
+						TestCaseResult currRun;
+						try
+						{
+							currRun = testIn.runAttempt();
+						}
+						catch( RuntimeException e )
+						{
+							currRun = new TestCaseResult(testIn.getName());
+							currRun.setError("internalException", e.toString());
+						}
+
+						// the first problem stops everything else that is in flight
+						if( tally.add(currRun) ) workers.shutdownNow();
+					}
+				}
+			});
+		}
+		workers.shutdown();
+
+		try
+		{
+			while( !workers.awaitTermination(1, TimeUnit.SECONDS) );
+		}
+		catch( InterruptedException e )
+		{
+			// we've been asked to give up ourselves...report what we have so far
+			workers.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+
+		TestCaseResult retVal;
+		synchronized( tally )
+		{
+			retVal = (tally.firstProblem != null) ? tally.firstProblem : tally.lastPass;
+			if( retVal == null )
+			{
+				retVal = new TestCaseResult(testIn.getName());
+				retVal.setError(TestCaseResult.ERROR_TYPE_INTERRUPTED, "soak was stopped before any run completed");
+			}
+			retVal.setRepetitions(new TestCaseResult.Repetitions(tally.numPassed, tally.numFailed, tally.numErrors,
+					tally.durations_ms, (tally.numPassed + tally.numFailed + tally.numErrors), soakTimer.getElapsedTime_ms()));
+		}
+		logger.info(String.format("soaked '%s': %s", testIn.getName(), retVal.getRepetitions()));
+
+		testIn.testResult = retVal.getResult();
+		return retVal;
+	}
+}
@@ -15,14 +15,22 @@
  */
 package org.cxa.mPutF.tests;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.cxa.mPutF.ParseException;
+import org.cxa.mPutF.TestFilter;
+import org.cxa.mPutF.tests.inProcess.InProcessTest;
 import org.cxa.mPutF.tests.localProcess.LocalProcessTest;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
+import org.cxa.mPutF.tests.localProcess.Profiler;
+import org.cxa.mPutF.tests.remoteProcess.RemoteProcessTest;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -34,10 +42,15 @@ import org.w3c.dom.NodeList;
  */
 public abstract class Test
 {
-	private static final String NODE_NAME = "name";
+	public static final String NODE_NAME = "name";
+	public static final String NODE_TAGS = "tags";
+	public static final String NODE_SOURCES = "sources";
+	public static final String NODE_FIXTURES = "fixtures";
+	public static final String NODE_DEPENDS_ON = "dependsOn";
 	private static final String NODE_DESC = "description";
 	private static final String NODE_TEST_TYPE = "testType";
-	private static final String NODE_MAX_TEST_TIME = "maxTestTime_s";
+	static final String NODE_MAX_TEST_TIME = "maxTestTime_s";
+	private static final String NODE_INACTIVITY_TIMEOUT = "inactivityTimeout_s";
 	private static final String NODE_TEST_OPTIONS = "testOptions";
 	
 	private static Logger staticLogger = LogManager.getLogger("TestParser");
@@ -54,8 +67,14 @@ public abstract class Test
 	private final String name;
 	private final String description;
 	private final Integer maxTestTime_s;
+	private Integer inactivityTimeout_s = null;
+	private PerformanceBudget performanceBudget = PerformanceBudget.NONE;
+	private RetryPolicy retryPolicy = RetryPolicy.NONE;
+	private volatile TimeBudget timeBudget = null;
+	private volatile boolean measureResourceUsage = false;
+	private List<String> tags = Collections.emptyList();
 	protected TestResult testResult = null;
-	protected Logger logger = null;
+	private Logger logger = null;
 	
 	
 	protected Test(String nameIn, String descIn, Integer maxTestTime_sIn)
@@ -63,9 +82,20 @@ public abstract class Test
 		this.name = nameIn;
 		this.description = descIn;
 		this.maxTestTime_s = maxTestTime_sIn;
-		
-		this.logger = LogManager.getLogger(String.format("%s::%s", this.getClass().getSimpleName(), this.name));
-		this.logger.trace("test instance created");
+	}
+	
+	
+	/**
+	 * Returns the logger of this test...created on first use, so that
+	 * (potentially thousands of) tests which are parsed but never run
+	 * (or never log) don't pay for one
+	 * 
+	 * @return the logger of this test
+	 */
+	protected Logger getLogger()
+	{
+		if( this.logger == null ) this.logger = LogManager.getLogger(String.format("%s::%s", this.getClass().getSimpleName(), this.name));
+		return this.logger;
 	}
 	
 	
@@ -102,6 +132,75 @@ public abstract class Test
 	}
 	
 	
+	/**
+	 * Returns the maximum amount of time for which this test may run without
+	 * producing any output (as described in the XML configuration file)
+	 * 
+	 * @return the maximum time in seconds without output, or NULL if there is no limit
+	 */
+	public Integer getInactivityTimeout_s()
+	{
+		return this.inactivityTimeout_s;
+	}
+	
+	
+	/**
+	 * Returns the (soft) performance budget of this test (as described in the XML configuration file)
+	 * 
+	 * @return the performance budget ({@link PerformanceBudget#NONE} if there is none)
+	 */
+	public PerformanceBudget getPerformanceBudget()
+	{
+		return this.performanceBudget;
+	}
+	
+	
+	/**
+	 * Sets the time budget of the run of which this test is a part...the
+	 * test is stopped once the budget is exhausted, even if its own maximum
+	 * time has not elapsed (and it is not retried)
+	 * 
+	 * @param budgetIn the time budget, or NULL if the run is not limited
+	 */
+	public void setTimeBudget(TimeBudget budgetIn)
+	{
+		this.timeBudget = budgetIn;
+	}
+	
+	
+	/**
+	 * @return the time budget of the run of which this test is a part, or NULL if the run is not limited
+	 */
+	public TimeBudget getTimeBudget()
+	{
+		return this.timeBudget;
+	}
+	
+	
+	/**
+	 * Sets whether the resources used by this test (CPU time, peak memory)
+	 * should be measured even if its performance budget doesn't limit them
+	 * (eg. to record them in a result store)...tests which cannot measure
+	 * them simply report them as unknown
+	 * 
+	 * @param measureIn true to measure the resources used by this test
+	 */
+	public void setMeasureResourceUsage(boolean measureIn)
+	{
+		this.measureResourceUsage = measureIn;
+	}
+	
+	
+	/**
+	 * @return true if the resources used by this test should be measured
+	 * 		(see {@link #setMeasureResourceUsage(boolean)} and {@link #getPerformanceBudget()})
+	 */
+	public boolean isMeasuringResourceUsage()
+	{
+		return this.measureResourceUsage || this.performanceBudget.needsResourceUsage();
+	}
+	
+	
 	/**
 	 * Returns the result of the is test
 	 * 
@@ -114,15 +213,121 @@ public abstract class Test
 	}
 	
 	
+	/**
+	 * Returns the tags of this test (as described in the XML configuration file)
+	 * 
+	 * @return the tags of this test (may be empty)
+	 */
+	public List<String> getTags()
+	{
+		return Collections.unmodifiableList(this.tags);
+	}
+	
+	
+	/**
+	 * Returns the retry policy of this test (as described in the XML configuration file)
+	 * 
+	 * @return the retry policy of this test
+	 */
+	public RetryPolicy getRetryPolicy()
+	{
+		return this.retryPolicy;
+	}
+	
+	
+	/**
+	 * Returns whether many attempts of this test may be run concurrently
+	 * (see {@link SoakRunner})...ie. whether each attempt is self-contained
+	 * 
+	 * @return true if attempts of this test may be run concurrently
+	 */
+	public boolean isRepeatable()
+	{
+		return false;
+	}
+	
+	
 	/**
 	 * This is a blocking function, during which the test is completely executed
-	 * and the result of which, are placed in the specified parent element of
-	 * the specified XML document
+	 * (including any retries allowed by the {@link RetryPolicy})
 	 * 
-	 * @param xmlDocIn the XML document which can be used to create sub-elements 
-	 * @param parentElementIn the parent which should host the node created by this test
+	 * @return the result of the final attempt, with any previous (non-passing)
+	 * 		attempts attached
 	 */
-	public abstract void runTest(Document xmlDocIn, Element parentElementIn);
+	public TestCaseResult runTest()
+	{
+		List<TestCaseResult> previousAttempts = new ArrayList<TestCaseResult>();
+		TestCaseResult currAttempt = null;
+		for( int attemptNum = 1; ; attemptNum++ )
+		{
+			currAttempt = this.runAttempt();
+			if( !this.retryPolicy.shouldRetry(currAttempt, attemptNum) ) break;
+			if( (this.timeBudget != null) && this.timeBudget.isExhausted() )
+			{
+				this.getLogger().trace(String.format("attempt %d did not pass (%s)...time budget exhausted, not retrying", attemptNum, currAttempt.getProblemType()));
+				break;
+			}
+			
+			this.getLogger().trace(String.format("attempt %d did not pass (%s)...retrying", attemptNum, currAttempt.getProblemType()));
+			previousAttempts.add(currAttempt);
+		}
+		
+		currAttempt.setPreviousAttempts(previousAttempts);
+		this.testResult = currAttempt.getResult();
+		return currAttempt;
+	}
+	
+	
+	/**
+	 * This is a blocking function, during which a single attempt of the
+	 * test is completely executed
+	 * 
+	 * @return the result of this attempt
+	 */
+	protected abstract TestCaseResult runAttempt();
+	
+	
+	/**
+	 * Returns the type of this test (as used in the XML configuration file)
+	 * 
+	 * @return the type of this test
+	 */
+	public abstract String getTestType();
+	
+	
+	/**
+	 * Writes the type-specific (parsed) options of this test to a plan
+	 * (see {@link #writePlan(DataOutput)})
+	 * 
+	 * @param outIn the destination of the options
+	 * 
+	 * @throws IOException on error writing the options
+	 */
+	protected abstract void writeOptions(DataOutput outIn) throws IOException;
+	
+	
+	/**
+	 * Writes this (parsed) test in a compact binary form which can be
+	 * restored with {@link #readPlan(File, DataInput)}...without having
+	 * to parse and validate the XML configuration file again
+	 * 
+	 * @param outIn the destination of the test
+	 * 
+	 * @throws IOException on error writing the test
+	 */
+	public void writePlan(DataOutput outIn) throws IOException
+	{
+		outIn.writeUTF(this.getTestType());
+		outIn.writeUTF(this.name);
+		outIn.writeUTF(this.description);
+		outIn.writeInt((this.maxTestTime_s != null) ? this.maxTestTime_s : -1);
+		outIn.writeInt((this.inactivityTimeout_s != null) ? this.inactivityTimeout_s : -1);
+		this.performanceBudget.writeTo(outIn);
+		this.retryPolicy.writeTo(outIn);
+		outIn.writeInt(this.tags.size());
+		for( String currTag : this.tags ) outIn.writeUTF(currTag);
+		this.writeOptions(outIn);
+	}
 	
 	
 	/**
@@ -130,18 +335,22 @@ public abstract class Test
 	 * 
 	 * @param xmlFileIn the XML file from which this test will be parsed
 	 * @param testNodeIn the {@link Node} describing this test
+	 * @param defaultRetryPolicyIn the retry policy to use if the test does not specify one
+	 * @param defaultProfilerIn the profiler to use if a process test does not specify one (may be NULL)
 	 * 
 	 * @return a parsed test
 	 * @throws ParseException on error parsing test
 	 */
-	public static Test parseTest(File xmlFileIn, Node testNodeIn) throws ParseException
+	public static Test parseTest(File xmlFileIn, Node testNodeIn, RetryPolicy defaultRetryPolicyIn, Profiler defaultProfilerIn) throws ParseException
 	{
 		String testName = null;
 		String testDesc = null;
 		String testType = null;
 		String strTestMaxTime_s = null;
 		Integer testMaxTime_s = null;
+		Integer inactivityTimeout_s = null;
 		Node testOptions = null;
+		RetryPolicy retryPolicy = defaultRetryPolicyIn;
 		
 		// get our attributes
 		NamedNodeMap attributes = testNodeIn.getAttributes();
@@ -159,6 +368,23 @@ public abstract class Test
 					String.format("error parsing attribute '%s'::'%s'", NODE_MAX_TEST_TIME, strTestMaxTime_s));
 		}
 		
+		Node inactivityTimeoutNode = attributes.getNamedItem(NODE_INACTIVITY_TIMEOUT);
+		if( inactivityTimeoutNode != null )
+		{
+			try
+			{
+				inactivityTimeout_s = Integer.parseInt(inactivityTimeoutNode.getNodeValue());
+				if( inactivityTimeout_s <= 0 ) throw new NumberFormatException();
+			}
+			catch(NumberFormatException e)
+			{
+				throw new ParseException(xmlFileIn, ((testName == null) ? "<unknownTest>" : testName),
+						String.format("error parsing attribute '%s'::'%s'", NODE_INACTIVITY_TIMEOUT, inactivityTimeoutNode.getNodeValue()));
+			}
+		}
+		
+		PerformanceBudget performanceBudget = PerformanceBudget.parseBudget(xmlFileIn, ((testName == null) ? "<unknownTest>" : testName), attributes);
+		
 		staticLogger.trace(String.format("parsed test -- name:'%s'  testType:'%s'  maxTestTime_ms:'%d'", testName, testType, testMaxTime_s));
 		
 		
@@ -174,6 +400,10 @@ public abstract class Test
 				testOptions = currNode;
 				staticLogger.trace(String.format("parsed test options for '%s'", ((testName == null) ? "<unknownTest>" : testName)));
 			}
+			else if( currNode.getNodeName().equals(RetryPolicy.NODE_NAME) )
+			{
+				retryPolicy = RetryPolicy.parseRetryPolicy(xmlFileIn, ((testName == null) ? "<unknownTest>" : testName), currNode);
+			}
 		}
 		
 		
@@ -198,13 +428,84 @@ public abstract class Test
 		if( testType.equals(LocalProcessTest.TEST_TYPE_STR) )
 		{
 			// note: this may throw a parse exception
-			retVal = new LocalProcessTest(testName, testDesc, testMaxTime_s, xmlFileIn, testOptions);
+			retVal = new LocalProcessTest(testName, testDesc, testMaxTime_s, xmlFileIn, testOptions, defaultProfilerIn);
+		}
+		else if( testType.equals(InProcessTest.TEST_TYPE_STR) )
+		{
+			// note: this may throw a parse exception
+			retVal = new InProcessTest(testName, testDesc, testMaxTime_s, xmlFileIn, testOptions);
+		}
+		else if( testType.equals(RemoteProcessTest.TEST_TYPE_STR) )
+		{
+			// note: this may throw a parse exception
+			retVal = new RemoteProcessTest(testName, testDesc, testMaxTime_s, xmlFileIn, testOptions);
 		}
 		else
 		{
 			// unknown test type
 			throw new ParseException(xmlFileIn, testName, String.format("unknown test type '%s'", testType) );
 		}
+		if( (inactivityTimeout_s != null) && !(retVal instanceof LocalProcessTest) )
+		{
+			// only processes have output which can be watched as it arrives
+			throw new ParseException(xmlFileIn, testName, String.format("'%s' is not supported by '%s' tests", NODE_INACTIVITY_TIMEOUT, testType));
+		}
+		if( !performanceBudget.isEmpty() && !(retVal instanceof LocalProcessTest) )
+		{
+			// only processes are measured
+			throw new ParseException(xmlFileIn, testName, String.format("performance budgets are not supported by '%s' tests", testType));
+		}
+		retVal.inactivityTimeout_s = inactivityTimeout_s;
+		retVal.performanceBudget = performanceBudget;
+		retVal.retryPolicy = retryPolicy;
+		Node tagsNode = attributes.getNamedItem(NODE_TAGS);
+		if( tagsNode != null ) retVal.tags = TestFilter.splitList(tagsNode.getNodeValue());
+		
+		return retVal;
+	}
+	
+	
+	/**
+	 * Restores a test written with {@link #writePlan(DataOutput)}
+	 * 
+	 * @param xmlFileIn the XML file from which the test was originally parsed
+	 * @param inIn the source of the test
+	 * 
+	 * @return the restored test
+	 * @throws IOException on error reading the test (or if it is malformed)
+	 */
+	public static Test readPlan(File xmlFileIn, DataInput inIn) throws IOException
+	{
+		String testType = inIn.readUTF();
+		String testName = inIn.readUTF();
+		String testDesc = inIn.readUTF();
+		int maxTestTime_s = inIn.readInt();
+		Integer testMaxTime_s = (maxTestTime_s >= 0) ? maxTestTime_s : null;
+		int inactivityTimeout_s = inIn.readInt();
+		PerformanceBudget performanceBudget = PerformanceBudget.readFrom(inIn);
+		RetryPolicy retryPolicy = RetryPolicy.readFrom(inIn);
+		int numTags = inIn.readInt();
+		List<String> tags = (numTags > 0) ? new ArrayList<String>(numTags) : Collections.<String>emptyList();
+		for( int i = 0; i < numTags; i++ ) tags.add(inIn.readUTF());
+		
+		Test retVal = null;
+		if( testType.equals(LocalProcessTest.TEST_TYPE_STR) )
+		{
+			retVal = new LocalProcessTest(testName, testDesc, testMaxTime_s, inIn);
+		}
+		else if( testType.equals(InProcessTest.TEST_TYPE_STR) )
+		{
+			retVal = new InProcessTest(testName, testDesc, testMaxTime_s, inIn);
+		}
+		else if( testType.equals(RemoteProcessTest.TEST_TYPE_STR) )
+		{
+			retVal = new RemoteProcessTest(testName, testDesc, testMaxTime_s, inIn);
+		}
+		else throw new IOException(String.format("unknown test type '%s'", testType));
+		retVal.inactivityTimeout_s = (inactivityTimeout_s >= 0) ? inactivityTimeout_s : null;
+		retVal.performanceBudget = performanceBudget;
+		retVal.retryPolicy = retryPolicy;
+		retVal.tags = tags;
 		
 		return retVal;
 	}
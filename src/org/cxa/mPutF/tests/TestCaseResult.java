@@ -0,0 +1,940 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cxa.mPutF.bindingOutputParser.BindingOutputParser;
+import org.cxa.mPutF.bindingOutputParser.BindingOutputParser.Assertion;
+import org.cxa.mPutF.tests.Test.TestResult;
+
+/**
+ * A class which holds the outcome of a single execution
+ * (attempt) of a {@link Test}, independent of any report format
+ *
+ * @author Christopher Armenio
+ */
+public class TestCaseResult
+{
+	public static final String CLASS_NAME = "org.cxa.wtf";
+	public static final String ERROR_TYPE_TIMEOUT = "timeout";
+	public static final String FAILURE_TYPE_ASSERTION = "assertion";
+	public static final String FAILURE_TYPE_CHECK = "check";
+	public static final String FAILURE_TYPE_BUDGET_EXCEEDED = "budgetExceeded";
+	public static final String ERROR_TYPE_SUBTEST_INCOMPLETE = "subTestIncomplete";
+	public static final String ERROR_TYPE_FIXTURE = "fixtureError";
+	public static final String ERROR_TYPE_INTERRUPTED = "interrupted";
+	public static final String ERROR_TYPE_INACTIVITY = "inactivityTimeout";
+	public static final String ERROR_TYPE_BUDGET_EXHAUSTED = "budgetExhausted";
+
+
+	/**
+	 * A single failure or error reported by a test
+	 */
+	public static class Problem
+	{
+		private final boolean isError;
+		private final String type;
+		private final String message;
+		private final Assertion assertion;
+
+		private Problem(boolean isErrorIn, String typeIn, String msgIn, Assertion assertionIn)
+		{
+			this.isError = isErrorIn;
+			this.type = typeIn;
+			this.message = msgIn;
+			this.assertion = assertionIn;
+		}
+
+		/**
+		 * @return true if this is an error, false if this is a failure
+		 */
+		public boolean isError()
+		{
+			return this.isError;
+		}
+
+		/**
+		 * @return short, machine-friendly type of this problem
+		 */
+		public String getType()
+		{
+			return this.type;
+		}
+
+		/**
+		 * @return user-friendly description of this problem
+		 */
+		public String getMessage()
+		{
+			return this.message;
+		}
+
+		/**
+		 * @return the assertion which caused this problem, or NULL if none
+		 */
+		public Assertion getAssertion()
+		{
+			return this.assertion;
+		}
+	}
+
+
+	/**
+	 * The profile (or coverage) recorded while a test was running
+	 * (see {@link org.cxa.mPutF.tests.localProcess.Profiler})
+	 */
+	public static class Profile
+	{
+		private final String profilerName;
+		private final String outputPath;
+		private final Map<String, Double> hotspots = new LinkedHashMap<String, Double>();
+
+		/**
+		 * @param profilerNameIn the name of the profiler which recorded the profile
+		 * @param outputPathIn the path of the file to which the profile was written
+		 */
+		public Profile(String profilerNameIn, String outputPathIn)
+		{
+			this.profilerName = profilerNameIn;
+			this.outputPath = outputPathIn;
+		}
+
+		/**
+		 * Adds a hotspot of this profile (in descending order of weight)
+		 *
+		 * @param symbolIn the symbol (eg. function) of the hotspot
+		 * @param weightIn the weight (eg. samples, instructions) of the hotspot
+		 */
+		public void addHotspot(String symbolIn, double weightIn)
+		{
+			this.hotspots.put(symbolIn, weightIn);
+		}
+
+		/**
+		 * @return the name of the profiler which recorded this profile
+		 */
+		public String getProfilerName()
+		{
+			return this.profilerName;
+		}
+
+		/**
+		 * @return the path of the file to which the profile was written
+		 */
+		public String getOutputPath()
+		{
+			return this.outputPath;
+		}
+
+		/**
+		 * @return the heaviest hotspots (symbol to weight), in descending order of weight (may be empty)
+		 */
+		public Map<String, Double> getHotspots()
+		{
+			return Collections.unmodifiableMap(this.hotspots);
+		}
+	}
+
+
+	/**
+	 * The outcome of many runs of the same test (see {@link SoakRunner}):
+	 * how many runs passed, failed and errored and the distribution of
+	 * their durations
+	 */
+	public static class Repetitions
+	{
+		private int numPassed;
+		private int numFailed;
+		private int numErrors;
+		private long wallTime_ms;
+		private long minDuration_ms;
+		private long medianDuration_ms;
+		private long p90Duration_ms;
+		private long p99Duration_ms;
+		private long maxDuration_ms;
+
+		private Repetitions()
+		{
+		}
+
+		/**
+		 * @param numPassedIn the number of runs which passed
+		 * @param numFailedIn the number of runs which failed
+		 * @param numErrorsIn the number of runs which errored
+		 * @param durations_msIn the duration of each run, in any order (the array is sorted in place)
+		 * @param numDurationsIn the number of valid entries in durations_msIn
+		 * @param wallTime_msIn the time taken by all runs together
+		 */
+		public Repetitions(int numPassedIn, int numFailedIn, int numErrorsIn, long[] durations_msIn, int numDurationsIn, long wallTime_msIn)
+		{
+			this.numPassed = numPassedIn;
+			this.numFailed = numFailedIn;
+			this.numErrors = numErrorsIn;
+			this.wallTime_ms = wallTime_msIn;
+
+			Arrays.sort(durations_msIn, 0, numDurationsIn);
+			this.minDuration_ms = getPercentile(durations_msIn, numDurationsIn, 0);
+			this.medianDuration_ms = getPercentile(durations_msIn, numDurationsIn, 50);
+			this.p90Duration_ms = getPercentile(durations_msIn, numDurationsIn, 90);
+			this.p99Duration_ms = getPercentile(durations_msIn, numDurationsIn, 99);
+			this.maxDuration_ms = getPercentile(durations_msIn, numDurationsIn, 100);
+		}
+
+		private static long getPercentile(long[] sortedIn, int lenIn, int percentileIn)
+		{
+			if( lenIn == 0 ) return 0;
+
+			// nearest rank
+			int rank = (int)Math.ceil((percentileIn / 100.0) * lenIn);
+			return sortedIn[Math.max(rank - 1, 0)];
+		}
+
+		/**
+		 * @return the total number of (completed) runs
+		 */
+		public int getNumRuns()
+		{
+			return this.numPassed + this.numFailed + this.numErrors;
+		}
+
+		/**
+		 * @return the number of runs which passed
+		 */
+		public int getNumPassed()
+		{
+			return this.numPassed;
+		}
+
+		/**
+		 * @return the number of runs which failed
+		 */
+		public int getNumFailed()
+		{
+			return this.numFailed;
+		}
+
+		/**
+		 * @return the number of runs which errored
+		 */
+		public int getNumErrors()
+		{
+			return this.numErrors;
+		}
+
+		/**
+		 * @return the time taken by all runs together (which ran concurrently)
+		 */
+		public long getWallTime_ms()
+		{
+			return this.wallTime_ms;
+		}
+
+		/**
+		 * @return the duration of the fastest run
+		 */
+		public long getMinDuration_ms()
+		{
+			return this.minDuration_ms;
+		}
+
+		/**
+		 * @return the median duration of all runs
+		 */
+		public long getMedianDuration_ms()
+		{
+			return this.medianDuration_ms;
+		}
+
+		/**
+		 * @return the 90th percentile of the durations of all runs
+		 */
+		public long getP90Duration_ms()
+		{
+			return this.p90Duration_ms;
+		}
+
+		/**
+		 * @return the 99th percentile of the durations of all runs
+		 */
+		public long getP99Duration_ms()
+		{
+			return this.p99Duration_ms;
+		}
+
+		/**
+		 * @return the duration of the slowest run
+		 */
+		public long getMaxDuration_ms()
+		{
+			return this.maxDuration_ms;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%d runs (%d passed, %d failed, %d errors) in %.2fs, duration min/p50/p90/p99/max %d/%d/%d/%d/%d ms",
+					this.getNumRuns(), this.numPassed, this.numFailed, this.numErrors, ((float)this.wallTime_ms) / 1000.0,
+					this.minDuration_ms, this.medianDuration_ms, this.p90Duration_ms, this.p99Duration_ms, this.maxDuration_ms);
+		}
+	}
+
+
+	private final String name;
+	private TestResult result = TestResult.TEST_RESULT_PASS;
+	private final List<Problem> problems = new ArrayList<Problem>();
+	private String stdout = null;
+	private String stderr = null;
+	private long duration_ms = 0;
+	private long cpu_ms = -1;
+	private long peakRss_bytes = -1;
+	private String quarantineMessage = null;
+	private String skipMessage = null;
+	private Profile profile = null;
+	private byte[] outputTimeline = null;
+	private Repetitions repetitions = null;
+	private List<TestCaseResult> previousAttempts = Collections.emptyList();
+	private final List<TestCaseResult> subTestResults = new ArrayList<TestCaseResult>();
+
+
+	/**
+	 * Creates a (passing) result for the given test
+	 *
+	 * @param nameIn the name of the test which produced this result
+	 */
+	public TestCaseResult(String nameIn)
+	{
+		this.name = nameIn;
+	}
+
+
+	/**
+	 * Marks this result as a failure (eg. the test reported an assertion),
+	 * replacing any previously reported problems
+	 *
+	 * @param typeIn short, machine-friendly type of the failure
+	 * @param msgIn user-friendly description of the failure
+	 */
+	public void setFailure(String typeIn, String msgIn)
+	{
+		this.result = TestResult.TEST_RESULT_FAILURE;
+		this.problems.clear();
+		this.problems.add(new Problem(false, typeIn, msgIn, null));
+	}
+
+
+	/**
+	 * Marks this result as a failure caused by the given assertion,
+	 * replacing any previously reported problems
+	 *
+	 * @param assertionIn the assertion reported by the test
+	 */
+	public void setFailure(Assertion assertionIn)
+	{
+		this.problems.clear();
+		this.addFailure(assertionIn);
+	}
+
+
+	/**
+	 * Adds a failure caused by the given assertion (or failed check) to
+	 * any previously reported problems
+	 *
+	 * @param assertionIn the assertion reported by the test
+	 */
+	public void addFailure(Assertion assertionIn)
+	{
+		if( this.result == TestResult.TEST_RESULT_PASS ) this.result = TestResult.TEST_RESULT_FAILURE;
+		this.problems.add(new Problem(false, (assertionIn.isFatal() ? FAILURE_TYPE_ASSERTION : FAILURE_TYPE_CHECK), assertionIn.toString(), assertionIn));
+	}
+
+
+	/**
+	 * Adds a failure to any previously reported problems
+	 *
+	 * @param typeIn short, machine-friendly type of the failure
+	 * @param msgIn user-friendly description of the failure
+	 */
+	public void addFailure(String typeIn, String msgIn)
+	{
+		if( this.result == TestResult.TEST_RESULT_PASS ) this.result = TestResult.TEST_RESULT_FAILURE;
+		this.problems.add(new Problem(false, typeIn, msgIn, null));
+	}
+
+
+	/**
+	 * Marks this result as an error (eg. the test timed out or crashed),
+	 * replacing any previously reported problems
+	 *
+	 * @param typeIn short, machine-friendly type of the error
+	 * @param msgIn user-friendly description of the error
+	 */
+	public void setError(String typeIn, String msgIn)
+	{
+		this.result = TestResult.TEST_RESULT_ERROR;
+		this.problems.clear();
+		this.problems.add(new Problem(true, typeIn, msgIn, null));
+	}
+
+
+	/**
+	 * Adds an error to any previously reported problems (marking this
+	 * result as an error)
+	 *
+	 * @param typeIn short, machine-friendly type of the error
+	 * @param msgIn user-friendly description of the error
+	 */
+	public void addError(String typeIn, String msgIn)
+	{
+		this.result = TestResult.TEST_RESULT_ERROR;
+		this.problems.add(new Problem(true, typeIn, msgIn, null));
+	}
+
+
+	/**
+	 * Sets the captured output of the test
+	 *
+	 * @param stdoutIn the captured stdout (may be NULL)
+	 * @param stderrIn the captured stderr (may be NULL)
+	 */
+	public void setOutput(String stdoutIn, String stderrIn)
+	{
+		this.stdout = stdoutIn;
+		this.stderr = stderrIn;
+	}
+
+
+	/**
+	 * Sets the time taken by this attempt
+	 *
+	 * @param duration_msIn the duration in milliseconds
+	 */
+	public void setDuration_ms(long duration_msIn)
+	{
+		this.duration_ms = duration_msIn;
+	}
+
+
+	/**
+	 * Sets the resources used by this attempt
+	 *
+	 * @param cpu_msIn the CPU time in milliseconds (negative if not measured)
+	 * @param peakRss_bytesIn the peak resident memory in bytes (negative if not measured)
+	 */
+	public void setResourceUsage(long cpu_msIn, long peakRss_bytesIn)
+	{
+		this.cpu_ms = cpu_msIn;
+		this.peakRss_bytes = peakRss_bytesIn;
+	}
+
+
+	/**
+	 * Marks this result as quarantined (ie. the test is known to be
+	 * flaky and a non-passing result should not block the suite)
+	 *
+	 * @param msgIn the reason for the quarantine
+	 */
+	public void setQuarantined(String msgIn)
+	{
+		this.quarantineMessage = msgIn;
+	}
+
+
+	/**
+	 * Marks this result as skipped (ie. the test was not run, eg. because
+	 * a test on which it depends did not pass)
+	 *
+	 * @param msgIn the reason the test was skipped
+	 */
+	public void setSkipped(String msgIn)
+	{
+		this.skipMessage = msgIn;
+	}
+
+
+	/**
+	 * Sets the profile recorded while the test was running
+	 *
+	 * @param profileIn the profile (may be NULL)
+	 */
+	public void setProfile(Profile profileIn)
+	{
+		this.profile = profileIn;
+	}
+
+
+	/**
+	 * Sets the interleaved, timestamped output of the test
+	 *
+	 * @param timelineIn the encoded timeline (see {@link org.cxa.mPutF.tests.localProcess.OutputTimeline}), or NULL
+	 */
+	public void setOutputTimeline(byte[] timelineIn)
+	{
+		this.outputTimeline = timelineIn;
+	}
+
+
+	/**
+	 * Sets the outcome of all runs of the test, when this result is
+	 * the representative of many runs (see {@link SoakRunner})
+	 *
+	 * @param repetitionsIn the outcome of all runs (may be NULL)
+	 */
+	public void setRepetitions(Repetitions repetitionsIn)
+	{
+		this.repetitions = repetitionsIn;
+	}
+
+
+	/**
+	 * Sets the attempts which were executed (and did not pass) before
+	 * this, the final, attempt
+	 *
+	 * @param attemptsIn the previous attempts, in execution order
+	 */
+	public void setPreviousAttempts(List<TestCaseResult> attemptsIn)
+	{
+		this.previousAttempts = new ArrayList<TestCaseResult>(attemptsIn);
+	}
+
+
+	/**
+	 * Adds the result of a sub-test which was reported by this test
+	 * (eg. one of many test cases within a single test program)
+	 *
+	 * @param resultIn the result of the sub-test
+	 */
+	public void addSubTestResult(TestCaseResult resultIn)
+	{
+		this.subTestResults.add(resultIn);
+	}
+
+
+	/**
+	 * @return the name of the test which produced this result
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+
+
+	/**
+	 * @return the result of this attempt
+	 */
+	public TestResult getResult()
+	{
+		return this.result;
+	}
+
+
+	/**
+	 * @return all failures/errors reported by this attempt, in the order
+	 * 		in which they were reported (empty if passed)
+	 */
+	public List<Problem> getProblems()
+	{
+		return Collections.unmodifiableList(this.problems);
+	}
+
+
+	/**
+	 * @return the type of the (first) failure/error, or NULL if passed
+	 */
+	public String getProblemType()
+	{
+		return this.problems.isEmpty() ? null : this.problems.get(0).getType();
+	}
+
+
+	/**
+	 * @return the message of the (first) failure/error, or NULL if passed
+	 */
+	public String getProblemMessage()
+	{
+		return this.problems.isEmpty() ? null : this.problems.get(0).getMessage();
+	}
+
+
+	/**
+	 * @return the (first) assertion which caused this failure, or NULL if none
+	 */
+	public Assertion getAssertion()
+	{
+		for( Problem currProblem : this.problems )
+		{
+			if( currProblem.getAssertion() != null ) return currProblem.getAssertion();
+		}
+		return null;
+	}
+
+
+	/**
+	 * @return the captured stdout, or NULL if none
+	 */
+	public String getStdout()
+	{
+		return this.stdout;
+	}
+
+
+	/**
+	 * @return the captured stderr, or NULL if none
+	 */
+	public String getStderr()
+	{
+		return this.stderr;
+	}
+
+
+	/**
+	 * @return the duration of this attempt in milliseconds
+	 */
+	public long getDuration_ms()
+	{
+		return this.duration_ms;
+	}
+
+
+	/**
+	 * @return the CPU time of this attempt in milliseconds, or -1 if not measured
+	 */
+	public long getCpu_ms()
+	{
+		return this.cpu_ms;
+	}
+
+
+	/**
+	 * @return the peak resident memory of this attempt in bytes, or -1 if not measured
+	 */
+	public long getPeakRss_bytes()
+	{
+		return this.peakRss_bytes;
+	}
+
+
+	/**
+	 * @return true if this result is quarantined and should not
+	 * 		be counted as a failure/error
+	 */
+	public boolean isQuarantined()
+	{
+		return (this.quarantineMessage != null);
+	}
+
+
+	/**
+	 * @return the reason for the quarantine, or NULL if not quarantined
+	 */
+	public String getQuarantineMessage()
+	{
+		return this.quarantineMessage;
+	}
+
+
+	/**
+	 * @return true if the test was not run (see {@link #setSkipped(String)})
+	 */
+	public boolean isSkipped()
+	{
+		return (this.skipMessage != null);
+	}
+
+
+	/**
+	 * @return the reason the test was skipped, or NULL if it was not skipped
+	 */
+	public String getSkipMessage()
+	{
+		return this.skipMessage;
+	}
+
+
+	/**
+	 * @return the non-passing attempts executed before this one (may be empty)
+	 */
+	public List<TestCaseResult> getPreviousAttempts()
+	{
+		return Collections.unmodifiableList(this.previousAttempts);
+	}
+
+
+	/**
+	 * @return the encoded, interleaved and timestamped output of the test (see
+	 * 		{@link org.cxa.mPutF.tests.localProcess.OutputTimeline#render(byte[])}), or NULL if it wasn't recorded
+	 */
+	public byte[] getOutputTimeline()
+	{
+		return this.outputTimeline;
+	}
+
+
+	/**
+	 * @return the profile recorded while the test was running, or NULL if the test wasn't profiled
+	 */
+	public Profile getProfile()
+	{
+		return this.profile;
+	}
+
+
+	/**
+	 * @return the outcome of all runs of the test, or NULL if the test was only run once
+	 */
+	public Repetitions getRepetitions()
+	{
+		return this.repetitions;
+	}
+
+
+	/**
+	 * Adds the results reported via the mPutF bindings which are not reflected
+	 * by the way the test ended: failed (non-fatal) checks outside of any
+	 * sub-test, and a result for each sub-test. Should be called once the
+	 * outcome of the test itself has been set.
+	 *
+	 * @param parserIn the parser which received the output of the bindings
+	 */
+	public void addBindingResults(BindingOutputParser.StreamParser parserIn)
+	{
+		for( Assertion currCheck : parserIn.getAssertions(false) )
+		{
+			if( !currCheck.isFatal() ) this.addFailure(currCheck);
+		}
+		
+		for( BindingOutputParser.SubTest currSubTest : parserIn.getSubTests() )
+		{
+			TestCaseResult subTestResult = new TestCaseResult(String.format("%s::%s", this.name, currSubTest.getName()));
+			if( currSubTest.isComplete() ) subTestResult.setDuration_ms(currSubTest.getDuration_ms());
+			else if( BindingOutputParser.getFirstFatalAssertion(currSubTest.getAssertions()) == null )
+			{
+				// the test ended (or was stopped) during this sub-test...for no reason of its own
+				subTestResult.setError(ERROR_TYPE_SUBTEST_INCOMPLETE, (this.getProblemMessage() != null) ?
+						String.format("sub-test did not complete [%s: %s]", this.getProblemType(), this.getProblemMessage()) :
+						"sub-test did not complete");
+			}
+			for( Assertion currAssertion : currSubTest.getAssertions() )
+			{
+				subTestResult.addFailure(currAssertion);
+			}
+			this.addSubTestResult(subTestResult);
+		}
+	}
+
+
+	/**
+	 * @return the results of all sub-tests reported by this test (may be empty)
+	 */
+	public List<TestCaseResult> getSubTestResults()
+	{
+		return Collections.unmodifiableList(this.subTestResults);
+	}
+
+
+	/**
+	 * @return true if this test passed, but only after one or more retries
+	 */
+	public boolean isFlaky()
+	{
+		return (this.result == TestResult.TEST_RESULT_PASS) && !this.previousAttempts.isEmpty();
+	}
+
+
+	/**
+	 * @return the total time spent executing this test, including retries
+	 */
+	public long getTotalDuration_ms()
+	{
+		long retVal = this.duration_ms;
+		for( TestCaseResult currAttempt : this.previousAttempts ) retVal += currAttempt.getDuration_ms();
+		return retVal;
+	}
+
+
+	/**
+	 * Writes this result (including previous attempts and sub-test results)
+	 * in a compact binary form which can be restored with {@link #readFrom(DataInput)}
+	 *
+	 * @param outIn the destination of the result
+	 *
+	 * @throws IOException on error writing the result
+	 */
+	public void writeTo(DataOutput outIn) throws IOException
+	{
+		writeString(outIn, this.name);
+		outIn.writeByte(this.result.ordinal());
+		outIn.writeInt(this.problems.size());
+		for( Problem currProblem : this.problems )
+		{
+			outIn.writeBoolean(currProblem.isError());
+			writeString(outIn, currProblem.getType());
+			writeString(outIn, currProblem.getMessage());
+			Assertion currAssertion = currProblem.getAssertion();
+			outIn.writeBoolean(currAssertion != null);
+			if( currAssertion == null ) continue;
+			writeString(outIn, currAssertion.getFile());
+			outIn.writeInt((currAssertion.getLineNumber() != null) ? currAssertion.getLineNumber() : -1);
+			writeString(outIn, currAssertion.getMessage());
+			outIn.writeBoolean(currAssertion.isFatal());
+		}
+		writeString(outIn, this.stdout);
+		writeString(outIn, this.stderr);
+		outIn.writeLong(this.duration_ms);
+		outIn.writeLong(this.cpu_ms);
+		outIn.writeLong(this.peakRss_bytes);
+		writeString(outIn, this.quarantineMessage);
+		writeString(outIn, this.skipMessage);
+		outIn.writeBoolean(this.profile != null);
+		if( this.profile != null )
+		{
+			writeString(outIn, this.profile.profilerName);
+			writeString(outIn, this.profile.outputPath);
+			outIn.writeInt(this.profile.hotspots.size());
+			for( Map.Entry<String, Double> currHotspot : this.profile.hotspots.entrySet() )
+			{
+				writeString(outIn, currHotspot.getKey());
+				outIn.writeDouble(currHotspot.getValue());
+			}
+		}
+		outIn.writeInt((this.outputTimeline != null) ? this.outputTimeline.length : -1);
+		if( this.outputTimeline != null ) outIn.write(this.outputTimeline);
+		outIn.writeBoolean(this.repetitions != null);
+		if( this.repetitions != null )
+		{
+			outIn.writeInt(this.repetitions.numPassed);
+			outIn.writeInt(this.repetitions.numFailed);
+			outIn.writeInt(this.repetitions.numErrors);
+			outIn.writeLong(this.repetitions.wallTime_ms);
+			outIn.writeLong(this.repetitions.minDuration_ms);
+			outIn.writeLong(this.repetitions.medianDuration_ms);
+			outIn.writeLong(this.repetitions.p90Duration_ms);
+			outIn.writeLong(this.repetitions.p99Duration_ms);
+			outIn.writeLong(this.repetitions.maxDuration_ms);
+		}
+		outIn.writeInt(this.previousAttempts.size());
+		for( TestCaseResult currAttempt : this.previousAttempts ) currAttempt.writeTo(outIn);
+		outIn.writeInt(this.subTestResults.size());
+		for( TestCaseResult currSubTest : this.subTestResults ) currSubTest.writeTo(outIn);
+	}
+
+
+	/**
+	 * Restores a result written with {@link #writeTo(DataOutput)}
+	 *
+	 * @param inIn the source of the result
+	 *
+	 * @return the restored result
+	 * @throws IOException on error reading the result (or if it is malformed)
+	 */
+	public static TestCaseResult readFrom(DataInput inIn) throws IOException
+	{
+		TestCaseResult retVal = new TestCaseResult(readString(inIn));
+		int resultOrdinal = inIn.readUnsignedByte();
+		if( resultOrdinal >= TestResult.values().length ) throw new IOException(String.format("invalid result '%d'", resultOrdinal));
+		retVal.result = TestResult.values()[resultOrdinal];
+		int numProblems = inIn.readInt();
+		for( int i = 0; i < numProblems; i++ )
+		{
+			boolean isError = inIn.readBoolean();
+			String type = readString(inIn);
+			String msg = readString(inIn);
+			Assertion assertion = null;
+			if( inIn.readBoolean() )
+			{
+				String file = readString(inIn);
+				int lineNum = inIn.readInt();
+				assertion = new Assertion(file, ((lineNum >= 0) ? lineNum : null), readString(inIn), inIn.readBoolean());
+			}
+			retVal.problems.add(new Problem(isError, type, msg, assertion));
+		}
+		retVal.stdout = readString(inIn);
+		retVal.stderr = readString(inIn);
+		retVal.duration_ms = inIn.readLong();
+		retVal.cpu_ms = inIn.readLong();
+		retVal.peakRss_bytes = inIn.readLong();
+		retVal.quarantineMessage = readString(inIn);
+		retVal.skipMessage = readString(inIn);
+		if( inIn.readBoolean() )
+		{
+			retVal.profile = new Profile(readString(inIn), readString(inIn));
+			int numHotspots = inIn.readInt();
+			for( int i = 0; i < numHotspots; i++ ) retVal.profile.addHotspot(readString(inIn), inIn.readDouble());
+		}
+		int timelineLen = inIn.readInt();
+		if( timelineLen >= 0 )
+		{
+			retVal.outputTimeline = new byte[timelineLen];
+			inIn.readFully(retVal.outputTimeline);
+		}
+		if( inIn.readBoolean() )
+		{
+			retVal.repetitions = new Repetitions();
+			retVal.repetitions.numPassed = inIn.readInt();
+			retVal.repetitions.numFailed = inIn.readInt();
+			retVal.repetitions.numErrors = inIn.readInt();
+			retVal.repetitions.wallTime_ms = inIn.readLong();
+			retVal.repetitions.minDuration_ms = inIn.readLong();
+			retVal.repetitions.medianDuration_ms = inIn.readLong();
+			retVal.repetitions.p90Duration_ms = inIn.readLong();
+			retVal.repetitions.p99Duration_ms = inIn.readLong();
+			retVal.repetitions.maxDuration_ms = inIn.readLong();
+		}
+		int numAttempts = inIn.readInt();
+		if( numAttempts > 0 )
+		{
+			retVal.previousAttempts = new ArrayList<TestCaseResult>(numAttempts);
+			for( int i = 0; i < numAttempts; i++ ) retVal.previousAttempts.add(readFrom(inIn));
+		}
+		int numSubTests = inIn.readInt();
+		for( int i = 0; i < numSubTests; i++ ) retVal.subTestResults.add(readFrom(inIn));
+		
+		return retVal;
+	}
+
+
+	private static void writeString(DataOutput outIn, String strIn) throws IOException
+	{
+		// note: not writeUTF (limited to 64K, too small for captured output)
+		if( strIn == null )
+		{
+			outIn.writeInt(-1);
+			return;
+		}
+		byte[] bytes = strIn.getBytes(StandardCharsets.UTF_8);
+		outIn.writeInt(bytes.length);
+		outIn.write(bytes);
+	}
+
+
+	private static String readString(DataInput inIn) throws IOException
+	{
+		int len = inIn.readInt();
+		if( len < 0 ) return null;
+		byte[] bytes = new byte[len];
+		inIn.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
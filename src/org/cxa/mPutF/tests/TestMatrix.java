@@ -0,0 +1,442 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.cxa.mPutF.ParseException;
+import org.cxa.mPutF.TestFilter;
+import org.cxa.mPutF.tests.localProcess.Profiler;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * A template which expands a single <code>&lt;test&gt;</code> node into one
+ * concrete {@link Test} per combination of its parameters, eg:
+ * <pre>
+ * &lt;test name="Assert" ...&gt;
+ *     &lt;testOptions&gt;&lt;executable&gt;app ${mode} ${file}&lt;/executable&gt;&lt;/testOptions&gt;
+ *     &lt;matrix&gt;
+ *         &lt;parameter name="mode" values="-as,-al,-am"/&gt;
+ *         &lt;parameter name="file"&gt;&lt;value&gt;a.txt&lt;/value&gt;&lt;value&gt;b.txt&lt;/value&gt;&lt;/parameter&gt;
+ *     &lt;/matrix&gt;
+ * &lt;/test&gt;
+ * </pre>
+ * Every <code>${name}</code> in the attributes and text of the test node is
+ * substituted. Unless the test name itself references a parameter, the values
+ * are appended to it (eg. <code>Assert[-as,a.txt]</code>).
+ * <p>
+ * Expansion is lazy: tests are only created as they are pulled from the iterator,
+ * so large matrices never hold more than one expanded test in memory.
+ *
+ * @author Christopher Armenio
+ */
+public class TestMatrix implements Iterable<Test>
+{
+	public static final String NODE_NAME = "matrix";
+	private static final String NODE_PARAMETER = "parameter";
+	private static final String NODE_VALUE = "value";
+	private static final String ATTR_NAME = "name";
+	private static final String ATTR_VALUES = "values";
+
+	private static final Pattern PARAM_PATTERN = Pattern.compile("\\$\\{([^}]+)\\}");
+
+
+	/**
+	 * Thrown (from {@link Iterator#next()}) if a particular combination
+	 * of parameters does not produce a valid test
+	 */
+	public static class ExpansionException extends RuntimeException
+	{
+		private static final long serialVersionUID = -2364270617469935418L;
+
+		private final String testName;
+
+		private ExpansionException(String testNameIn, ParseException causeIn)
+		{
+			super(causeIn.getMessage(), causeIn);
+			this.testName = testNameIn;
+		}
+
+		/**
+		 * @return the name of the test which could not be expanded
+		 */
+		public String getTestName()
+		{
+			return this.testName;
+		}
+	}
+
+
+	private final File xmlFile;
+	private final Node templateNode;
+	private final String templateName;
+	private final RetryPolicy defaultRetryPolicy;
+	private final Profiler defaultProfiler;
+	private final TestFilter filter;
+	private final String[] paramNames;
+	private final String[][] paramValues;
+	private final long numCombinations;
+
+
+	private TestMatrix(File xmlFileIn, Node templateNodeIn, String templateNameIn, RetryPolicy defaultRetryPolicyIn, Profiler defaultProfilerIn,
+			TestFilter filterIn, String[] paramNamesIn, String[][] paramValuesIn)
+	{
+		this.xmlFile = xmlFileIn;
+		this.templateNode = templateNodeIn;
+		this.templateName = templateNameIn;
+		this.defaultRetryPolicy = defaultRetryPolicyIn;
+		this.defaultProfiler = defaultProfilerIn;
+		this.filter = filterIn;
+		this.paramNames = paramNamesIn;
+		this.paramValues = paramValuesIn;
+
+		long tmpNumCombinations = 1;
+		for( String[] currValues : this.paramValues ) tmpNumCombinations *= currValues.length;
+		this.numCombinations = tmpNumCombinations;
+	}
+
+
+	/**
+	 * Returns the number of parameter combinations (before filtering)
+	 *
+	 * @return the number of tests this matrix can produce
+	 */
+	public long getNumCombinations()
+	{
+		return this.numCombinations;
+	}
+
+
+	/**
+	 * Returns the maximum amount of time for which each test of this matrix
+	 * should run (as described in the XML configuration file)
+	 *
+	 * @return the maximum time in seconds, or NULL if there is no limit (or if it depends on the parameters)
+	 */
+	public Integer getMaxTestTime_s()
+	{
+		Node maxTestTimeNode = this.templateNode.getAttributes().getNamedItem(Test.NODE_MAX_TEST_TIME);
+		if( maxTestTimeNode == null ) return null;
+		try
+		{
+			return Integer.parseInt(maxTestTimeNode.getNodeValue());
+		}
+		catch( NumberFormatException e )
+		{
+			return null;
+		}
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Iterable#iterator()
+	 */
+	@Override
+	public Iterator<Test> iterator()
+	{
+		return new Iterator<Test>()
+		{
+			private long nextIndex = 0;
+			private String nextName = null;
+
+			@Override
+			public boolean hasNext()
+			{
+				// skip combinations rejected by the name filter without creating them
+				while( (this.nextName == null) && (this.nextIndex < numCombinations) )
+				{
+					String currName = getExpandedName(this.nextIndex);
+					if( filter.acceptsName(currName) ) this.nextName = currName;
+					else this.nextIndex++;
+				}
+				return (this.nextName != null);
+			}
+
+			@Override
+			public Test next()
+			{
+				if( !this.hasNext() ) throw new NoSuchElementException();
+
+				String currName = this.nextName;
+				long currIndex = this.nextIndex++;
+				this.nextName = null;
+				try
+				{
+					return createTest(currIndex, currName);
+				}
+				catch( ParseException e )
+				{
+					throw new ExpansionException(currName, e);
+				}
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+
+	private Map<String, String> getParameters(long indexIn)
+	{
+		// mixed-radix decode, last parameter varies fastest
+		Map<String, String> retVal = new HashMap<String, String>();
+		long remainder = indexIn;
+		for( int i = this.paramNames.length - 1; i >= 0; i-- )
+		{
+			retVal.put(this.paramNames[i], this.paramValues[i][(int)(remainder % this.paramValues[i].length)]);
+			remainder /= this.paramValues[i].length;
+		}
+		return retVal;
+	}
+
+
+	private String getExpandedName(long indexIn)
+	{
+		Map<String, String> params = this.getParameters(indexIn);
+		if( PARAM_PATTERN.matcher(this.templateName).find() ) return substitute(this.templateName, params);
+
+		StringBuilder retVal = new StringBuilder(this.templateName).append('[');
+		for( int i = 0; i < this.paramNames.length; i++ )
+		{
+			if( i > 0 ) retVal.append(',');
+			retVal.append(params.get(this.paramNames[i]));
+		}
+		return retVal.append(']').toString();
+	}
+
+
+	private Test createTest(long indexIn, String nameIn) throws ParseException
+	{
+		Map<String, String> params = this.getParameters(indexIn);
+
+		// work on a copy of the template so the original stays intact
+		Node testNode = this.templateNode.cloneNode(true);
+		NodeList children = testNode.getChildNodes();
+		for( int i = children.getLength() - 1; i >= 0; i-- )
+		{
+			if( children.item(i).getNodeName().equals(NODE_NAME) ) testNode.removeChild(children.item(i));
+		}
+		substituteAll(testNode, params);
+		((Element)testNode).setAttribute(Test.NODE_NAME, nameIn);
+
+		return Test.parseTest(this.xmlFile, testNode, this.defaultRetryPolicy, this.defaultProfiler);
+	}
+
+
+	/**
+	 * Writes this (parsed) matrix in a compact binary form which can be restored
+	 * with {@link #readPlan(File, DataInput, TestFilter)}. The template itself is
+	 * kept as XML, as each combination is parsed from it as it is expanded.
+	 *
+	 * @param outIn the destination of the matrix
+	 *
+	 * @throws IOException on error writing the matrix
+	 */
+	public void writePlan(DataOutput outIn) throws IOException
+	{
+		StringWriter template = new StringWriter();
+		try
+		{
+			Transformer transformer = TransformerFactory.newInstance().newTransformer();
+			transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+			transformer.transform(new DOMSource(this.templateNode), new StreamResult(template));
+		}
+		catch( TransformerException e )
+		{
+			throw new IOException(String.format("unable to serialize template '%s': %s", this.templateName, e.getMessage()));
+		}
+
+		outIn.writeUTF(template.toString());
+		outIn.writeUTF(this.templateName);
+		this.defaultRetryPolicy.writeTo(outIn);
+		outIn.writeBoolean(this.defaultProfiler != null);
+		if( this.defaultProfiler != null ) this.defaultProfiler.writeTo(outIn);
+		outIn.writeInt(this.paramNames.length);
+		for( int i = 0; i < this.paramNames.length; i++ )
+		{
+			outIn.writeUTF(this.paramNames[i]);
+			outIn.writeInt(this.paramValues[i].length);
+			for( String currValue : this.paramValues[i] ) outIn.writeUTF(currValue);
+		}
+	}
+
+
+	/**
+	 * Restores a matrix written with {@link #writePlan(DataOutput)}
+	 *
+	 * @param xmlFileIn the XML file from which the matrix was originally parsed
+	 * @param inIn the source of the matrix
+	 * @param filterIn the filter which expanded tests must pass (by name)
+	 *
+	 * @return the restored matrix
+	 * @throws IOException on error reading the matrix (or if it is malformed)
+	 */
+	public static TestMatrix readPlan(File xmlFileIn, DataInput inIn, TestFilter filterIn) throws IOException
+	{
+		Node templateNode;
+		try
+		{
+			templateNode = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(inIn.readUTF()))).getDocumentElement();
+		}
+		catch( ParserConfigurationException | SAXException e )
+		{
+			throw new IOException(String.format("invalid matrix template: %s", e.getMessage()));
+		}
+		String templateName = inIn.readUTF();
+		RetryPolicy defaultRetryPolicy = RetryPolicy.readFrom(inIn);
+		Profiler defaultProfiler = inIn.readBoolean() ? Profiler.readFrom(inIn) : null;
+		String[] paramNames = new String[inIn.readInt()];
+		String[][] paramValues = new String[paramNames.length][];
+		for( int i = 0; i < paramNames.length; i++ )
+		{
+			paramNames[i] = inIn.readUTF();
+			paramValues[i] = new String[inIn.readInt()];
+			for( int j = 0; j < paramValues[i].length; j++ ) paramValues[i][j] = inIn.readUTF();
+		}
+
+		return new TestMatrix(xmlFileIn, templateNode, templateName, defaultRetryPolicy, defaultProfiler, filterIn, paramNames, paramValues);
+	}
+
+
+	/**
+	 * Parses the matrix of the given test node. The first combination is expanded
+	 * immediately so that errors in the template are reported at parse time.
+	 *
+	 * @param xmlFileIn the XML file from which this matrix is being parsed
+	 * @param testNodeIn the {@link Node} describing the test template
+	 * @param matrixNodeIn the {@link Node} describing the matrix parameters
+	 * @param defaultRetryPolicyIn the retry policy to use if the test does not specify one
+	 * @param defaultProfilerIn the profiler to use if the test does not specify one (may be NULL)
+	 * @param filterIn the filter which expanded tests must pass (by name)
+	 *
+	 * @return a parsed test matrix
+	 * @throws ParseException on error parsing the matrix or its template
+	 */
+	public static TestMatrix parseTestMatrix(File xmlFileIn, Node testNodeIn, Node matrixNodeIn, RetryPolicy defaultRetryPolicyIn, Profiler defaultProfilerIn,
+			TestFilter filterIn) throws ParseException
+	{
+		Node nameNode = testNodeIn.getAttributes().getNamedItem(Test.NODE_NAME);
+		if( nameNode == null ) throw new ParseException(xmlFileIn, "<unknownTest>", String.format("missing attribute '%s'", Test.NODE_NAME));
+		String templateName = nameNode.getNodeValue();
+
+		List<String> paramNames = new ArrayList<String>();
+		List<String[]> paramValues = new ArrayList<String[]>();
+		NodeList nList = matrixNodeIn.getChildNodes();
+		for( int i = 0; i < nList.getLength(); i++ )
+		{
+			Node currNode = nList.item(i);
+			if( !currNode.getNodeName().equals(NODE_PARAMETER) ) continue;
+
+			NamedNodeMap attributes = currNode.getAttributes();
+			Node paramNameNode = attributes.getNamedItem(ATTR_NAME);
+			if( paramNameNode == null ) throw new ParseException(xmlFileIn, templateName, String.format("matrix %s missing attribute '%s'", NODE_PARAMETER, ATTR_NAME));
+			String paramName = paramNameNode.getNodeValue();
+			if( paramNames.contains(paramName) ) throw new ParseException(xmlFileIn, templateName, String.format("duplicate matrix %s '%s'", NODE_PARAMETER, paramName));
+
+			List<String> values = new ArrayList<String>();
+			Node valuesNode = attributes.getNamedItem(ATTR_VALUES);
+			if( valuesNode != null ) values.addAll(TestFilter.splitList(valuesNode.getNodeValue()));
+			NodeList valueNodes = currNode.getChildNodes();
+			for( int j = 0; j < valueNodes.getLength(); j++ )
+			{
+				if( valueNodes.item(j).getNodeName().equals(NODE_VALUE) ) values.add(valueNodes.item(j).getTextContent());
+			}
+			if( values.isEmpty() ) throw new ParseException(xmlFileIn, templateName, String.format("matrix %s '%s' has no values", NODE_PARAMETER, paramName));
+
+			paramNames.add(paramName);
+			paramValues.add(values.toArray(new String[values.size()]));
+		}
+		if( paramNames.isEmpty() ) throw new ParseException(xmlFileIn, templateName, String.format("'%s' contains no '%s' nodes", NODE_NAME, NODE_PARAMETER));
+
+		TestMatrix retVal = new TestMatrix(xmlFileIn, testNodeIn, templateName, defaultRetryPolicyIn, defaultProfilerIn, filterIn,
+				paramNames.toArray(new String[paramNames.size()]), paramValues.toArray(new String[paramValues.size()][]));
+
+		// validate the template by expanding the first combination (the result is discarded)
+		retVal.createTest(0, retVal.getExpandedName(0));
+
+		return retVal;
+	}
+
+
+	private static void substituteAll(Node nodeIn, Map<String, String> paramsIn)
+	{
+		if( (nodeIn.getNodeType() == Node.TEXT_NODE) || (nodeIn.getNodeType() == Node.CDATA_SECTION_NODE) )
+		{
+			nodeIn.setNodeValue(substitute(nodeIn.getNodeValue(), paramsIn));
+			return;
+		}
+
+		NamedNodeMap attributes = nodeIn.getAttributes();
+		if( attributes != null )
+		{
+			for( int i = 0; i < attributes.getLength(); i++ )
+			{
+				Node currAttribute = attributes.item(i);
+				currAttribute.setNodeValue(substitute(currAttribute.getNodeValue(), paramsIn));
+			}
+		}
+
+		NodeList children = nodeIn.getChildNodes();
+		for( int i = 0; i < children.getLength(); i++ ) substituteAll(children.item(i), paramsIn);
+	}
+
+
+	private static String substitute(String strIn, Map<String, String> paramsIn)
+	{
+		if( strIn.indexOf("${") == -1 ) return strIn;
+
+		Matcher matcher = PARAM_PATTERN.matcher(strIn);
+		StringBuffer retVal = new StringBuffer();
+		while( matcher.find() )
+		{
+			String value = paramsIn.get(matcher.group(1));
+			matcher.appendReplacement(retVal, Matcher.quoteReplacement((value != null) ? value : matcher.group()));
+		}
+		matcher.appendTail(retVal);
+		return retVal.toString();
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The amount of time a whole run of a test suite may take. Every test run
+ * under a budget is stopped once the budget is exhausted (regardless of its
+ * own <code>maxTestTime_s</code>), and tests which have not yet started by
+ * then are skipped.
+ *
+ * @author Christopher Armenio
+ */
+public class TimeBudget
+{
+	private final long budget_ms;
+	private final long deadline_ns;
+
+
+	/**
+	 * Starts a budget which is exhausted the given time from now
+	 *
+	 * @param budget_msIn the budget, in milliseconds
+	 */
+	public TimeBudget(long budget_msIn)
+	{
+		if( budget_msIn < 0 ) throw new IllegalArgumentException("time budget must not be negative");
+		this.budget_ms = budget_msIn;
+		this.deadline_ns = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budget_msIn);
+	}
+
+
+	/**
+	 * @return the total budget, in milliseconds
+	 */
+	public long getBudget_ms()
+	{
+		return this.budget_ms;
+	}
+
+
+	/**
+	 * @return the time left before the budget is exhausted, in milliseconds (0 once exhausted)
+	 */
+	public long getRemaining_ms()
+	{
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(this.deadline_ns - System.nanoTime()));
+	}
+
+
+	/**
+	 * @return true if no time is left
+	 */
+	public boolean isExhausted()
+	{
+		return (this.deadline_ns - System.nanoTime()) <= 0;
+	}
+
+
+	/**
+	 * @return a user-friendly description of why a test was stopped (or skipped)
+	 */
+	public String getExhaustedMessage()
+	{
+		return String.format("suite time budget of %d seconds exhausted", TimeUnit.MILLISECONDS.toSeconds(this.budget_ms));
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.inProcess;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Makes this JVM suitable for running {@link InProcessTest}s: the output
+ * written to {@link System#out} / {@link System#err} by a test (and by
+ * any threads it creates) is redirected to that test's own buffers.
+ * <p>
+ * Note: calls to {@link System#exit(int)} cannot be trapped (that needs a
+ * {@link SecurityManager}, which the JVM no longer supports)...see {@link InProcessTest}.
+ *
+ * @author Christopher Armenio
+ */
+class InProcessEnvironment
+{
+	/**
+	 * Dispatches each write to the capture of the current thread, if any
+	 */
+	private static class ThreadLocalOutputStream extends OutputStream
+	{
+		private final OutputStream original;
+		private final InheritableThreadLocal<OutputStream> target = new InheritableThreadLocal<OutputStream>();
+
+		ThreadLocalOutputStream(OutputStream originalIn)
+		{
+			this.original = originalIn;
+		}
+
+		private OutputStream getTarget()
+		{
+			OutputStream retVal = this.target.get();
+			return (retVal != null) ? retVal : this.original;
+		}
+
+		@Override
+		public void write(int bIn) throws IOException
+		{
+			this.getTarget().write(bIn);
+		}
+
+		@Override
+		public void write(byte[] bufIn, int offsetIn, int lenIn) throws IOException
+		{
+			this.getTarget().write(bufIn, offsetIn, lenIn);
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			this.getTarget().flush();
+		}
+	}
+
+
+	private static ThreadLocalOutputStream stdout = null;
+	private static ThreadLocalOutputStream stderr = null;
+
+
+	/**
+	 * Installs the output redirection (if not already installed)
+	 */
+	static synchronized void install()
+	{
+		if( stdout != null ) return;
+
+		stdout = new ThreadLocalOutputStream(System.out);
+		stderr = new ThreadLocalOutputStream(System.err);
+		System.setOut(new PrintStream(stdout, true));
+		System.setErr(new PrintStream(stderr, true));
+	}
+
+
+	/**
+	 * Starts capturing the output of the current thread (and any threads it creates)
+	 *
+	 * @param stdoutIn receives everything written to {@link System#out}
+	 * @param stderrIn receives everything written to {@link System#err}
+	 */
+	static void beginCapture(OutputStream stdoutIn, OutputStream stderrIn)
+	{
+		install();
+		stdout.target.set(stdoutIn);
+		stderr.target.set(stderrIn);
+	}
+
+
+	/**
+	 * Stops capturing the output of the current thread
+	 */
+	static void endCapture()
+	{
+		System.out.flush();
+		System.err.flush();
+		stdout.target.remove();
+		stderr.target.remove();
+	}
+}
@@ -0,0 +1,438 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.inProcess;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cxa.mPutF.ParseException;
+import org.cxa.mPutF.bindingOutputParser.BindingOutputParser;
+import org.cxa.mPutF.bindingOutputParser.BindingOutputParser.Assertion;
+import org.cxa.mPutF.bindings.InProcessExit;
+import org.cxa.mPutF.bindings.mPutF;
+import org.cxa.mPutF.tests.Test;
+import org.cxa.mPutF.tests.TestCaseResult;
+import org.cxa.mPutF.tests.Test.TestResult;
+import org.cxa.mPutF.tests.TimeBudget;
+import org.cxa.timeUtils.TimeDiff;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * This is the implementation of a {@link Test} subclass which runs a
+ * Java program within the mPutF JVM (avoiding the cost of starting a new
+ * process). The target class is loaded through its own classloader and the
+ * configured static method (<code>main</code> by default) is invoked on a
+ * thread pool managed by mPutF:
+ * <pre>
+ * &lt;testOptions&gt;
+ *     &lt;classpath&gt;app.jar:lib/dep.jar&lt;/classpath&gt;
+ *     &lt;class&gt;com.example.App&lt;/class&gt;
+ *     &lt;method&gt;main&lt;/method&gt;
+ *     &lt;arguments&gt;-foo bar&lt;/arguments&gt;
+ * &lt;/testOptions&gt;
+ * </pre>
+ * The method may take a <code>String[]</code> (the arguments) or nothing.
+ * Relative classpath entries are resolved against the directory of the XML
+ * file. Assertions of the program (and its calls to {@link mPutF#exit(int)})
+ * end the test rather than mPutF, and its stdout/stderr are captured per-test.
+ * <p>
+ * Note: a program which calls {@link System#exit(int)} directly terminates
+ * mPutF itself (the JVM no longer allows such calls to be trapped)...such
+ * programs must use {@link mPutF#exit(int)}, or be run as a separate process.
+ * <p>
+ * Note: a timed-out program cannot be forcibly stopped...it is interrupted
+ * and abandoned (its output and results are no longer recorded).
+ *
+ * @author Christopher Armenio
+ */
+public class InProcessTest extends Test
+{
+	public static final String TEST_TYPE_STR = "inProcess";
+	private static final String NODE_CLASSPATH = "classpath";
+	private static final String NODE_CLASS = "class";
+	private static final String NODE_METHOD = "method";
+	private static final String NODE_ARGUMENTS = "arguments";
+	private static final String DEFAULT_METHOD = "main";
+
+	private static final String BINDINGS_PACKAGE = mPutF.class.getPackage().getName() + ".";
+
+	private static final AtomicInteger threadCounter = new AtomicInteger(0);
+	private static final ExecutorService threadPool = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable rIn)
+		{
+			// abandoned (timed-out) tests must never keep mPutF alive
+			Thread retVal = new Thread(rIn, String.format("inProcessTest-%d", threadCounter.incrementAndGet()));
+			retVal.setDaemon(true);
+			return retVal;
+		}
+	});
+
+
+	/**
+	 * Delegates to the JDK only...except for the mPutF bindings, which must be
+	 * shared with mPutF (even if the target bundles its own copy) so that their
+	 * results can be captured
+	 */
+	private static class BindingsSharingClassLoader extends ClassLoader
+	{
+		BindingsSharingClassLoader()
+		{
+			super(ClassLoader.getSystemClassLoader().getParent());
+		}
+
+		@Override
+		protected Class<?> loadClass(String nameIn, boolean resolveIn) throws ClassNotFoundException
+		{
+			if( nameIn.startsWith(BINDINGS_PACKAGE) ) return mPutF.class.getClassLoader().loadClass(nameIn);
+			return super.loadClass(nameIn, resolveIn);
+		}
+	}
+
+
+	private URL[] classpath = null;
+	private String className = null;
+	private String methodName = DEFAULT_METHOD;
+	private String[] arguments = new String[0];
+
+
+	/**
+	 * Creates an in-process test from the given arguments
+	 *
+	 * @param nameIn the name of this test
+	 * @param descIn a user-friendly description of this test
+	 * @param maxTestTime_sIn max time, in seconds, for which this test should run
+	 * @param xmlFileIn the XML file from which this test was parsed
+	 * @param optsNodeIn a {@link Node} which contains the test options XML node
+	 *
+	 * @throws ParseException on error parsing the XML options for this test
+	 */
+	public InProcessTest(String nameIn, String descIn, Integer maxTestTime_sIn, File xmlFileIn, Node optsNodeIn) throws ParseException
+	{
+		super(nameIn, descIn, maxTestTime_sIn);
+
+		// we _need_ an options node
+		if( optsNodeIn == null ) throw new ParseException(xmlFileIn, this.getName(), "no test options specified");
+
+		NodeList childNodes = optsNodeIn.getChildNodes();
+		for( int i = 0; i < childNodes.getLength(); i++ )
+		{
+			Node currNode = childNodes.item(i);
+			if( currNode.getNodeName().equals(NODE_CLASSPATH) )
+			{
+				this.classpath = parseClasspath(xmlFileIn, this.getName(), currNode.getTextContent());
+			}
+			else if( currNode.getNodeName().equals(NODE_CLASS) )
+			{
+				this.className = currNode.getTextContent().trim();
+			}
+			else if( currNode.getNodeName().equals(NODE_METHOD) )
+			{
+				this.methodName = currNode.getTextContent().trim();
+			}
+			else if( currNode.getNodeName().equals(NODE_ARGUMENTS) )
+			{
+				StringTokenizer st = new StringTokenizer(currNode.getTextContent());
+				this.arguments = new String[st.countTokens()];
+				for( int j = 0; st.hasMoreTokens(); j++ ) this.arguments[j] = st.nextToken();
+			}
+		}
+
+		if( this.classpath == null ) throw new ParseException(xmlFileIn, this.getName(), String.format("missing node '%s'", NODE_CLASSPATH));
+		if( (this.className == null) || this.className.isEmpty() ) throw new ParseException(xmlFileIn, this.getName(), String.format("missing node '%s'", NODE_CLASS));
+	}
+
+
+	/**
+	 * Restores an in-process test from a plan (see {@link Test#readPlan(File, DataInput)})
+	 *
+	 * @param nameIn the name of this test
+	 * @param descIn a user-friendly description of this test
+	 * @param maxTestTime_sIn max time, in seconds, for which this test should run
+	 * @param inIn the source of the options written by {@link #writeOptions(DataOutput)}
+	 *
+	 * @throws IOException on error reading the options
+	 */
+	public InProcessTest(String nameIn, String descIn, Integer maxTestTime_sIn, DataInput inIn) throws IOException
+	{
+		super(nameIn, descIn, maxTestTime_sIn);
+
+		this.classpath = new URL[inIn.readInt()];
+		for( int i = 0; i < this.classpath.length; i++ ) this.classpath[i] = new URL(inIn.readUTF());
+		this.className = inIn.readUTF();
+		this.methodName = inIn.readUTF();
+		this.arguments = new String[inIn.readInt()];
+		for( int i = 0; i < this.arguments.length; i++ ) this.arguments[i] = inIn.readUTF();
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.Test#getTestType()
+	 */
+	@Override
+	public String getTestType()
+	{
+		return TEST_TYPE_STR;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.Test#writeOptions(java.io.DataOutput)
+	 */
+	@Override
+	protected void writeOptions(DataOutput outIn) throws IOException
+	{
+		outIn.writeInt(this.classpath.length);
+		for( URL currUrl : this.classpath ) outIn.writeUTF(currUrl.toString());
+		outIn.writeUTF(this.className);
+		outIn.writeUTF(this.methodName);
+		outIn.writeInt(this.arguments.length);
+		for( String currArg : this.arguments ) outIn.writeUTF(currArg);
+	}
+
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.Test#runAttempt()
+	 */
+	@Override
+	protected TestCaseResult runAttempt()
+	{
+		TestCaseResult retVal = new TestCaseResult(this.getName());
+
+		// every attempt gets a fresh classloader (and thus fresh static state)
+		final URLClassLoader classLoader = new URLClassLoader(this.classpath, new BindingsSharingClassLoader());
+		final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+		final ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		final ByteArrayOutputStream results = new ByteArrayOutputStream();
+
+		this.getLogger().trace("starting test");
+		TimeDiff testTimer = new TimeDiff();
+		Future<Integer> future = threadPool.submit(new Callable<Integer>()
+		{
+			@Override
+			public Integer call() throws Exception
+			{
+				return invokeTarget(classLoader, stdout, stderr, results);
+			}
+		});
+
+		// the time budget of the run (if any) may end the test before its own maximum time
+		TimeBudget timeBudget = this.getTimeBudget();
+		long timeout_ms = (this.getMaxTextTime_s() != null) ? (this.getMaxTextTime_s() * 1000L) : -1;
+		boolean isBudgetLimited = (timeBudget != null) && ((timeout_ms < 0) || (timeBudget.getRemaining_ms() < timeout_ms));
+		if( isBudgetLimited ) timeout_ms = timeBudget.getRemaining_ms();
+
+		boolean isAbandoned = false;
+		long testDuration_ms;
+		try
+		{
+			Integer exitCode = (timeout_ms >= 0) ? future.get(timeout_ms, TimeUnit.MILLISECONDS) : future.get();
+			testDuration_ms = testTimer.getElapsedTime_ms();
+			this.getLogger().trace(String.format("test finished with exit code %d", exitCode));
+			this.setExitCodeResult(retVal, exitCode, results);
+		}
+		catch( TimeoutException e )
+		{
+			this.getLogger().trace("test timed out...abandoning");
+			future.cancel(true);
+			isAbandoned = true;
+			if( isBudgetLimited )
+			{
+				testDuration_ms = testTimer.getElapsedTime_ms();
+				retVal.setError(TestCaseResult.ERROR_TYPE_BUDGET_EXHAUSTED, timeBudget.getExhaustedMessage());
+			}
+			else
+			{
+				testDuration_ms = this.getMaxTextTime_s() * 1000;
+				retVal.setError(TestCaseResult.ERROR_TYPE_TIMEOUT, String.format("test did not complete within %d seconds", this.getMaxTextTime_s()));
+			}
+		}
+		catch( ExecutionException e )
+		{
+			testDuration_ms = testTimer.getElapsedTime_ms();
+			Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+			this.getLogger().trace(String.format("test ended with exception '%s'", cause));
+			retVal.setError((cause instanceof ReflectiveOperationException) ? "invalidTarget" : "uncaughtException", cause.toString());
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			future.cancel(true);
+			isAbandoned = true;
+			testDuration_ms = testTimer.getElapsedTime_ms();
+			retVal.setError("internalException", "interrupted while waiting for test");
+		}
+
+		// non-fatal checks and sub-tests are reported regardless of how the test ended
+		BindingOutputParser.StreamParser bindingParser = parseResults(results);
+		retVal.addBindingResults(bindingParser);
+
+		// record our common stuff (stdout, stderr, duration, etc)
+		retVal.setOutput(stdout.toString(), stderr.toString());
+		retVal.setDuration_ms(testDuration_ms);
+
+		// an abandoned test may still be using its classes
+		if( !isAbandoned )
+		{
+			try
+			{
+				classLoader.close();
+			}
+			catch( IOException e ) { }
+		}
+
+		this.getLogger().trace("test complete");
+		return retVal;
+	}
+
+
+	private Integer invokeTarget(ClassLoader classLoaderIn, ByteArrayOutputStream stdoutIn, ByteArrayOutputStream stderrIn, ByteArrayOutputStream resultsIn) throws Exception
+	{
+		Thread currThread = Thread.currentThread();
+		ClassLoader prevContextClassLoader = currThread.getContextClassLoader();
+		InProcessEnvironment.beginCapture(stdoutIn, stderrIn);
+		mPutF.setInProcessResultChannel(resultsIn);
+		currThread.setContextClassLoader(classLoaderIn);
+		try
+		{
+			Method method = this.findMethod(Class.forName(this.className, true, classLoaderIn));
+			if( method.getParameterTypes().length == 0 ) method.invoke(null);
+			else method.invoke(null, (Object)this.arguments.clone());
+			return 0;
+		}
+		catch( InvocationTargetException | ExceptionInInitializerError e )
+		{
+			// the target ended by "exiting" (or by throwing something of its own)
+			Throwable cause = (e.getCause() != null) ? e.getCause() : e;
+			if( cause instanceof InProcessExit ) return ((InProcessExit)cause).getExitCode();
+			if( cause instanceof Exception ) throw (Exception)cause;
+			throw new ExecutionException(cause);
+		}
+		finally
+		{
+			currThread.setContextClassLoader(prevContextClassLoader);
+			mPutF.setInProcessResultChannel(null);
+			InProcessEnvironment.endCapture();
+		}
+	}
+
+
+	private Method findMethod(Class<?> classIn) throws NoSuchMethodException
+	{
+		Method retVal;
+		try
+		{
+			retVal = classIn.getMethod(this.methodName, String[].class);
+		}
+		catch( NoSuchMethodException e )
+		{
+			retVal = classIn.getMethod(this.methodName);
+		}
+		if( !Modifier.isStatic(retVal.getModifiers()) ) throw new NoSuchMethodException(String.format("'%s.%s' is not static", classIn.getName(), this.methodName));
+
+		return retVal;
+	}
+
+
+	private void setExitCodeResult(TestCaseResult resultIn, int exitCodeIn, ByteArrayOutputStream resultsIn)
+	{
+		Assertion assertion = BindingOutputParser.getFirstFatalAssertion(parseResults(resultsIn).getAssertions(true));
+		if( assertion != null )
+		{
+			// note: may have been raised by a thread created by the test (which doesn't end the test)
+			this.getLogger().trace("test had an assert");
+			resultIn.setFailure(assertion);
+		}
+		else if( exitCodeIn == mPutF.EXIT_CODE )
+		{
+			resultIn.setError("possibleAssertion", "exit code matches assertion, but no assertion was reported");
+		}
+		else if( exitCodeIn != 0 )
+		{
+			this.getLogger().trace("unknown exit code");
+			resultIn.setError("unknownRetCode", String.format("test exited with unknown exit code [%d]", exitCodeIn));
+		}
+	}
+
+
+	private BindingOutputParser.StreamParser parseResults(ByteArrayOutputStream resultsIn)
+	{
+		BindingOutputParser.StreamParser retVal = new BindingOutputParser.StreamParser();
+		try
+		{
+			retVal.parseRecords(new ByteArrayInputStream(resultsIn.toByteArray()));
+		}
+		catch( IOException e )
+		{
+			// an abandoned test may have been cut off mid-record...keep what we have
+			this.getLogger().warn(String.format("error parsing results '%s'", e.getMessage()));
+		}
+		return retVal;
+	}
+
+
+	private static URL[] parseClasspath(File xmlFileIn, String testNameIn, String classpathIn) throws ParseException
+	{
+		List<URL> retVal = new ArrayList<URL>();
+		for( String currEntry : classpathIn.trim().split(File.pathSeparator) )
+		{
+			if( currEntry.trim().isEmpty() ) continue;
+
+			// (relative to the XML file, like the other paths of a test)
+			File file = new File(currEntry.trim());
+			if( !file.isAbsolute() ) file = new File(xmlFileIn.getAbsoluteFile().getParentFile(), file.getPath());
+			try
+			{
+				retVal.add(file.toURI().toURL());
+			}
+			catch( MalformedURLException e )
+			{
+				throw new ParseException(xmlFileIn, testNameIn, String.format("invalid classpath entry '%s'", currEntry));
+			}
+		}
+		if( retVal.isEmpty() ) throw new ParseException(xmlFileIn, testNameIn, String.format("empty node '%s'", NODE_CLASSPATH));
+
+		return retVal.toArray(new URL[retVal.size()]);
+	}
+}
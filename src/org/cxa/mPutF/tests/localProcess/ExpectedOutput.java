@@ -0,0 +1,435 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.localProcess;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.cxa.mPutF.ParseException;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Describes the output a {@link LocalProcessTest} is expected to produce on
+ * one of its streams. Parsed from an <code>&lt;expectedStdout&gt;</code> or
+ * <code>&lt;expectedStderr&gt;</code> node within the test options with one of:
+ * <ul>
+ * <li><code>file="golden.txt"</code> - the output must be identical to the file</li>
+ * <li><code>regexFile="patterns.txt"</code> - each output line must match the
+ * 		regular expression on the same line of the file</li>
+ * <li><code>regex="..."</code> - every output line must match the regular expression</li>
+ * </ul>
+ * Relative paths are resolved against the directory of the XML configuration
+ * file. Line endings are normalized ('\r' is ignored).
+ * <p>
+ * The comparison is done by a {@link Matcher} as the output arrives, so it
+ * stops at the first mismatch and only ever holds a bounded window of
+ * output (for the failure message).
+ *
+ * @author Christopher Armenio
+ */
+public class ExpectedOutput
+{
+	public static final String NODE_EXPECTED_STDOUT = "expectedStdout";
+	public static final String NODE_EXPECTED_STDERR = "expectedStderr";
+	private static final String ATTR_FILE = "file";
+	private static final String ATTR_REGEX_FILE = "regexFile";
+	private static final String ATTR_REGEX = "regex";
+
+	private static final int CONTEXT_LINES = 3;
+	private static final int MAX_DISPLAY_LINE = 200;
+	private static final int MAX_REGEX_LINE = 1024 * 1024;
+
+
+	/**
+	 * Compares the output of a single test attempt against the expectation
+	 */
+	public class Matcher implements StreamPump.OutputListener
+	{
+		private final InputStream expectedStream;
+		private final byte[] expectedBuf;
+		private int expectedPos = 0;
+		private int expectedLen = 0;
+		private final BufferedReader patternReader;
+
+		private final ByteArrayOutputStream currLine = new ByteArrayOutputStream();
+		private final LinkedList<String> contextLines = new LinkedList<String>();
+		private int lineNumber = 1;
+		private int column = 1;
+		private volatile String mismatch = null;
+
+
+		private Matcher() throws IOException
+		{
+			this.expectedStream = (mode == Mode.FILE) ? new FileInputStream(file) : null;
+			this.expectedBuf = (mode == Mode.FILE) ? new byte[8192] : null;
+			this.patternReader = (mode == Mode.REGEX_FILE) ? new BufferedReader(new FileReader(file)) : null;
+		}
+
+
+		/**
+		 * Returns a description of the first mismatch (if any). May be called
+		 * while the output is still arriving (to stop the test early).
+		 *
+		 * @return a description of the mismatch, or NULL if the output matches (so far)
+		 */
+		public String getMismatch()
+		{
+			return this.mismatch;
+		}
+
+
+		/*
+		 * (non-Javadoc)
+		 * @see org.cxa.mPutF.tests.localProcess.StreamPump.OutputListener#outputReceived(byte[], int)
+		 */
+		@Override
+		public void outputReceived(byte[] bufIn, int lenIn)
+		{
+			if( mode == Mode.FILE )
+			{
+				for( int i = 0; (i < lenIn) && (this.mismatch == null); i++ )
+				{
+					byte currByte = bufIn[i];
+					if( currByte == '\r' ) continue;
+					
+					this.compareByte(currByte, bufIn, i, lenIn);
+					if( (currByte == '\n') && (this.mismatch == null) ) this.nextLine();
+				}
+				return;
+			}
+			
+			// regex modes work on whole lines...copy each line segment in bulk
+			int segmentStart = 0;
+			for( int i = 0; (i < lenIn) && (this.mismatch == null); i++ )
+			{
+				if( bufIn[i] != '\n' ) continue;
+				
+				this.appendToLine(bufIn, segmentStart, i - segmentStart);
+				segmentStart = i + 1;
+				if( this.mismatch == null ) this.compareLine();
+				if( this.mismatch == null ) this.nextLine();
+			}
+			if( (this.mismatch == null) && (segmentStart < lenIn) ) this.appendToLine(bufIn, segmentStart, lenIn - segmentStart);
+		}
+		
+		
+		private void appendToLine(byte[] bufIn, int offsetIn, int lenIn)
+		{
+			if( (this.currLine.size() + lenIn) > MAX_REGEX_LINE ) this.setMismatch(String.format("line exceeds %d bytes", MAX_REGEX_LINE), null, null);
+			else this.currLine.write(bufIn, offsetIn, lenIn);
+		}
+		
+		
+		/*
+		 * (non-Javadoc)
+		 * @see org.cxa.mPutF.tests.localProcess.StreamPump.OutputListener#outputClosed()
+		 */
+		@Override
+		public void outputClosed()
+		{
+			if( this.mismatch == null )
+			{
+				if( mode == Mode.FILE )
+				{
+					int expectedByte = this.readExpectedByte();
+					if( expectedByte != -1 ) this.setMismatch("output ended early", this.readExpectedLine(expectedByte), "<end of output>");
+				}
+				else
+				{
+					if( this.currLine.size() > 0 ) this.compareLine();
+					if( (this.mismatch == null) && (mode == Mode.REGEX_FILE) )
+					{
+						String pattern = this.readPattern();
+						if( pattern != null ) this.setMismatch("output ended early", pattern, "<end of output>");
+					}
+				}
+			}
+			this.close();
+		}
+
+
+		private void compareByte(byte actualByteIn, byte[] bufIn, int offsetIn, int lenIn)
+		{
+			int expectedByte = this.readExpectedByte();
+			if( expectedByte == (actualByteIn & 0xFF) )
+			{
+				if( (actualByteIn != '\n') && (this.currLine.size() < MAX_DISPLAY_LINE) ) this.currLine.write(actualByteIn);
+				this.column++;
+				return;
+			}
+
+			// mismatch...grab the rest of both lines for display
+			ByteArrayOutputStream actualLine = new ByteArrayOutputStream();
+			actualLine.write(this.currLine.toByteArray(), 0, this.currLine.size());
+			for( int i = offsetIn; (i < lenIn) && (bufIn[i] != '\n') && (actualLine.size() < MAX_DISPLAY_LINE); i++ )
+			{
+				if( bufIn[i] != '\r' ) actualLine.write(bufIn[i]);
+			}
+
+			this.setMismatch((expectedByte == -1) ? "unexpected extra output" : String.format("column %d", this.column),
+					(expectedByte == -1) ? "<end of output>" : this.readExpectedLine(expectedByte),
+					actualLine.toString());
+		}
+
+
+		private void compareLine()
+		{
+			String actualLine = this.currLine.toString().replace("\r", "");
+			String pattern = (mode == Mode.REGEX) ? regex.pattern() : this.readPattern();
+			if( pattern == null )
+			{
+				this.setMismatch("unexpected extra output", "<end of output>", actualLine);
+				return;
+			}
+
+			try
+			{
+				Pattern linePattern = (mode == Mode.REGEX) ? regex : Pattern.compile(pattern);
+				if( !linePattern.matcher(actualLine).matches() ) this.setMismatch("line does not match", pattern, actualLine);
+			}
+			catch( PatternSyntaxException e )
+			{
+				this.setMismatch(String.format("invalid pattern (%s)", e.getDescription()), pattern, actualLine);
+			}
+		}
+
+
+		private void nextLine()
+		{
+			this.contextLines.addLast(truncate(this.currLine.toString()));
+			if( this.contextLines.size() > CONTEXT_LINES ) this.contextLines.removeFirst();
+			this.currLine.reset();
+			this.lineNumber++;
+			this.column = 1;
+		}
+
+
+		private int readExpectedByte()
+		{
+			try
+			{
+				while( true )
+				{
+					if( this.expectedPos >= this.expectedLen )
+					{
+						this.expectedLen = this.expectedStream.read(this.expectedBuf);
+						this.expectedPos = 0;
+						if( this.expectedLen == -1 ) return -1;
+						continue;
+					}
+					
+					int retVal = this.expectedBuf[this.expectedPos++] & 0xFF;
+					if( retVal != '\r' ) return retVal;
+				}
+			}
+			catch( IOException e )
+			{
+				this.setMismatch(String.format("unable to read '%s' (%s)", file.getName(), e.getMessage()), null, null);
+				return -1;
+			}
+		}
+
+
+		private String readExpectedLine(int firstByteIn)
+		{
+			ByteArrayOutputStream retVal = new ByteArrayOutputStream();
+			retVal.write(this.currLine.toByteArray(), 0, this.currLine.size());
+			for( int currByte = firstByteIn; (currByte != -1) && (currByte != '\n') && (retVal.size() < MAX_DISPLAY_LINE); currByte = this.readExpectedByte() )
+			{
+				retVal.write(currByte);
+			}
+			return retVal.toString();
+		}
+
+
+		private String readPattern()
+		{
+			try
+			{
+				String retVal = this.patternReader.readLine();
+				return (retVal != null) ? retVal.replace("\r", "") : null;
+			}
+			catch( IOException e )
+			{
+				this.setMismatch(String.format("unable to read '%s' (%s)", file.getName(), e.getMessage()), null, null);
+				return null;
+			}
+		}
+
+
+		private void setMismatch(String reasonIn, String expectedIn, String actualIn)
+		{
+			if( this.mismatch != null ) return;
+
+			StringBuilder msg = new StringBuilder();
+			msg.append(String.format("line %d: %s", this.lineNumber, reasonIn));
+			if( expectedIn != null )
+			{
+				for( String currLine : this.contextLines ) msg.append("\n  ").append(currLine);
+				msg.append("\n- ").append(truncate(expectedIn));
+				msg.append("\n+ ").append(truncate(actualIn));
+			}
+			this.mismatch = msg.toString();
+			this.close();
+		}
+
+
+		private void close()
+		{
+			try
+			{
+				if( this.expectedStream != null ) this.expectedStream.close();
+				if( this.patternReader != null ) this.patternReader.close();
+			}
+			catch( IOException e ) { }
+		}
+	}
+
+
+	private enum Mode
+	{
+		FILE,
+		REGEX_FILE,
+		REGEX
+	}
+
+
+	private final Mode mode;
+	private final File file;
+	private final Pattern regex;
+
+
+	private ExpectedOutput(Mode modeIn, File fileIn, Pattern regexIn)
+	{
+		this.mode = modeIn;
+		this.file = fileIn;
+		this.regex = regexIn;
+	}
+
+
+	/**
+	 * Creates a new matcher for a single test attempt
+	 *
+	 * @return the new matcher
+	 * @throws IOException on error opening the expected output file
+	 */
+	public Matcher createMatcher() throws IOException
+	{
+		return new Matcher();
+	}
+
+
+	/**
+	 * Writes this expectation in a compact binary form (see {@link #readFrom(DataInput)})
+	 *
+	 * @param outIn the destination of the expectation
+	 *
+	 * @throws IOException on error writing the expectation
+	 */
+	public void writeTo(DataOutput outIn) throws IOException
+	{
+		outIn.writeByte(this.mode.ordinal());
+		outIn.writeUTF((this.mode == Mode.REGEX) ? this.regex.pattern() : this.file.getPath());
+	}
+
+
+	/**
+	 * Restores an expectation written with {@link #writeTo(DataOutput)}
+	 *
+	 * @param inIn the source of the expectation
+	 *
+	 * @return the restored expectation
+	 * @throws IOException on error reading the expectation (or if it is malformed)
+	 */
+	public static ExpectedOutput readFrom(DataInput inIn) throws IOException
+	{
+		int modeOrdinal = inIn.readUnsignedByte();
+		if( modeOrdinal >= Mode.values().length ) throw new IOException(String.format("invalid expected output mode '%d'", modeOrdinal));
+		Mode mode = Mode.values()[modeOrdinal];
+		String value = inIn.readUTF();
+
+		try
+		{
+			return (mode == Mode.REGEX) ? new ExpectedOutput(mode, null, Pattern.compile(value)) : new ExpectedOutput(mode, new File(value), null);
+		}
+		catch( PatternSyntaxException e )
+		{
+			throw new IOException(String.format("invalid expected output regex '%s'", value));
+		}
+	}
+
+
+	/**
+	 * Parses the expected output from the given XML {@link Node}
+	 *
+	 * @param xmlFileIn the XML file from which the expectation is being parsed
+	 * @param testNameIn the name of the test for which the expectation is being parsed
+	 * @param nodeIn the {@link Node} describing the expectation
+	 *
+	 * @return the parsed expectation
+	 * @throws ParseException on error parsing the expectation
+	 */
+	public static ExpectedOutput parseExpectedOutput(File xmlFileIn, String testNameIn, Node nodeIn) throws ParseException
+	{
+		NamedNodeMap attributes = nodeIn.getAttributes();
+		Node fileNode = attributes.getNamedItem(ATTR_FILE);
+		Node regexFileNode = attributes.getNamedItem(ATTR_REGEX_FILE);
+		Node regexNode = attributes.getNamedItem(ATTR_REGEX);
+
+		int numSpecified = ((fileNode != null) ? 1 : 0) + ((regexFileNode != null) ? 1 : 0) + ((regexNode != null) ? 1 : 0);
+		if( numSpecified != 1 )
+		{
+			throw new ParseException(xmlFileIn, testNameIn, String.format("'%s' requires exactly one of '%s', '%s' or '%s'",
+					nodeIn.getNodeName(), ATTR_FILE, ATTR_REGEX_FILE, ATTR_REGEX));
+		}
+
+		if( regexNode != null )
+		{
+			try
+			{
+				return new ExpectedOutput(Mode.REGEX, null, Pattern.compile(regexNode.getNodeValue()));
+			}
+			catch( PatternSyntaxException e )
+			{
+				throw new ParseException(xmlFileIn, testNameIn, String.format("error parsing attribute '%s'::'%s'", ATTR_REGEX, regexNode.getNodeValue()));
+			}
+		}
+
+		Mode mode = (fileNode != null) ? Mode.FILE : Mode.REGEX_FILE;
+		File file = new File(((fileNode != null) ? fileNode : regexFileNode).getNodeValue());
+		if( !file.isAbsolute() ) file = new File(xmlFileIn.getAbsoluteFile().getParentFile(), file.getPath());
+		if( !file.isFile() ) throw new ParseException(xmlFileIn, testNameIn, String.format("expected output file '%s' does not exist", file.getPath()));
+
+		return new ExpectedOutput(mode, file, null);
+	}
+
+
+	private static String truncate(String strIn)
+	{
+		return (strIn.length() <= MAX_DISPLAY_LINE) ? strIn : strIn.substring(0, MAX_DISPLAY_LINE) + "...";
+	}
+}
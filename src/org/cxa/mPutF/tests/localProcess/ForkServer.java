@@ -0,0 +1,547 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.localProcess;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.ParseException;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Runs the cases of a {@link LocalProcessTest} in a warm, long-lived instance
+ * of its (native) executable which forks a fresh child per case, rather than
+ * executing the binary once per case...so exec, dynamic linking and the
+ * initialization of the program are paid for once per server. Enabled with a
+ * <code>&lt;forkServer startTimeout_s="10"/&gt;</code> node within the test options.
+ * <p>
+ * The first token of the executable is the server binary, the remaining tokens
+ * are the arguments of the case. The binary must call <code>mPutF_forkServer()</code>
+ * (see mPutF.h) once it is initialized: when started as a server (ie. with the
+ * {@link #ENV_FORK_SERVER} environment variable), the call waits on a control pipe
+ * and only ever returns in the forked child of each case, with the arguments
+ * (and environment) of that case. Otherwise, the call returns immediately, so the
+ * same binary can still be run directly.
+ * <p>
+ * Servers are pooled per binary...a server runs one case at a time, so as many
+ * servers are started as there are cases of the binary running concurrently.
+ * A server whose binary does not call <code>mPutF_forkServer()</code> within
+ * <code>startTimeout_s</code> is reported as an error of each of its cases.
+ *
+ * @author Christopher Armenio
+ */
+public class ForkServer
+{
+	public static final String NODE_NAME = "forkServer";
+	private static final String ATTR_START_TIMEOUT = "startTimeout_s";
+	private static final int DEFAULT_START_TIMEOUT_S = 10;
+
+	/** environment variable through which a server is given the directory of its control and status pipes */
+	public static final String ENV_FORK_SERVER = "MPUTF_FORK_SERVER";
+	private static final String FILE_CONTROL = "control";
+	private static final String FILE_STATUS = "status";
+	private static final String FILE_STDOUT = "stdout";
+	private static final String FILE_STDERR = "stderr";
+	private static final String FILE_LOG = "server.log";
+
+	private static final byte STATUS_STARTED = 'S';
+	private static final byte STATUS_EXITED = 'E';
+
+	private static Logger staticLogger = LogManager.getLogger("ForkServer");
+
+	private static final Map<String, Deque<Server>> idleServers = new HashMap<String, Deque<Server>>();
+	private static final Set<Server> allServers = new HashSet<Server>();
+	static
+	{
+		Runtime.getRuntime().addShutdownHook(new Thread("forkServerShutdown")
+		{
+			@Override
+			public void run()
+			{
+				shutdownAll();
+			}
+		});
+	}
+
+
+	/**
+	 * A running server, which runs one case at a time
+	 */
+	public static class Server
+	{
+		private final String binary;
+		private final File dir;
+		private final Process process;
+		private final File stdoutFifo;
+		private final File stderrFifo;
+		private DataOutputStream controlOut = null;
+		private DataInputStream statusIn = null;
+		private Integer casePid = null;
+		private boolean isBroken = false;
+
+		private Server(String binaryIn, File dirIn, Process processIn)
+		{
+			this.binary = binaryIn;
+			this.dir = dirIn;
+			this.process = processIn;
+			this.stdoutFifo = new File(dirIn, FILE_STDOUT);
+			this.stderrFifo = new File(dirIn, FILE_STDERR);
+		}
+
+		/**
+		 * @return the named pipe which receives the stdout of each case (opened
+		 * 		for writing by the server as the case starts)
+		 */
+		public File getStdoutFifo()
+		{
+			return this.stdoutFifo;
+		}
+
+		/**
+		 * @return the named pipe which receives the stderr of each case (opened
+		 * 		for writing by the server as the case starts)
+		 */
+		public File getStderrFifo()
+		{
+			return this.stderrFifo;
+		}
+
+		/**
+		 * Starts a case: the server forks a child whose stdout and stderr are
+		 * the pipes of this server (opened by the server before forking, so they
+		 * must already be read) and which continues with the given arguments and
+		 * (additional) environment
+		 *
+		 * @param argsIn the arguments of the case (argv[0] first)
+		 * @param environmentIn environment variables set in the child
+		 *
+		 * @return the pid of the child, or NULL if the server was unable to start the case
+		 * @throws IOException if the server is gone (it is then broken, see {@link #release()})
+		 */
+		public Integer startCase(String[] argsIn, Map<String, String> environmentIn) throws IOException
+		{
+			// the request: u32 length, u16 #args, u16 #environment, then NUL-terminated
+			// args, "name=value" environment, stdout path and stderr path
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			DataOutputStream payloadOut = new DataOutputStream(payload);
+			payloadOut.writeShort(argsIn.length);
+			payloadOut.writeShort(environmentIn.size());
+			for( String currArg : argsIn ) writeString(payloadOut, currArg);
+			for( Map.Entry<String, String> currEntry : environmentIn.entrySet() ) writeString(payloadOut, String.format("%s=%s", currEntry.getKey(), currEntry.getValue()));
+			writeString(payloadOut, this.stdoutFifo.getAbsolutePath());
+			writeString(payloadOut, this.stderrFifo.getAbsolutePath());
+
+			try
+			{
+				this.controlOut.writeInt(payload.size());
+				payload.writeTo(this.controlOut);
+				this.controlOut.flush();
+
+				// a server which can't start the case (eg. fork fails) reports its exit straight away
+				this.casePid = null;
+				byte status = this.statusIn.readByte();
+				int value = this.statusIn.readInt();
+				if( status == STATUS_EXITED ) return null;
+				if( status != STATUS_STARTED ) throw new IOException(String.format("unexpected status '%d'", status));
+				this.casePid = value;
+				return this.casePid;
+			}
+			catch( IOException e )
+			{
+				this.isBroken = true;
+				throw this.newServerException(e);
+			}
+		}
+
+		/**
+		 * This is a blocking function which waits for the child of the current case to exit
+		 *
+		 * @return the exit code of the child (128 + the signal number if it was killed by a signal)
+		 * @throws IOException if the server is gone (it is then broken, see {@link #release()})
+		 */
+		public int waitForExit() throws IOException
+		{
+			try
+			{
+				byte status = this.statusIn.readByte();
+				int value = this.statusIn.readInt();
+				if( status != STATUS_EXITED ) throw new IOException(String.format("unexpected status '%d'", status));
+				this.casePid = null;
+				return value;
+			}
+			catch( IOException e )
+			{
+				this.isBroken = true;
+				throw this.newServerException(e);
+			}
+		}
+
+		/**
+		 * Returns this server to the pool (or shuts it down, if it is broken
+		 * or its current case is still running)
+		 */
+		public void release()
+		{
+			if( this.isBroken || (this.casePid != null) )
+			{
+				this.shutdown();
+				return;
+			}
+
+			synchronized( idleServers )
+			{
+				Deque<Server> servers = idleServers.get(this.binary);
+				if( servers == null )
+				{
+					servers = new ArrayDeque<Server>();
+					idleServers.put(this.binary, servers);
+				}
+				servers.push(this);
+			}
+		}
+
+		/**
+		 * Stops this server (and the child of its current case, if any)
+		 */
+		public void shutdown()
+		{
+			synchronized( idleServers )
+			{
+				allServers.remove(this);
+			}
+
+			// the server exits once its control pipe is closed...but don't count on it
+			if( this.casePid != null ) kill(this.casePid);
+			closeQuietly(this.controlOut);
+			closeQuietly(this.statusIn);
+			this.process.destroy();
+			try
+			{
+				FileUtils.deleteDirectory(this.dir);
+			}
+			catch( IOException e )
+			{
+				staticLogger.warn(String.format("unable to remove '%s': %s", this.dir.getAbsolutePath(), e.getMessage()));
+			}
+		}
+
+		private IOException newServerException(IOException eIn)
+		{
+			String reason = (eIn instanceof EOFException) ? "exited unexpectedly" : eIn.getMessage();
+			return new IOException(String.format("fork server '%s' %s (see '%s')", this.binary, reason, new File(this.dir, FILE_LOG).getAbsolutePath()));
+		}
+	}
+
+
+	private final int startTimeout_s;
+
+
+	private ForkServer(int startTimeout_sIn)
+	{
+		this.startTimeout_s = startTimeout_sIn;
+	}
+
+
+	/**
+	 * Returns an idle server of the given binary, starting a new one if none is idle
+	 *
+	 * @param binaryIn the (server) binary
+	 *
+	 * @return a server which is running no case (to be returned with {@link Server#release()})
+	 * @throws IOException if a new server could not be started
+	 */
+	public Server acquire(String binaryIn) throws IOException
+	{
+		synchronized( idleServers )
+		{
+			Deque<Server> servers = idleServers.get(binaryIn);
+			if( (servers != null) && !servers.isEmpty() ) return servers.pop();
+		}
+		return this.startServer(binaryIn);
+	}
+
+
+	private Server startServer(String binaryIn) throws IOException
+	{
+		File dir = Files.createTempDirectory("mPutF-forkServer-").toFile();
+		final File controlFifo = new File(dir, FILE_CONTROL);
+		final File statusFifo = new File(dir, FILE_STATUS);
+		Process process;
+		try
+		{
+			ResultChannel.createFifo(controlFifo);
+			ResultChannel.createFifo(statusFifo);
+
+			// the output of the server itself (ie. its initialization) is kept aside
+			ProcessBuilder pb = new ProcessBuilder(binaryIn);
+			pb.environment().put(ENV_FORK_SERVER, dir.getAbsolutePath());
+			pb.redirectErrorStream(true);
+			pb.redirectOutput(new File(dir, FILE_LOG));
+			process = pb.start();
+		}
+		catch( IOException e )
+		{
+			FileUtils.deleteDirectory(dir);
+			throw e;
+		}
+		staticLogger.trace(String.format("started fork server '%s' in '%s'", binaryIn, dir.getAbsolutePath()));
+
+		// open our ends of the pipes...which blocks until the server opens its ends
+		final Server retVal = new Server(binaryIn, dir, process);
+		try
+		{
+			ResultChannel.createFifo(retVal.stdoutFifo);
+			ResultChannel.createFifo(retVal.stderrFifo);
+		}
+		catch( IOException e )
+		{
+			retVal.shutdown();
+			throw e;
+		}
+		final IOException[] openError = new IOException[1];
+		Thread opener = new Thread(String.format("forkServer-%s", dir.getName()))
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					retVal.controlOut = new DataOutputStream(new FileOutputStream(controlFifo));
+					retVal.statusIn = new DataInputStream(new FileInputStream(statusFifo));
+				}
+				catch( IOException e )
+				{
+					openError[0] = e;
+				}
+			}
+		};
+		opener.setDaemon(true);
+		opener.start();
+
+		String failure = null;
+		long deadline = System.currentTimeMillis() + (this.startTimeout_s * 1000L);
+		try
+		{
+			while( opener.isAlive() && (failure == null) )
+			{
+				opener.join(50);
+				if( hasExited(process) ) failure = "exited before it started serving";
+				else if( System.currentTimeMillis() > deadline ) failure = String.format("did not start serving within %d seconds", this.startTimeout_s);
+			}
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			failure = "was interrupted while starting";
+		}
+		if( (failure == null) && (openError[0] != null) ) failure = openError[0].getMessage();
+
+		if( failure != null )
+		{
+			// release our opener (if it is still blocked, on either pipe) before we clean up
+			try
+			{
+				for( int i = 0; (i < 20) && opener.isAlive(); i++ )
+				{
+					ResultChannel.release(controlFifo);
+					ResultChannel.release(statusFifo);
+					opener.join(50);
+				}
+			}
+			catch( InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			closeQuietly(retVal.controlOut);
+			closeQuietly(retVal.statusIn);
+			String log = readLog(new File(dir, FILE_LOG));
+			retVal.shutdown();
+			throw new IOException(String.format("fork server '%s' %s (does it call mPutF_forkServer()?)%s", binaryIn, failure,
+					log.isEmpty() ? "" : String.format(": %s", log)));
+		}
+
+		synchronized( idleServers )
+		{
+			allServers.add(retVal);
+		}
+		return retVal;
+	}
+
+
+	/**
+	 * Stops all servers (idle or not)
+	 */
+	public static void shutdownAll()
+	{
+		Set<Server> servers;
+		synchronized( idleServers )
+		{
+			servers = new HashSet<Server>(allServers);
+			idleServers.clear();
+		}
+		for( Server currServer : servers ) currServer.shutdown();
+	}
+
+
+	/**
+	 * Kills the given process (eg. the child of a case which timed out)
+	 *
+	 * @param pidIn the pid of the process
+	 */
+	static void kill(int pidIn)
+	{
+		try
+		{
+			new ProcessBuilder("kill", "-KILL", Integer.toString(pidIn)).redirectErrorStream(true).start().waitFor();
+		}
+		catch( IOException e )
+		{
+			staticLogger.warn(String.format("unable to kill process '%d': %s", pidIn, e.getMessage()));
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Writes this fork server configuration in a compact binary form which
+	 * can be restored with {@link #readFrom(DataInput)}
+	 *
+	 * @param outIn the destination of the configuration
+	 *
+	 * @throws IOException on error writing the configuration
+	 */
+	public void writeTo(DataOutput outIn) throws IOException
+	{
+		outIn.writeInt(this.startTimeout_s);
+	}
+
+
+	/**
+	 * Restores a fork server configuration written with {@link #writeTo(DataOutput)}
+	 *
+	 * @param inIn the source of the configuration
+	 *
+	 * @return the restored configuration
+	 * @throws IOException on error reading the configuration
+	 */
+	public static ForkServer readFrom(DataInput inIn) throws IOException
+	{
+		return new ForkServer(inIn.readInt());
+	}
+
+
+	/**
+	 * Parses a fork server configuration from the given XML {@link Node}
+	 *
+	 * @param xmlFileIn the XML file from which this configuration is being parsed
+	 * @param testNameIn the name of the test for which this configuration is being parsed
+	 * @param forkServerNodeIn the {@link Node} describing this configuration
+	 *
+	 * @return the parsed configuration
+	 * @throws ParseException on error parsing the configuration
+	 */
+	public static ForkServer parseForkServer(File xmlFileIn, String testNameIn, Node forkServerNodeIn) throws ParseException
+	{
+		NamedNodeMap attributes = forkServerNodeIn.getAttributes();
+		Node startTimeoutNode = attributes.getNamedItem(ATTR_START_TIMEOUT);
+
+		int startTimeout_s = DEFAULT_START_TIMEOUT_S;
+		if( startTimeoutNode != null )
+		{
+			try
+			{
+				startTimeout_s = Integer.parseInt(startTimeoutNode.getNodeValue());
+			}
+			catch( NumberFormatException e )
+			{
+				startTimeout_s = -1;
+			}
+			if( startTimeout_s <= 0 ) throw new ParseException(xmlFileIn, testNameIn, String.format("error parsing attribute '%s'::'%s'", ATTR_START_TIMEOUT, startTimeoutNode.getNodeValue()));
+		}
+
+		return new ForkServer(startTimeout_s);
+	}
+
+
+	private static void writeString(DataOutputStream outIn, String strIn) throws IOException
+	{
+		outIn.write(strIn.getBytes(StandardCharsets.UTF_8));
+		outIn.write(0);
+	}
+
+
+	private static boolean hasExited(Process processIn)
+	{
+		try
+		{
+			processIn.exitValue();
+			return true;
+		}
+		catch( IllegalThreadStateException e )
+		{
+			return false;
+		}
+	}
+
+
+	private static String readLog(File logIn)
+	{
+		try
+		{
+			String retVal = FileUtils.readFileToString(logIn, StandardCharsets.UTF_8).trim();
+			return (retVal.length() > 1024) ? retVal.substring(retVal.length() - 1024) : retVal;
+		}
+		catch( IOException e )
+		{
+			return "";
+		}
+	}
+
+
+	private static void closeQuietly(Closeable closeableIn)
+	{
+		if( closeableIn == null ) return;
+		try
+		{
+			closeableIn.close();
+		}
+		catch( IOException e ) { }
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.localProcess;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.tests.localProcess.LocalProcessTest.TestOutput;
+
+/**
+ * A {@link TestRunner} which runs the process as a case of a {@link ForkServer}
+ * (ie. as a child forked by a warm instance of the binary) rather than
+ * executing it. The stdout and stderr of the child are received over named
+ * pipes, so they are pumped exactly like the output of an executed process.
+ *
+ * @author Christopher Armenio
+ */
+class ForkServerTestRunner extends TestRunner
+{
+	/**
+	 * An {@link InputStream} over a named pipe which is only opened (which
+	 * blocks until the pipe has a writer) once it is first read...by the pump thread
+	 */
+	private static class FifoInputStream extends InputStream
+	{
+		private final File fifo;
+		private InputStream is = null;
+
+		private FifoInputStream(File fifoIn)
+		{
+			this.fifo = fifoIn;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if( this.is == null ) this.is = new FileInputStream(this.fifo);
+			return this.is.read();
+		}
+
+		@Override
+		public int read(byte[] bufIn, int offIn, int lenIn) throws IOException
+		{
+			if( this.is == null ) this.is = new FileInputStream(this.fifo);
+			return this.is.read(bufIn, offIn, lenIn);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if( this.is != null ) this.is.close();
+		}
+	}
+
+
+	private final ForkServer forkServer;
+
+	private Integer casePid = null;
+	private volatile boolean isStopped = false;
+	private Logger logger = null;
+
+
+	/**
+	 * Initializes the test runner with the given executable
+	 *
+	 * @param forkServerIn the configuration of the servers of the executable
+	 * @param executableIn the executable command to execute (the server binary followed by the arguments of the case)
+	 */
+	ForkServerTestRunner(ForkServer forkServerIn, String executableIn)
+	{
+		super(executableIn);
+		this.forkServer = forkServerIn;
+
+		this.logger = LogManager.getLogger(this.getClass().getSimpleName());
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.localProcess.TestRunner#stop()
+	 */
+	@Override
+	public void stop()
+	{
+		// we're blocked on the server (rather than on a process of our own)...kill the child
+		synchronized( this )
+		{
+			this.isStopped = true;
+			if( this.casePid != null ) ForkServer.kill(this.casePid);
+		}
+		super.stop();
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.localProcess.TestRunner#run()
+	 */
+	@Override
+	public void run()
+	{
+		String[] command = this.getCommand();
+		ForkServer.Server server = null;
+		File stdoutFifo = null;
+		File stderrFifo = null;
+		StreamPump stdoutPump = null;
+		StreamPump stderrPump = null;
+		Thread stdoutThread = null;
+		Thread stderrThread = null;
+		TestOutput tmpResult = null;
+
+		try
+		{
+			this.logger.trace(String.format("testing thread started...running case on fork server '%s'", command[0]));
+			server = this.forkServer.acquire(command[0]);
+
+			// the server opens its pipes (for the child) before it forks...so they must be drained first
+			stdoutFifo = server.getStdoutFifo();
+			stderrFifo = server.getStderrFifo();
+			stdoutPump = this.createStdoutPump(new FifoInputStream(stdoutFifo));
+			stderrPump = this.createStderrPump(new FifoInputStream(stderrFifo));
+			stdoutThread = new Thread(stdoutPump, Thread.currentThread().getName() + "-stdout");
+			stderrThread = new Thread(stderrPump, Thread.currentThread().getName() + "-stderr");
+			stdoutThread.start();
+			stderrThread.start();
+
+			Integer pid = server.startCase(command, this.getExtraEnvironment());
+			if( pid == null ) throw new IOException(String.format("fork server '%s' was unable to start the case", command[0]));
+			synchronized( this )
+			{
+				this.casePid = pid;
+				this.setPid(pid);
+				if( this.isStopped ) ForkServer.kill(pid);
+			}
+
+			this.logger.trace(String.format("case started (pid %d)...waiting for finish", pid));
+			int retCode = server.waitForExit();
+			synchronized( this )
+			{
+				this.casePid = null;
+				this.setPid(null);
+			}
+			this.logger.trace("case finished");
+
+			// wait for the rest of our streams...the next case of the server reuses its pipes
+			stdoutThread.join();
+			stderrThread.join();
+			server.release();
+			server = null;
+
+			// create our result
+			if( this.isStopped ) throw new InterruptedException("case was stopped");
+			tmpResult = new TestOutput(retCode, stdoutPump.getCapturedText(), stderrPump.getCapturedText());
+		}
+		catch( Exception e )
+		{
+			this.logger.warn(String.format("error '%s'", e.getMessage()));
+			this.setPid(null);
+
+			// there was an error at some point (or we were stopped)...release our pumps (if
+			// the child never started) and recover what we can of our streams before the
+			// server is reused (or shut down, if it is broken or its child is still running)
+			if( stdoutFifo != null ) ResultChannel.release(stdoutFifo);
+			if( stderrFifo != null ) ResultChannel.release(stderrFifo);
+			String stdout = joinPump(stdoutThread, stdoutPump);
+			String stderr = joinPump(stderrThread, stderrPump);
+			if( server != null ) server.release();
+
+			// save our exception for later processing
+			tmpResult = new TestOutput(e, stdout, stderr);
+		}
+
+		// save our result
+		this.setTestOutput(tmpResult);
+
+		this.logger.trace("testing thread finished");
+	}
+}
@@ -15,17 +15,21 @@
  */
 package org.cxa.mPutF.tests.localProcess;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
-import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.cxa.mPutF.ParseException;
 import org.cxa.mPutF.bindingOutputParser.BindingOutputParser;
 import org.cxa.mPutF.bindingOutputParser.BindingOutputParser.Assertion;
 import org.cxa.mPutF.bindings.mPutF;
+import org.cxa.mPutF.tests.PerformanceBudget;
 import org.cxa.mPutF.tests.Test;
+import org.cxa.mPutF.tests.TestCaseResult;
+import org.cxa.mPutF.tests.TimeBudget;
 import org.cxa.timeUtils.TimeDiff;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -41,41 +45,103 @@ public class LocalProcessTest extends Test
 	public static final String TEST_TYPE_STR = "localProcess";
 	private static final String NODE_EXECUTABLE = "executable";
 	
+	/** the number of trailing bytes of a stream kept for the report when its output is being matched */
+	private static final int MAX_MATCHED_CAPTURE_BYTES = 64 * 1024;
 	
-	protected static class TestOutput
+	
+	/**
+	 * The outcome of running the process of a test (see {@link TestRunner})
+	 */
+	public static class TestOutput
 	{
 		final String stdout;
 		final String stderr;
 		final Integer retCode;
 		final Exception e;
+		final boolean timedOut;
 		
-		protected TestOutput(int retCodeIn, String stdoutIn, String stderrIn)
+		public TestOutput(int retCodeIn, String stdoutIn, String stderrIn)
 		{
 			this.e = null;
 			this.retCode = retCodeIn;
 			this.stdout = stdoutIn;
 			this.stderr = stderrIn;
+			this.timedOut = false;
 		}
 		
-		protected TestOutput(Exception eIn, String stdoutIn, String stderrIn)
+		public TestOutput(Exception eIn, String stdoutIn, String stderrIn)
 		{
 			this.e = eIn;
 			this.retCode = null;
 			this.stdout = stdoutIn;
 			this.stderr = stderrIn;
+			this.timedOut = false;
 		}
 		
-		protected TestOutput(Exception eIn)
+		public TestOutput(Exception eIn)
 		{
 			this.e = eIn;
 			this.retCode = null;
 			this.stdout = null;
 			this.stderr = null;
+			this.timedOut = false;
+		}
+		
+		/**
+		 * Creates the output of a process which was stopped because it timed out
+		 * (by whoever enforces the timeout on our behalf, eg. an agent)
+		 */
+		public TestOutput(String stdoutIn, String stderrIn)
+		{
+			this.e = null;
+			this.retCode = null;
+			this.stdout = stdoutIn;
+			this.stderr = stderrIn;
+			this.timedOut = true;
+		}
+		
+		/**
+		 * @return the exit code of the process, or NULL if it did not exit (see {@link #getException()})
+		 */
+		public Integer getRetCode()
+		{
+			return this.retCode;
+		}
+		
+		/**
+		 * @return the exception which prevented the process from completing, or NULL
+		 */
+		public Exception getException()
+		{
+			return this.e;
+		}
+		
+		/**
+		 * @return the captured stdout of the process (may be NULL)
+		 */
+		public String getStdout()
+		{
+			return this.stdout;
+		}
+		
+		/**
+		 * @return the captured stderr of the process (may be NULL)
+		 */
+		public String getStderr()
+		{
+			return this.stderr;
 		}
 	}
 	
 	
 	private String executable = null;
+	private Sandbox sandbox = null;
+	private ExpectedOutput expectedStdout = null;
+	private ExpectedOutput expectedStderr = null;
+	private boolean useResultChannel = false;
+	private Profiler profiler = null;
+	private OutputTimeline outputTimeline = null;
+	private ForkServer forkServer = null;
 	
 	
 	/**
@@ -90,15 +156,33 @@ public class LocalProcessTest extends Test
 	 * @throws ParseException on error parsing the XML options for this test
 	 */
 	public LocalProcessTest(String nameIn, String descIn, Integer maxTestTime_msIn, File xmlFileIn, Node optsNodeIn) throws ParseException
+	{
+		this(nameIn, descIn, maxTestTime_msIn, xmlFileIn, optsNodeIn, null);
+	}
+	
+	
+	/**
+	 * Creates a local process test from the given arguments
+	 * 
+	 * @param nameIn the name of this test
+	 * @param descIn a user-friendly description of this test
+	 * @param maxTestTime_msIn max time, in milliseconds, for which this test should run
+	 * @param xmlFileIn the XML file from which this test was parsed
+	 * @param optsNodeIn a {@link Node} which contains the test options XML node
+	 * @param defaultProfilerIn the profiler to use if the test does not specify one (may be NULL)
+	 * 
+	 * @throws ParseException on error parsing the XML options for this test
+	 */
+	public LocalProcessTest(String nameIn, String descIn, Integer maxTestTime_msIn, File xmlFileIn, Node optsNodeIn, Profiler defaultProfilerIn) throws ParseException
 	{
 		super(nameIn, descIn, maxTestTime_msIn);
+		this.profiler = defaultProfilerIn;
 		
 		// we _need_ an options node
-		this.logger.trace("looking for options node");
 		if( optsNodeIn == null ) throw new ParseException(xmlFileIn, this.getName(), "no test options specified");
 		
 		// if we made it here...we at least have an options section...check it out
-		this.logger.trace("parsing options node");
+		boolean hasOwnProfiler = false;
 		{
 			// we have options...let's see if they make sense
 			NodeList childNodes = optsNodeIn.getChildNodes();
@@ -109,7 +193,41 @@ public class LocalProcessTest extends Test
 				{
 					// parse the executable
 					this.executable = currNode.getTextContent();
-					this.logger.trace(String.format("parsed executable '%s'", this.executable));
+				}
+				else if( currNode.getNodeName().equals(Sandbox.NODE_NAME) )
+				{
+					// note: this may throw a parse exception
+					this.sandbox = Sandbox.parseSandbox(xmlFileIn, this.getName(), currNode);
+				}
+				else if( currNode.getNodeName().equals(ExpectedOutput.NODE_EXPECTED_STDOUT) )
+				{
+					// note: this may throw a parse exception
+					this.expectedStdout = ExpectedOutput.parseExpectedOutput(xmlFileIn, this.getName(), currNode);
+				}
+				else if( currNode.getNodeName().equals(ResultChannel.NODE_NAME) )
+				{
+					this.useResultChannel = true;
+				}
+				else if( currNode.getNodeName().equals(OutputTimeline.NODE_NAME) )
+				{
+					// note: this may throw a parse exception
+					this.outputTimeline = OutputTimeline.parseOutputTimeline(xmlFileIn, this.getName(), currNode);
+				}
+				else if( currNode.getNodeName().equals(Profiler.NODE_NAME) )
+				{
+					// note: this may throw a parse exception
+					this.profiler = Profiler.parseProfiler(xmlFileIn, this.getName(), currNode);
+					hasOwnProfiler = (this.profiler != null);
+				}
+				else if( currNode.getNodeName().equals(ForkServer.NODE_NAME) )
+				{
+					// note: this may throw a parse exception
+					this.forkServer = ForkServer.parseForkServer(xmlFileIn, this.getName(), currNode);
+				}
+				else if( currNode.getNodeName().equals(ExpectedOutput.NODE_EXPECTED_STDERR) )
+				{
+					// note: this may throw a parse exception
+					this.expectedStderr = ExpectedOutput.parseExpectedOutput(xmlFileIn, this.getName(), currNode);
 				}
 			}
 		}
@@ -117,145 +235,438 @@ public class LocalProcessTest extends Test
 		// the only option we _need_ is the executable
 		if( this.executable == null ) throw new ParseException(xmlFileIn, this.getName(), String.format("missing node '%s'", NODE_EXECUTABLE));
 		
-		this.logger.trace("test parsed successfully");
+		// the cases of a fork server are forked, not executed...so they can't be wrapped
+		if( this.forkServer != null )
+		{
+			if( this.sandbox != null ) throw new ParseException(xmlFileIn, this.getName(), String.format("'%s' can not be combined with '%s'", Sandbox.NODE_NAME, ForkServer.NODE_NAME));
+			if( hasOwnProfiler ) throw new ParseException(xmlFileIn, this.getName(), String.format("'%s' can not be combined with '%s'", Profiler.NODE_NAME, ForkServer.NODE_NAME));
+			this.profiler = null;
+		}
+	}
+	
+	
+	/**
+	 * Restores a local process test from a plan (see {@link Test#readPlan(File, DataInput)})
+	 * 
+	 * @param nameIn the name of this test
+	 * @param descIn a user-friendly description of this test
+	 * @param maxTestTime_sIn max time, in seconds, for which this test should run
+	 * @param inIn the source of the options written by {@link #writeOptions(DataOutput)}
+	 * 
+	 * @throws IOException on error reading the options
+	 */
+	public LocalProcessTest(String nameIn, String descIn, Integer maxTestTime_sIn, DataInput inIn) throws IOException
+	{
+		super(nameIn, descIn, maxTestTime_sIn);
+		
+		this.executable = inIn.readUTF();
+		if( inIn.readBoolean() ) this.sandbox = Sandbox.readFrom(inIn);
+		if( inIn.readBoolean() ) this.expectedStdout = ExpectedOutput.readFrom(inIn);
+		if( inIn.readBoolean() ) this.expectedStderr = ExpectedOutput.readFrom(inIn);
+		this.useResultChannel = inIn.readBoolean();
+		if( inIn.readBoolean() ) this.profiler = Profiler.readFrom(inIn);
+		if( inIn.readBoolean() ) this.outputTimeline = OutputTimeline.readFrom(inIn);
+		if( inIn.readBoolean() ) this.forkServer = ForkServer.readFrom(inIn);
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.Test#getTestType()
+	 */
+	@Override
+	public String getTestType()
+	{
+		return TEST_TYPE_STR;
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.Test#writeOptions(java.io.DataOutput)
+	 */
+	@Override
+	protected void writeOptions(DataOutput outIn) throws IOException
+	{
+		outIn.writeUTF(this.executable);
+		outIn.writeBoolean(this.sandbox != null);
+		if( this.sandbox != null ) this.sandbox.writeTo(outIn);
+		outIn.writeBoolean(this.expectedStdout != null);
+		if( this.expectedStdout != null ) this.expectedStdout.writeTo(outIn);
+		outIn.writeBoolean(this.expectedStderr != null);
+		if( this.expectedStderr != null ) this.expectedStderr.writeTo(outIn);
+		outIn.writeBoolean(this.useResultChannel);
+		outIn.writeBoolean(this.profiler != null);
+		if( this.profiler != null ) this.profiler.writeTo(outIn);
+		outIn.writeBoolean(this.outputTimeline != null);
+		if( this.outputTimeline != null ) this.outputTimeline.writeTo(outIn);
+		outIn.writeBoolean(this.forkServer != null);
+		if( this.forkServer != null ) this.forkServer.writeTo(outIn);
 	}
 
 
 	/*
 	 * (non-Javadoc)
-	 * @see org.cxa.mPutF.tests.Test#runTest(org.w3c.dom.Document, org.w3c.dom.Element)
+	 * @see org.cxa.mPutF.tests.Test#isRepeatable()
+	 */
+	@Override
+	public boolean isRepeatable()
+	{
+		// every attempt is its own process (with its own sandbox, result channel, etc)...but the
+		// files of a profile or an output timeline are named after the test, so attempts would share them
+		if( this.profiler != null ) return false;
+		if( (this.outputTimeline != null) && (this.outputTimeline.getFile(this.getName()) != null) ) return false;
+		return true;
+	}
+	
+	
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.Test#runAttempt()
 	 */
 	@Override
-	public void runTest(Document xmlDocIn, Element parentElementIn)
+	protected TestCaseResult runAttempt()
 	{
-		Element testXmlElement = xmlDocIn.createElement("testcase");
-		testXmlElement.setAttribute("classname", "org.cxa.wtf");
-		testXmlElement.setAttribute("name", this.getName());
+		TestCaseResult retVal = new TestCaseResult(this.getName());
 		
-		TestRunner tr = new TestRunner(this.executable);
-		TimeDiff testTimer = new TimeDiff();
-		TestOutput result = null;
-		long testDuration_ms = 0;
+		// set up our isolated environment (if any)
+		Sandbox.Instance sandboxInstance = null;
+		if( this.sandbox != null )
+		{
+			try
+			{
+				sandboxInstance = this.sandbox.createInstance(this.getName());
+			}
+			catch( IOException e )
+			{
+				this.getLogger().trace(String.format("unable to create sandbox '%s'", e.getMessage()));
+				retVal.setError("isolationError", e.getMessage());
+				return retVal;
+			}
+		}
 		
-		// start our test and see how it goes...
-		this.logger.trace("starting test");
-		tr.startTest();
-		while(true)
+		ResultChannel resultChannel = null;
+		try
 		{
-			if( !tr.isRunning() )
+			// profile the process (if requested) without changing its executable
+			Profiler.Instance profilerInstance = (this.profiler != null) ? this.profiler.createInstance(this.getName()) : null;
+			TestRunner tr = this.createTestRunner(((profilerInstance != null) ? profilerInstance.wrapCommand(this.executable) : this.executable), sandboxInstance);
+			if( profilerInstance != null ) profilerInstance.prepare(tr);
+			
+			// compare our output as it arrives (if requested)
+			ExpectedOutput.Matcher stdoutMatcher = null;
+			ExpectedOutput.Matcher stderrMatcher = null;
+			try
+			{
+				if( this.expectedStdout != null ) stdoutMatcher = this.expectedStdout.createMatcher();
+				if( this.expectedStderr != null ) stderrMatcher = this.expectedStderr.createMatcher();
+			}
+			catch( IOException e )
+			{
+				this.getLogger().trace(String.format("unable to open expected output '%s'", e.getMessage()));
+				retVal.setError("expectedOutputError", e.getMessage());
+				return retVal;
+			}
+			
+			// record both streams as a single (interleaved, timestamped) timeline (if requested), and
+			// watch them for activity (and for a mismatch) as they arrive
+			final Watchdog watchdog = new Watchdog();
+			final AtomicLong outputBytes = new AtomicLong(0);
+			OutputTimeline.Recorder timelineRecorder = (this.outputTimeline != null) ? this.outputTimeline.createRecorder() : null;
+			StreamPump.OutputListener stdoutListener = (timelineRecorder != null) ? timelineRecorder.recordStdout(stdoutMatcher) : stdoutMatcher;
+			tr.setStdoutListener(watchOutput(watchdog, outputBytes, stdoutListener, stdoutMatcher), ((stdoutMatcher != null) ? MAX_MATCHED_CAPTURE_BYTES : -1));
+			
+			// parse the binding output (assertions, checks, sub-tests) as it arrives...either
+			// from the dedicated result channel (if requested and possible) or from stderr
+			final BindingOutputParser.StreamParser bindingParser = new BindingOutputParser.StreamParser();
+			if( this.useResultChannel )
+			{
+				try
+				{
+					resultChannel = ResultChannel.create(this.getName(), bindingParser);
+					tr.setEnvironmentVariable(mPutF.ENV_RESULT_CHANNEL, resultChannel.getPath());
+					resultChannel.start();
+				}
+				catch( IOException e )
+				{
+					this.getLogger().warn(String.format("unable to create result channel '%s'...parsing stderr instead", e.getMessage()));
+				}
+			}
+			final boolean parseStderr = (resultChannel == null);
+			final ExpectedOutput.Matcher stderrDelegate = stderrMatcher;
+			StreamPump.OutputListener stderrListener = new StreamPump.OutputListener()
+			{
+				@Override
+				public void outputReceived(byte[] bufIn, int lenIn)
+				{
+					if( parseStderr ) bindingParser.parse(bufIn, lenIn);
+					if( stderrDelegate != null ) stderrDelegate.outputReceived(bufIn, lenIn);
+				}
+			
+				@Override
+				public void outputClosed()
+				{
+					if( parseStderr ) bindingParser.finish();
+					if( stderrDelegate != null ) stderrDelegate.outputClosed();
+				}
+			};
+			tr.setStderrListener(watchOutput(watchdog, outputBytes, ((timelineRecorder != null) ? timelineRecorder.recordStderr(stderrListener) : stderrListener), stderrMatcher),
+					((stderrMatcher != null) ? MAX_MATCHED_CAPTURE_BYTES : -1));
+			tr.setFinishListener(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					watchdog.trip(Watchdog.Trigger.FINISHED);
+				}
+			});
+			TimeBudget timeBudget = this.getTimeBudget();
+			PerformanceBudget performanceBudget = this.getPerformanceBudget();
+			ResourceMonitor resourceMonitor = null;
+			if( this.isMeasuringResourceUsage() && ResourceMonitor.isSupported() ) resourceMonitor = new ResourceMonitor(tr);
+			TimeDiff testTimer = new TimeDiff();
+			TestOutput result = null;
+			long testDuration_ms = 0;
+			
+			// start our test and sleep until it finishes (or until we need to stop it)
+			this.getLogger().trace("starting test");
+			if( timelineRecorder != null ) timelineRecorder.start();
+			tr.startTest();
+			if( this.getMaxTextTime_s() != null ) watchdog.setTimeout((this.getMaxTextTime_s() * 1000) + this.getTimeoutGrace_ms(), Watchdog.Trigger.TIMEOUT);
+			if( this.getInactivityTimeout_s() != null ) watchdog.setInactivityTimeout((this.getInactivityTimeout_s() * 1000) + this.getTimeoutGrace_ms());
+			if( timeBudget != null ) watchdog.setTimeout(timeBudget.getRemaining_ms(), Watchdog.Trigger.BUDGET_EXHAUSTED);
+			if( resourceMonitor != null ) watchdog.setPeriodicTask(resourceMonitor, ResourceMonitor.SAMPLE_PERIOD_MS);
+			Watchdog.Trigger trigger;
+			try
+			{
+				trigger = watchdog.await();
+			}
+			catch( InterruptedException e )
+			{
+				// we've been asked to give up (eg. another copy of this test failed)
+				trigger = null;
+			}
+			testDuration_ms = testTimer.getElapsedTime_ms();
+			if( trigger != Watchdog.Trigger.FINISHED )
+			{
+				// no need to wait for the rest of the test...stop it now
+				this.getLogger().trace(String.format("test %s...terminating", ((trigger != null) ? trigger : "interrupted")));
+				tr.stop();
+			}
+			result = tr.getTestOutput();
+			if( resultChannel != null ) resultChannel.close();
+			
+			// (a cgroup, if any, measures exactly...it must be read before the sandbox is cleaned up)
+			long cpu_ms = (resourceMonitor != null) ? resourceMonitor.getCpu_ms() : -1;
+			long peakRss_bytes = (resourceMonitor != null) ? resourceMonitor.getPeakRss_bytes() : -1;
+			if( (sandboxInstance != null) && (sandboxInstance.getCpuUsage_ms() >= 0) ) cpu_ms = sandboxInstance.getCpuUsage_ms();
+			if( (sandboxInstance != null) && (sandboxInstance.getPeakMemory_bytes() >= 0) ) peakRss_bytes = sandboxInstance.getPeakMemory_bytes();
+			
+			if( trigger == null )
+			{
+				retVal.setError(TestCaseResult.ERROR_TYPE_INTERRUPTED, "test was stopped before it completed");
+			}
+			else if( trigger == Watchdog.Trigger.MISMATCH )
+			{
+				retVal.setFailure(getMismatchType(stdoutMatcher), getMismatch(stdoutMatcher, stderrMatcher));
+			}
+			else if( trigger == Watchdog.Trigger.TIMEOUT )
+			{
+				testDuration_ms = this.getMaxTextTime_s() * 1000;
+				retVal.setError(TestCaseResult.ERROR_TYPE_TIMEOUT, String.format("test did not complete within %d seconds", this.getMaxTextTime_s()));
+			}
+			else if( trigger == Watchdog.Trigger.INACTIVITY )
+			{
+				retVal.setError(TestCaseResult.ERROR_TYPE_INACTIVITY, String.format("test produced no output for %d seconds", this.getInactivityTimeout_s()));
+			}
+			else if( trigger == Watchdog.Trigger.BUDGET_EXHAUSTED )
+			{
+				retVal.setError(TestCaseResult.ERROR_TYPE_BUDGET_EXHAUSTED, timeBudget.getExhaustedMessage());
+			}
+			else if( result.e != null )
 			{
 				// test finished (didn't time out)...see if it was normal
-				testDuration_ms = testTimer.getElapsedTime_ms();
-				result = tr.getTestOutput();
+				this.getLogger().trace(String.format("exception occurred during test '%s'", result.e.getMessage()));
+				retVal.setError("internalException", result.e.getMessage());
+			}
+			else if( result.timedOut )
+			{
+				this.getLogger().trace("test timed out (stopped on our behalf)");
+				testDuration_ms = this.getMaxTextTime_s() * 1000;
+				retVal.setError(TestCaseResult.ERROR_TYPE_TIMEOUT, String.format("test did not complete within %d seconds", this.getMaxTextTime_s()));
+			}
+			else if( getMismatch(stdoutMatcher, stderrMatcher) != null )
+			{
+				// the output is the contract of the test...it takes precedence over the retCode
+				this.getLogger().trace("test output does not match expected output");
+				retVal.setFailure(getMismatchType(stdoutMatcher), getMismatch(stdoutMatcher, stderrMatcher));
+			}
+			else
+			{
+				this.getLogger().trace("test finished of its own volition");
+				switch(result.retCode)
+				{
+					case 0:
+						// test passed
+						this.getLogger().trace("test passed");
+						break;
 				
-				if( result.e != null )
+					case mPutF.EXIT_CODE:
+						// test had an assert
+						this.getLogger().trace("retCode matches assert");
+						Assertion assertion = BindingOutputParser.getFirstFatalAssertion(bindingParser.getAssertions(true));
+						if( assertion == null )
+						{
+							retVal.setError("possibleAssertion", "retCode matches assertion, but unable to parse assertion output");
+						}
+						else
+						{
+							retVal.setFailure(assertion);
+						}
+						break;
+				
+					default:
+						// unknown return code
+						this.getLogger().trace("unknown retCode");
+						retVal.setError("unknownRetCode", String.format("process exited with unknown retCode [%d]", result.retCode));
+						break;
+				}
+			}
+			
+			// an OOM kill explains whatever the test reported...throttling (normal under a quota) only
+			// explains a test which was stopped for being too slow, and is reported alongside that
+			if( sandboxInstance != null )
+			{
+				boolean wasStopped = (trigger == Watchdog.Trigger.TIMEOUT) || (trigger == Watchdog.Trigger.INACTIVITY) || result.timedOut;
+				String limitBreach = sandboxInstance.getLimitBreach(wasStopped);
+				if( limitBreach != null ) this.getLogger().trace(String.format("resource limit breached '%s'", limitBreach));
+				if( Sandbox.ERROR_TYPE_OOM_KILLED.equals(limitBreach) )
 				{
-					this.logger.trace(String.format("exception occurred during test '%s'", result.e.getMessage()));
-					this.testResult = TestResult.TEST_RESULT_ERROR;
-					reportError(xmlDocIn, testXmlElement, "internalException", result.e.getMessage());
+					retVal.setError(limitBreach, String.format("test exceeded its resource limits (%s)", limitBreach));
 				}
-				else
+				else if( limitBreach != null )
 				{
-					this.logger.trace("test finished of its own volition");
-					switch(result.retCode)
-					{
-						case 0:
-							// test passed
-							this.logger.trace("test passed");
-							break;
-						
-						case mPutF.EXIT_CODE:
-							// test had an assert
-							this.logger.trace("retCode matches assert");
-							Assertion assertion = BindingOutputParser.parseAssertion(result.stderr);
-							if( assertion == null )
-							{
-								this.testResult = TestResult.TEST_RESULT_ERROR;
-								reportError(xmlDocIn, testXmlElement, "possibleAssertion", "retCode matches assertion, but unable to parse assertion output");
-							}
-							else
-							{
-								this.testResult = TestResult.TEST_RESULT_PASS;
-								this.testResult = TestResult.TEST_RESULT_FAILURE;
-								reportFailure(xmlDocIn, testXmlElement, "assertion", assertion.toString());
-							}
-							break;
-						
-						default:
-							// unknown return code
-							this.logger.trace("unknown retCode");
-							this.testResult = TestResult.TEST_RESULT_ERROR;
-							reportError(xmlDocIn, testXmlElement, "unknownRetCode", String.format("process exited with unknown retCode [%d]", result.retCode));
-							break;
-					}
+					retVal.addError(limitBreach, String.format("test exceeded its resource limits (%s)", limitBreach));
 				}
-				break;
 			}
-			else if( this.getMaxTextTime_s() != null )
+			
+			// non-fatal checks and sub-tests are reported regardless of how the test ended
+			bindingParser.finish();
+			retVal.addBindingResults(bindingParser);
+			
+			// a test which ran to completion is held to its performance budget (in addition to its normal result)
+			if( trigger == Watchdog.Trigger.FINISHED )
 			{
-				// test is still running...see if we timed out...
-				if( testTimer.isElapsed(this.getMaxTextTime_s() * 1000, TimeUnit.MILLISECONDS) )
+				for( String currOverrun : performanceBudget.check(new PerformanceBudget.Usage(testDuration_ms, cpu_ms, peakRss_bytes, outputBytes.get())) )
 				{
-					// test timed out...stop it
-					this.logger.trace("test timed out...terminating");
-					tr.stop();
-
-					// try to parse our results
-					testDuration_ms = this.getMaxTextTime_s() * 1000;
-					result = tr.getTestOutput();
-					this.testResult = TestResult.TEST_RESULT_ERROR;
-					reportError(xmlDocIn, testXmlElement, "timeout", String.format("test did not complete within %d seconds", this.getMaxTextTime_s()));
-					break;
+					this.getLogger().trace(String.format("performance budget exceeded '%s'", currOverrun));
+					retVal.addFailure(TestCaseResult.FAILURE_TYPE_BUDGET_EXCEEDED, String.format("test exceeded its performance budget: %s", currOverrun));
 				}
 			}
+			
+			// record our common stuff (stdout, stderr, duration, etc)
+			retVal.setOutput(result.stdout, result.stderr);
+			retVal.setDuration_ms(testDuration_ms);
+			retVal.setResourceUsage(cpu_ms, peakRss_bytes);
+			if( profilerInstance != null ) retVal.setProfile(profilerInstance.collect());
+			if( timelineRecorder != null ) this.saveOutputTimeline(retVal, timelineRecorder.finish());
+			
+			this.getLogger().trace("test complete");
+			return retVal;
+		}
+		finally
+		{
+			// (also on an unexpected exception, so that neither the cgroup, the directory nor the pipe leaks)
+			if( resultChannel != null ) resultChannel.close();
+			if( sandboxInstance != null ) sandboxInstance.cleanup();
 		}
-		
-		// output our common stuff (stdout, etderr, status code, etc)
-		if( (result.stdout != null) && !result.stdout.isEmpty() ) addStdout(xmlDocIn, testXmlElement, result.stdout);
-		if( (result.stderr != null) && !result.stderr.isEmpty() ) addStderr(xmlDocIn, testXmlElement, result.stderr);
-		//if( result.retCode != null ) testXmlElement.setAttribute("status", result.retCode.toString() );
-		testXmlElement.setAttribute("time", String.format("%.2f", ((float)testDuration_ms) / 1000.0));
-		
-		parentElementIn.appendChild(testXmlElement);
-		this.logger.trace("test complete");
 	}
 	
 	
-	private static void reportError(Document xmlDocIn, Element parentElementIn, String errorTypeIn, String msgIn)
+	private void saveOutputTimeline(TestCaseResult resultIn, byte[] timelineIn)
 	{
-		Element errorNode = xmlDocIn.createElement("error");
-		errorNode.setAttribute("type", errorTypeIn);
-		errorNode.setAttribute("message", msgIn);
+		if( this.outputTimeline.getFile(this.getName()) == null )
+		{
+			resultIn.setOutputTimeline(timelineIn);
+			return;
+		}
 		
-		parentElementIn.appendChild(errorNode);
+		try
+		{
+			this.outputTimeline.writeFile(this.getName(), timelineIn);
+		}
+		catch( IOException e )
+		{
+			// the file is an aid to debugging, not part of the result...keep it in the report instead
+			this.getLogger().warn(String.format("unable to write output timeline '%s': %s", this.outputTimeline.getFile(this.getName()).getPath(), e.getMessage()));
+			resultIn.setOutputTimeline(timelineIn);
+		}
 	}
 	
 	
-	private static void reportFailure(Document xmlDocIn, Element parentElementIn, String failureTypeIn, String msgIn)
+	/**
+	 * Creates the runner which executes a single attempt of this test
+	 * 
+	 * @param executableIn the executable of this test
+	 * @param sandboxInstanceIn the isolated environment of this attempt (may be NULL)
+	 * 
+	 * @return the new runner
+	 */
+	protected TestRunner createTestRunner(String executableIn, Sandbox.Instance sandboxInstanceIn)
 	{
-		Element failureNode = xmlDocIn.createElement("failure");
-		failureNode.setAttribute("type", failureTypeIn);
-		failureNode.setAttribute("message", msgIn);
-		
-		parentElementIn.appendChild(failureNode);
+		if( this.forkServer != null ) return new ForkServerTestRunner(this.forkServer, executableIn);
+		if( sandboxInstanceIn == null ) return new TestRunner(executableIn);
+		return new TestRunner(sandboxInstanceIn.wrapCommand(executableIn), sandboxInstanceIn.getWorkingDir());
 	}
 	
 	
-	private static void addStdout(Document xmlDocIn, Element parentElementIn, String stdoutIn)
+	/**
+	 * Returns how long to wait (past the max test time) before stopping a
+	 * test which is expected to be stopped by someone else (eg. an agent)
+	 * 
+	 * @return the grace period in milliseconds (0 if we enforce the timeout ourselves)
+	 */
+	protected long getTimeoutGrace_ms()
 	{
-		Element stdoutNode = xmlDocIn.createElement("system-out");
-		stdoutNode.setTextContent(stdoutIn);
-		
-		parentElementIn.appendChild(stdoutNode);
+		return 0;
 	}
 	
 	
-	private static void addStderr(Document xmlDocIn, Element parentElementIn, String stderrIn)
+	private static StreamPump.OutputListener watchOutput(final Watchdog watchdogIn, final AtomicLong outputBytesIn, final StreamPump.OutputListener delegateIn, final ExpectedOutput.Matcher matcherIn)
 	{
-		Element stderrNode = xmlDocIn.createElement("system-err");
-		stderrNode.setTextContent(stderrIn);
-		
-		parentElementIn.appendChild(stderrNode);
+		return new StreamPump.OutputListener()
+		{
+			@Override
+			public void outputReceived(byte[] bufIn, int lenIn)
+			{
+				watchdogIn.activity();
+				outputBytesIn.addAndGet(lenIn);
+				if( delegateIn != null ) delegateIn.outputReceived(bufIn, lenIn);
+				
+				// no need to wait for the rest of the output once it doesn't match
+				if( (matcherIn != null) && (matcherIn.getMismatch() != null) ) watchdogIn.trip(Watchdog.Trigger.MISMATCH);
+			}
+			
+			@Override
+			public void outputClosed()
+			{
+				if( delegateIn != null ) delegateIn.outputClosed();
+				if( (matcherIn != null) && (matcherIn.getMismatch() != null) ) watchdogIn.trip(Watchdog.Trigger.MISMATCH);
+			}
+		};
+	}
+	
+	
+	private static String getMismatch(ExpectedOutput.Matcher stdoutMatcherIn, ExpectedOutput.Matcher stderrMatcherIn)
+	{
+		if( (stdoutMatcherIn != null) && (stdoutMatcherIn.getMismatch() != null) ) return stdoutMatcherIn.getMismatch();
+		if( (stderrMatcherIn != null) && (stderrMatcherIn.getMismatch() != null) ) return stderrMatcherIn.getMismatch();
+		return null;
+	}
+	
+	
+	private static String getMismatchType(ExpectedOutput.Matcher stdoutMatcherIn)
+	{
+		return ((stdoutMatcherIn != null) && (stdoutMatcherIn.getMismatch() != null)) ? "stdoutMismatch" : "stderrMismatch";
 	}
 }
-
@@ -0,0 +1,415 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.localProcess;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.cxa.mPutF.ParseException;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Records the output of a process as a single timeline: the lines of
+ * stdout and stderr in the order in which they arrived, each with the time
+ * (relative to the start of the process) at which it arrived. Parsed from an
+ * <code>&lt;outputTimeline maxBytes="4194304" file="logs/${test}.log"/&gt;</code>
+ * node within the test options:
+ * <ul>
+ * <li><code>maxBytes</code> - the maximum size of the recorded timeline
+ * 		(further lines are counted, but not recorded)</li>
+ * <li><code>file</code> - (optional) write the rendered timeline to this file
+ * 		(<code>${test}</code> is replaced by the name of the test) rather than
+ * 		attaching it to the result</li>
+ * </ul>
+ * The timeline is stored compactly: each line is a varint of the time elapsed
+ * since the previous line (in microseconds, shifted left by one with the stream
+ * in the lowest bit), a varint of its length and its bytes. The timeline is
+ * preceded by a varint of the number of lines which were dropped.
+ *
+ * @author Christopher Armenio
+ */
+public class OutputTimeline
+{
+	public static final String NODE_NAME = "outputTimeline";
+	private static final String ATTR_MAX_BYTES = "maxBytes";
+	private static final String ATTR_FILE = "file";
+
+	private static final String VAR_TEST = "${test}";
+	private static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+	/** longer lines (eg. binary output) are split so a line is never buffered indefinitely */
+	private static final int MAX_LINE_BYTES = 64 * 1024;
+
+	private static final int STREAM_STDOUT = 0;
+	private static final int STREAM_STDERR = 1;
+
+
+	/**
+	 * Records the timeline of a single attempt. Both streams are recorded
+	 * from their own pump threads.
+	 */
+	public class Recorder
+	{
+		private byte[] encoded = new byte[1024];
+		private int encodedLen = 0;
+		private final byte[][] pendingLines = { new byte[256], new byte[256] };
+		private final int[] pendingLineLens = { 0, 0 };
+		private long startTime_ns = System.nanoTime();
+		private long lastLineTime_us = 0;
+		private long numDroppedLines = 0;
+
+		private Recorder()
+		{
+		}
+
+
+		/**
+		 * Marks the start of the process (times are relative to it)
+		 */
+		public synchronized void start()
+		{
+			this.startTime_ns = System.nanoTime();
+		}
+
+
+		/**
+		 * Creates a listener which records the output of the stdout of the process
+		 *
+		 * @param delegateIn notified of each chunk of output after it is recorded (may be NULL)
+		 *
+		 * @return the new listener
+		 */
+		public StreamPump.OutputListener recordStdout(StreamPump.OutputListener delegateIn)
+		{
+			return this.createListener(STREAM_STDOUT, delegateIn);
+		}
+
+
+		/**
+		 * Creates a listener which records the output of the stderr of the process
+		 *
+		 * @param delegateIn notified of each chunk of output after it is recorded (may be NULL)
+		 *
+		 * @return the new listener
+		 */
+		public StreamPump.OutputListener recordStderr(StreamPump.OutputListener delegateIn)
+		{
+			return this.createListener(STREAM_STDERR, delegateIn);
+		}
+
+
+		/**
+		 * Finishes the timeline (incomplete lines are recorded as they are)
+		 *
+		 * @return the encoded timeline
+		 */
+		public synchronized byte[] finish()
+		{
+			long now_us = this.getElapsedTime_us();
+			for( int i = 0; i < this.pendingLines.length; i++ ) this.flushPendingLine(i, now_us, false);
+
+			ByteArrayOutputStream retVal = new ByteArrayOutputStream(this.encodedLen + 10);
+			writeVarint(retVal, this.numDroppedLines);
+			retVal.write(this.encoded, 0, this.encodedLen);
+			return retVal.toByteArray();
+		}
+
+
+		private StreamPump.OutputListener createListener(final int streamIn, final StreamPump.OutputListener delegateIn)
+		{
+			return new StreamPump.OutputListener()
+			{
+				@Override
+				public void outputReceived(byte[] bufIn, int lenIn)
+				{
+					record(streamIn, bufIn, lenIn);
+					if( delegateIn != null ) delegateIn.outputReceived(bufIn, lenIn);
+				}
+
+				@Override
+				public void outputClosed()
+				{
+					synchronized(Recorder.this)
+					{
+						flushPendingLine(streamIn, getElapsedTime_us(), false);
+					}
+					if( delegateIn != null ) delegateIn.outputClosed();
+				}
+			};
+		}
+
+
+		private synchronized void record(int streamIn, byte[] bufIn, int lenIn)
+		{
+			// one timestamp per chunk (taken under the lock, so the timeline is monotonic)
+			long now_us = this.getElapsedTime_us();
+			int lineStart = 0;
+			for( int i = 0; i < lenIn; i++ )
+			{
+				if( (bufIn[i] != '\n') && ((this.pendingLineLens[streamIn] + (i - lineStart)) < MAX_LINE_BYTES) ) continue;
+
+				boolean isLineEnd = (bufIn[i] == '\n');
+				if( this.pendingLineLens[streamIn] == 0 )
+				{
+					// the whole line is in this chunk (the usual case)...no need to buffer it
+					this.appendLine(streamIn, now_us, bufIn, lineStart, i - lineStart);
+				}
+				else
+				{
+					this.bufferLine(streamIn, bufIn, lineStart, i - lineStart);
+					this.flushPendingLine(streamIn, now_us, isLineEnd);
+				}
+				lineStart = isLineEnd ? (i + 1) : i;
+			}
+			this.bufferLine(streamIn, bufIn, lineStart, lenIn - lineStart);
+		}
+
+
+		private void bufferLine(int streamIn, byte[] bufIn, int offsetIn, int lenIn)
+		{
+			int pendingLen = this.pendingLineLens[streamIn];
+			if( (pendingLen + lenIn) > this.pendingLines[streamIn].length )
+			{
+				this.pendingLines[streamIn] = Arrays.copyOf(this.pendingLines[streamIn], Math.max(pendingLen + lenIn, 2 * this.pendingLines[streamIn].length));
+			}
+			System.arraycopy(bufIn, offsetIn, this.pendingLines[streamIn], pendingLen, lenIn);
+			this.pendingLineLens[streamIn] += lenIn;
+		}
+
+
+		private void flushPendingLine(int streamIn, long now_usIn, boolean isLineEndIn)
+		{
+			// (empty lines are part of the output too...but only if they were actually terminated)
+			if( (this.pendingLineLens[streamIn] == 0) && !isLineEndIn ) return;
+
+			this.appendLine(streamIn, now_usIn, this.pendingLines[streamIn], 0, this.pendingLineLens[streamIn]);
+			this.pendingLineLens[streamIn] = 0;
+		}
+
+
+		private void appendLine(int streamIn, long now_usIn, byte[] bufIn, int offsetIn, int lenIn)
+		{
+			if( (this.encodedLen + lenIn) > maxBytes )
+			{
+				this.numDroppedLines++;
+				return;
+			}
+
+			// 2 varints (at most 10 bytes each) + the line
+			if( (this.encodedLen + lenIn + 20) > this.encoded.length )
+			{
+				this.encoded = Arrays.copyOf(this.encoded, Math.max(this.encodedLen + lenIn + 20, 2 * this.encoded.length));
+			}
+			this.encodedLen = writeVarint(this.encoded, this.encodedLen, ((now_usIn - this.lastLineTime_us) << 1) | streamIn);
+			this.encodedLen = writeVarint(this.encoded, this.encodedLen, lenIn);
+			System.arraycopy(bufIn, offsetIn, this.encoded, this.encodedLen, lenIn);
+			this.encodedLen += lenIn;
+			this.lastLineTime_us = now_usIn;
+		}
+
+
+		private long getElapsedTime_us()
+		{
+			return Math.max(this.lastLineTime_us, (System.nanoTime() - this.startTime_ns) / 1000);
+		}
+	}
+
+
+	private final int maxBytes;
+	private final String fileTemplate;
+
+
+	private OutputTimeline(int maxBytesIn, String fileTemplateIn)
+	{
+		this.maxBytes = maxBytesIn;
+		this.fileTemplate = fileTemplateIn;
+	}
+
+
+	/**
+	 * @return a recorder for a single attempt
+	 */
+	public Recorder createRecorder()
+	{
+		return new Recorder();
+	}
+
+
+	/**
+	 * Returns the file to which the timeline of the given test is written
+	 *
+	 * @param testNameIn the name of the test
+	 *
+	 * @return the file, or NULL if timelines are attached to results instead
+	 */
+	public File getFile(String testNameIn)
+	{
+		if( this.fileTemplate == null ) return null;
+		return new File(this.fileTemplate.replace(VAR_TEST, testNameIn.replaceAll("[^A-Za-z0-9._-]", "_")));
+	}
+
+
+	/**
+	 * Writes the rendered timeline to the file of the given test (see {@link #getFile(String)})
+	 *
+	 * @param testNameIn the name of the test
+	 * @param timelineIn the encoded timeline
+	 *
+	 * @throws IOException on error writing the file
+	 */
+	public void writeFile(String testNameIn, byte[] timelineIn) throws IOException
+	{
+		File file = this.getFile(testNameIn);
+		if( (file.getParentFile() != null) && !file.getParentFile().exists() ) file.getParentFile().mkdirs();
+		Files.write(file.toPath(), render(timelineIn).getBytes(Charset.defaultCharset()));
+	}
+
+
+	/**
+	 * Renders an encoded timeline as an interleaved log, one line per line of
+	 * output, each prefixed with its time (in seconds since the start of the
+	 * process) and its stream
+	 *
+	 * @param timelineIn the encoded timeline (see {@link Recorder#finish()})
+	 *
+	 * @return the rendered timeline
+	 */
+	public static String render(byte[] timelineIn)
+	{
+		StringBuilder retVal = new StringBuilder();
+		int[] pos = { 0 };
+		long numDroppedLines = readVarint(timelineIn, pos);
+		long time_us = 0;
+		while( pos[0] < timelineIn.length )
+		{
+			long header = readVarint(timelineIn, pos);
+			int len = (int)readVarint(timelineIn, pos);
+			time_us += (header >>> 1);
+			String line = new String(timelineIn, pos[0], len, Charset.defaultCharset());
+			pos[0] += len;
+			if( line.endsWith("\r") ) line = line.substring(0, line.length() - 1);
+
+			retVal.append(String.format("[%10.6f] %s| %s%n", time_us / 1000000.0, (((header & 1) == STREAM_STDOUT) ? "out" : "err"), line));
+		}
+		if( numDroppedLines > 0 ) retVal.append(String.format("[...%d lines dropped...]%n", numDroppedLines));
+		return retVal.toString();
+	}
+
+
+	/**
+	 * Writes this configuration in a compact binary form (see {@link #readFrom(DataInput)})
+	 *
+	 * @param outIn the destination of the configuration
+	 *
+	 * @throws IOException on error writing the configuration
+	 */
+	public void writeTo(DataOutput outIn) throws IOException
+	{
+		outIn.writeInt(this.maxBytes);
+		outIn.writeBoolean(this.fileTemplate != null);
+		if( this.fileTemplate != null ) outIn.writeUTF(this.fileTemplate);
+	}
+
+
+	/**
+	 * Restores a configuration written with {@link #writeTo(DataOutput)}
+	 *
+	 * @param inIn the source of the configuration
+	 *
+	 * @return the restored configuration
+	 * @throws IOException on error reading the configuration
+	 */
+	public static OutputTimeline readFrom(DataInput inIn) throws IOException
+	{
+		int maxBytes = inIn.readInt();
+		return new OutputTimeline(maxBytes, (inIn.readBoolean() ? inIn.readUTF() : null));
+	}
+
+
+	/**
+	 * Parses an output timeline configuration from the given XML {@link Node}
+	 *
+	 * @param xmlFileIn the XML file from which this configuration is being parsed
+	 * @param testNameIn the name of the test for which this configuration is being parsed
+	 * @param timelineNodeIn the {@link Node} describing this configuration
+	 *
+	 * @return a parsed configuration
+	 * @throws ParseException on error parsing the configuration
+	 */
+	public static OutputTimeline parseOutputTimeline(File xmlFileIn, String testNameIn, Node timelineNodeIn) throws ParseException
+	{
+		NamedNodeMap attributes = timelineNodeIn.getAttributes();
+		Node maxBytesNode = attributes.getNamedItem(ATTR_MAX_BYTES);
+		Node fileNode = attributes.getNamedItem(ATTR_FILE);
+
+		int maxBytes = DEFAULT_MAX_BYTES;
+		if( maxBytesNode != null )
+		{
+			try
+			{
+				maxBytes = Integer.parseInt(maxBytesNode.getNodeValue());
+			}
+			catch( NumberFormatException e )
+			{
+				maxBytes = -1;
+			}
+			if( maxBytes <= 0 ) throw new ParseException(xmlFileIn, testNameIn, String.format("error parsing attribute '%s'::'%s'", ATTR_MAX_BYTES, maxBytesNode.getNodeValue()));
+		}
+
+		return new OutputTimeline(maxBytes, ((fileNode != null) && !fileNode.getNodeValue().trim().isEmpty()) ? fileNode.getNodeValue().trim() : null);
+	}
+
+
+	private static void writeVarint(ByteArrayOutputStream outIn, long valueIn)
+	{
+		while( (valueIn & ~0x7FL) != 0 )
+		{
+			outIn.write((int)((valueIn & 0x7F) | 0x80));
+			valueIn >>>= 7;
+		}
+		outIn.write((int)valueIn);
+	}
+
+
+	private static int writeVarint(byte[] bufIn, int posIn, long valueIn)
+	{
+		while( (valueIn & ~0x7FL) != 0 )
+		{
+			bufIn[posIn++] = (byte)((valueIn & 0x7F) | 0x80);
+			valueIn >>>= 7;
+		}
+		bufIn[posIn++] = (byte)valueIn;
+		return posIn;
+	}
+
+
+	private static long readVarint(byte[] bufIn, int[] posIn)
+	{
+		long retVal = 0;
+		for( int shift = 0; ; shift += 7 )
+		{
+			byte currByte = bufIn[posIn[0]++];
+			retVal |= ((long)(currByte & 0x7F)) << shift;
+			if( (currByte & 0x80) == 0 ) return retVal;
+		}
+	}
+}
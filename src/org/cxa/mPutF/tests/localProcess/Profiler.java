@@ -0,0 +1,437 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.localProcess;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.ParseException;
+import org.cxa.mPutF.tests.TestCaseResult;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Describes how the process of a {@link LocalProcessTest} is profiled (or
+ * its coverage recorded) without changing its executable. Parsed from a
+ * <code>&lt;profiler&gt;</code> node placed either within the test options
+ * or directly within the <code>&lt;testSuite&gt;</code> node (suite-wide default):
+ * <pre>
+ * &lt;profiler name="callgrind" output="profiles/${test}.callgrind"&gt;
+ *     &lt;wrapper&gt;valgrind --tool=callgrind --callgrind-out-file=${output}&lt;/wrapper&gt;
+ *     &lt;summary&gt;callgrind_annotate ${output}&lt;/summary&gt;
+ * &lt;/profiler&gt;
+ *
+ * &lt;profiler name="jfr" output="profiles/${test}.jfr"&gt;
+ *     &lt;environment name="JAVA_TOOL_OPTIONS"&gt;-XX:StartFlightRecording=filename=${output}&lt;/environment&gt;
+ * &lt;/profiler&gt;
+ * </pre>
+ * <ul>
+ * <li><code>wrapper</code> - launcher prepended to the executable (eg. <code>perf record -o ${output} --</code>)</li>
+ * <li><code>environment</code> - options appended to an environment variable of the process
+ * 		(eg. agents of Java targets, which can't be wrapped)</li>
+ * <li><code>output</code> - the per-test output file (default: <code>profiles/${test}.&lt;name&gt;</code>)</li>
+ * <li><code>summary</code> - (optional) command which prints the hotspots of the output file, one per
+ * 		line, as a weight followed by a symbol (the format of <code>perf report --stdio</code> and
+ * 		<code>callgrind_annotate</code>). The <code>pattern</code> attribute overrides how lines are
+ * 		parsed (group 1 is the weight, group 2 the symbol).</li>
+ * </ul>
+ * <code>${test}</code> is replaced by the (file-name safe) name of the test
+ * and <code>${output}</code> by the absolute path of the output file. A
+ * <code>&lt;profiler enabled="false"/&gt;</code> within the test options disables
+ * the suite-wide profiler for that test.
+ *
+ * @author Christopher Armenio
+ */
+public class Profiler
+{
+	public static final String NODE_NAME = "profiler";
+	private static final String ATTR_NAME = "name";
+	private static final String ATTR_OUTPUT = "output";
+	private static final String ATTR_ENABLED = "enabled";
+	private static final String NODE_WRAPPER = "wrapper";
+	private static final String NODE_ENVIRONMENT = "environment";
+	private static final String ATTR_ENVIRONMENT_NAME = "name";
+	private static final String NODE_SUMMARY = "summary";
+	private static final String ATTR_PATTERN = "pattern";
+	private static final String ATTR_MAX_TIME = "maxTime_s";
+
+	private static final String VAR_TEST = "${test}";
+	private static final String VAR_OUTPUT = "${output}";
+
+	/** weight (possibly a percentage, with an optional percentage following it), then the symbol */
+	private static final String DEFAULT_SUMMARY_PATTERN = "^\\s*([0-9][0-9,]*(?:\\.[0-9]+)?)%?\\s+(?:\\(\\s*[0-9.]+%\\)\\s+)?(?!PROGRAM TOTALS)(\\S.*?)\\s*$";
+	private static final int DEFAULT_SUMMARY_MAX_TIME_S = 60;
+	/** only the heaviest hotspots of each test are kept */
+	private static final int MAX_HOTSPOTS_PER_TEST = 50;
+
+	private static Logger staticLogger = LogManager.getLogger("Profiler");
+
+
+	/**
+	 * The profiler of a single test attempt
+	 */
+	public class Instance
+	{
+		private final File outputFile;
+		private final String testName;
+
+		private Instance(String testNameIn)
+		{
+			this.testName = testNameIn;
+			this.outputFile = new File(substitute(outputTemplate, toFileName(testNameIn), null)).getAbsoluteFile();
+		}
+
+
+		/**
+		 * Wraps the given command line with the launcher of this profiler (if any)
+		 *
+		 * @param executableIn the command line of the test
+		 *
+		 * @return the command line to actually execute
+		 */
+		public String wrapCommand(String executableIn)
+		{
+			if( wrapper == null ) return executableIn;
+			return String.format("%s %s", this.resolve(wrapper), executableIn);
+		}
+
+
+		/**
+		 * Sets the environment variables of this profiler (if any) and makes
+		 * sure the output directory exists
+		 *
+		 * @param runnerIn the runner of the test (not yet started)
+		 */
+		public void prepare(TestRunner runnerIn)
+		{
+			if( (this.outputFile.getParentFile() != null) && !this.outputFile.getParentFile().exists() ) this.outputFile.getParentFile().mkdirs();
+			for( Map.Entry<String, String> currEntry : environment.entrySet() )
+			{
+				// options are appended to those the variable already has (if any)
+				String currValue = System.getenv(currEntry.getKey());
+				String value = this.resolve(currEntry.getValue());
+				runnerIn.setEnvironmentVariable(currEntry.getKey(), ((currValue != null) && !currValue.trim().isEmpty()) ? String.format("%s %s", currValue, value) : value);
+			}
+		}
+
+
+		/**
+		 * Collects the profile of the (finished) attempt: its output file and,
+		 * if this profiler has a summary command, its hotspots
+		 *
+		 * @return the profile to attach to the result of the attempt
+		 */
+		public TestCaseResult.Profile collect()
+		{
+			TestCaseResult.Profile retVal = new TestCaseResult.Profile(name, this.outputFile.getPath());
+			if( summaryCommand == null ) return retVal;
+			if( !this.outputFile.exists() )
+			{
+				staticLogger.warn(String.format("'%s' did not produce a %s profile ('%s')", this.testName, name, this.outputFile.getPath()));
+				return retVal;
+			}
+
+			TestRunner tr = new TestRunner(this.resolve(summaryCommand));
+			tr.startTest();
+			try
+			{
+				if( !tr.waitForFinish(summaryMaxTime_s * 1000L) )
+				{
+					tr.stop();
+					staticLogger.warn(String.format("%s summary of '%s' did not complete within %d seconds", name, this.testName, summaryMaxTime_s));
+					return retVal;
+				}
+			}
+			catch( InterruptedException e )
+			{
+				tr.stop();
+				Thread.currentThread().interrupt();
+				return retVal;
+			}
+
+			LocalProcessTest.TestOutput output = tr.getTestOutput();
+			if( (output.getException() != null) || (output.getRetCode() == null) || (output.getRetCode() != 0) )
+			{
+				staticLogger.warn(String.format("%s summary of '%s' failed: %s", name, this.testName,
+						(output.getException() != null) ? output.getException().getMessage() : output.getStderr()));
+				return retVal;
+			}
+			parseHotspots(output.getStdout(), retVal);
+
+			return retVal;
+		}
+
+
+		private String resolve(String templateIn)
+		{
+			return substitute(templateIn, toFileName(this.testName), this.outputFile.getPath());
+		}
+	}
+
+
+	private final String name;
+	private final String outputTemplate;
+	private final String wrapper;
+	private final Map<String, String> environment;
+	private final String summaryCommand;
+	private final Pattern summaryPattern;
+	private final int summaryMaxTime_s;
+
+
+	private Profiler(String nameIn, String outputTemplateIn, String wrapperIn, Map<String, String> environmentIn,
+			String summaryCommandIn, Pattern summaryPatternIn, int summaryMaxTime_sIn)
+	{
+		this.name = nameIn;
+		this.outputTemplate = outputTemplateIn;
+		this.wrapper = wrapperIn;
+		this.environment = environmentIn;
+		this.summaryCommand = summaryCommandIn;
+		this.summaryPattern = summaryPatternIn;
+		this.summaryMaxTime_s = summaryMaxTime_sIn;
+	}
+
+
+	/**
+	 * @return the name of this profiler (profiles of the same name are merged across the suite)
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+
+
+	/**
+	 * Creates the profiler of a single attempt of the given test
+	 *
+	 * @param testNameIn the name of the test
+	 *
+	 * @return the new instance
+	 */
+	public Instance createInstance(String testNameIn)
+	{
+		return new Instance(testNameIn);
+	}
+
+
+	/**
+	 * Writes this profiler in a compact binary form (see {@link #readFrom(DataInput)})
+	 *
+	 * @param outIn the destination of the profiler
+	 *
+	 * @throws IOException on error writing the profiler
+	 */
+	public void writeTo(DataOutput outIn) throws IOException
+	{
+		outIn.writeUTF(this.name);
+		outIn.writeUTF(this.outputTemplate);
+		outIn.writeBoolean(this.wrapper != null);
+		if( this.wrapper != null ) outIn.writeUTF(this.wrapper);
+		outIn.writeInt(this.environment.size());
+		for( Map.Entry<String, String> currEntry : this.environment.entrySet() )
+		{
+			outIn.writeUTF(currEntry.getKey());
+			outIn.writeUTF(currEntry.getValue());
+		}
+		outIn.writeBoolean(this.summaryCommand != null);
+		if( this.summaryCommand == null ) return;
+		outIn.writeUTF(this.summaryCommand);
+		outIn.writeUTF(this.summaryPattern.pattern());
+		outIn.writeInt(this.summaryMaxTime_s);
+	}
+
+
+	/**
+	 * Restores a profiler written with {@link #writeTo(DataOutput)}
+	 *
+	 * @param inIn the source of the profiler
+	 *
+	 * @return the restored profiler
+	 * @throws IOException on error reading the profiler
+	 */
+	public static Profiler readFrom(DataInput inIn) throws IOException
+	{
+		String name = inIn.readUTF();
+		String outputTemplate = inIn.readUTF();
+		String wrapper = inIn.readBoolean() ? inIn.readUTF() : null;
+		Map<String, String> environment = new LinkedHashMap<String, String>();
+		int numEnvironment = inIn.readInt();
+		for( int i = 0; i < numEnvironment; i++ ) environment.put(inIn.readUTF(), inIn.readUTF());
+		if( !inIn.readBoolean() ) return new Profiler(name, outputTemplate, wrapper, environment, null, null, 0);
+
+		String summaryCommand = inIn.readUTF();
+		Pattern summaryPattern;
+		try
+		{
+			summaryPattern = Pattern.compile(inIn.readUTF());
+		}
+		catch( PatternSyntaxException e )
+		{
+			throw new IOException("invalid profiler summary pattern");
+		}
+		return new Profiler(name, outputTemplate, wrapper, environment, summaryCommand, summaryPattern, inIn.readInt());
+	}
+
+
+	/**
+	 * Parses a profiler from the given XML {@link Node}
+	 *
+	 * @param xmlFileIn the XML file from which this profiler is being parsed
+	 * @param testNameIn the name of the test for which this profiler is being parsed,
+	 * 		or NULL if this is a suite-wide profiler
+	 * @param profilerNodeIn the {@link Node} describing this profiler
+	 *
+	 * @return a parsed profiler, or NULL if the node disables profiling
+	 * @throws ParseException on error parsing the profiler
+	 */
+	public static Profiler parseProfiler(File xmlFileIn, String testNameIn, Node profilerNodeIn) throws ParseException
+	{
+		NamedNodeMap attributes = profilerNodeIn.getAttributes();
+		Node enabledNode = attributes.getNamedItem(ATTR_ENABLED);
+		if( (enabledNode != null) && !Boolean.parseBoolean(enabledNode.getNodeValue()) ) return null;
+
+		Node nameNode = attributes.getNamedItem(ATTR_NAME);
+		if( (nameNode == null) || nameNode.getNodeValue().trim().isEmpty() ) throw newParseException(xmlFileIn, testNameIn, String.format("missing attribute '%s'", ATTR_NAME));
+		String name = nameNode.getNodeValue().trim();
+		Node outputNode = attributes.getNamedItem(ATTR_OUTPUT);
+		String outputTemplate = (outputNode != null) ? outputNode.getNodeValue().trim() : String.format("profiles/%s.%s", VAR_TEST, toFileName(name));
+
+		String wrapper = null;
+		Map<String, String> environment = new LinkedHashMap<String, String>();
+		String summaryCommand = null;
+		Pattern summaryPattern = null;
+		int summaryMaxTime_s = DEFAULT_SUMMARY_MAX_TIME_S;
+		NodeList childNodes = profilerNodeIn.getChildNodes();
+		for( int i = 0; i < childNodes.getLength(); i++ )
+		{
+			Node currNode = childNodes.item(i);
+			if( currNode.getNodeName().equals(NODE_WRAPPER) )
+			{
+				wrapper = currNode.getTextContent().trim();
+			}
+			else if( currNode.getNodeName().equals(NODE_ENVIRONMENT) )
+			{
+				Node varNameNode = currNode.getAttributes().getNamedItem(ATTR_ENVIRONMENT_NAME);
+				if( varNameNode == null ) throw newParseException(xmlFileIn, testNameIn, String.format("missing attribute '%s::%s'", NODE_ENVIRONMENT, ATTR_ENVIRONMENT_NAME));
+				environment.put(varNameNode.getNodeValue(), currNode.getTextContent().trim());
+			}
+			else if( currNode.getNodeName().equals(NODE_SUMMARY) )
+			{
+				summaryCommand = currNode.getTextContent().trim();
+				Node patternNode = currNode.getAttributes().getNamedItem(ATTR_PATTERN);
+				try
+				{
+					summaryPattern = Pattern.compile((patternNode != null) ? patternNode.getNodeValue() : DEFAULT_SUMMARY_PATTERN);
+				}
+				catch( PatternSyntaxException e )
+				{
+					throw newParseException(xmlFileIn, testNameIn, String.format("error parsing attribute '%s::%s' (%s)", NODE_SUMMARY, ATTR_PATTERN, e.getDescription()));
+				}
+				if( summaryPattern.matcher("").groupCount() < 2 ) throw newParseException(xmlFileIn, testNameIn, String.format("attribute '%s::%s' needs a weight and a symbol group", NODE_SUMMARY, ATTR_PATTERN));
+				Node maxTimeNode = currNode.getAttributes().getNamedItem(ATTR_MAX_TIME);
+				if( maxTimeNode != null )
+				{
+					try
+					{
+						summaryMaxTime_s = Integer.parseInt(maxTimeNode.getNodeValue());
+					}
+					catch( NumberFormatException e )
+					{
+						summaryMaxTime_s = 0;
+					}
+					if( summaryMaxTime_s <= 0 ) throw newParseException(xmlFileIn, testNameIn, String.format("error parsing attribute '%s::%s'::'%s'", NODE_SUMMARY, ATTR_MAX_TIME, maxTimeNode.getNodeValue()));
+				}
+			}
+		}
+		if( ((wrapper == null) || wrapper.isEmpty()) && environment.isEmpty() )
+		{
+			throw newParseException(xmlFileIn, testNameIn, String.format("profiler '%s' needs a '%s' or an '%s'", name, NODE_WRAPPER, NODE_ENVIRONMENT));
+		}
+		if( (wrapper != null) && wrapper.isEmpty() ) wrapper = null;
+
+		return new Profiler(name, outputTemplate, wrapper, environment, summaryCommand, summaryPattern, summaryMaxTime_s);
+	}
+
+
+	private void parseHotspots(String summaryIn, TestCaseResult.Profile profileIn)
+	{
+		if( summaryIn == null ) return;
+
+		final Map<String, Double> weights = new LinkedHashMap<String, Double>();
+		for( String currLine : summaryIn.split("\r?\n") )
+		{
+			Matcher matcher = this.summaryPattern.matcher(currLine);
+			if( !matcher.find() ) continue;
+			try
+			{
+				double weight = Double.parseDouble(matcher.group(1).replace(",", ""));
+				String symbol = matcher.group(2).trim();
+				Double currWeight = weights.get(symbol);
+				weights.put(symbol, (currWeight != null) ? (currWeight + weight) : weight);
+			}
+			catch( NumberFormatException e )
+			{
+				// not a hotspot (eg. a header which happens to start with a number)
+			}
+		}
+
+		List<String> symbols = new ArrayList<String>(weights.keySet());
+		Collections.sort(symbols, new Comparator<String>()
+		{
+			@Override
+			public int compare(String lhsIn, String rhsIn)
+			{
+				return Double.compare(weights.get(rhsIn), weights.get(lhsIn));
+			}
+		});
+		for( String currSymbol : symbols.subList(0, Math.min(symbols.size(), MAX_HOTSPOTS_PER_TEST)) )
+		{
+			profileIn.addHotspot(currSymbol, weights.get(currSymbol));
+		}
+	}
+
+
+	private static String substitute(String templateIn, String testNameIn, String outputPathIn)
+	{
+		String retVal = templateIn.replace(VAR_TEST, testNameIn);
+		return (outputPathIn != null) ? retVal.replace(VAR_OUTPUT, outputPathIn) : retVal;
+	}
+
+
+	private static String toFileName(String nameIn)
+	{
+		return nameIn.replaceAll("[^A-Za-z0-9._-]", "_");
+	}
+
+
+	private static ParseException newParseException(File xmlFileIn, String testNameIn, String msgIn)
+	{
+		return (testNameIn == null) ? new ParseException(xmlFileIn, msgIn) : new ParseException(xmlFileIn, testNameIn, msgIn);
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.localProcess;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+/**
+ * Measures the CPU time and peak resident memory of the process of a
+ * {@link TestRunner} (and of its children) by sampling <code>/proc</code>
+ * (Linux only) while the process runs.
+ * <p>
+ * Being sampled, the figures are lower bounds: the CPU time used after the
+ * last sample (at most {@link #SAMPLE_PERIOD_MS} before the process exits) is
+ * missed, as is a short-lived child which starts and exits between samples
+ * (although its CPU time is accounted to its parent once it is reaped). Peak
+ * memory includes the high-water mark of the process itself, so it is exact
+ * for a single process.
+ *
+ * @author Christopher Armenio
+ */
+class ResourceMonitor implements Runnable
+{
+	static final long SAMPLE_PERIOD_MS = 20;
+
+	// /proc/<pid>/stat reports times in clock ticks (USER_HZ)...100 Hz unless the platform says otherwise
+	private static final long DEFAULT_CLOCK_TICKS_PER_S = 100;
+	private static final File PROC_DIR = new File("/proc");
+	private static final double MS_PER_CLOCK_TICK = 1000.0 / getClockTicksPerSecond();
+
+
+	private final TestRunner testRunner;
+	private volatile long cpu_ms = -1;
+	private volatile long peakRss_bytes = -1;
+
+
+	/**
+	 * @param testRunnerIn the runner whose process should be measured
+	 */
+	ResourceMonitor(TestRunner testRunnerIn)
+	{
+		this.testRunner = testRunnerIn;
+	}
+
+
+	/**
+	 * @return true if the resource usage of processes can be measured on this platform
+	 */
+	static boolean isSupported()
+	{
+		return new File(PROC_DIR, "self/stat").exists();
+	}
+
+
+	/**
+	 * @return the CPU time (user + system) of the process and its children, in milliseconds,
+	 * 		or -1 if it was never sampled
+	 */
+	long getCpu_ms()
+	{
+		return this.cpu_ms;
+	}
+
+
+	/**
+	 * @return the peak resident memory of the process and its children, in bytes,
+	 * 		or -1 if it was never sampled
+	 */
+	long getPeakRss_bytes()
+	{
+		return this.peakRss_bytes;
+	}
+
+
+	/**
+	 * Takes a single sample (see {@link Watchdog#setPeriodicTask(Runnable, long)})
+	 */
+	@Override
+	public void run()
+	{
+		// an exception would cancel all further samples...a malformed (eg. racing) read only loses this one
+		try
+		{
+			this.sample();
+		}
+		catch( RuntimeException e ) { }
+	}
+
+
+	private void sample()
+	{
+		Integer pid = this.testRunner.getPid();
+		if( pid == null ) return;
+
+		// walk the process tree...the CPU time of a reaped child is accounted to its parent (cutime/cstime)
+		long cpu_ticks = 0;
+		long rss_bytes = 0;
+		long rootPeakRss_bytes = -1;
+		Deque<Integer> pending = new ArrayDeque<Integer>();
+		Set<Integer> visited = new HashSet<Integer>();
+		pending.add(pid);
+		while( !pending.isEmpty() )
+		{
+			int currPid = pending.poll();
+			if( !visited.add(currPid) ) continue;
+
+			File currProcDir = new File(PROC_DIR, Integer.toString(currPid));
+			String stat = readFile(new File(currProcDir, "stat"));
+			if( stat == null )
+			{
+				// the root exited before we got here
+				if( currPid == pid ) return;
+				continue;
+			}
+			cpu_ticks += getCpuTicks(stat);
+			String status = readFile(new File(currProcDir, "status"));
+			rss_bytes += getStatusValue_bytes(status, "VmRSS:");
+			if( currPid == pid ) rootPeakRss_bytes = getStatusValue_bytes(status, "VmHWM:");
+
+			File[] tasks = new File(currProcDir, "task").listFiles();
+			for( File currTask : (tasks != null) ? tasks : new File[0] )
+			{
+				String children = readFile(new File(currTask, "children"));
+				if( children == null ) continue;
+				StringTokenizer st = new StringTokenizer(children);
+				while( st.hasMoreTokens() ) pending.add(Integer.parseInt(st.nextToken()));
+			}
+		}
+
+		// the usage only ever grows (a child may have been reaped between reading it and its parent)
+		this.cpu_ms = Math.max(this.cpu_ms, (long)(cpu_ticks * MS_PER_CLOCK_TICK));
+		this.peakRss_bytes = Math.max(this.peakRss_bytes, Math.max(rss_bytes, rootPeakRss_bytes));
+	}
+
+
+	private static long getCpuTicks(String statIn)
+	{
+		// the command name may contain spaces (and parentheses)...fields are counted from after its closing parenthesis
+		StringTokenizer st = new StringTokenizer(statIn.substring(statIn.lastIndexOf(')') + 1));
+		long retVal = 0;
+		for( int field = 3; st.hasMoreTokens() && (field <= 17); field++ )
+		{
+			String currToken = st.nextToken();
+
+			// utime, stime, cutime, cstime
+			if( field >= 14 ) retVal += Long.parseLong(currToken);
+		}
+		return retVal;
+	}
+
+
+	private static long getStatusValue_bytes(String statusIn, String keyIn)
+	{
+		if( statusIn == null ) return 0;
+
+		int keyIndex = statusIn.indexOf(keyIn);
+		if( keyIndex < 0 ) return 0;
+		int lineEnd = statusIn.indexOf('\n', keyIndex);
+		StringTokenizer st = new StringTokenizer(statusIn.substring(keyIndex + keyIn.length(), (lineEnd >= 0) ? lineEnd : statusIn.length()));
+
+		// eg. 'VmRSS:	    1234 kB'
+		return st.hasMoreTokens() ? (Long.parseLong(st.nextToken()) * 1024) : 0;
+	}
+
+
+	private static long getClockTicksPerSecond()
+	{
+		if( !isSupported() ) return DEFAULT_CLOCK_TICKS_PER_S;
+
+		// (once per JVM)
+		try
+		{
+			Process p = new ProcessBuilder("getconf", "CLK_TCK").redirectErrorStream(true).start();
+			try( BufferedReader br = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8)) )
+			{
+				String line = br.readLine();
+				if( (p.waitFor() == 0) && (line != null) )
+				{
+					long retVal = Long.parseLong(line.trim());
+					if( retVal > 0 ) return retVal;
+				}
+			}
+		}
+		catch( IOException | NumberFormatException e ) { }
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		return DEFAULT_CLOCK_TICKS_PER_S;
+	}
+
+
+	private static String readFile(File fileIn)
+	{
+		try
+		{
+			return new String(Files.readAllBytes(fileIn.toPath()), StandardCharsets.UTF_8);
+		}
+		catch( IOException e )
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.localProcess;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.bindingOutputParser.BindingOutputParser;
+import org.cxa.mPutF.bindings.mPutF;
+
+/**
+ * A dedicated channel (a named pipe) over which the mPutF bindings of a
+ * single test attempt report their results as binary records, rather than
+ * on stderr. Enabled with a <code>&lt;resultChannel/&gt;</code> node within
+ * the test options. The path of the pipe is passed to the process in the
+ * {@link mPutF#ENV_RESULT_CHANNEL} environment variable...bindings which
+ * don't support the channel simply keep reporting on stderr.
+ * <p>
+ * The records are read (and parsed) by a dedicated thread as they arrive.
+ * Every process of the test (eg. each program run by a script) opens the
+ * channel itself, so the reader re-opens it each time the previous writers
+ * have closed it, until the channel is closed.
+ *
+ * @author Christopher Armenio
+ */
+public class ResultChannel implements Runnable
+{
+	public static final String NODE_NAME = "resultChannel";
+
+	private static Logger staticLogger = LogManager.getLogger("ResultChannel");
+
+
+	private final File dir;
+	private final File fifo;
+	private final BindingOutputParser.StreamParser parser;
+	private final Thread readThread;
+	private volatile boolean isClosed = false;
+
+
+	private ResultChannel(File dirIn, File fifoIn, BindingOutputParser.StreamParser parserIn)
+	{
+		this.dir = dirIn;
+		this.fifo = fifoIn;
+		this.parser = parserIn;
+		this.readThread = new Thread(this, String.format("resultChannel-%s", dirIn.getName()));
+	}
+
+
+	/**
+	 * @return the path of the channel (to be passed to the process)
+	 */
+	public String getPath()
+	{
+		return this.fifo.getAbsolutePath();
+	}
+
+
+	/**
+	 * Starts reading from the channel (must be called before the process is started)
+	 */
+	public void start()
+	{
+		this.readThread.start();
+	}
+
+
+	/**
+	 * Stops reading from the channel (once the process has exited/been stopped) and
+	 * removes it. Records still in flight from lingering grand-children are discarded.
+	 * Has no effect if the channel has already been closed.
+	 */
+	public synchronized void close()
+	{
+		if( this.isClosed ) return;
+		this.isClosed = true;
+
+		// our reader is (or is about to be) blocked opening the channel for the next writer...
+		// keep releasing it until it notices the channel is closed (or give up on a lingering writer)
+		try
+		{
+			for( int i = 0; (i < 20) && this.readThread.isAlive(); i++ )
+			{
+				release(this.fifo);
+				this.readThread.join(50);
+			}
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		try
+		{
+			FileUtils.deleteDirectory(this.dir);
+		}
+		catch( IOException e )
+		{
+			staticLogger.warn(String.format("unable to remove '%s': %s", this.dir.getAbsolutePath(), e.getMessage()));
+		}
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		while( !this.isClosed )
+		{
+			InputStream is;
+			try
+			{
+				// note: blocks until the next writer opens the channel...we see the end of the
+				// stream once all current writers have closed it (a later writer re-opens it)
+				is = new FileInputStream(this.fifo);
+			}
+			catch( IOException e )
+			{
+				staticLogger.warn(String.format("error opening result channel '%s': %s", this.fifo.getAbsolutePath(), e.getMessage()));
+				return;
+			}
+
+			try
+			{
+				this.parser.parseRecords(is);
+			}
+			catch( IOException e )
+			{
+				// the rest of this stream is lost...but later writers must not block
+				staticLogger.warn(String.format("error reading result channel '%s': %s", this.fifo.getAbsolutePath(), e.getMessage()));
+			}
+			finally
+			{
+				try { is.close(); } catch( IOException e ) { }
+			}
+		}
+	}
+
+
+	/**
+	 * Creates a new result channel whose records are fed to the given parser
+	 *
+	 * @param testNameIn the name of the test (used to name the channel)
+	 * @param parserIn the parser to which the records are fed
+	 *
+	 * @return the new (not yet started) channel
+	 * @throws IOException if the channel cannot be created (eg. no <code>mkfifo</code>)
+	 */
+	public static ResultChannel create(String testNameIn, BindingOutputParser.StreamParser parserIn) throws IOException
+	{
+		File dir = Files.createTempDirectory(String.format("mPutF-%s-", testNameIn.replaceAll("[^A-Za-z0-9_.-]", "_"))).toFile();
+		File fifo = new File(dir, "results");
+		try
+		{
+			createFifo(fifo);
+		}
+		catch( IOException e )
+		{
+			FileUtils.deleteDirectory(dir);
+			throw e;
+		}
+
+		return new ResultChannel(dir, fifo, parserIn);
+	}
+
+
+	/**
+	 * Creates a named pipe (accessible only by the current user)
+	 *
+	 * @param fifoIn the path of the pipe
+	 *
+	 * @throws IOException if the pipe cannot be created (eg. no <code>mkfifo</code>)
+	 */
+	static void createFifo(File fifoIn) throws IOException
+	{
+		int retCode;
+		try
+		{
+			retCode = new ProcessBuilder("mkfifo", "-m", "600", fifoIn.getAbsolutePath()).redirectErrorStream(true).start().waitFor();
+		}
+		catch( IOException | InterruptedException e )
+		{
+			retCode = -1;
+		}
+		if( retCode != 0 ) throw new IOException(String.format("unable to create named pipe '%s'", fifoIn.getAbsolutePath()));
+	}
+
+
+	/**
+	 * Releases anyone blocked opening the given named pipe (whose counterpart
+	 * will never open it)...opening read-write never blocks (on Linux) and
+	 * satisfies both readers and writers. Readers then see the end of the stream.
+	 *
+	 * @param fifoIn the path of the pipe
+	 */
+	static void release(File fifoIn)
+	{
+		try
+		{
+			new RandomAccessFile(fifoIn, "rw").close();
+		}
+		catch( IOException e ) { }
+	}
+}
@@ -0,0 +1,420 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.localProcess;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.ParseException;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Describes how the process of a {@link LocalProcessTest} is isolated
+ * from other (concurrently running) tests. Parsed from an
+ * <code>&lt;isolation tempDir="true" cpus="1.5" memoryMax_mb="512"/&gt;</code>
+ * node within the test options:
+ * <ul>
+ * <li><code>tempDir</code> - run each attempt in a fresh temporary working
+ * 		directory which is deleted afterwards</li>
+ * <li><code>cpus</code> / <code>memoryMax_mb</code> - (Linux only) run each attempt
+ * 		in its own cgroup v2 with the given CPU quota / memory limit</li>
+ * </ul>
+ * cgroups are created below {@link #getCgroupRoot()}, which must be a
+ * cgroup v2 directory delegated to (ie. writable by) the current user.
+ *
+ * @author Christopher Armenio
+ */
+public class Sandbox
+{
+	public static final String NODE_NAME = "isolation";
+	private static final String ATTR_TEMP_DIR = "tempDir";
+	private static final String ATTR_CPUS = "cpus";
+	private static final String ATTR_MEMORY_MAX = "memoryMax_mb";
+
+	public static final String ERROR_TYPE_OOM_KILLED = "oomKilled";
+	public static final String ERROR_TYPE_CPU_THROTTLED = "cpuThrottled";
+
+	private static final int CPU_PERIOD_US = 100000;
+	private static final long CGROUP_EMPTY_TIMEOUT_MS = 1000;
+	private static final long CGROUP_EMPTY_POLL_MS = 5;
+
+	private static final AtomicInteger instanceCounter = new AtomicInteger(0);
+	private static volatile File cgroupRoot = new File("/sys/fs/cgroup/mPutF");
+	private static Logger staticLogger = LogManager.getLogger("Sandbox");
+
+
+	/**
+	 * A single isolated execution environment (one per test attempt)
+	 */
+	public class Instance
+	{
+		private final File workingDir;
+		private final File cgroupDir;
+
+		private Instance(File workingDirIn, File cgroupDirIn)
+		{
+			this.workingDir = workingDirIn;
+			this.cgroupDir = cgroupDirIn;
+		}
+
+
+		/**
+		 * @return the working directory for the process, or NULL to inherit ours
+		 */
+		public File getWorkingDir()
+		{
+			return this.workingDir;
+		}
+
+
+		/**
+		 * Wraps the given command line such that the process
+		 * is started within this instance's cgroup (if any)
+		 *
+		 * @param executableIn the command line of the test
+		 *
+		 * @return the command line to actually execute
+		 */
+		public String[] wrapCommand(String executableIn)
+		{
+			List<String> retVal = new ArrayList<String>();
+			if( this.cgroupDir != null )
+			{
+				// join the cgroup _before_ exec'ing so no child can escape it
+				retVal.add("/bin/sh");
+				retVal.add("-c");
+				retVal.add("echo $$ > \"$0\" && exec \"$@\"");
+				retVal.add(new File(this.cgroupDir, "cgroup.procs").getAbsolutePath());
+			}
+			StringTokenizer st = new StringTokenizer(executableIn);
+			while( st.hasMoreTokens() ) retVal.add(st.nextToken());
+
+			return retVal.toArray(new String[retVal.size()]);
+		}
+
+
+		/**
+		 * Determines whether a resource limit of this instance was breached
+		 * (must be called after the process has exited/been stopped)
+		 *
+		 * @param includeThrottlingIn true if CPU throttling should be reported
+		 * 		(it is normal for a quota to throttle, so this should only be
+		 * 		requested for tests which were stopped for taking too long)
+		 *
+		 * @return the error type ({@link #ERROR_TYPE_OOM_KILLED} or
+		 * 		{@link #ERROR_TYPE_CPU_THROTTLED}), or NULL if no limit was breached
+		 */
+		public String getLimitBreach(boolean includeThrottlingIn)
+		{
+			if( this.cgroupDir == null ) return null;
+
+			if( readStatValue(new File(this.cgroupDir, "memory.events"), "oom_kill") > 0 ) return ERROR_TYPE_OOM_KILLED;
+			if( includeThrottlingIn && (readStatValue(new File(this.cgroupDir, "cpu.stat"), "nr_throttled") > 0) ) return ERROR_TYPE_CPU_THROTTLED;
+			return null;
+		}
+
+
+		/**
+		 * Returns the CPU time used by all processes of this instance (must be
+		 * called after the process has exited/been stopped, before {@link #cleanup()})
+		 *
+		 * @return the CPU time (user + system) in milliseconds, or -1 if unknown (no cgroup)
+		 */
+		public long getCpuUsage_ms()
+		{
+			if( this.cgroupDir == null ) return -1;
+
+			long usage_us = readStatValue(new File(this.cgroupDir, "cpu.stat"), "usage_usec");
+			return (usage_us > 0) ? (usage_us / 1000) : -1;
+		}
+
+
+		/**
+		 * Returns the peak memory used by all processes of this instance (must be
+		 * called after the process has exited/been stopped, before {@link #cleanup()})
+		 *
+		 * @return the peak memory in bytes, or -1 if unknown (no cgroup, or linux older than 5.19)
+		 */
+		public long getPeakMemory_bytes()
+		{
+			if( this.cgroupDir == null ) return -1;
+
+			try
+			{
+				return Long.parseLong(new String(Files.readAllBytes(new File(this.cgroupDir, "memory.peak").toPath()), Charset.defaultCharset()).trim());
+			}
+			catch( IOException | NumberFormatException e )
+			{
+				return -1;
+			}
+		}
+
+
+		/**
+		 * Kills any processes left in this instance and removes its
+		 * cgroup and temporary directory
+		 */
+		public void cleanup()
+		{
+			if( this.cgroupDir != null )
+			{
+				// cgroup.kill requires linux 5.14+...the rmdir will fail if anything survived
+				writeFile(new File(this.cgroupDir, "cgroup.kill"), "1");
+				this.waitUntilEmpty();
+				if( !this.cgroupDir.delete() ) staticLogger.warn(String.format("unable to remove cgroup '%s'", this.cgroupDir.getAbsolutePath()));
+			}
+			if( this.workingDir != null )
+			{
+				try
+				{
+					FileUtils.deleteDirectory(this.workingDir);
+				}
+				catch( IOException e )
+				{
+					staticLogger.warn(String.format("unable to remove '%s': %s", this.workingDir.getAbsolutePath(), e.getMessage()));
+				}
+			}
+		}
+
+
+		private void waitUntilEmpty()
+		{
+			// the kill is asynchronous...the cgroup can't be removed until its last process is gone
+			// (the wait is short and bounded, so it isn't cut short if we are being interrupted)
+			File eventsFile = new File(this.cgroupDir, "cgroup.events");
+			long deadline_ms = System.currentTimeMillis() + CGROUP_EMPTY_TIMEOUT_MS;
+			boolean wasInterrupted = false;
+			while( (readStatValue(eventsFile, "populated") != 0) && (System.currentTimeMillis() < deadline_ms) )
+			{
+				try
+				{
+					Thread.sleep(CGROUP_EMPTY_POLL_MS);
+				}
+				catch( InterruptedException e )
+				{
+					wasInterrupted = true;
+				}
+			}
+			if( wasInterrupted ) Thread.currentThread().interrupt();
+		}
+	}
+
+
+	private final boolean useTempDir;
+	private final Double cpus;
+	private final Integer memoryMax_mb;
+
+
+	private Sandbox(boolean useTempDirIn, Double cpusIn, Integer memoryMax_mbIn)
+	{
+		this.useTempDir = useTempDirIn;
+		this.cpus = cpusIn;
+		this.memoryMax_mb = memoryMax_mbIn;
+	}
+
+
+	/**
+	 * Creates a new isolated environment for a single test attempt
+	 *
+	 * @param testNameIn the name of the test (used to name the directory/cgroup)
+	 *
+	 * @return the new instance
+	 * @throws IOException on error creating the temporary directory
+	 */
+	public Instance createInstance(String testNameIn) throws IOException
+	{
+		String instanceName = String.format("mPutF-%s-%d", testNameIn.replaceAll("[^A-Za-z0-9_.-]", "_"), instanceCounter.incrementAndGet());
+
+		File workingDir = this.useTempDir ? Files.createTempDirectory(instanceName).toFile() : null;
+		File cgroupDir = null;
+		if( (this.cpus != null) || (this.memoryMax_mb != null) )
+		{
+			cgroupDir = this.createCgroup(instanceName);
+		}
+
+		return new Instance(workingDir, cgroupDir);
+	}
+
+
+	private File createCgroup(String instanceNameIn)
+	{
+		File root = cgroupRoot;
+		if( !new File(root, "cgroup.controllers").exists() )
+		{
+			staticLogger.warn(String.format("'%s' is not a cgroup v2 directory...running without resource limits", root.getAbsolutePath()));
+			return null;
+		}
+
+		// enable the controllers we need for our children (harmless if already enabled)
+		writeFile(new File(root, "cgroup.subtree_control"), "+cpu +memory");
+
+		File retVal = new File(root, instanceNameIn);
+		if( !retVal.mkdir() )
+		{
+			staticLogger.warn(String.format("unable to create cgroup '%s'...running without resource limits", retVal.getAbsolutePath()));
+			return null;
+		}
+
+		boolean limitsApplied = true;
+		if( this.cpus != null ) limitsApplied &= writeFile(new File(retVal, "cpu.max"), String.format("%d %d", (long)(this.cpus * CPU_PERIOD_US), CPU_PERIOD_US));
+		if( this.memoryMax_mb != null )
+		{
+			limitsApplied &= writeFile(new File(retVal, "memory.max"), String.valueOf(this.memoryMax_mb * 1024L * 1024L));
+			// a limit breach should kill the test, not push it into swap
+			writeFile(new File(retVal, "memory.swap.max"), "0");
+		}
+		if( !limitsApplied ) staticLogger.warn(String.format("unable to apply all limits to cgroup '%s'", retVal.getAbsolutePath()));
+
+		return retVal;
+	}
+
+
+	/**
+	 * Sets the (delegated) cgroup v2 directory below which per-test cgroups are created
+	 *
+	 * @param rootIn the cgroup directory
+	 */
+	public static void setCgroupRoot(File rootIn)
+	{
+		cgroupRoot = rootIn;
+	}
+
+
+	/**
+	 * @return the cgroup v2 directory below which per-test cgroups are created
+	 */
+	public static File getCgroupRoot()
+	{
+		return cgroupRoot;
+	}
+
+
+	/**
+	 * Writes these isolation options in a compact binary form (see {@link #readFrom(DataInput)})
+	 *
+	 * @param outIn the destination of the options
+	 *
+	 * @throws IOException on error writing the options
+	 */
+	public void writeTo(DataOutput outIn) throws IOException
+	{
+		outIn.writeBoolean(this.useTempDir);
+		outIn.writeDouble((this.cpus != null) ? this.cpus : -1);
+		outIn.writeInt((this.memoryMax_mb != null) ? this.memoryMax_mb : -1);
+	}
+
+
+	/**
+	 * Restores isolation options written with {@link #writeTo(DataOutput)}
+	 *
+	 * @param inIn the source of the options
+	 *
+	 * @return the restored sandbox
+	 * @throws IOException on error reading the options
+	 */
+	public static Sandbox readFrom(DataInput inIn) throws IOException
+	{
+		boolean useTempDir = inIn.readBoolean();
+		double cpus = inIn.readDouble();
+		int memoryMax_mb = inIn.readInt();
+
+		return new Sandbox(useTempDir, ((cpus > 0) ? cpus : null), ((memoryMax_mb > 0) ? memoryMax_mb : null));
+	}
+
+
+	/**
+	 * Parses the isolation options from the given XML {@link Node}
+	 *
+	 * @param xmlFileIn the XML file from which the options are being parsed
+	 * @param testNameIn the name of the test for which the options are being parsed
+	 * @param isolationNodeIn the {@link Node} describing the isolation options
+	 *
+	 * @return the parsed sandbox
+	 * @throws ParseException on error parsing the isolation options
+	 */
+	public static Sandbox parseSandbox(File xmlFileIn, String testNameIn, Node isolationNodeIn) throws ParseException
+	{
+		NamedNodeMap attributes = isolationNodeIn.getAttributes();
+		Node tempDirNode = attributes.getNamedItem(ATTR_TEMP_DIR);
+		Node cpusNode = attributes.getNamedItem(ATTR_CPUS);
+		Node memoryMaxNode = attributes.getNamedItem(ATTR_MEMORY_MAX);
+
+		boolean useTempDir = (tempDirNode == null) || Boolean.parseBoolean(tempDirNode.getNodeValue());
+		Double cpus = null;
+		Integer memoryMax_mb = null;
+		try
+		{
+			if( cpusNode != null ) cpus = Double.parseDouble(cpusNode.getNodeValue());
+		}
+		catch( NumberFormatException e ) { }
+		if( (cpusNode != null) && ((cpus == null) || (cpus <= 0)) )
+		{
+			throw new ParseException(xmlFileIn, testNameIn, String.format("error parsing attribute '%s'::'%s'", ATTR_CPUS, cpusNode.getNodeValue()));
+		}
+		try
+		{
+			if( memoryMaxNode != null ) memoryMax_mb = Integer.parseInt(memoryMaxNode.getNodeValue());
+		}
+		catch( NumberFormatException e ) { }
+		if( (memoryMaxNode != null) && ((memoryMax_mb == null) || (memoryMax_mb <= 0)) )
+		{
+			throw new ParseException(xmlFileIn, testNameIn, String.format("error parsing attribute '%s'::'%s'", ATTR_MEMORY_MAX, memoryMaxNode.getNodeValue()));
+		}
+
+		return new Sandbox(useTempDir, cpus, memoryMax_mb);
+	}
+
+
+	private static long readStatValue(File fileIn, String keyIn)
+	{
+		try
+		{
+			for( String currLine : Files.readAllLines(fileIn.toPath(), Charset.defaultCharset()) )
+			{
+				String[] fields = currLine.trim().split("\\s+");
+				if( (fields.length == 2) && fields[0].equals(keyIn) ) return Long.parseLong(fields[1]);
+			}
+		}
+		catch( IOException | NumberFormatException e ) { }
+		return 0;
+	}
+
+
+	private static boolean writeFile(File fileIn, String contentIn)
+	{
+		try
+		{
+			FileUtils.writeStringToFile(fileIn, contentIn);
+			return true;
+		}
+		catch( IOException e )
+		{
+			return false;
+		}
+	}
+}
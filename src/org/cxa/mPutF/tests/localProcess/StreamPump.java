@@ -0,0 +1,202 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.localProcess;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A {@link Runnable} which drains a single output stream of a process
+ * (so the process never blocks on a full pipe), captures it (optionally
+ * keeping only a bounded tail) and passes each chunk to an optional
+ * {@link OutputListener} as it arrives. Output which doesn't come from an
+ * {@link InputStream} (eg. received over the network) can be pushed into
+ * a pump instead.
+ *
+ * @author Christopher Armenio
+ */
+public class StreamPump implements Runnable
+{
+	private static final int CHUNK_SIZE = 8192;
+
+
+	/**
+	 * Notified (from the pump thread) of the output of a process as it arrives
+	 */
+	public interface OutputListener
+	{
+		/**
+		 * Called for each chunk of output, in order
+		 *
+		 * @param bufIn buffer containing the output (only valid during this call)
+		 * @param lenIn the number of valid bytes in the buffer
+		 */
+		public abstract void outputReceived(byte[] bufIn, int lenIn);
+
+		/**
+		 * Called once the stream has been closed (ie. all output has been received)
+		 */
+		public abstract void outputClosed();
+	}
+
+
+	private final InputStream inputStream;
+	private final OutputListener listener;
+	private final int maxCaptureBytes;
+
+	private final ByteArrayOutputStream capture = new ByteArrayOutputStream();
+	private byte[] tailBuffer = null;
+	private int tailPos = 0;
+	private long totalBytes = 0;
+
+
+	/**
+	 * Creates a pump for the given stream
+	 *
+	 * @param inputStreamIn the stream to drain
+	 * @param listenerIn notified of each chunk of output (may be NULL)
+	 * @param maxCaptureBytesIn the maximum number of bytes to capture (only the
+	 * 		last bytes are kept), or a negative value to capture everything
+	 */
+	public StreamPump(InputStream inputStreamIn, OutputListener listenerIn, int maxCaptureBytesIn)
+	{
+		this.inputStream = inputStreamIn;
+		this.listener = listenerIn;
+		this.maxCaptureBytes = maxCaptureBytesIn;
+		if( this.maxCaptureBytes >= 0 ) this.tailBuffer = new byte[this.maxCaptureBytes];
+	}
+
+
+	/**
+	 * Creates a pump to which output is pushed (via {@link #outputReceived(byte[], int)}
+	 * and {@link #outputClosed()}) rather than read from a stream
+	 *
+	 * @param listenerIn notified of each chunk of output (may be NULL)
+	 * @param maxCaptureBytesIn the maximum number of bytes to capture (only the
+	 * 		last bytes are kept), or a negative value to capture everything
+	 */
+	public StreamPump(OutputListener listenerIn, int maxCaptureBytesIn)
+	{
+		this(null, listenerIn, maxCaptureBytesIn);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		byte[] buf = new byte[CHUNK_SIZE];
+		try
+		{
+			int numBytes;
+			while( (numBytes = this.inputStream.read(buf)) != -1 )
+			{
+				this.outputReceived(buf, numBytes);
+			}
+		}
+		catch( IOException e )
+		{
+			// stream was closed out from underneath us (process destroyed)...
+		}
+		finally
+		{
+			try { this.inputStream.close(); } catch( IOException e ) { }
+			this.outputClosed();
+		}
+	}
+
+
+	/**
+	 * Captures (and passes on) a chunk of output
+	 *
+	 * @param bufIn buffer containing the output (only valid during this call)
+	 * @param lenIn the number of valid bytes in the buffer
+	 */
+	public void outputReceived(byte[] bufIn, int lenIn)
+	{
+		this.capture(bufIn, lenIn);
+		if( this.listener != null ) this.listener.outputReceived(bufIn, lenIn);
+	}
+
+
+	/**
+	 * Signals the end of the output (ie. all output has been received)
+	 */
+	public void outputClosed()
+	{
+		if( this.listener != null ) this.listener.outputClosed();
+	}
+
+
+	/**
+	 * Returns the captured output, decoded as UTF-8 (must only be called once
+	 * the pump has finished)
+	 *
+	 * @return the captured output, prefixed with a note if it has been truncated
+	 */
+	public synchronized String getCapturedText()
+	{
+		if( this.tailBuffer == null ) return new String(this.capture.toByteArray(), StandardCharsets.UTF_8);
+		if( this.totalBytes <= this.tailBuffer.length ) return new String(this.tailBuffer, 0, (int)this.totalBytes, StandardCharsets.UTF_8);
+
+		// un-roll the ring buffer
+		byte[] tail = new byte[this.tailBuffer.length];
+		int firstLen = this.tailBuffer.length - this.tailPos;
+		System.arraycopy(this.tailBuffer, this.tailPos, tail, 0, firstLen);
+		System.arraycopy(this.tailBuffer, 0, tail, firstLen, this.tailPos);
+
+		// the tail may start part-way through a character...skip the rest of it (continuation bytes are 10xxxxxx)
+		int start = 0;
+		while( (start < tail.length) && ((tail[start] & 0xC0) == 0x80) ) start++;
+		return String.format("[...%d bytes truncated...]", this.totalBytes - tail.length + start) + new String(tail, start, tail.length - start, StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * @return the total number of bytes read from the stream so far
+	 */
+	public synchronized long getTotalBytes()
+	{
+		return this.totalBytes;
+	}
+
+
+	private synchronized void capture(byte[] bufIn, int lenIn)
+	{
+		this.totalBytes += lenIn;
+		if( this.tailBuffer == null )
+		{
+			this.capture.write(bufIn, 0, lenIn);
+			return;
+		}
+		if( this.tailBuffer.length == 0 ) return;
+
+		// only the last tailBuffer.length bytes of this chunk can survive
+		int offset = Math.max(0, lenIn - this.tailBuffer.length);
+		while( offset < lenIn )
+		{
+			int copyLen = Math.min(lenIn - offset, this.tailBuffer.length - this.tailPos);
+			System.arraycopy(bufIn, offset, this.tailBuffer, this.tailPos, copyLen);
+			this.tailPos = (this.tailPos + copyLen) % this.tailBuffer.length;
+			offset += copyLen;
+		}
+	}
+}
@@ -15,9 +15,14 @@
  */
 package org.cxa.mPutF.tests.localProcess;
 
-import java.io.IOException;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.cxa.mPutF.tests.localProcess.LocalProcessTest.TestOutput;
@@ -31,11 +36,21 @@ import org.cxa.mPutF.tests.localProcess.LocalProcessTest.TestOutput;
  */
 public class TestRunner implements Runnable
 {		
-	private final String executable;
+	private final String[] command;
+	private final File workingDir;
 	private final Thread runThread;
 	
+	private StreamPump.OutputListener stdoutListener = null;
+	private StreamPump.OutputListener stderrListener = null;
+	private int maxStdoutCaptureBytes = -1;
+	private int maxStderrCaptureBytes = -1;
+	private final Map<String, String> extraEnvironment = new HashMap<String, String>();
+	private Runnable finishListener = null;
+	private boolean leavesBackgroundProcesses = false;
+	
 	private Logger logger = null;
-	private TestOutput result = null;
+	private volatile TestOutput result = null;
+	private volatile Integer pid = null;
 	
 	
 	/**
@@ -47,13 +62,113 @@ public class TestRunner implements Runnable
 	 */
 	public TestRunner(String executableIn)
 	{
-		this.executable = executableIn;
-		this.runThread = new Thread(this);
+		this(tokenize(executableIn), null);
+	}
+	
+	
+	/**
+	 * Initializes the test runner with the given command
+	 * 
+	 * @param commandIn the executable followed by its (already tokenized) arguments
+	 * @param workingDirIn the working directory of the process, or NULL to
+	 * 		inherit the working directory of mPutF
+	 */
+	public TestRunner(String[] commandIn, File workingDirIn)
+	{
+		this.command = commandIn;
+		this.workingDir = workingDirIn;
+		this.runThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					TestRunner.this.run();
+				}
+				finally
+				{
+					if( finishListener != null ) finishListener.run();
+				}
+			}
+		});
 		
 		this.logger = LogManager.getLogger(this.getClass().getSimpleName());
 	}
 	
 	
+	/**
+	 * Sets the listener which is notified of the stdout of the process as it
+	 * arrives (must be called before {@link #startTest()})
+	 * 
+	 * @param listenerIn the listener (may be NULL)
+	 * @param maxCaptureBytesIn the maximum number of (trailing) stdout bytes to keep
+	 * 		for {@link #getTestOutput()}, or a negative value to keep everything
+	 */
+	public void setStdoutListener(StreamPump.OutputListener listenerIn, int maxCaptureBytesIn)
+	{
+		this.stdoutListener = listenerIn;
+		this.maxStdoutCaptureBytes = maxCaptureBytesIn;
+	}
+	
+	
+	/**
+	 * Sets the listener which is notified of the stderr of the process as it
+	 * arrives (must be called before {@link #startTest()})
+	 * 
+	 * @param listenerIn the listener (may be NULL)
+	 * @param maxCaptureBytesIn the maximum number of (trailing) stderr bytes to keep
+	 * 		for {@link #getTestOutput()}, or a negative value to keep everything
+	 */
+	public void setStderrListener(StreamPump.OutputListener listenerIn, int maxCaptureBytesIn)
+	{
+		this.stderrListener = listenerIn;
+		this.maxStderrCaptureBytes = maxCaptureBytesIn;
+	}
+	
+	
+	/**
+	 * Adds (or overrides) an environment variable of the process, which
+	 * otherwise inherits the environment of mPutF (must be called before
+	 * {@link #startTest()})
+	 * 
+	 * @param nameIn the name of the variable
+	 * @param valueIn the value of the variable
+	 */
+	public void setEnvironmentVariable(String nameIn, String valueIn)
+	{
+		this.extraEnvironment.put(nameIn, valueIn);
+	}
+	
+	
+	/**
+	 * Sets the listener which is notified (from the testing thread) once the
+	 * process has finished and its output is available (must be called before
+	 * {@link #startTest()})
+	 * 
+	 * @param listenerIn the listener (may be NULL)
+	 */
+	public void setFinishListener(Runnable listenerIn)
+	{
+		this.finishListener = listenerIn;
+	}
+	
+	
+	/**
+	 * Sets whether the process may leave background processes behind (eg. the
+	 * setup of a fixture starting a daemon) which inherit its stdout and stderr.
+	 * If so, the process is finished as soon as it exits...its output is only
+	 * collected for a short while longer, rather than until both streams are
+	 * closed (must be called before {@link #startTest()})
+	 * 
+	 * @param leavesBackgroundProcessesIn true if the process may leave background processes behind
+	 */
+	public void setLeavesBackgroundProcesses(boolean leavesBackgroundProcessesIn)
+	{
+		this.leavesBackgroundProcesses = leavesBackgroundProcessesIn;
+	}
+	
+	
 	/**
 	 * Starts a thread that will run the process specified
 	 * in the {@link #TestRunner(String)}
@@ -76,6 +191,21 @@ public class TestRunner implements Runnable
 	}
 	
 	
+	/**
+	 * Waits for the thread/process to finish
+	 * 
+	 * @param timeout_msIn the maximum time to wait, in milliseconds (0 to wait forever)
+	 * 
+	 * @return true if the thread/process finished, false if it is still running
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean waitForFinish(long timeout_msIn) throws InterruptedException
+	{
+		this.runThread.join(timeout_msIn);
+		return !this.runThread.isAlive();
+	}
+	
+	
 	/**
 	 * Forcefully causes the thread/process to terminate
 	 */
@@ -104,6 +234,84 @@ public class TestRunner implements Runnable
 	}
 	
 	
+	/**
+	 * Returns the process id of the process while it is running (eg. to
+	 * measure its resource usage)
+	 * 
+	 * @return the process id, or NULL if the process isn't running (or its id is unknown)
+	 */
+	public Integer getPid()
+	{
+		return this.pid;
+	}
+	
+	
+	/**
+	 * Sets the process id of the running process (see {@link #getPid()})
+	 * 
+	 * @param pidIn the process id, or NULL once the process has exited
+	 */
+	protected void setPid(Integer pidIn)
+	{
+		this.pid = pidIn;
+	}
+	
+	
+	/**
+	 * @return the executable followed by its arguments
+	 */
+	protected String[] getCommand()
+	{
+		return this.command.clone();
+	}
+	
+	
+	/**
+	 * @return the environment variables added by {@link #setEnvironmentVariable(String, String)}
+	 */
+	protected Map<String, String> getExtraEnvironment()
+	{
+		return Collections.unmodifiableMap(this.extraEnvironment);
+	}
+	
+	
+	/**
+	 * Creates the pump for the stdout of the process (honoring the stdout listener)
+	 * 
+	 * @param inputStreamIn the stdout of the process, or NULL if the output will be pushed
+	 * 
+	 * @return the new pump
+	 */
+	protected StreamPump createStdoutPump(InputStream inputStreamIn)
+	{
+		return new StreamPump(inputStreamIn, this.stdoutListener, this.maxStdoutCaptureBytes);
+	}
+	
+	
+	/**
+	 * Creates the pump for the stderr of the process (honoring the stderr listener)
+	 * 
+	 * @param inputStreamIn the stderr of the process, or NULL if the output will be pushed
+	 * 
+	 * @return the new pump
+	 */
+	protected StreamPump createStderrPump(InputStream inputStreamIn)
+	{
+		return new StreamPump(inputStreamIn, this.stderrListener, this.maxStderrCaptureBytes);
+	}
+	
+	
+	/**
+	 * Sets the output of running this test (must be called from {@link #run()})
+	 * 
+	 * @param resultIn the output of the test
+	 */
+	protected void setTestOutput(TestOutput resultIn)
+	{
+		this.result = resultIn;
+	}
+	
+	
 	/* (non-Javadoc)
 	 * @see java.lang.Runnable#run()
 	 */
@@ -112,32 +320,57 @@ public class TestRunner implements Runnable
 	{
 		TestOutput tmpResult = null;
 		Process p = null;
+		StreamPump stdoutPump = null;
+		StreamPump stderrPump = null;
+		Thread stdoutThread = null;
+		Thread stderrThread = null;
 		
 		try
 		{
 			this.logger.trace("testing thread started...running executable");
-			p = Runtime.getRuntime().exec(this.executable);
+			p = Runtime.getRuntime().exec(this.command, this.getEnvironment(), this.workingDir);
+			this.setPid(getPid(p));
+			
+			// drain both streams while the process runs (so it can never block on a full pipe)
+			stdoutPump = this.createStdoutPump(p.getInputStream());
+			stderrPump = this.createStderrPump(p.getErrorStream());
+			stdoutThread = new Thread(stdoutPump, this.runThread.getName() + "-stdout");
+			stderrThread = new Thread(stderrPump, this.runThread.getName() + "-stderr");
+			
+			// (a pump left draining the output of a background process must not keep the JVM alive)
+			stdoutThread.setDaemon(this.leavesBackgroundProcesses);
+			stderrThread.setDaemon(this.leavesBackgroundProcesses);
+			stdoutThread.start();
+			stderrThread.start();
+			
 			this.logger.trace("executable started...waiting for finish");
 			p.waitFor();
+			this.setPid(null);
 			this.logger.trace("executable finished");
 			
-			// read our streams and create our result
-			tmpResult = new TestOutput(p.exitValue(), IOUtils.toString(p.getInputStream()), IOUtils.toString(p.getErrorStream()));
+			// wait for the rest of our streams and create our result
+			if( this.leavesBackgroundProcesses )
+			{
+				// a background process may hold the streams open for as long as it runs
+				tmpResult = new TestOutput(p.exitValue(), joinPump(stdoutThread, stdoutPump), joinPump(stderrThread, stderrPump));
+			}
+			else
+			{
+				stdoutThread.join();
+				stderrThread.join();
+				tmpResult = new TestOutput(p.exitValue(), stdoutPump.getCapturedText(), stderrPump.getCapturedText());
+			}
 		}
 		catch (Exception e)
 		{
 			this.logger.warn(String.format("error '%s'", e.getMessage()));
 			
-			// there was an error at some point...see if we can recover our streams
-			String stdout = null;
-			String stderr = null;
-			
-			try
-			{
-				if( p != null ) stdout = IOUtils.toString(p.getInputStream());
-				if( p != null ) stderr = IOUtils.toString(p.getErrorStream());
-			}
-			catch( IOException e1 ) {}
+			// there was an error at some point (or we were stopped)...make sure the
+			// process is dead, then recover what we can of our streams
+			this.setPid(null);
+			if( p != null ) p.destroy();
+			String stdout = joinPump(stdoutThread, stdoutPump);
+			String stderr = joinPump(stderrThread, stderrPump);
 			
 			// save our exception for later processing
 			tmpResult = new TestOutput(e, stdout, stderr);
@@ -151,5 +384,78 @@ public class TestRunner implements Runnable
 		
 		this.logger.trace("testing thread finished");
 	}
-
+	
+	
+	private String[] getEnvironment()
+	{
+		// NULL inherits our environment as-is
+		if( this.extraEnvironment.isEmpty() ) return null;
+		
+		Map<String, String> env = new HashMap<String, String>(System.getenv());
+		env.putAll(this.extraEnvironment);
+		String[] retVal = new String[env.size()];
+		int i = 0;
+		for( Map.Entry<String, String> currEntry : env.entrySet() )
+		{
+			retVal[i++] = String.format("%s=%s", currEntry.getKey(), currEntry.getValue());
+		}
+		return retVal;
+	}
+	
+	
+	private static Integer getPid(Process processIn)
+	{
+		// Process.pid() is only available from Java 9 on...before that, it's a field of the implementation
+		try
+		{
+			return ((Number)Process.class.getMethod("pid").invoke(processIn)).intValue();
+		}
+		catch( Exception e ) { }
+		try
+		{
+			Field pidField = processIn.getClass().getDeclaredField("pid");
+			pidField.setAccessible(true);
+			return pidField.getInt(processIn);
+		}
+		catch( Exception e )
+		{
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * Waits (briefly) for the given pump to finish, after an error (or once a
+	 * process which may leave background processes behind has exited)
+	 * 
+	 * @param threadIn the thread running the pump (may be null)
+	 * @param pumpIn the pump (may be null)
+	 * 
+	 * @return the text captured by the pump so far (null if there is no pump)
+	 */
+	static String joinPump(Thread threadIn, StreamPump pumpIn)
+	{
+		if( (threadIn == null) || (pumpIn == null) ) return null;
+		
+		// a grand-child process may hold the pipe open...don't wait on it forever
+		try
+		{
+			threadIn.join(1000);
+		}
+		catch( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		return pumpIn.getCapturedText();
+	}
+	
+	
+	private static String[] tokenize(String executableIn)
+	{
+		// same tokenization as Runtime.exec(String)
+		StringTokenizer st = new StringTokenizer(executableIn);
+		String[] retVal = new String[st.countTokens()];
+		for( int i = 0; st.hasMoreTokens(); i++ ) retVal[i] = st.nextToken();
+		return retVal;
+	}
 }
@@ -0,0 +1,202 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.localProcess;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for the first of the events which end a single attempt of a process
+ * test: the process finishing, its output not matching, or one of its timers
+ * (test timeout, inactivity timeout, suite time budget) expiring.
+ * <p>
+ * The timers of <i>all</i> watchdogs are driven by a single (shared)
+ * scheduler thread, and the waiting thread sleeps until it is woken by one
+ * of the events...nothing is polled. Periodic tasks (eg. resource sampling)
+ * run on a separate (also shared) thread, so that they never delay a timer.
+ *
+ * @author Christopher Armenio
+ */
+class Watchdog
+{
+	/**
+	 * The events which end an attempt
+	 */
+	enum Trigger
+	{
+		FINISHED,
+		MISMATCH,
+		TIMEOUT,
+		INACTIVITY,
+		BUDGET_EXHAUSTED
+	}
+
+
+	private static final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable rIn)
+		{
+			Thread retVal = new Thread(rIn, "watchdog");
+			retVal.setDaemon(true);
+			return retVal;
+		}
+	});
+	private static final ScheduledThreadPoolExecutor periodicScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+	{
+		@Override
+		public Thread newThread(Runnable rIn)
+		{
+			Thread retVal = new Thread(rIn, "watchdogPeriodic");
+			retVal.setDaemon(true);
+			return retVal;
+		}
+	});
+	static
+	{
+		// most timers are cancelled (the test finishes first)...don't let them pile up
+		scheduler.setRemoveOnCancelPolicy(true);
+		periodicScheduler.setRemoveOnCancelPolicy(true);
+	}
+
+
+	private final List<ScheduledFuture<?>> timers = new ArrayList<ScheduledFuture<?>>();
+	private ScheduledFuture<?> inactivityTimer = null;
+	private long inactivityTimeout_ns = -1;
+	private volatile long lastActivity_ns;
+	private Trigger trigger = null;
+
+
+	/**
+	 * Trips the given trigger once the given time has elapsed
+	 *
+	 * @param timeout_msIn the time from now, in milliseconds
+	 * @param triggerIn the trigger to trip
+	 */
+	synchronized void setTimeout(long timeout_msIn, final Trigger triggerIn)
+	{
+		this.timers.add(scheduler.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				trip(triggerIn);
+			}
+		}, timeout_msIn, TimeUnit.MILLISECONDS));
+	}
+
+
+	/**
+	 * Runs the given task periodically until the first trigger is tripped. The
+	 * periodic tasks of all watchdogs share a single thread, and a run never
+	 * overlaps the previous one. Note: a task which throws is not run again.
+	 *
+	 * @param taskIn the task to run
+	 * @param period_msIn the time between runs, in milliseconds
+	 */
+	synchronized void setPeriodicTask(Runnable taskIn, long period_msIn)
+	{
+		this.timers.add(periodicScheduler.scheduleWithFixedDelay(taskIn, 0, period_msIn, TimeUnit.MILLISECONDS));
+	}
+
+
+	/**
+	 * Trips {@link Trigger#INACTIVITY} once no activity (see {@link #activity()})
+	 * has been reported for the given time
+	 *
+	 * @param timeout_msIn the maximum time between activity, in milliseconds
+	 */
+	synchronized void setInactivityTimeout(long timeout_msIn)
+	{
+		this.inactivityTimeout_ns = TimeUnit.MILLISECONDS.toNanos(timeout_msIn);
+		this.lastActivity_ns = System.nanoTime();
+		this.scheduleInactivityCheck(this.inactivityTimeout_ns);
+	}
+
+
+	/**
+	 * Reports activity (eg. output) of the process...this is called for every
+	 * chunk of output, so it only records the time (the inactivity timer checks
+	 * it when it expires, rather than being rescheduled every time)
+	 */
+	void activity()
+	{
+		this.lastActivity_ns = System.nanoTime();
+	}
+
+
+	/**
+	 * Trips the given trigger (if no trigger has been tripped yet), waking the waiting thread
+	 *
+	 * @param triggerIn the trigger
+	 */
+	synchronized void trip(Trigger triggerIn)
+	{
+		if( this.trigger != null ) return;
+		this.trigger = triggerIn;
+		this.notifyAll();
+	}
+
+
+	/**
+	 * Waits for the first trigger, then cancels all timers
+	 *
+	 * @return the first trigger which was tripped
+	 * @throws InterruptedException if interrupted while waiting (the timers are cancelled)
+	 */
+	synchronized Trigger await() throws InterruptedException
+	{
+		try
+		{
+			while( this.trigger == null ) this.wait();
+			return this.trigger;
+		}
+		finally
+		{
+			for( ScheduledFuture<?> currTimer : this.timers ) currTimer.cancel(false);
+			this.timers.clear();
+			if( this.inactivityTimer != null ) this.inactivityTimer.cancel(false);
+			this.inactivityTimeout_ns = -1;
+		}
+	}
+
+
+	private synchronized void scheduleInactivityCheck(long delay_nsIn)
+	{
+		this.inactivityTimer = scheduler.schedule(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				checkInactivity();
+			}
+		}, delay_nsIn, TimeUnit.NANOSECONDS);
+	}
+
+
+	private synchronized void checkInactivity()
+	{
+		if( (this.trigger != null) || (this.inactivityTimeout_ns < 0) ) return;
+
+		long idle_ns = System.nanoTime() - this.lastActivity_ns;
+		if( idle_ns >= this.inactivityTimeout_ns ) this.trip(Trigger.INACTIVITY);
+		else this.scheduleInactivityCheck(this.inactivityTimeout_ns - idle_ns);
+	}
+}
@@ -0,0 +1,311 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.remoteProcess;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.agent.AgentProtocol;
+import org.cxa.mPutF.tests.localProcess.StreamPump;
+
+/**
+ * A connection to an mPutF agent (see {@link AgentProtocol}). A single
+ * connection is shared by all tests using the same agent: executions are
+ * multiplexed over it and a single reader thread routes the output of each
+ * execution to its pumps.
+ *
+ * @author Christopher Armenio
+ */
+class AgentConnection implements Runnable
+{
+	private static final int CONNECT_TIMEOUT_MS = 5000;
+
+
+	private static Logger staticLogger = LogManager.getLogger("AgentConnection");
+	private static final Map<String, AgentConnection> connections = new HashMap<String, AgentConnection>();
+
+
+	/**
+	 * A single execution started over this connection
+	 */
+	class Execution
+	{
+		private final int id;
+		private final StreamPump stdoutPump;
+		private final StreamPump stderrPump;
+
+		private boolean isFinished = false;
+		private Integer retCode = null;
+		private boolean isTimedOut = false;
+		private String failure = null;
+
+		private Execution(int idIn, StreamPump stdoutPumpIn, StreamPump stderrPumpIn)
+		{
+			this.id = idIn;
+			this.stdoutPump = stdoutPumpIn;
+			this.stderrPump = stderrPumpIn;
+		}
+
+		/**
+		 * Waits for the execution to finish (or fail)
+		 *
+		 * @throws InterruptedException if interrupted while waiting
+		 */
+		synchronized void waitFor() throws InterruptedException
+		{
+			while( !this.isFinished ) this.wait();
+		}
+
+		/**
+		 * Asks the agent to stop the process. No further output is delivered
+		 * to the pumps.
+		 */
+		void kill()
+		{
+			if( !this.finish() ) return;
+			try
+			{
+				sendFrame(AgentProtocol.FRAME_KILL, this.id, new byte[0]);
+			}
+			catch( IOException e )
+			{
+				// if the connection is gone, the agent stops the process anyways
+			}
+		}
+
+		/**
+		 * @return the exit code of the process, or NULL if it did not exit (see {@link #getFailure()})
+		 */
+		synchronized Integer getRetCode()
+		{
+			return this.retCode;
+		}
+
+		/**
+		 * @return true if the agent stopped the process because it timed out
+		 */
+		synchronized boolean isTimedOut()
+		{
+			return this.isTimedOut;
+		}
+
+		/**
+		 * @return why the execution failed (eg. could not be started, connection lost), or NULL
+		 */
+		synchronized String getFailure()
+		{
+			return this.failure;
+		}
+
+		private synchronized void outputReceived(byte typeIn, byte[] payloadIn)
+		{
+			if( this.isFinished ) return;
+			((typeIn == AgentProtocol.FRAME_STDOUT) ? this.stdoutPump : this.stderrPump).outputReceived(payloadIn, payloadIn.length);
+		}
+
+		private synchronized void exited(int retCodeIn, boolean isTimedOutIn)
+		{
+			if( !this.finish() ) return;
+			this.retCode = retCodeIn;
+			this.isTimedOut = isTimedOutIn;
+		}
+
+		private synchronized void failed(String failureIn)
+		{
+			if( !this.finish() ) return;
+			this.failure = failureIn;
+		}
+
+		private synchronized boolean finish()
+		{
+			if( this.isFinished ) return false;
+
+			this.isFinished = true;
+			this.stdoutPump.outputClosed();
+			this.stderrPump.outputClosed();
+			this.notifyAll();
+			executions.remove(this.id);
+			return true;
+		}
+	}
+
+
+	private final String key;
+	private final Socket socket;
+	private final DataInputStream inputStream;
+	private final DataOutputStream outputStream;
+	private final Map<Integer, Execution> executions = new ConcurrentHashMap<Integer, Execution>();
+	private final AtomicInteger nextExecutionId = new AtomicInteger(0);
+	private volatile boolean isClosed = false;
+
+
+	private AgentConnection(String keyIn, String hostIn, int portIn) throws IOException
+	{
+		this.key = keyIn;
+		this.socket = new Socket();
+		try
+		{
+			this.socket.connect(new InetSocketAddress(hostIn, portIn), CONNECT_TIMEOUT_MS);
+			this.socket.setTcpNoDelay(true);
+			this.inputStream = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+			this.outputStream = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+			AgentProtocol.handshake(this.inputStream, this.outputStream);
+		}
+		catch( IOException e )
+		{
+			this.socket.close();
+			throw new IOException(String.format("unable to connect to agent '%s': %s", keyIn, e.getMessage()));
+		}
+
+		Thread readerThread = new Thread(this, String.format("agent-%s", keyIn));
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+
+	/**
+	 * Returns the (shared) connection to the given agent, connecting if
+	 * there is no open connection
+	 *
+	 * @param hostIn the host on which the agent is running
+	 * @param portIn the port on which the agent is listening
+	 *
+	 * @return the connection
+	 * @throws IOException if the agent cannot be reached
+	 */
+	static AgentConnection get(String hostIn, int portIn) throws IOException
+	{
+		String key = String.format("%s:%d", hostIn, portIn);
+		synchronized(connections)
+		{
+			AgentConnection retVal = connections.get(key);
+			if( (retVal == null) || retVal.isClosed )
+			{
+				staticLogger.trace(String.format("connecting to agent '%s'", key));
+				retVal = new AgentConnection(key, hostIn, portIn);
+				connections.put(key, retVal);
+			}
+			return retVal;
+		}
+	}
+
+
+	/**
+	 * Starts an execution on the agent
+	 *
+	 * @param requestIn what to execute
+	 * @param stdoutPumpIn receives the stdout of the process
+	 * @param stderrPumpIn receives the stderr of the process
+	 *
+	 * @return the started execution
+	 * @throws IOException if the request cannot be sent
+	 */
+	Execution start(AgentProtocol.ExecRequest requestIn, StreamPump stdoutPumpIn, StreamPump stderrPumpIn) throws IOException
+	{
+		Execution retVal = new Execution(this.nextExecutionId.getAndIncrement(), stdoutPumpIn, stderrPumpIn);
+		this.executions.put(retVal.id, retVal);
+		try
+		{
+			this.sendFrame(AgentProtocol.FRAME_EXEC, retVal.id, requestIn.toPayload());
+		}
+		catch( IOException e )
+		{
+			this.executions.remove(retVal.id);
+			throw e;
+		}
+		// the connection may have been lost before we registered the execution
+		if( this.isClosed ) retVal.failed(String.format("connection to agent '%s' lost", this.key));
+
+		return retVal;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		String reason = "connection closed";
+		try
+		{
+			while( true )
+			{
+				AgentProtocol.Frame currFrame = AgentProtocol.readFrame(this.inputStream);
+				Execution execution = this.executions.get(currFrame.getExecutionId());
+				if( execution == null ) continue;				// killed (or unknown)...drop it
+
+				switch( currFrame.getType() )
+				{
+					case AgentProtocol.FRAME_STDOUT:
+					case AgentProtocol.FRAME_STDERR:
+						execution.outputReceived(currFrame.getType(), currFrame.getPayload());
+						break;
+
+					case AgentProtocol.FRAME_EXIT:
+						DataInputStream dis = currFrame.getPayloadStream();
+						execution.exited(dis.readInt(), dis.readBoolean());
+						break;
+
+					case AgentProtocol.FRAME_FAILED:
+						execution.failed(currFrame.getPayloadStream().readUTF());
+						break;
+
+					default:
+						throw new IOException(String.format("unexpected frame type %d", currFrame.getType()));
+				}
+			}
+		}
+		catch( IOException e )
+		{
+			reason = e.getMessage();
+		}
+
+		// fail everything still running (the agent stops it once it notices)
+		this.isClosed = true;
+		staticLogger.warn(String.format("connection to agent '%s' lost (%s)", this.key, reason));
+		synchronized(connections)
+		{
+			if( connections.get(this.key) == this ) connections.remove(this.key);
+		}
+		for( Execution currExecution : this.executions.values() )
+		{
+			currExecution.failed(String.format("connection to agent '%s' lost (%s)", this.key, reason));
+		}
+		try { this.socket.close(); } catch( IOException e ) { }
+	}
+
+
+	private void sendFrame(byte typeIn, int executionIdIn, byte[] payloadIn) throws IOException
+	{
+		synchronized(this.outputStream)
+		{
+			AgentProtocol.writeFrame(this.outputStream, typeIn, executionIdIn, payloadIn, payloadIn.length);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.remoteProcess;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
+import org.cxa.mPutF.ParseException;
+import org.cxa.mPutF.agent.AgentProtocol;
+import org.cxa.mPutF.tests.Test;
+import org.cxa.mPutF.tests.localProcess.ForkServer;
+import org.cxa.mPutF.tests.localProcess.LocalProcessTest;
+import org.cxa.mPutF.tests.localProcess.Profiler;
+import org.cxa.mPutF.tests.localProcess.ResultChannel;
+import org.cxa.mPutF.tests.localProcess.Sandbox;
+import org.cxa.mPutF.tests.localProcess.TestRunner;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * This is the implementation of a {@link Test} subclass which runs an
+ * executable/process on an mPutF agent (see {@link org.cxa.mPutF.agent.mPutF_agent}),
+ * possibly on another machine, and determines test results exactly like a
+ * {@link LocalProcessTest}. The agent enforces the timeout of the test.
+ *
+ * @author Christopher Armenio
+ */
+public class RemoteProcessTest extends LocalProcessTest
+{
+	public static final String TEST_TYPE_STR = "remoteProcess";
+	private static final String NODE_AGENT = "agent";
+
+	/** how long past the max test time we wait for the agent to report the timeout itself */
+	private static final long AGENT_TIMEOUT_GRACE_MS = 5000;
+
+
+	private String host = "127.0.0.1";
+	private int port = AgentProtocol.DEFAULT_PORT;
+
+
+	/**
+	 * Creates a remote process test from the given arguments
+	 *
+	 * @param nameIn the name of this test
+	 * @param descIn a user-friendly description of this test
+	 * @param maxTestTime_msIn max time, in milliseconds, for which this test should run
+	 * @param xmlFileIn the XML file from which this test was parsed
+	 * @param optsNodeIn a {@link Node} which contains the test options XML node
+	 *
+	 * @throws ParseException on error parsing the XML options for this test
+	 */
+	public RemoteProcessTest(String nameIn, String descIn, Integer maxTestTime_msIn, File xmlFileIn, Node optsNodeIn) throws ParseException
+	{
+		super(nameIn, descIn, maxTestTime_msIn, xmlFileIn, optsNodeIn);
+
+		NodeList childNodes = optsNodeIn.getChildNodes();
+		for( int i = 0; i < childNodes.getLength(); i++ )
+		{
+			Node currNode = childNodes.item(i);
+			if( currNode.getNodeName().equals(NODE_AGENT) )
+			{
+				this.parseAgent(xmlFileIn, currNode.getTextContent().trim());
+			}
+			else if( currNode.getNodeName().equals(Sandbox.NODE_NAME) || currNode.getNodeName().equals(ResultChannel.NODE_NAME) ||
+					currNode.getNodeName().equals(Profiler.NODE_NAME) || currNode.getNodeName().equals(ForkServer.NODE_NAME) )
+			{
+				// all are local to the machine running mPutF
+				throw new ParseException(xmlFileIn, this.getName(), String.format("'%s' is not supported by %s tests", currNode.getNodeName(), TEST_TYPE_STR));
+			}
+		}
+	}
+
+
+	/**
+	 * Restores a remote process test from a plan (see {@link Test#readPlan(File, DataInput)})
+	 *
+	 * @param nameIn the name of this test
+	 * @param descIn a user-friendly description of this test
+	 * @param maxTestTime_sIn max time, in seconds, for which this test should run
+	 * @param inIn the source of the options written by {@link #writeOptions(DataOutput)}
+	 *
+	 * @throws IOException on error reading the options
+	 */
+	public RemoteProcessTest(String nameIn, String descIn, Integer maxTestTime_sIn, DataInput inIn) throws IOException
+	{
+		super(nameIn, descIn, maxTestTime_sIn, inIn);
+
+		this.host = inIn.readUTF();
+		this.port = inIn.readInt();
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.localProcess.LocalProcessTest#getTestType()
+	 */
+	@Override
+	public String getTestType()
+	{
+		return TEST_TYPE_STR;
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.localProcess.LocalProcessTest#writeOptions(java.io.DataOutput)
+	 */
+	@Override
+	protected void writeOptions(DataOutput outIn) throws IOException
+	{
+		super.writeOptions(outIn);
+		outIn.writeUTF(this.host);
+		outIn.writeInt(this.port);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.localProcess.LocalProcessTest#createTestRunner(java.lang.String, org.cxa.mPutF.tests.localProcess.Sandbox.Instance)
+	 */
+	@Override
+	protected TestRunner createTestRunner(String executableIn, Sandbox.Instance sandboxInstanceIn)
+	{
+		int timeout_ms = (this.getMaxTextTime_s() != null) ? (this.getMaxTextTime_s() * 1000) : -1;
+		return new RemoteTestRunner(this.host, this.port, executableIn, timeout_ms);
+	}
+
+
+	/*
+	 * (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.localProcess.LocalProcessTest#getTimeoutGrace_ms()
+	 */
+	@Override
+	protected long getTimeoutGrace_ms()
+	{
+		return AGENT_TIMEOUT_GRACE_MS;
+	}
+
+
+	private void parseAgent(File xmlFileIn, String agentIn) throws ParseException
+	{
+		// host[:port]
+		int colonIndex = agentIn.lastIndexOf(':');
+		String host = (colonIndex >= 0) ? agentIn.substring(0, colonIndex) : agentIn;
+		if( host.isEmpty() ) throw new ParseException(xmlFileIn, this.getName(), String.format("invalid agent '%s'", agentIn));
+		this.host = host;
+		if( colonIndex < 0 ) return;
+
+		try
+		{
+			this.port = Integer.parseInt(agentIn.substring(colonIndex + 1));
+			if( (this.port <= 0) || (this.port > 65535) ) throw new NumberFormatException();
+		}
+		catch( NumberFormatException e )
+		{
+			throw new ParseException(xmlFileIn, this.getName(), String.format("invalid agent port '%s'", agentIn));
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013 opencxa.org
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cxa.mPutF.tests.remoteProcess;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.cxa.mPutF.agent.AgentProtocol;
+import org.cxa.mPutF.tests.localProcess.LocalProcessTest.TestOutput;
+import org.cxa.mPutF.tests.localProcess.StreamPump;
+import org.cxa.mPutF.tests.localProcess.TestRunner;
+
+/**
+ * A {@link TestRunner} which runs the process on an mPutF agent rather
+ * than locally (the output is streamed back as it arrives)
+ *
+ * @author Christopher Armenio
+ */
+class RemoteTestRunner extends TestRunner
+{
+	private final String host;
+	private final int port;
+	private final int timeout_ms;
+
+	private Logger logger = null;
+
+
+	/**
+	 * Initializes the test runner with the given executable
+	 *
+	 * @param hostIn the host on which the agent is running
+	 * @param portIn the port on which the agent is listening
+	 * @param executableIn the executable command to execute (on the agent's machine)
+	 * @param timeout_msIn the time after which the agent stops the process, or -1 for none
+	 */
+	RemoteTestRunner(String hostIn, int portIn, String executableIn, int timeout_msIn)
+	{
+		super(executableIn);
+		this.host = hostIn;
+		this.port = portIn;
+		this.timeout_ms = timeout_msIn;
+
+		this.logger = LogManager.getLogger(this.getClass().getSimpleName());
+	}
+
+
+	/* (non-Javadoc)
+	 * @see org.cxa.mPutF.tests.localProcess.TestRunner#run()
+	 */
+	@Override
+	public void run()
+	{
+		StreamPump stdoutPump = this.createStdoutPump(null);
+		StreamPump stderrPump = this.createStderrPump(null);
+		AgentConnection.Execution execution = null;
+		TestOutput tmpResult = null;
+
+		try
+		{
+			this.logger.trace(String.format("testing thread started...running executable on agent '%s:%d'", this.host, this.port));
+			execution = AgentConnection.get(this.host, this.port).start(new AgentProtocol.ExecRequest(this.getCommand(), this.getExtraEnvironment(), this.timeout_ms), stdoutPump, stderrPump);
+
+			this.logger.trace("executable started...waiting for finish");
+			execution.waitFor();
+			this.logger.trace("executable finished");
+
+			if( execution.getFailure() != null ) throw new IOException(execution.getFailure());
+			tmpResult = execution.isTimedOut() ? new TestOutput(stdoutPump.getCapturedText(), stderrPump.getCapturedText()) :
+						new TestOutput(execution.getRetCode(), stdoutPump.getCapturedText(), stderrPump.getCapturedText());
+		}
+		catch( Exception e )
+		{
+			this.logger.warn(String.format("error '%s'", e.getMessage()));
+
+			// there was an error at some point (or we were stopped)...make sure the
+			// process is stopped, then keep what we have of our streams
+			if( execution != null ) execution.kill();
+			tmpResult = new TestOutput(e, stdoutPump.getCapturedText(), stderrPump.getCapturedText());
+		}
+
+		// save our result
+		this.setTestOutput(tmpResult);
+
+		this.logger.trace("testing thread finished");
+	}
+}